@@ -2,51 +2,200 @@ package com.atakmap.android.arglasses;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.widget.Toast;
 
+import com.atakmap.android.arglasses.metrics.MetricsRegistry;
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+import com.atakmap.android.arglasses.protocol.FrameCompressor;
+import com.atakmap.android.arglasses.protocol.HelloReply;
+import com.atakmap.android.arglasses.protocol.Subscription;
+import com.atakmap.android.arglasses.transport.BluetoothTransport;
+import com.atakmap.android.arglasses.transport.LoopbackTransport;
+import com.atakmap.android.arglasses.transport.NioTcpTransport;
+import com.atakmap.android.arglasses.transport.Transport;
+import com.atakmap.android.arglasses.transport.UdpTransport;
 import com.atakmap.android.maps.MapView;
 import com.atakmap.coremap.log.Log;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Manages connections to AR Glasses devices.
- * Supports both Bluetooth and TCP/IP connections.
+ * Supports Bluetooth, TCP/IP and in-process loopback connections, and can
+ * send the compass over UDP next to a TCP connection.
+ *
+ * The connection moves between the STATE_* states on the connection
+ * thread only. A link that fails a write, blocks a write for too long or
+ * stops answering keepalive pings is closed and reconnected with jittered
+ * exponential backoff until {@link #disconnect()} is called.
+ *
+ * Glasses that answered the hello are read on a thread of their own:
+ * pongs, acks, their head pose and what they want sent, see
+ * {@link Subscription}. With glasses
+ * that acknowledge data frames only a window of unacknowledged bytes is
+ * written, see {@link InFlightFrames}, and the link latency runs until
+ * the glasses had the frame instead of until it was written.
  */
 public class ARGlassesConnectionManager {
-
+    
     private static final String TAG = "ARGlassesConnectionManager";
     
-    // UUID for Bluetooth Serial Port Profile (SPP)
-    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // Connection states
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_RECONNECTING = 3; // Waiting to retry a lost link
+    
+    // How often the glasses are pinged, and how long they may stay silent
+    // before the link counts as dead
+    private static final long KEEPALIVE_INTERVAL_MS = 1000;
+    private static final long LINK_TIMEOUT_MS = 3500;
+    
+    // Longest a single write may block before the link is closed under it
+    private static final long WRITE_TIMEOUT_MS = 3000;
+    
+    // Reconnect delays grow from the first to the largest, and start over
+    // once a connection has lasted long enough
+    private static final long RECONNECT_FIRST_MS = 250;
+    private static final long RECONNECT_MAX_MS = 15000;
+    private static final long RECONNECT_RESET_MS = 10000;
+    
+    // Inbound messages up to this size are read without allocating
+    private static final int INBOUND_BUFFER_SIZE = 256;
+    
+    // How long the inbound reader waits in a read before checking whether
+    // its link is still the current one
+    private static final long READ_WAIT_MS = 250;
+    
+    // Frames tracked until acknowledged, and how many pongs may overtake
+    // the oldest of them before frames are sent without waiting for acks
+    private static final int IN_FLIGHT_CAPACITY = 64;
+    private static final int MAX_PONGS_WITHOUT_ACK = 3;
+    
+    /**
+     * Receives connection state changes, on the connection thread
+     */
+    public interface StateListener {
+        
+        /**
+         * Called when the connection state changed
+         * @param state The new state, one of the STATE_ constants
+         */
+        void onStateChanged(int state);
+    }
     
     // Default TCP port
     private static final int DEFAULT_TCP_PORT = 8080;
     
+    // How long to wait for the glasses to answer the hello
+    private static final long HANDSHAKE_TIMEOUT_MS = 1000;
+    
+    // Tasks waiting for the connection thread: at most one drain and one
+    // run of the connection tasks, each guarded by its flag
+    private static final int EXECUTOR_QUEUE_SIZE = 4;
+    
     private final MapView mapView;
     private final Context pluginContext;
     
-    // Connection objects
-    private BluetoothSocket bluetoothSocket;
-    private Socket tcpSocket;
-    private OutputStream outputStream;
+    // The reliable link, and the optional datagram link for pose data
+    private volatile Transport transport;
+    private volatile Transport poseTransport;
     
     // Thread pool for connection operations
     private final ExecutorService executor;
     
-    // Connection state
-    private boolean connected = false;
-    private String connectedDeviceAddress;
-    private boolean isBluetoothConnection;
+    // Connects, disconnects and the other tasks of the connection thread.
+    // Unbounded, so none is ever dropped however long a connect blocks.
+    private final Queue<Runnable> connectionTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean connectionTasksScheduled = new AtomicBoolean(false);
+    
+    // Runs the keepalive, write watchdog and reconnect timers. Never blocks
+    // on the link, so it can close a link whose write is stuck.
+    private final ScheduledExecutorService timer;
+    
+    // Reads what the glasses send, one link at a time
+    private final ExecutorService reader;
+    
+    // Frames waiting to be written, one per channel
+    private final OutboundQueue outboundQueue = new OutboundQueue(ChannelScheduler.CHANNEL_COUNT);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    
+    // Smoothed time from queueing a frame until it is written, per channel
+    private final AtomicLongArray linkLatencyNanos =
+            new AtomicLongArray(ChannelScheduler.CHANNEL_COUNT);
+    
+    // Connection state, changed on the executor only
+    private volatile int state = STATE_DISCONNECTED;
+    private volatile StateListener stateListener;
+    private volatile String connectedDeviceAddress;
+    private volatile boolean isBluetoothConnection;
+    private int reconnectAttempts;
+    private long connectedAt;
+    
+    // Address to keep connected to, null once disconnect was called, and a
+    // counter bumped by connect and disconnect so stale retries give up
+    private volatile String targetAddress;
+    private final AtomicInteger connectGeneration = new AtomicInteger();
+    
+    // Keepalive state, on the executor except for what the reader updates
+    private volatile boolean keepaliveEnabled;
+    private volatile long lastHeardNanos;
+    private volatile long roundTripNanos;
+    private volatile long minRoundTripNanos; // Without waiting behind frames
+    private volatile long writeStartedNanos; // 0 while no write is in progress
+    private final AtomicBoolean keepaliveScheduled = new AtomicBoolean(false);
+    private final ByteBuffer pingPayload = ByteBuffer.allocate(8);
+    
+    // Acks, the frames awaiting them and what the glasses want sent
+    private volatile boolean acksEnabled;
+    private final InFlightFrames inFlight = new InFlightFrames(IN_FLIGHT_CAPACITY);
+    private volatile Subscription subscription = Subscription.ALL;
+    
+    // Whether the glasses rebuild POI positions from offsets to an origin
+    private volatile boolean localPositions;
+    
+    // Head pose reported by the glasses, guarded by the array
+    private final float[] glassesOrientation = new float[3];
+    private long glassesPoseNanos; // 0 before the first report
+    
+    // On the inbound reader
+    private int pongsWithoutAck;
+    private final ByteBuffer inboundHeader = ByteBuffer.allocate(ARGlassesProtocol.HEADER_SIZE);
+    private final ByteBuffer inboundBuffer = ByteBuffer.allocate(INBOUND_BUFFER_SIZE);
+    private ByteBuffer inboundPayload; // null while reading a header
+    private int inboundType;
+    
+    private volatile boolean udpPoseEnabled;
+    private volatile MetricsRegistry metrics;
+    private volatile MetricsRegistry sinkMetrics; // This link only, when one of several
+    private volatile int compressionMode = FrameCompressor.MODE_OFF;
+    
+    // Compression negotiated for the connection, null if frames go as is.
+    // Compresses on the executor, which also writes the frames.
+    private volatile FrameCompressor compressor;
+    private volatile boolean streamCompression;
+    
+    // Negotiated wire format and a counter bumped for every new connection
+    private volatile int wireFormat = ARGlassesProtocol.FORMAT_JSON;
+    private volatile int sessionId;
     
     /**
      * Constructor
@@ -56,242 +205,1159 @@ public class ARGlassesConnectionManager {
     public ARGlassesConnectionManager(MapView mapView, Context context) {
         this.mapView = mapView;
         this.pluginContext = context;
-        this.executor = Executors.newSingleThreadExecutor();
+        // An array backed queue, so queueing the drain for every frame
+        // does not allocate a node for it the way a linked queue does
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(EXECUTOR_QUEUE_SIZE));
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                daemonThreads("ARGlassesConnectionTimer"));
+        this.reader = Executors.newSingleThreadExecutor(daemonThreads("ARGlassesLinkReader"));
+        timer.scheduleWithFixedDelay(timerTick, KEEPALIVE_INTERVAL_MS,
+                KEEPALIVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Create a factory for daemon threads, which do not keep ATAK from
+     * exiting
+     * @param name The name of the threads
+     * @return The factory
+     */
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+    
+    /**
+     * Set the registry the link counters and frame timings are recorded in
+     * @param registry The registry, or null to not record
+     */
+    public void setMetrics(MetricsRegistry registry) {
+        this.metrics = registry;
+    }
+    
+    /**
+     * Set a registry for this link alone, when it is one of several the
+     * frames go to. Counters and timings are recorded in both registries,
+     * the queue depth only in this one.
+     * @param registry The registry of the link, or null
+     */
+    public void setSinkMetrics(MetricsRegistry registry) {
+        this.sinkMetrics = registry;
     }
     
     /**
-     * Connect to a device
-     * @param deviceAddress Device address (Bluetooth MAC or IP address)
-     * @return true if connection succeeds
+     * Set the listener told about connection state changes
+     * @param listener The listener, called on the connection thread, or null
+     */
+    public void setStateListener(StateListener listener) {
+        this.stateListener = listener;
+    }
+    
+    /**
+     * Offer to send the compass over UDP on TCP connections. Takes effect on
+     * the next connection.
+     * @param enabled true to offer UDP pose datagrams
+     */
+    public void setUdpPoseEnabled(boolean enabled) {
+        this.udpPoseEnabled = enabled;
+    }
+    
+    /**
+     * Offer to compress binary frames. Takes effect on the next connection.
+     * The stream mode falls back to compressing each frame on its own on
+     * links that may lose messages.
+     * @param mode One of the FrameCompressor.MODE_* values
+     */
+    public void setCompressionMode(int mode) {
+        this.compressionMode = mode;
+    }
+    
+    /**
+     * Connect to a device and keep reconnecting to it if the link is lost,
+     * until {@link #disconnect()} is called. The connection is opened in
+     * the background, watch the state to know when it is up.
+     * @param deviceAddress Device address (Bluetooth MAC, IP address with
+     *                      optional port, or loopback:name)
+     * @return true if the connection attempt started, false if the
+     *         address cannot be connected to
      */
     public boolean connect(final String deviceAddress) {
-        // Check if already connected
-        if (connected && deviceAddress.equals(connectedDeviceAddress)) {
+        // Check if already connected or on the way
+        if (state != STATE_DISCONNECTED && deviceAddress.equals(targetAddress)) {
             Log.d(TAG, "Already connected to " + deviceAddress);
             return true;
         }
         
-        // Disconnect if connected to a different device
-        if (connected) {
-            disconnect();
+        final Transport newTransport = createTransport(deviceAddress, false);
+        if (newTransport == null) {
+            return false;
         }
+        targetAddress = deviceAddress;
+        final int generation = connectGeneration.incrementAndGet();
         
-        // Determine connection type (Bluetooth or TCP)
+        // Connect on a background thread, dropping any link to another device
+        return runOnConnectionThread(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != connectGeneration.get()) {
+                    newTransport.close();
+                    return;
+                }
+                closeConnection();
+                reconnectAttempts = 0;
+                setState(STATE_CONNECTING);
+                openTransport(newTransport, deviceAddress, generation);
+            }
+        });
+    }
+    
+    /**
+     * Create the transport for an address
+     * @param deviceAddress The device address
+     * @param quiet true to only log why the transport cannot be created,
+     *              for reconnect attempts
+     * @return The transport, or null if the address cannot be used
+     */
+    private Transport createTransport(String deviceAddress, boolean quiet) {
         isBluetoothConnection = isBluetoothAddress(deviceAddress);
-        
         if (isBluetoothConnection) {
-            return connectBluetooth(deviceAddress);
-        } else {
-            return connectTCP(deviceAddress);
+            return createBluetoothTransport(deviceAddress, quiet);
+        } else if (deviceAddress.startsWith(LoopbackTransport.ADDRESS_PREFIX)) {
+            return LoopbackTransport.connect(deviceAddress.substring(
+                    LoopbackTransport.ADDRESS_PREFIX.length()));
         }
+        return createTcpTransport(deviceAddress);
     }
     
     /**
-     * Connect via Bluetooth
+     * Create a Bluetooth transport
      * @param deviceAddress Bluetooth MAC address
-     * @return true if connection succeeds
+     * @param quiet true to not show why Bluetooth cannot be used
+     * @return The transport, or null if Bluetooth cannot be used
      */
-    private boolean connectBluetooth(String deviceAddress) {
+    private Transport createBluetoothTransport(String deviceAddress, boolean quiet) {
+        String problem;
         try {
             BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
             
             // Check if Bluetooth is available and enabled
             if (bluetoothAdapter == null) {
-                showToast("Bluetooth is not available on this device");
-                return false;
+                problem = "Bluetooth is not available on this device";
+            } else if (!bluetoothAdapter.isEnabled()) {
+                problem = "Bluetooth is not enabled";
+            } else {
+                // Get the Bluetooth device
+                BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
+                return new BluetoothTransport(device);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error setting up Bluetooth connection", e);
+            problem = "Bluetooth connection error: " + e.getMessage();
+        }
+        Log.w(TAG, problem);
+        if (!quiet) {
+            showToast(problem);
+        }
+        return null;
+    }
+    
+    /**
+     * Create a TCP transport
+     * @param deviceAddress IP address (can include port as "ip:port")
+     * @return The transport
+     */
+    private Transport createTcpTransport(String deviceAddress) {
+        // Parse address and port
+        String host = deviceAddress;
+        int port = DEFAULT_TCP_PORT;
+        
+        if (deviceAddress.contains(":")) {
+            String[] parts = deviceAddress.split(":");
+            host = parts[0];
+            try {
+                port = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid port number, using default");
             }
+        }
+        return new NioTcpTransport(host, port);
+    }
+    
+    /**
+     * Open a transport and run the hello over it, on the executor. A failed
+     * attempt schedules the next one.
+     * @param newTransport The transport to open
+     * @param deviceAddress The address being connected to
+     * @param generation The connect generation the attempt belongs to
+     */
+    private void openTransport(Transport newTransport, String deviceAddress,
+            int generation) {
+        try {
+            newTransport.open();
+            HelloReply reply = negotiate(newTransport);
+            wireFormat = reply != null && reply.getFormat() == ARGlassesProtocol.FORMAT_BINARY
+                    ? ARGlassesProtocol.FORMAT_BINARY : ARGlassesProtocol.FORMAT_JSON;
+            Log.d(TAG, "Using the " + ARGlassesProtocol.formatName(wireFormat)
+                    + " wire format");
             
-            if (!bluetoothAdapter.isEnabled()) {
-                showToast("Bluetooth is not enabled");
-                return false;
+            // Pose datagrams carry binary compass frames only
+            Transport newPoseTransport = null;
+            if (reply != null && reply.getUdpPort() > 0
+                    && wireFormat == ARGlassesProtocol.FORMAT_BINARY
+                    && newTransport instanceof NioTcpTransport) {
+                newPoseTransport = openPoseTransport(
+                        ((NioTcpTransport) newTransport).getHost(), reply.getUdpPort());
             }
             
-            // Get the Bluetooth device
-            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
+            // Compression needs the framing of the binary format
+            FrameCompressor newCompressor = null;
+            int mode = compressionMode;
+            if (reply != null && reply.hasFeature(ARGlassesProtocol.FEATURE_DEFLATE)
+                    && wireFormat == ARGlassesProtocol.FORMAT_BINARY
+                    && mode != FrameCompressor.MODE_OFF) {
+                newCompressor = new FrameCompressor(ChannelScheduler.CHANNEL_COUNT);
+                streamCompression = mode == FrameCompressor.MODE_STREAM
+                        && newTransport.isReliable();
+                Log.d(TAG, streamCompression ? "Compressing frames as a stream"
+                        : "Compressing each frame");
+            }
+            
+            // Glasses that accept keepalives answer every ping
+            keepaliveEnabled = reply != null
+                    && reply.hasFeature(ARGlassesProtocol.FEATURE_KEEPALIVE)
+                    && wireFormat == ARGlassesProtocol.FORMAT_BINARY;
+            lastHeardNanos = System.nanoTime();
+            roundTripNanos = 0;
+            minRoundTripNanos = 0;
+            acksEnabled = reply != null
+                    && reply.hasFeature(ARGlassesProtocol.FEATURE_ACKS)
+                    && wireFormat == ARGlassesProtocol.FORMAT_BINARY;
+            inFlight.clear();
+            subscription = Subscription.ALL;
+            localPositions = reply != null
+                    && reply.hasFeature(ARGlassesProtocol.FEATURE_LOCAL_POSITIONS)
+                    && wireFormat == ARGlassesProtocol.FORMAT_BINARY;
+            synchronized (glassesOrientation) {
+                glassesPoseNanos = 0;
+            }
+            
+            outboundQueue.clear();
+            for (int i = 0; i < ChannelScheduler.CHANNEL_COUNT; i++) {
+                linkLatencyNanos.set(i, 0);
+            }
+            transport = newTransport;
+            poseTransport = newPoseTransport;
+            compressor = newCompressor;
+            sessionId++;
+            
+            // Legacy JSON glasses send nothing back
+            if (wireFormat == ARGlassesProtocol.FORMAT_BINARY) {
+                startReader(newTransport);
+            }
+            
+            // Update connection state
+            boolean reconnected = reconnectAttempts > 0;
+            connectedDeviceAddress = deviceAddress;
+            connectedAt = System.currentTimeMillis();
+            setState(STATE_CONNECTED);
             
-            // Create the socket and connect
-            bluetoothSocket = device.createRfcommSocketToServiceRecord(SPP_UUID);
+            Log.d(TAG, "Connected to " + deviceAddress);
+            showToast((reconnected ? "Reconnected to " : "Connected to ") + deviceAddress);
+            if (reconnected) {
+                count(MetricsRegistry.COUNTER_RECONNECTS, 1);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Connection to " + deviceAddress + " failed", e);
+            if (reconnectAttempts == 0) {
+                showToast("Connection failed: " + e.getMessage() + ", retrying");
+            }
             
-            // Connect on a background thread
-            executor.submit(new Runnable() {
+            // Clean up
+            newTransport.close();
+            scheduleReconnect(generation);
+        }
+    }
+    
+    /**
+     * Close a link that failed and start reconnecting, on the executor
+     * @param reason Why the link is considered lost
+     */
+    private void linkLost(String reason) {
+        if (state != STATE_CONNECTED) {
+            return;
+        }
+        Log.w(TAG, "Link to " + connectedDeviceAddress + " lost: " + reason);
+        showToast("Connection lost, reconnecting");
+        count(MetricsRegistry.COUNTER_LINK_LOSSES, 1);
+        
+        // A link that keeps dropping right after connecting backs off further
+        if (System.currentTimeMillis() - connectedAt >= RECONNECT_RESET_MS) {
+            reconnectAttempts = 0;
+        }
+        closeConnection();
+        scheduleReconnect(connectGeneration.get());
+    }
+    
+    /**
+     * Wait out the backoff delay and try to connect again, on the executor
+     * @param generation The connect generation the retry belongs to
+     */
+    private void scheduleReconnect(final int generation) {
+        if (generation != connectGeneration.get() || targetAddress == null) {
+            setState(STATE_DISCONNECTED);
+            return;
+        }
+        
+        long delay = reconnectDelay(reconnectAttempts++);
+        Log.d(TAG, "Reconnecting in " + delay + " ms");
+        setState(STATE_RECONNECTING);
+        try {
+            timer.schedule(new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        bluetoothSocket.connect();
-                        outputStream = bluetoothSocket.getOutputStream();
-                        
-                        // Update connection state
-                        connected = true;
-                        connectedDeviceAddress = deviceAddress;
-                        
-                        Log.d(TAG, "Connected to Bluetooth device: " + deviceAddress);
-                        showToast("Connected to Bluetooth device");
-                    } catch (IOException e) {
-                        Log.e(TAG, "Bluetooth connection failed", e);
-                        showToast("Bluetooth connection failed: " + e.getMessage());
-                        
-                        // Clean up
-                        try {
-                            bluetoothSocket.close();
-                        } catch (IOException closeException) {
-                            Log.e(TAG, "Error closing socket", closeException);
+                    runOnConnectionThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            reconnect(generation);
                         }
-                        bluetoothSocket = null;
-                        outputStream = null;
-                        connected = false;
-                    }
+                    });
                 }
-            });
-            
-            return true; // Return true to indicate connection attempt started
-        } catch (Exception e) {
-            Log.e(TAG, "Error setting up Bluetooth connection", e);
-            showToast("Bluetooth connection error: " + e.getMessage());
-            return false;
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Disposed
+            setState(STATE_DISCONNECTED);
         }
     }
     
     /**
-     * Connect via TCP/IP
-     * @param deviceAddress IP address (can include port as "ip:port")
-     * @return true if connection succeeds
+     * Make a reconnect attempt, unless connect or disconnect was called
+     * since it was scheduled
+     * @param generation The connect generation the retry belongs to
      */
-    private boolean connectTCP(final String deviceAddress) {
-        try {
-            // Parse address and port
-            String host = deviceAddress;
-            int port = DEFAULT_TCP_PORT;
-            
-            if (deviceAddress.contains(":")) {
-                String[] parts = deviceAddress.split(":");
-                host = parts[0];
-                try {
-                    port = Integer.parseInt(parts[1]);
-                } catch (NumberFormatException e) {
-                    Log.w(TAG, "Invalid port number, using default");
+    private void reconnect(int generation) {
+        String address = targetAddress;
+        if (generation != connectGeneration.get() || address == null
+                || state != STATE_RECONNECTING) {
+            return;
+        }
+        
+        // Bluetooth may have been turned off meanwhile, keep waiting then
+        Transport newTransport = createTransport(address, true);
+        if (newTransport == null) {
+            scheduleReconnect(generation);
+            return;
+        }
+        setState(STATE_CONNECTING);
+        openTransport(newTransport, address, generation);
+    }
+    
+    /**
+     * Get the delay before a reconnect attempt. The delay doubles with
+     * every failed attempt up to a limit, and is picked at random from the
+     * upper half of that so several devices that lost the same network do
+     * not all retry at once.
+     * @param attempt The number of attempts already made
+     * @return The delay in milliseconds
+     */
+    private static long reconnectDelay(int attempt) {
+        long ceiling = Math.min(RECONNECT_MAX_MS, RECONNECT_FIRST_MS << Math.min(attempt, 16));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+    
+    /**
+     * Change the connection state and tell the listener, on the executor
+     * @param newState One of the STATE_ constants
+     */
+    private void setState(int newState) {
+        if (state == newState) {
+            return;
+        }
+        state = newState;
+        MetricsRegistry registry = sinkMetrics;
+        if (registry != null) {
+            registry.setConnected(newState == STATE_CONNECTED);
+        }
+        StateListener listener = stateListener;
+        if (listener != null) {
+            listener.onStateChanged(newState);
+        }
+    }
+    
+    /**
+     * Runs every KEEPALIVE_INTERVAL_MS on the timer thread. Closes a link
+     * whose write is stuck, which fails the write, and has the executor
+     * send the next ping.
+     */
+    private final Runnable timerTick = new Runnable() {
+        @Override
+        public void run() {
+            long started = writeStartedNanos;
+            if (started != 0 && System.nanoTime() - started
+                    > TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MS)) {
+                Transport link = transport;
+                if (link != null) {
+                    Log.w(TAG, "Write blocked for over " + WRITE_TIMEOUT_MS + " ms, closing the link");
+                    link.close();
                 }
             }
             
-            // Store final values for use in the thread
-            final String finalHost = host;
-            final int finalPort = port;
+            if (state == STATE_CONNECTED && !keepaliveScheduled.getAndSet(true)) {
+                if (!runOnConnectionThread(keepaliveTask)) {
+                    keepaliveScheduled.set(false);
+                }
+            }
+        }
+    };
+    
+    private final Runnable keepaliveTask = new Runnable() {
+        @Override
+        public void run() {
+            keepaliveScheduled.set(false);
+            keepalive();
+        }
+    };
+    
+    /**
+     * Ping the glasses, on the executor. A link the glasses stayed silent
+     * on for LINK_TIMEOUT_MS is considered lost.
+     */
+    private void keepalive() {
+        Transport link = transport;
+        if (state != STATE_CONNECTED || !keepaliveEnabled || link == null) {
+            return;
+        }
+        try {
+            long silentNanos = System.nanoTime() - lastHeardNanos;
+            if (silentNanos > TimeUnit.MILLISECONDS.toNanos(LINK_TIMEOUT_MS)) {
+                linkLost("no reply for " + silentNanos / 1000000L + " ms");
+                return;
+            }
             
-            // Connect on a background thread
-            executor.submit(new Runnable() {
+            pingPayload.clear();
+            pingPayload.putLong(System.nanoTime());
+            pingPayload.flip();
+            writeStartedNanos = System.nanoTime();
+            try {
+                link.writeMessage(ARGlassesProtocol.MSG_PING, pingPayload);
+            } finally {
+                writeStartedNanos = 0;
+            }
+        } catch (IOException e) {
+            linkLost(e.toString());
+        }
+    }
+    
+    /**
+     * Read what the glasses send on a new link, until the link is replaced
+     * or fails
+     * @param link The reliable link
+     */
+    private void startReader(final Transport link) {
+        try {
+            reader.execute(new Runnable() {
                 @Override
                 public void run() {
+                    inboundHeader.clear();
+                    inboundPayload = null;
+                    pongsWithoutAck = 0;
                     try {
-                        tcpSocket = new Socket(finalHost, finalPort);
-                        outputStream = tcpSocket.getOutputStream();
-                        
-                        // Update connection state
-                        connected = true;
-                        connectedDeviceAddress = deviceAddress;
-                        
-                        Log.d(TAG, "Connected to TCP device: " + finalHost + ":" + finalPort);
-                        showToast("Connected to TCP device");
-                    } catch (IOException e) {
-                        Log.e(TAG, "TCP connection failed", e);
-                        showToast("TCP connection failed: " + e.getMessage());
-                        
-                        // Clean up
-                        try {
-                            if (tcpSocket != null) {
-                                tcpSocket.close();
-                            }
-                        } catch (IOException closeException) {
-                            Log.e(TAG, "Error closing socket", closeException);
+                        while (transport == link) {
+                            readInbound(link);
                         }
-                        tcpSocket = null;
-                        outputStream = null;
-                        connected = false;
+                    } catch (IOException e) {
+                        inboundFailed(link, e);
                     }
                 }
             });
-            
-            return true; // Return true to indicate connection attempt started
-        } catch (Exception e) {
-            Log.e(TAG, "Error setting up TCP connection", e);
-            showToast("TCP connection error: " + e.getMessage());
-            return false;
+        } catch (RejectedExecutionException e) {
+            // Disposed
         }
     }
     
     /**
-     * Disconnect from the device
+     * Have the executor close a link the reader failed on, unless the link
+     * was replaced meanwhile
+     * @param link The link
+     * @param e The reason
      */
-    public void disconnect() {
-        if (!connected) {
+    private void inboundFailed(final Transport link, final IOException e) {
+        if (transport != link) {
             return;
         }
-        
-        // Disconnect on a background thread
-        executor.submit(new Runnable() {
+        runOnConnectionThread(new Runnable() {
             @Override
             public void run() {
-                try {
-                    if (outputStream != null) {
-                        outputStream.close();
-                        outputStream = null;
+                if (transport == link) {
+                    linkLost(e.toString());
+                }
+            }
+        });
+    }
+    
+    /**
+     * Read the next message from the glasses and handle it, on the inbound
+     * reader. Returns early when nothing arrives within READ_WAIT_MS,
+     * keeping what was read of the message for the next call.
+     * @param link The reliable link
+     * @throws IOException if the read failed or the glasses sent garbage
+     */
+    private void readInbound(Transport link) throws IOException {
+        if (inboundPayload == null) {
+            link.read(inboundHeader, READ_WAIT_MS);
+            if (inboundHeader.hasRemaining()) {
+                return;
+            }
+            inboundHeader.flip();
+            if (!ARGlassesProtocol.isHeader(inboundHeader)) {
+                throw new IOException("Bad message header from the glasses");
+            }
+            inboundType = inboundHeader.get(3) & 0xFF;
+            int length = inboundHeader.getInt(4);
+            inboundHeader.clear();
+            if (length < 0 || length > ARGlassesProtocol.MAX_PAYLOAD_SIZE) {
+                throw new IOException("Bad message length from the glasses: " + length);
+            }
+            inboundPayload = length <= inboundBuffer.capacity()
+                    ? inboundBuffer : ByteBuffer.allocate(length);
+            inboundPayload.clear();
+            inboundPayload.limit(length);
+        }
+        
+        if (inboundPayload.hasRemaining()) {
+            link.read(inboundPayload, READ_WAIT_MS);
+            if (inboundPayload.hasRemaining()) {
+                return;
+            }
+        }
+        inboundPayload.flip();
+        handleInbound(link, inboundType, inboundPayload);
+        inboundPayload = null;
+    }
+    
+    /**
+     * Handle a complete message from the glasses, on the inbound reader.
+     * Any message counts as a sign of life.
+     * @param link The link the message came over
+     * @param type The message type
+     * @param payload The message payload
+     */
+    private void handleInbound(Transport link, int type, ByteBuffer payload) {
+        long now = System.nanoTime();
+        lastHeardNanos = now;
+        switch (type) {
+            case ARGlassesProtocol.MSG_PONG:
+                if (payload.remaining() >= 8) {
+                    long pingedAt = payload.getLong();
+                    checkAcks(pingedAt);
+                    long sample = now - pingedAt;
+                    if (sample > 0) {
+                        long smoothed = roundTripNanos;
+                        roundTripNanos = smoothed == 0 ? sample
+                                : smoothed + (sample - smoothed) / 8;
+                        long min = minRoundTripNanos;
+                        minRoundTripNanos = min == 0 ? sample : Math.min(min, sample);
                     }
-                    
-                    if (bluetoothSocket != null) {
-                        bluetoothSocket.close();
-                        bluetoothSocket = null;
+                }
+                break;
+            case ARGlassesProtocol.MSG_ACK:
+                if (payload.remaining() >= ARGlassesProtocol.ACK_SIZE && acksEnabled) {
+                    // Nothing queues in front of the ack on its way back, so
+                    // it took about half of the shortest round trip
+                    inFlight.acknowledge(payload.getInt(), now - minRoundTripNanos / 2,
+                            deliveryListener);
+                    if (outboundQueue.getDepth() > 0) {
+                        scheduleDrain();
                     }
-                    
-                    if (tcpSocket != null) {
-                        tcpSocket.close();
-                        tcpSocket = null;
+                }
+                break;
+            case ARGlassesProtocol.MSG_GLASSES_POSE:
+                if (payload.remaining() >= ARGlassesProtocol.GLASSES_POSE_SIZE) {
+                    synchronized (glassesOrientation) {
+                        glassesOrientation[0] = payload.getFloat();
+                        glassesOrientation[1] = payload.getFloat();
+                        glassesOrientation[2] = payload.getFloat();
+                        glassesPoseNanos = now;
                     }
-                    
-                    connected = false;
-                    connectedDeviceAddress = null;
-                    
-                    Log.d(TAG, "Disconnected from device");
-                    showToast("Disconnected from device");
-                } catch (IOException e) {
-                    Log.e(TAG, "Error during disconnect", e);
                 }
+                break;
+            case ARGlassesProtocol.MSG_SUBSCRIBE:
+                Subscription wanted = Subscription.parse(payload);
+                if (wanted != null) {
+                    subscribe(link, wanted);
+                } else {
+                    Log.w(TAG, connectedDeviceAddress + " sent a malformed subscription");
+                }
+                break;
+            default:
+                // Newer glasses may send more, skipped
+                break;
+        }
+    }
+    
+    /**
+     * Check that the glasses acknowledge what they read, on the inbound
+     * reader. The link keeps its order, so glasses that answer a ping
+     * written after a frame have read that frame. When that keeps
+     * happening without an ack the glasses get their frames without
+     * waiting for acks, rather than only a window at a time.
+     * @param pingedAt The System.nanoTime() the answered ping was sent
+     */
+    private void checkAcks(long pingedAt) {
+        long oldest = inFlight.getOldestWrittenAt();
+        if (!acksEnabled || oldest == 0 || oldest - pingedAt >= 0) {
+            pongsWithoutAck = 0;
+            return;
+        }
+        if (++pongsWithoutAck >= MAX_PONGS_WITHOUT_ACK) {
+            Log.w(TAG, connectedDeviceAddress + " does not acknowledge frames, sending without acks");
+            acksEnabled = false;
+            inFlight.clear();
+            scheduleDrain();
+        }
+    }
+    
+    /**
+     * Records the timings of the frames the glasses acknowledged
+     */
+    private final InFlightFrames.DeliveryListener deliveryListener =
+            new InFlightFrames.DeliveryListener() {
+        @Override
+        public void onDelivered(int channel, long queuedAt, long createdAt, long deliveredAt) {
+            updateLinkLatency(channel, Math.max(0, deliveredAt - queuedAt));
+            recordStage(channel, MetricsRegistry.STAGE_DELIVERY,
+                    Math.max(0, deliveredAt - createdAt));
+        }
+    };
+    
+    /**
+     * Take what the glasses want sent, on the executor. Channels they take
+     * up again and fields they add need a keyframe for these glasses, and
+     * new rates need the channels rescheduled, so the session id changes
+     * with the subscription.
+     * @param link The link the subscription came over
+     * @param wanted The subscription
+     */
+    private void subscribe(final Transport link, final Subscription wanted) {
+        runOnConnectionThread(new Runnable() {
+            @Override
+            public void run() {
+                if (transport != link || wanted.equals(subscription)) {
+                    return;
+                }
+                Log.d(TAG, connectedDeviceAddress + " subscribed to " + wanted);
+                subscription = wanted;
+                sessionId++;
             }
         });
     }
     
     /**
-     * Send data to the connected device
-     * @param data The data to send
-     * @return true if data was sent successfully
+     * Open the datagram link for pose data
+     * @param host The host of the glasses
+     * @param port The UDP port the glasses listen on
+     * @return The transport, or null if it could not be opened
      */
-    public boolean sendData(final byte[] data) {
-        if (!isConnected() || outputStream == null) {
-            return false;
+    private Transport openPoseTransport(String host, int port) {
+        UdpTransport udp = new UdpTransport(host, port);
+        try {
+            udp.open();
+            Log.d(TAG, "Sending the compass over UDP port " + port);
+            return udp;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not open UDP pose link, using TCP", e);
+            udp.close();
+            return null;
         }
+    }
+    
+    /**
+     * Send the hello and wait briefly for the glasses to pick a wire format.
+     * Glasses that do not answer only understand the legacy JSON format.
+     * @param link The opened transport
+     * @return The reply of the glasses, or null if they did not answer
+     * @throws IOException if the hello could not be sent
+     */
+    private HelloReply negotiate(Transport link) throws IOException {
+        int features = ARGlassesProtocol.FEATURE_KEEPALIVE | ARGlassesProtocol.FEATURE_ACKS
+                | ARGlassesProtocol.FEATURE_LOCAL_POSITIONS;
+        if (udpPoseEnabled && link instanceof NioTcpTransport) {
+            features |= ARGlassesProtocol.FEATURE_UDP_POSE;
+        }
+        if (compressionMode != FrameCompressor.MODE_OFF) {
+            features |= ARGlassesProtocol.FEATURE_DEFLATE;
+        }
+        link.write(ByteBuffer.wrap(ARGlassesProtocol.createHello(features)));
+        
+        // Reply is a header followed by the protocol version, chosen format
+        // and any optional fields
+        long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MS;
+        ByteBuffer header = ByteBuffer.allocate(ARGlassesProtocol.HEADER_SIZE);
+        if (link.read(header, HANDSHAKE_TIMEOUT_MS) == ARGlassesProtocol.HEADER_SIZE) {
+            header.flip();
+            int length = header.getInt(4);
+            if (ARGlassesProtocol.isHeader(header)
+                    && header.get(3) == ARGlassesProtocol.MSG_HELLO_REPLY
+                    && length >= ARGlassesProtocol.HELLO_REPLY_MIN_SIZE
+                    && length <= ARGlassesProtocol.HELLO_REPLY_MAX_SIZE) {
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                if (link.read(payload, remaining) == length) {
+                    payload.flip();
+                    return HelloReply.parse(payload);
+                }
+            }
+        }
+        
+        Log.d(TAG, "No hello reply, falling back to JSON");
+        return null;
+    }
+    
+    /**
+     * Disconnect from the device and stop reconnecting
+     */
+    public void disconnect() {
+        targetAddress = null;
+        final int generation = connectGeneration.incrementAndGet();
         
-        // Send data on a background thread
-        executor.submit(new Runnable() {
+        // Disconnect on a background thread
+        runOnConnectionThread(new Runnable() {
             @Override
             public void run() {
-                try {
-                    outputStream.write(data);
-                    outputStream.flush();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error sending data", e);
-                    
-                    // Connection might be broken, disconnect
-                    disconnect();
+                if (generation != connectGeneration.get()) {
+                    // Connecting again already
+                    return;
+                }
+                boolean wasConnected = state == STATE_CONNECTED;
+                closeConnection();
+                setState(STATE_DISCONNECTED);
+                
+                if (wasConnected) {
+                    Log.d(TAG, "Disconnected from device");
+                    showToast("Disconnected from device");
                 }
             }
         });
-        
+    }
+    
+    /**
+     * Drop the queued frames and close the links, on the executor
+     */
+    private void closeConnection() {
+        outboundQueue.clear();
+        closeTransports();
+        connectedDeviceAddress = null;
+        keepaliveEnabled = false;
+        acksEnabled = false;
+        localPositions = false;
+        inFlight.clear();
+    }
+    
+    /**
+     * Run a task on the connection thread. Tasks wait in an unbounded
+     * queue of their own, so only the per-frame drain competes for the
+     * executor queue and no task is lost while the queue is busy.
+     * @param task The task
+     * @return false if the manager was disposed
+     */
+    private boolean runOnConnectionThread(Runnable task) {
+        if (executor.isShutdown()) {
+            Log.w(TAG, "Connection thread is not running");
+            return false;
+        }
+        connectionTasks.add(task);
+        if (!connectionTasksScheduled.getAndSet(true)) {
+            try {
+                executor.execute(connectionTaskRunner);
+            } catch (RejectedExecutionException e) {
+                connectionTasksScheduled.set(false);
+                connectionTasks.remove(task);
+                Log.w(TAG, "Connection thread is not running", e);
+                return false;
+            }
+        }
         return true;
     }
     
+    /**
+     * Runs the queued connection tasks in order
+     */
+    private final Runnable connectionTaskRunner = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first so that tasks queued from here on schedule a new run
+            connectionTasksScheduled.set(false);
+            Runnable task;
+            while ((task = connectionTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Connection task failed", e);
+                }
+            }
+        }
+    };
+    
+    /**
+     * Close the reliable and the pose link
+     */
+    private void closeTransports() {
+        Transport link = transport;
+        if (link != null) {
+            link.close();
+            transport = null;
+        }
+        Transport pose = poseTransport;
+        if (pose != null) {
+            pose.close();
+            poseTransport = null;
+        }
+        
+        // The compressor is kept for its statistics
+        FrameCompressor frameCompressor = compressor;
+        if (frameCompressor != null) {
+            frameCompressor.end();
+        }
+    }
+    
+    /**
+     * Queue a frame for the connected device. Each channel holds at most
+     * one unsent frame, a newer frame replaces the one still waiting.
+     * Binary frames are prefixed with the protocol header, JSON frames are
+     * sent as is.
+     * @param channel The channel of the frame, one of the
+     *                ChannelScheduler.CHANNEL_* values
+     * @param frame The frame, the queue takes a reference to it until it
+     *              is written or replaced
+     * @return OutboundQueue.RESULT_QUEUED, OutboundQueue.RESULT_REPLACED if
+     *         an older frame of the channel was dropped, or -1 if not
+     *         connected or the glasses do not want the channel
+     */
+    public int sendData(int channel, SharedFrame frame) {
+        return sendData(channel, frame, System.nanoTime());
+    }
+    
+    /**
+     * Queue a frame for the connected device, see
+     * {@link #sendData(int, SharedFrame)}
+     * @param channel The channel of the frame
+     * @param frame The frame, the queue takes a reference to it until it
+     *              is written or replaced
+     * @param created The System.nanoTime() the frame content dates from,
+     *                the start of its total time in the metrics
+     * @return OutboundQueue.RESULT_QUEUED, OutboundQueue.RESULT_REPLACED if
+     *         an older frame of the channel was dropped, or -1 if not
+     *         connected or the glasses do not want the channel
+     */
+    public int sendData(int channel, SharedFrame frame, long created) {
+        if (!isConnected() || !isSubscribed(channel)) {
+            return -1;
+        }
+        
+        int result = outboundQueue.offer(channel, frame, created);
+        if (result == OutboundQueue.RESULT_REPLACED) {
+            count(MetricsRegistry.COUNTER_DROPPED, 1);
+        }
+        MetricsRegistry registry = sinkMetrics != null ? sinkMetrics : metrics;
+        if (registry != null) {
+            registry.recordQueueDepth(outboundQueue.getDepth());
+        }
+        
+        scheduleDrain();
+        return result;
+    }
+    
+    /**
+     * Write the queue out on the background thread, unless that is already
+     * scheduled
+     */
+    private void scheduleDrain() {
+        // execute rather than submit, which wraps the task in a future
+        if (!drainScheduled.getAndSet(true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                drainScheduled.set(false);
+                Log.w(TAG, "Could not schedule a write", e);
+            }
+        }
+    }
+    
+    /**
+     * Check whether the glasses want the frames of a channel
+     * @param channel The channel
+     * @return true unless the glasses subscribed to other channels only
+     */
+    public boolean isSubscribed(int channel) {
+        return subscription.isSubscribed(channel);
+    }
+    
+    /**
+     * Get what the glasses want sent
+     * @return The subscription, Subscription.ALL for glasses that did not
+     *         send one
+     */
+    public Subscription getSubscription() {
+        return subscription;
+    }
+    
+    /**
+     * Check whether a frame of a channel is still waiting to be written
+     * @param channel The channel
+     * @return true if a frame is pending
+     */
+    public boolean isSendPending(int channel) {
+        return outboundQueue.isPending(channel);
+    }
+    
+    /**
+     * Get the number of frames waiting to be written
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        return outboundQueue.getDepth();
+    }
+    
+    /**
+     * Get the number of frames of a channel dropped for a newer frame
+     * @param channel The channel
+     * @return The number of dropped frames
+     */
+    public long getDroppedFrames(int channel) {
+        return outboundQueue.getDropped(channel);
+    }
+    
+    /**
+     * Get how long frames of a channel take from being queued until they
+     * are written to the link, or until the glasses had them with glasses
+     * that acknowledge frames. Without acks this covers the wait in the
+     * queue and the write only, the time in flight is not known.
+     * @param channel The channel
+     * @return The smoothed latency in milliseconds
+     */
+    public long getLinkLatencyMs(int channel) {
+        return linkLatencyNanos.get(channel) / 1000000L;
+    }
+    
+    /**
+     * Get the compression statistics of a channel on the last connection
+     * @param channel The channel
+     * @return The statistics, or null if frames were not compressed
+     */
+    public FrameCompressor.CompressionStats getCompressionStats(int channel) {
+        FrameCompressor frameCompressor = compressor;
+        return frameCompressor != null ? frameCompressor.getStats(channel) : null;
+    }
+    
+    /**
+     * Writes the queued frames until the queue is empty, or until the
+     * window of frames the glasses did not acknowledge yet is full. Frames
+     * left in the queue can still be replaced by newer ones, and the next
+     * ack drains it again.
+     */
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            // Cleared first so that frames queued from here on schedule a new drain
+            drainScheduled.set(false);
+            int channel;
+            while ((!acksEnabled || inFlight.hasRoom())
+                    && (channel = outboundQueue.poll()) >= 0) {
+                long start = System.nanoTime();
+                ByteBuffer frame = outboundQueue.getWriting(channel);
+                int sequence = frame.remaining() >= 4 ? frame.getInt(frame.position()) : 0;
+                // Pose datagrams are not acknowledged
+                boolean acknowledged = acksEnabled && (poseTransport == null
+                        || channel != ChannelScheduler.CHANNEL_COMPASS);
+                int written = writeFrame(channel, frame);
+                if (written >= 0) {
+                    long end = System.nanoTime();
+                    long queuedAt = outboundQueue.getWritingQueuedAt(channel);
+                    long createdAt = outboundQueue.getWritingCreatedAt(channel);
+                    if (acknowledged) {
+                        inFlight.add(sequence, channel, written, queuedAt, createdAt, end,
+                                deliveryListener);
+                    } else {
+                        updateLinkLatency(channel, end - queuedAt);
+                    }
+                    recordStage(channel, MetricsRegistry.STAGE_QUEUE, start - queuedAt);
+                    recordStage(channel, MetricsRegistry.STAGE_WRITE, end - start);
+                    recordStage(channel, MetricsRegistry.STAGE_TOTAL, end - createdAt);
+                    count(MetricsRegistry.COUNTER_FRAMES, 1);
+                    count(MetricsRegistry.COUNTER_BYTES, written);
+                }
+                outboundQueue.release(channel);
+                if (written < 0) {
+                    outboundQueue.clear();
+                    return;
+                }
+            }
+        }
+    };
+    
+    /**
+     * Add to a counter of the plugin registry and the registry of the link
+     * @param counter One of the MetricsRegistry.COUNTER_ constants
+     * @param delta The amount to add
+     */
+    private void count(int counter, long delta) {
+        MetricsRegistry registry = metrics;
+        if (registry != null) {
+            registry.add(counter, delta);
+        }
+        registry = sinkMetrics;
+        if (registry != null) {
+            registry.add(counter, delta);
+        }
+    }
+    
+    /**
+     * Record a stage timing in the plugin registry and the registry of the link
+     * @param channel The channel of the frame
+     * @param stage One of the MetricsRegistry.STAGE_ constants
+     * @param nanos The time spent in nanoseconds
+     */
+    private void recordStage(int channel, int stage, long nanos) {
+        MetricsRegistry registry = metrics;
+        if (registry != null) {
+            registry.recordStage(channel, stage, nanos);
+        }
+        registry = sinkMetrics;
+        if (registry != null) {
+            registry.recordStage(channel, stage, nanos);
+        }
+    }
+    
+    /**
+     * Fold a frame latency into the smoothed latency of its channel
+     * @param channel The channel
+     * @param latencyNanos The time the frame took to be written
+     */
+    private void updateLinkLatency(int channel, long latencyNanos) {
+        // Same weight as the TCP round trip estimate, 1/8 per sample
+        long smoothed = linkLatencyNanos.get(channel);
+        linkLatencyNanos.set(channel, smoothed == 0 ? latencyNanos
+                : smoothed + (latencyNanos - smoothed) / 8);
+    }
+    
+    /**
+     * Write a frame to the connection. Compass frames go over the pose
+     * link when there is one, everything else over the reliable link.
+     * @param channel The channel of the frame
+     * @param data The frame payload between position and limit
+     * @return The number of bytes written, headers included, or -1 if the
+     *         frame was not written
+     */
+    private int writeFrame(int channel, ByteBuffer data) {
+        Transport pose = poseTransport;
+        if (pose != null && channel == ChannelScheduler.CHANNEL_COMPASS) {
+            try {
+                return writeData(pose, channel, data, false);
+            } catch (IOException e) {
+                // The glasses stopped listening, keep the compass on TCP
+                Log.w(TAG, "UDP pose link failed, sending the compass over TCP", e);
+                pose.close();
+                poseTransport = null;
+                data.rewind();
+            }
+        }
+        
+        Transport link = transport;
+        if (link == null) {
+            return -1;
+        }
+        writeStartedNanos = System.nanoTime();
+        try {
+            if (wireFormat == ARGlassesProtocol.FORMAT_BINARY) {
+                return writeData(link, channel, data, streamCompression);
+            }
+            int length = data.remaining();
+            link.write(data);
+            return length;
+        } catch (IOException e) {
+            Log.e(TAG, "Error sending data", e);
+            
+            // Connection is broken, reconnect
+            linkLost(e.toString());
+            return -1;
+        } finally {
+            writeStartedNanos = 0;
+        }
+    }
+    
+    /**
+     * Write a binary frame, compressed if that was negotiated and pays off
+     * @param link The link to write to
+     * @param channel The channel of the frame
+     * @param data The frame payload between position and limit
+     * @param stream true to compress as part of the connection stream
+     * @return The number of bytes written, header included
+     * @throws IOException if the write failed
+     */
+    private int writeData(Transport link, int channel, ByteBuffer data,
+            boolean stream) throws IOException {
+        FrameCompressor frameCompressor = compressor;
+        ByteBuffer payload = data;
+        int type = ARGlassesProtocol.MSG_DATA;
+        if (frameCompressor != null) {
+            type = frameCompressor.compress(channel, data, stream);
+            if (type != ARGlassesProtocol.MSG_DATA) {
+                payload = frameCompressor.getOutput();
+            }
+        }
+        int length = ARGlassesProtocol.HEADER_SIZE + payload.remaining();
+        link.writeMessage(type, payload);
+        return length;
+    }
+    
     /**
      * Check if connected to a device
      * @return true if connected
      */
     public boolean isConnected() {
-        return connected;
+        return state == STATE_CONNECTED;
+    }
+    
+    /**
+     * Get the connection state
+     * @return One of the STATE_ constants
+     */
+    public int getState() {
+        return state;
+    }
+    
+    /**
+     * Get the round trip time measured by the keepalive pings
+     * @return The smoothed round trip time in milliseconds, or -1 if the
+     *         glasses do not answer pings
+     */
+    public long getRoundTripMs() {
+        return keepaliveEnabled ? roundTripNanos / 1000000L : -1;
+    }
+    
+    /**
+     * Get the head orientation the glasses last reported from their own
+     * sensors
+     * @param orientation Receives the heading, the pitch, positive looking
+     *                    up, and the roll, in degrees
+     * @param maxAgeMs How old the report may be
+     * @return true if the glasses reported within maxAgeMs, otherwise
+     *         orientation is left as it is
+     */
+    public boolean getGlassesOrientation(float[] orientation, long maxAgeMs) {
+        synchronized (glassesOrientation) {
+            if (glassesPoseNanos == 0 || System.nanoTime() - glassesPoseNanos
+                    > TimeUnit.MILLISECONDS.toNanos(maxAgeMs)) {
+                return false;
+            }
+            System.arraycopy(glassesOrientation, 0, orientation, 0, glassesOrientation.length);
+            return true;
+        }
     }
     
     /**
@@ -302,6 +1368,24 @@ public class ARGlassesConnectionManager {
         return connectedDeviceAddress;
     }
     
+    /**
+     * Get the wire format negotiated with the glasses
+     * @return One of the ARGlassesProtocol.FORMAT_* values
+     */
+    public int getWireFormat() {
+        return wireFormat;
+    }
+    
+    /**
+     * Get the id of the current connection. The id changes whenever a new
+     * connection is established or the glasses change their subscription,
+     * so encoders know to drop connection state.
+     * @return The session id
+     */
+    public int getSessionId() {
+        return sessionId;
+    }
+    
     /**
      * Check if the current connection is Bluetooth
      * @return true if Bluetooth, false if TCP/IP
@@ -310,6 +1394,22 @@ public class ARGlassesConnectionManager {
         return isBluetoothConnection;
     }
     
+    /**
+     * Check whether the compass currently goes over UDP
+     * @return true if a pose datagram link is open
+     */
+    public boolean isUdpPoseActive() {
+        return poseTransport != null;
+    }
+    
+    /**
+     * Check whether the glasses accepted POI positions relative to an origin
+     * @return true if they rebuild positions from the origin section
+     */
+    public boolean hasLocalPositions() {
+        return localPositions;
+    }
+    
     /**
      * Dispose of resources
      */
@@ -317,7 +1417,9 @@ public class ARGlassesConnectionManager {
         // Disconnect if connected
         disconnect();
         
-        // Shut down the executor
+        // Shut down the executor and the timers, the reader stops with its link
+        timer.shutdownNow();
+        reader.shutdown();
         if (executor != null && !executor.isShutdown()) {
             executor.shutdown();
         }
@@ -12,25 +12,36 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.widget.Toast;
 
 import androidx.core.app.NotificationCompat;
 
 import com.atakmap.android.arglasses.data.ARGlassesDataProvider;
-import com.atakmap.android.arglasses.data.POIData;
+import com.atakmap.android.arglasses.data.PosePredictor;
+import com.atakmap.android.arglasses.data.PoseSnapshot;
+import com.atakmap.android.arglasses.data.ViewFrustum;
+import com.atakmap.android.arglasses.metrics.FlightRecorder;
+import com.atakmap.android.arglasses.metrics.MetricsRegistry;
 import com.atakmap.android.arglasses.plugin.R;
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+import com.atakmap.android.arglasses.protocol.BinaryFrameEncoder;
+import com.atakmap.android.arglasses.protocol.FrameCompressor;
+import com.atakmap.android.arglasses.protocol.FrameEncoder;
+import com.atakmap.android.arglasses.protocol.JsonFrameEncoder;
+import com.atakmap.android.arglasses.protocol.POIDeltaTracker;
+import com.atakmap.android.arglasses.protocol.PositionQuantizer;
 import com.atakmap.android.maps.MapView;
 import com.atakmap.comms.CommsMapComponent;
+import com.atakmap.coremap.filesystem.FileSystemUtils;
 import com.atakmap.coremap.log.Log;
 import com.atakmap.coremap.maps.coords.GeoPoint;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -38,27 +49,74 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * This service runs in the background and sends data to the connected device at regular intervals.
  */
 public class ARGlassesDataService extends Service {
-
+    
     private static final String TAG = "ARGlassesDataService";
     
     // Notification settings
     private static final String NOTIFICATION_CHANNEL_ID = "com.atakmap.android.arglasses.service";
     private static final int NOTIFICATION_ID = 8675309;
     
+    // A head pose the glasses reported is used for the view until it is
+    // this old, then the phone sensors are
+    private static final long GLASSES_POSE_MAX_AGE_MS = 500;
+    
     // Actions
     public static final String ACTION_UPDATE_SETTINGS = "com.atakmap.android.arglasses.UPDATE_SETTINGS";
     
     // Data feed settings
-    private ARGlassesConnectionManager connectionManager;
+    private SinkGroup sinks; // The glasses and any additional displays
     private ARGlassesDataProvider dataProvider;
     private String deviceAddress = "";
-    private int updateRate = 500; // Default update rate (ms)
+    private String extraAddresses = ""; // Additional displays, comma separated
+    private int updateRate = 500; // POI update rate (ms)
+    private int mapUpdateRate = 200; // Self location and map update rate (ms)
+    private int compassUpdateRate = 33; // Compass update rate (ms)
     private boolean enablePoi = true;
     private boolean enableMap = true;
     private boolean enableCompass = true;
+    private boolean udpPose = false; // Offer UDP for the compass on TCP links
+    private int compressionMode = FrameCompressor.MODE_OFF; // Offer to compress frames
+    private int streamRadius = 0; // Only stream POIs this close (m), 0 for all
+    private boolean fovCulling = false;
+    private float fovHorizontal = ViewFrustum.DEFAULT_HORIZONTAL_FOV;
+    private float fovVertical = ViewFrustum.DEFAULT_VERTICAL_FOV;
+    private float fovMargin = ViewFrustum.DEFAULT_MARGIN;
+    private int maxPoisPerFrame = 0; // Most POIs sent per frame, 0 for no limit
+    private int maxFrameBytes = 0; // POI byte budget per frame, 0 for no limit
+    private boolean posePrediction = true; // Send the compass predicted ahead
+    private int renderOffsetMs = 20; // Glasses time from receiving to display (ms)
+    private boolean recordFrames = false; // Keep the frames sent in a ring file
+    private boolean localPositions = true; // Send POI positions as offsets from self
+    private volatile PositionQuantizer positionQuantizer = new PositionQuantizer(
+            PositionQuantizer.DEFAULT_PRECISION, PositionQuantizer.DEFAULT_RANGE);
+    
+    // Frame encoders, picked by the wire format negotiated with the glasses
+    private final FrameEncoder jsonEncoder = new JsonFrameEncoder();
+    private final BinaryFrameEncoder binaryEncoder = new BinaryFrameEncoder();
+    private int encoderSessionId = -1;
+    private boolean sessionStarted;
     
-    // Timer for data updates
-    private Timer updateTimer;
+    // Records the frames sent while recording is on
+    private volatile FlightRecorder recorder;
+    
+    // Builds the POI sections, it keeps the last sent POI state, used to
+    // only send POI changes in binary frames
+    private final POIFrameWriter poiWriter = new POIFrameWriter();
+    private final List<String> poiTypes = new ArrayList<>();
+    private int frameFields = ARGlassesProtocol.FIELD_ALL;
+    private final float[] predictedOrientation = new float[PosePredictor.PREDICTION_SIZE];
+    private final float[] glassesOrientation = new float[3];
+    
+    // Stage timings of the frame being built, on the scheduler thread
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private long snapshotNanos;
+    private long collectNanos;
+    private long frameCreatedAt;
+    
+    // Runs each data channel at its own rate
+    private ChannelScheduler scheduler;
+    private final long[] appliedPeriods = new long[ChannelScheduler.CHANNEL_COUNT];
+    private long poiFramesHeldBack;
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
     
     // Handler for UI thread
@@ -72,10 +130,32 @@ public class ARGlassesDataService extends Service {
         // Create the data provider
         dataProvider = new ARGlassesDataProvider(this);
         
-        // Create the connection manager
+        // Create the channel scheduler, frames are built on its thread
+        scheduler = new ChannelScheduler(new ChannelScheduler.Callback() {
+            @Override
+            public void onTick(int channel) {
+                if (isRunning.get() && sinks != null && sinks.isConnected()) {
+                    sendChannel(channel);
+                }
+            }
+        });
+        
+        // Create the connections to the displays
         MapView mapView = MapView.getMapView();
         if (mapView != null) {
-            connectionManager = new ARGlassesConnectionManager(mapView, this);
+            sinks = new SinkGroup(mapView, this, metrics);
+            sinks.setStateListener(new ARGlassesConnectionManager.StateListener() {
+                @Override
+                public void onStateChanged(int state) {
+                    // Resend everything after a display (re)connected, the
+                    // new session also makes the POI channel send a keyframe
+                    if (state == ARGlassesConnectionManager.STATE_CONNECTED && isRunning.get()) {
+                        scheduler.runAllNow();
+                    }
+                    // The rates follow the displays that are connected
+                    applyChannelRates();
+                }
+            });
         } else {
             Log.e(TAG, "MapView is null, service cannot function properly");
             stopSelf();
@@ -85,7 +165,7 @@ public class ARGlassesDataService extends Service {
         // Create notification channel for Android O+
         createNotificationChannel();
     }
-
+    
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent == null) {
@@ -98,10 +178,22 @@ public class ARGlassesDataService extends Service {
         } else {
             // Get settings from intent
             deviceAddress = intent.getStringExtra("device_address");
+            extraAddresses = intent.getStringExtra("extra_addresses");
             updateRate = intent.getIntExtra("update_rate", 500);
+            mapUpdateRate = intent.getIntExtra("map_update_rate", 200);
+            compassUpdateRate = intent.getIntExtra("compass_update_rate", 33);
             enablePoi = intent.getBooleanExtra("enable_poi", true);
             enableMap = intent.getBooleanExtra("enable_map", true);
             enableCompass = intent.getBooleanExtra("enable_compass", true);
+            udpPose = intent.getBooleanExtra("udp_pose", false);
+            compressionMode = intent.getIntExtra("compression_mode",
+                    FrameCompressor.MODE_OFF);
+            streamRadius = intent.getIntExtra("stream_radius", 0);
+            readFovSettings(intent);
+            readBudgetSettings(intent);
+            readPredictionSettings(intent);
+            readPositionSettings(intent);
+            recordFrames = intent.getBooleanExtra("record_frames", false);
             
             // Start the service in the foreground
             startForeground(NOTIFICATION_ID, createNotification());
@@ -120,11 +212,21 @@ public class ARGlassesDataService extends Service {
         // Stop the data feed
         stopDataFeed();
         
-        // Disconnect from device
-        if (connectionManager != null) {
-            connectionManager.disconnect();
-            connectionManager.dispose();
-            connectionManager = null;
+        // Detach from the map and stop the sensors, the listeners would
+        // otherwise keep this service reachable
+        if (dataProvider != null) {
+            dataProvider.dispose();
+            dataProvider = null;
+        }
+        if (scheduler != null) {
+            scheduler.dispose();
+            scheduler = null;
+        }
+        
+        // Disconnect from the displays
+        if (sinks != null) {
+            sinks.dispose();
+            sinks = null;
         }
         
         Log.d(TAG, "AR Glasses data service destroyed");
@@ -144,20 +246,41 @@ public class ARGlassesDataService extends Service {
         // Get settings from intent
         String newDeviceAddress = intent.getStringExtra("device_address");
         int newUpdateRate = intent.getIntExtra("update_rate", 500);
+        int newMapUpdateRate = intent.getIntExtra("map_update_rate", 200);
+        int newCompassUpdateRate = intent.getIntExtra("compass_update_rate", 33);
         boolean newEnablePoi = intent.getBooleanExtra("enable_poi", true);
         boolean newEnableMap = intent.getBooleanExtra("enable_map", true);
         boolean newEnableCompass = intent.getBooleanExtra("enable_compass", true);
+        int newStreamRadius = intent.getIntExtra("stream_radius", 0);
         
         // Check if device address has changed
         boolean deviceChanged = newDeviceAddress != null && 
                                !newDeviceAddress.equals(deviceAddress);
+        String newExtraAddresses = intent.getStringExtra("extra_addresses");
+        boolean extrasChanged = newExtraAddresses != null
+                && !newExtraAddresses.equals(extraAddresses);
         
         // Update settings
         deviceAddress = newDeviceAddress != null ? newDeviceAddress : deviceAddress;
+        extraAddresses = newExtraAddresses != null ? newExtraAddresses : extraAddresses;
         updateRate = newUpdateRate;
+        mapUpdateRate = newMapUpdateRate;
+        compassUpdateRate = newCompassUpdateRate;
         enablePoi = newEnablePoi;
         enableMap = newEnableMap;
         enableCompass = newEnableCompass;
+        udpPose = intent.getBooleanExtra("udp_pose", false);
+        compressionMode = intent.getIntExtra("compression_mode", FrameCompressor.MODE_OFF);
+        streamRadius = newStreamRadius;
+        readFovSettings(intent);
+        readBudgetSettings(intent);
+        readPredictionSettings(intent);
+        readPositionSettings(intent);
+        recordFrames = intent.getBooleanExtra("record_frames", false);
+        
+        // The glasses may have missed POI changes while POIs were disabled,
+        // and a new radius or field of view changes which POIs they should hold
+        poiWriter.getTracker().requestKeyframe();
         
         // Update the notification
         NotificationManager notificationManager = 
@@ -173,8 +296,15 @@ public class ARGlassesDataService extends Service {
                 stopDataFeed();
                 startDataFeed();
             } else {
-                // Just restart the timer if only update rate changed
-                restartTimer();
+                if (extrasChanged) {
+                    // The glasses stay connected while displays come and go
+                    sinks.setUdpPoseEnabled(udpPose);
+                    sinks.setCompressionMode(compressionMode);
+                    sinks.connect(getAddresses());
+                }
+                // Rates and channels change on the running schedule
+                applyChannelRates();
+                applyRecorder();
             }
         } else if (deviceAddress != null && !deviceAddress.isEmpty()) {
             // Start data feed if not running
@@ -182,6 +312,51 @@ public class ARGlassesDataService extends Service {
         }
     }
     
+    /**
+     * Read the field of view culling settings from an intent
+     * @param intent The intent with settings
+     */
+    private void readFovSettings(Intent intent) {
+        fovCulling = intent.getBooleanExtra("fov_culling", false);
+        fovHorizontal = intent.getFloatExtra("fov_horizontal",
+                ViewFrustum.DEFAULT_HORIZONTAL_FOV);
+        fovVertical = intent.getFloatExtra("fov_vertical",
+                ViewFrustum.DEFAULT_VERTICAL_FOV);
+        fovMargin = intent.getFloatExtra("fov_margin", ViewFrustum.DEFAULT_MARGIN);
+    }
+    
+    /**
+     * Read the per frame POI budget settings from an intent
+     * @param intent The intent with settings
+     */
+    private void readBudgetSettings(Intent intent) {
+        maxPoisPerFrame = intent.getIntExtra("max_pois_per_frame", 0);
+        maxFrameBytes = intent.getIntExtra("max_frame_bytes", 0);
+    }
+    
+    /**
+     * Read the head pose prediction settings from an intent
+     * @param intent The intent with settings
+     */
+    private void readPredictionSettings(Intent intent) {
+        posePrediction = intent.getBooleanExtra("pose_prediction", true);
+        renderOffsetMs = intent.getIntExtra("render_offset_ms", 20);
+    }
+    
+    /**
+     * Read the local POI position settings from an intent
+     * @param intent The intent with settings
+     */
+    private void readPositionSettings(Intent intent) {
+        localPositions = intent.getBooleanExtra("local_positions", true);
+        float precision = intent.getFloatExtra("position_precision",
+                PositionQuantizer.DEFAULT_PRECISION);
+        int range = intent.getIntExtra("position_range", PositionQuantizer.DEFAULT_RANGE);
+        // The quantizer is replaced rather than changed, it is in use on
+        // the scheduler thread
+        positionQuantizer = new PositionQuantizer(precision, range);
+    }
+    
     /**
      * Start the data feed to the connected device
      */
@@ -192,14 +367,20 @@ public class ARGlassesDataService extends Service {
         }
         
         // Connect to the device
-        if (!connectionManager.isConnected() && !connectionManager.connect(deviceAddress)) {
+        sinks.setUdpPoseEnabled(udpPose);
+        sinks.setCompressionMode(compressionMode);
+        if (!sinks.connect(getAddresses())) {
             // Connection failed, don't start the data feed
             isRunning.set(false);
             return;
         }
         
         // Start periodic data updates
-        startTimer();
+        metrics.reset();
+        applyRecorder();
+        resetChannelRates();
+        applyChannelRates();
+        scheduler.start();
         
         // Show a toast message
         showToast(getString(R.string.sending_data));
@@ -215,12 +396,19 @@ public class ARGlassesDataService extends Service {
             return;
         }
         
-        // Stop the timer
-        stopTimer();
+        // Stop the channels, then drop the POI state the frames kept
+        scheduler.stop(new Runnable() {
+            @Override
+            public void run() {
+                resetPoiState();
+            }
+        });
+        logChannelStats();
+        applyRecorder();
         
-        // Disconnect from the device
-        if (connectionManager != null && connectionManager.isConnected()) {
-            connectionManager.disconnect();
+        // Disconnect from the displays
+        if (sinks != null) {
+            sinks.disconnect();
         }
         
         // Show a toast message
@@ -229,114 +417,383 @@ public class ARGlassesDataService extends Service {
     }
     
     /**
-     * Start the timer for periodic data updates
+     * Push the channel rates to the scheduler. Channels disabled on the
+     * phone or that no connected display subscribed to are not run, the
+     * others run at the fastest rate a display asked for, or as set.
      */
-    private void startTimer() {
-        // Cancel existing timer if any
-        stopTimer();
-        
-        // Create new timer
-        updateTimer = new Timer();
-        updateTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                if (isRunning.get() && connectionManager != null && connectionManager.isConnected()) {
-                    sendData();
+    private synchronized void applyChannelRates() {
+        if (sinks == null) {
+            return;
+        }
+        applyChannelRate(ChannelScheduler.CHANNEL_POI, enablePoi ? updateRate : 0);
+        applyChannelRate(ChannelScheduler.CHANNEL_MAP, enableMap ? mapUpdateRate : 0);
+        applyChannelRate(ChannelScheduler.CHANNEL_COMPASS,
+                enableCompass ? compassUpdateRate : 0);
+    }
+    
+    /**
+     * Reschedule a channel if its period changed
+     * @param channel The channel
+     * @param settingMs The period set on the phone, 0 if disabled
+     */
+    private void applyChannelRate(int channel, long settingMs) {
+        long period = sinks.getPeriodMs(channel, settingMs);
+        if (period != appliedPeriods[channel]) {
+            appliedPeriods[channel] = period;
+            scheduler.setPeriod(channel, period);
+        }
+    }
+    
+    /**
+     * Forget the periods pushed to the scheduler, so the next
+     * applyChannelRates sets every channel
+     */
+    private synchronized void resetChannelRates() {
+        for (int i = 0; i < appliedPeriods.length; i++) {
+            appliedPeriods[i] = -1;
+        }
+    }
+    
+    /**
+     * Get the addresses of the displays to send to
+     * @return The device address of the glasses, then the additional displays
+     */
+    private List<String> getAddresses() {
+        List<String> addresses = new ArrayList<>();
+        addresses.add(deviceAddress);
+        if (extraAddresses != null) {
+            for (String address : extraAddresses.split("[,\\s]+")) {
+                if (!address.isEmpty()) {
+                    addresses.add(address);
                 }
             }
-        }, 0, updateRate);
+        }
+        return addresses;
     }
     
     /**
-     * Restart the timer with the current update rate
+     * Open or close the frame recorder to match the setting, frames are
+     * only recorded while the data feed runs
      */
-    private void restartTimer() {
-        if (isRunning.get()) {
-            startTimer();
+    private void applyRecorder() {
+        boolean wanted = recordFrames && isRunning.get();
+        FlightRecorder current = recorder;
+        if (wanted && current == null) {
+            File file = new File(FileSystemUtils.getItem("tools/arglasses"),
+                    FlightRecorder.FILE_NAME);
+            try {
+                recorder = new FlightRecorder(file, FlightRecorder.DEFAULT_CAPACITY);
+                Log.d(TAG, "Recording frames to " + file);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open the frame recording " + file, e);
+            }
+        } else if (!wanted && current != null) {
+            recorder = null;
+            current.close();
+            Log.d(TAG, "Stopped recording frames, " + current.getRecordCount()
+                    + " recorded in total, " + current.getSkipped() + " too large");
         }
     }
     
     /**
-     * Stop the timer
+     * Log the timing, drop and compression statistics of each channel
      */
-    private void stopTimer() {
-        if (updateTimer != null) {
-            updateTimer.cancel();
-            updateTimer = null;
+    private void logChannelStats() {
+        Log.d(TAG, "POI channel: " + scheduler.getStats(ChannelScheduler.CHANNEL_POI)
+                + " held back=" + poiFramesHeldBack
+                + compressionStats(ChannelScheduler.CHANNEL_POI));
+        Log.d(TAG, "Map channel: " + scheduler.getStats(ChannelScheduler.CHANNEL_MAP)
+                + " dropped=" + sinks.getDroppedFrames(ChannelScheduler.CHANNEL_MAP)
+                + compressionStats(ChannelScheduler.CHANNEL_MAP));
+        Log.d(TAG, "Compass channel: "
+                + scheduler.getStats(ChannelScheduler.CHANNEL_COMPASS) + " dropped="
+                + sinks.getDroppedFrames(ChannelScheduler.CHANNEL_COMPASS)
+                + compressionStats(ChannelScheduler.CHANNEL_COMPASS));
+        Log.d(TAG, metrics.getSummary());
+    }
+    
+    /**
+     * Describe the compression of a channel for the log
+     * @param channel The channel
+     * @return The statistics of each display, or an empty string if frames
+     *         are not compressed
+     */
+    private String compressionStats(int channel) {
+        return sinks.getCompressionStats(channel);
+    }
+    
+    /**
+     * Send a frame for one channel to the connected displays, encoded once
+     * for each wire format they use
+     * @param channel The channel that is due
+     */
+    private void sendChannel(int channel) {
+        // POI frames build on the last frame sent, so instead of replacing a
+        // POI frame that is still waiting the changes stay for the next tick
+        if (channel == ChannelScheduler.CHANNEL_POI && !sinks.beginPoiFrame()) {
+            poiFramesHeldBack++;
+            return;
+        }
+        
+        // Binary POI frames take the changes from the index, JSON frames
+        // hold every POI and leave the changes alone
+        int formats = sinks.getWireFormats();
+        if ((formats & (1 << ARGlassesProtocol.FORMAT_BINARY)) != 0) {
+            sendChannel(channel, ARGlassesProtocol.FORMAT_BINARY);
+        }
+        if ((formats & (1 << ARGlassesProtocol.FORMAT_JSON)) != 0) {
+            sendChannel(channel, ARGlassesProtocol.FORMAT_JSON);
         }
     }
     
     /**
-     * Send data to the connected device
+     * Encode a frame for one channel and queue it for every connected
+     * display using the wire format
+     * @param channel The channel that is due
+     * @param format One of the ARGlassesProtocol.FORMAT_* values
      */
-    private void sendData() {
+    private void sendChannel(int channel, int format) {
         try {
-            // Create a JSON object with all data
-            JSONObject data = new JSONObject();
+            long start = System.nanoTime();
+            snapshotNanos = 0;
+            collectNanos = 0;
+            frameCreatedAt = start;
             
-            // Add timestamp
-            data.put("timestamp", System.currentTimeMillis());
+            FrameEncoder encoder = selectEncoder(format);
+            frameFields = sinks.getFields(format);
+            encoder.setFields(frameFields);
+            long now = System.currentTimeMillis();
+            encoder.begin(now);
             
-            // Add POI data if enabled
-            if (enablePoi) {
-                JSONArray poisArray = new JSONArray();
-                List<POIData> pois = dataProvider.getPointsOfInterest();
-                
-                for (POIData poi : pois) {
-                    JSONObject poiJson = new JSONObject();
-                    poiJson.put("id", poi.getId());
-                    poiJson.put("name", poi.getName());
-                    poiJson.put("type", poi.getType());
-                    poiJson.put("lat", poi.getLocation().getLatitude());
-                    poiJson.put("lon", poi.getLocation().getLongitude());
-                    poiJson.put("alt", poi.getLocation().getAltitude());
-                    poiJson.put("color", poi.getColor());
-                    poisArray.put(poiJson);
-                }
-                
-                data.put("pois", poisArray);
+            switch (channel) {
+                case ChannelScheduler.CHANNEL_POI:
+                    writePois(encoder, now);
+                    break;
+                case ChannelScheduler.CHANNEL_MAP:
+                    writeMap(encoder);
+                    break;
+                case ChannelScheduler.CHANNEL_COMPASS:
+                    writeCompass(encoder);
+                    break;
             }
             
-            // Add map data if enabled
-            if (enableMap) {
-                JSONObject mapData = new JSONObject();
-                GeoPoint selfLocation = dataProvider.getSelfLocation();
-                
-                if (selfLocation != null) {
-                    mapData.put("self_lat", selfLocation.getLatitude());
-                    mapData.put("self_lon", selfLocation.getLongitude());
-                    mapData.put("self_alt", selfLocation.getAltitude());
-                }
-                
-                // Add map view settings
-                mapData.put("zoom_level", dataProvider.getZoomLevel());
-                mapData.put("map_bearing", dataProvider.getMapBearing());
-                
-                data.put("map", mapData);
+            // The frame is copied once for the send queues of the displays,
+            // so the encoder buffer can be handed over as is
+            ByteBuffer frame = encoder.finishBuffer();
+            long built = System.nanoTime() - start;
+            metrics.recordStage(channel, MetricsRegistry.STAGE_SNAPSHOT, snapshotNanos);
+            if (channel == ChannelScheduler.CHANNEL_POI) {
+                metrics.recordStage(channel, MetricsRegistry.STAGE_COLLECT, collectNanos);
             }
+            metrics.recordStage(channel, MetricsRegistry.STAGE_ENCODE,
+                    built - snapshotNanos - collectNanos);
             
-            // Add compass data if enabled
-            if (enableCompass) {
-                JSONObject compassData = new JSONObject();
-                compassData.put("heading", dataProvider.getDeviceHeading());
-                compassData.put("tilt", dataProvider.getDeviceTilt());
-                compassData.put("roll", dataProvider.getDeviceRoll());
-                
-                data.put("compass", compassData);
+            // Send the data, older unsent map and compass frames are dropped
+            if (sinks != null && sinks.isConnected()) {
+                FlightRecorder frameRecorder = recorder;
+                if (frameRecorder != null) {
+                    frameRecorder.record(channel, encoder.getFormat(),
+                            sessionStarted ? FlightRecorder.FLAG_SESSION_START : 0,
+                            now, System.nanoTime(), frame);
+                }
+                sessionStarted = false;
+                sinks.sendData(channel, format, frame, frameCreatedAt);
+                if (channel == ChannelScheduler.CHANNEL_POI
+                        && format == ARGlassesProtocol.FORMAT_BINARY && sinks.needsResync()) {
+                    sendResync(now);
+                }
             }
-            
-            // Convert to JSON string
-            String jsonData = data.toString();
-            
-            // Send the data
-            if (connectionManager != null && connectionManager.isConnected()) {
-                connectionManager.sendData(jsonData.getBytes());
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "Error encoding frame", e);
+        }
+    }
+    
+    /**
+     * Write the compass with its rates. With prediction on, the angles are
+     * extrapolated to when the glasses are expected to show them: the
+     * measured time frames take to reach glasses that acknowledge them, or
+     * to get onto the link for other glasses, plus the render offset.
+     * @param encoder The frame encoder
+     */
+    private void writeCompass(FrameEncoder encoder) {
+        long start = System.nanoTime();
+        if (!posePrediction) {
+            PoseSnapshot pose = dataProvider.getPose();
+            recordSnapshot(start, pose);
+            encoder.writeCompass(pose.getHeading(), pose.getPitch(), pose.getRoll(),
+                    pose.getHeadingRate(), pose.getPitchRate(), pose.getRollRate(), 0);
+            return;
+        }
+        
+        // The rates are those measured; they barely change over the
+        // prediction and recomputing them would cost a snapshot per frame
+        int predictedMs = (int) sinks.getLinkLatencyMs(
+                ChannelScheduler.CHANNEL_COMPASS) + renderOffsetMs;
+        PoseSnapshot pose = dataProvider.getPredictedPose(predictedMs, predictedOrientation);
+        recordSnapshot(start, pose);
+        encoder.writeCompass(predictedOrientation[0], predictedOrientation[1],
+                predictedOrientation[2], pose.getHeadingRate(), pose.getPitchRate(),
+                pose.getRollRate(), predictedMs);
+    }
+    
+    /**
+     * Write the self location and map state
+     * @param encoder The frame encoder
+     */
+    private void writeMap(FrameEncoder encoder) {
+        long start = System.nanoTime();
+        GeoPoint selfLocation = dataProvider.getSelfLocation();
+        double zoom = dataProvider.getZoomLevel();
+        double bearing = dataProvider.getMapBearing();
+        snapshotNanos = System.nanoTime() - start;
+        if (selfLocation != null) {
+            encoder.writeMap(true, selfLocation.getLatitude(),
+                    selfLocation.getLongitude(), selfLocation.getAltitude(),
+                    zoom, bearing);
+        } else {
+            encoder.writeMap(false, 0, 0, 0, zoom, bearing);
+        }
+    }
+    
+    /**
+     * Note how long reading the pose took and date the frame from the
+     * sensor sample, so its total time covers the sample age
+     * @param start The System.nanoTime() before the pose was read
+     * @param pose The pose read
+     */
+    private void recordSnapshot(long start, PoseSnapshot pose) {
+        long now = System.nanoTime();
+        snapshotNanos = now - start;
+        if (pose.getTimestampNanos() > 0) {
+            // Sensor times run on the elapsed realtime clock
+            long age = SystemClock.elapsedRealtimeNanos() - pose.getTimestampNanos();
+            if (age >= 0) {
+                frameCreatedAt = now - age;
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "Error creating JSON data", e);
         }
     }
     
+    /**
+     * Write the POI section, and the POI geometry section of binary frames.
+     * The POI writer does the work, the service gives it the self location,
+     * the view, the settings and what the displays subscribed to.
+     * @param encoder The frame encoder
+     * @param now The frame time in milliseconds
+     */
+    private void writePois(FrameEncoder encoder, long now) {
+        long start = System.nanoTime();
+        GeoPoint self = dataProvider.getSelfLocation();
+        int format = encoder.getFormat();
+        POIFrameWriter writer = poiWriter;
+        if (self != null) {
+            writer.setSelf(true, self.getLatitude(), self.getLongitude(), self.getAltitude());
+        } else {
+            writer.setSelf(false, 0, 0, 0);
+        }
+        writer.setStreamRadius(streamRadius);
+        writer.setFovCulling(fovCulling);
+        writer.setBudget(maxPoisPerFrame, maxFrameBytes);
+        writer.setLocalPositions(localPositions && sinks.hasLocalPositions(format)
+                ? positionQuantizer : null);
+        boolean typed = sinks.getPoiTypes(format, poiTypes);
+        if (writer.needsView(format)) {
+            // The glasses know where the head points, the phone sensors
+            // only where the phone does
+            ViewFrustum frustum = writer.getFrustum();
+            frustum.setFieldOfView(fovHorizontal, fovVertical, fovMargin);
+            if (sinks.getGlassesOrientation(glassesOrientation, GLASSES_POSE_MAX_AGE_MS)) {
+                frustum.update(self.getLatitude(), self.getLongitude(),
+                        self.getAltitude(), glassesOrientation[0],
+                        glassesOrientation[1], glassesOrientation[2]);
+            } else {
+                // Android reports pitch as negative when the top edge is raised
+                PoseSnapshot pose = dataProvider.getPose();
+                frustum.update(self.getLatitude(), self.getLongitude(),
+                        self.getAltitude(), pose.getHeading(), -pose.getPitch(),
+                        pose.getRoll());
+            }
+        }
+        snapshotNanos = System.nanoTime() - start;
+        
+        writer.write(dataProvider.getPOIIndex(), encoder, frameFields,
+                typed ? poiTypes : null, now);
+        collectNanos = writer.getCollectNanos();
+    }
+    
+    /**
+     * Bring the binary displays that connected while others stayed
+     * connected, or that fell behind, up to the POIs the others hold. Runs
+     * after the binary POI frame of the tick was queued, with the encoder
+     * still set up for it, and writes what the delta tracker recorded as
+     * sent, geometry included, into a frame for them alone.
+     * @param now The frame time in milliseconds
+     */
+    private void sendResync(long now) {
+        BinaryFrameEncoder encoder = binaryEncoder;
+        POIDeltaTracker poiTracker = poiWriter.getTracker();
+        int poiFields = poiWriter.getFields();
+        boolean withGeometry = (poiFields & ARGlassesProtocol.FIELD_POI_GEOMETRY) != 0;
+        int count = poiTracker.getSentCount();
+        encoder.setFields(poiFields);
+        
+        encoder.beginResync(now);
+        encoder.beginPois(true);
+        for (int i = 0; i < count; i++) {
+            encoder.writePoi(poiTracker.getSentId(i), poiTracker.getSentName(i),
+                    poiTracker.getSentType(i), poiTracker.getSentLat(i),
+                    poiTracker.getSentLon(i), poiTracker.getSentAlt(i),
+                    poiTracker.getSentColor(i),
+                    withGeometry ? poiTracker.getSentRange(i) : 0,
+                    withGeometry ? poiTracker.getSentBearing(i) : 0,
+                    withGeometry ? poiTracker.getSentElevation(i) : 0);
+        }
+        encoder.endPois();
+        if (!encoder.endResync()) {
+            Log.w(TAG, "POI strings no longer in the table, starting over for every display");
+            sinks.restart();
+            return;
+        }
+        sinks.sendResync(encoder.finishBuffer(), frameCreatedAt);
+    }
+    
+    /**
+     * Forget what was sent and which POIs wait to be sent, on the
+     * scheduler thread
+     */
+    private void resetPoiState() {
+        poiWriter.reset();
+    }
+    
+    /**
+     * Pick the encoder for a wire format, dropping any connection state the
+     * encoders hold when no display holds it any more. Displays that
+     * connect while others stay connected, or have to catch up, get a
+     * resync frame of their own instead. The binary sequence runs on,
+     * displays that stayed connected drop compass datagrams whose sequence
+     * is not newer than the last.
+     * @param format One of the ARGlassesProtocol.FORMAT_* values
+     * @return The frame encoder to use
+     */
+    private FrameEncoder selectEncoder(int format) {
+        if (sinks.updateSessions()) {
+            // Subscriptions change the session, they may ask for new rates
+            applyChannelRates();
+        }
+        int sessionId = sinks.getSessionId();
+        if (sessionId != encoderSessionId) {
+            jsonEncoder.reset();
+            binaryEncoder.clearStrings();
+            resetPoiState();
+            encoderSessionId = sessionId;
+            sessionStarted = true;
+        }
+        
+        if (format == ARGlassesProtocol.FORMAT_BINARY) {
+            return binaryEncoder;
+        }
+        return jsonEncoder;
+    }
+    
     /**
      * Create the notification channel (required for Android O+)
      */
@@ -374,7 +831,7 @@ public class ARGlassesDataService extends Service {
         NotificationCompat.Builder builder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
                 .setSmallIcon(R.drawable.ar_glasses)
                 .setContentTitle(getString(R.string.app_name))
-                .setContentText(connectionManager != null && connectionManager.isConnected() ? 
+                .setContentText(sinks != null && sinks.isConnected() ? 
                         "Connected to " + deviceAddress : "Not connected")
                 .setPriority(NotificationCompat.PRIORITY_LOW)
                 .setContentIntent(pendingIntent)
@@ -13,12 +13,20 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.atak.plugins.impl.PluginLayoutInflater;
+import com.atakmap.android.arglasses.data.ViewFrustum;
+import com.atakmap.android.arglasses.metrics.MetricsRegistry;
 import com.atakmap.android.arglasses.plugin.R;
+import com.atakmap.android.arglasses.protocol.FrameCompressor;
+import com.atakmap.android.arglasses.protocol.PositionQuantizer;
 import com.atakmap.android.dropdown.DropDown;
 import com.atakmap.android.dropdown.DropDownReceiver;
 import com.atakmap.android.maps.MapView;
+import com.atakmap.coremap.filesystem.FileSystemUtils;
 import com.atakmap.coremap.log.Log;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * Drop down receiver for AR Glasses plugin.
  * Handles the UI and user interaction.
@@ -28,19 +36,46 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
     public static final String TAG = "ARGlassesDropDownReceiver";
     public static final String SHOW_PLUGIN = "com.atakmap.android.arglasses.SHOW_PLUGIN";
     
+    // How often the link statistics are refreshed while shown
+    private static final long STATS_REFRESH_MS = 1000;
+    
     private final Context pluginContext;
     private final View mainView;
     private final ARGlassesConnectionManager connectionManager;
     
     // UI Elements
     private EditText deviceAddressInput;
+    private EditText extraAddressesInput;
     private EditText updateRateInput;
+    private EditText mapUpdateRateInput;
+    private EditText compassUpdateRateInput;
+    private EditText streamRadiusInput;
+    private EditText maxPoisInput;
+    private EditText maxFrameBytesInput;
     private CheckBox enablePoiCheckbox;
     private CheckBox enableMapCheckbox;
     private CheckBox enableCompassCheckbox;
+    private CheckBox udpPoseCheckbox;
+    private CheckBox compressFramesCheckbox;
+    private CheckBox compressStreamCheckbox;
+    private CheckBox localPositionsCheckbox;
+    private EditText positionPrecisionInput;
+    private EditText positionRangeInput;
+    private CheckBox posePredictionCheckbox;
+    private EditText renderOffsetInput;
+    private CheckBox fovCullingCheckbox;
+    private EditText fovHorizontalInput;
+    private EditText fovVerticalInput;
+    private EditText fovMarginInput;
     private Button connectButton;
     private Button saveButton;
     private TextView connectionStatusText;
+    private TextView linkStatsText;
+    private Button saveStatsButton;
+    private CheckBox recordFramesCheckbox;
+    
+    private final MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private boolean statsShown;
 
     /**
      * Constructor
@@ -62,6 +97,19 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
         
         // Load saved settings
         loadSettings();
+        
+        // Follow the connection as it drops and comes back
+        connectionManager.setStateListener(new ARGlassesConnectionManager.StateListener() {
+            @Override
+            public void onStateChanged(final int state) {
+                getMapView().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateConnectionStatus(state);
+                    }
+                });
+            }
+        });
     }
 
     /**
@@ -69,22 +117,43 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
      */
     private void initializeUI() {
         deviceAddressInput = mainView.findViewById(R.id.device_address);
+        extraAddressesInput = mainView.findViewById(R.id.extra_addresses);
         updateRateInput = mainView.findViewById(R.id.update_rate);
+        mapUpdateRateInput = mainView.findViewById(R.id.map_update_rate);
+        compassUpdateRateInput = mainView.findViewById(R.id.compass_update_rate);
+        streamRadiusInput = mainView.findViewById(R.id.stream_radius);
+        maxPoisInput = mainView.findViewById(R.id.max_pois_per_frame);
+        maxFrameBytesInput = mainView.findViewById(R.id.max_frame_bytes);
         enablePoiCheckbox = mainView.findViewById(R.id.enable_poi);
         enableMapCheckbox = mainView.findViewById(R.id.enable_map);
         enableCompassCheckbox = mainView.findViewById(R.id.enable_compass);
+        udpPoseCheckbox = mainView.findViewById(R.id.udp_pose);
+        compressFramesCheckbox = mainView.findViewById(R.id.compress_frames);
+        compressStreamCheckbox = mainView.findViewById(R.id.compress_stream);
+        localPositionsCheckbox = mainView.findViewById(R.id.local_positions);
+        positionPrecisionInput = mainView.findViewById(R.id.position_precision);
+        positionRangeInput = mainView.findViewById(R.id.position_range);
+        posePredictionCheckbox = mainView.findViewById(R.id.pose_prediction);
+        renderOffsetInput = mainView.findViewById(R.id.render_offset_ms);
+        fovCullingCheckbox = mainView.findViewById(R.id.fov_culling);
+        fovHorizontalInput = mainView.findViewById(R.id.fov_horizontal);
+        fovVerticalInput = mainView.findViewById(R.id.fov_vertical);
+        fovMarginInput = mainView.findViewById(R.id.fov_margin);
         connectButton = mainView.findViewById(R.id.connect_button);
         saveButton = mainView.findViewById(R.id.save_settings);
+        linkStatsText = mainView.findViewById(R.id.link_stats);
+        saveStatsButton = mainView.findViewById(R.id.save_stats);
+        recordFramesCheckbox = mainView.findViewById(R.id.record_frames);
         connectionStatusText = mainView.findViewById(R.id.connection_status);
         
         // Set up connection button click listener
         connectButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (connectionManager.isConnected()) {
-                    // Disconnect if already connected
+                if (connectionManager.getState() != ARGlassesConnectionManager.STATE_DISCONNECTED) {
+                    // Disconnect if connected or still trying to
                     connectionManager.disconnect();
-                    updateConnectionStatus(false);
+                    updateConnectionStatus(ARGlassesConnectionManager.STATE_DISCONNECTED);
                 } else {
                     // Connect if not connected
                     String deviceAddress = deviceAddressInput.getText().toString().trim();
@@ -97,13 +166,12 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
                     // Save settings before connecting
                     saveSettings();
                     
-                    // Connect to device
-                    connectionStatusText.setText(R.string.connecting);
-                    connectionStatusText.setTextColor(Color.YELLOW);
-                    
-                    // Start connection process
+                    // Start connection process, the listener follows it
+                    connectionManager.setUdpPoseEnabled(udpPoseCheckbox.isChecked());
+                    connectionManager.setCompressionMode(getCompressionMode());
                     boolean connected = connectionManager.connect(deviceAddress);
-                    updateConnectionStatus(connected);
+                    updateConnectionStatus(connected ? ARGlassesConnectionManager.STATE_CONNECTING
+                            : ARGlassesConnectionManager.STATE_DISCONNECTED);
                     
                     if (connected) {
                         // Update service with new settings
@@ -124,6 +192,55 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
                 updateService();
             }
         });
+        
+        // Set up save statistics button click listener
+        saveStatsButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                saveStats();
+            }
+        });
+    }
+    
+    /**
+     * Refreshes the link statistics while the drop down is shown
+     */
+    private final Runnable statsRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (!statsShown) {
+                return;
+            }
+            linkStatsText.setText(metrics.getSummary());
+            linkStatsText.postDelayed(this, STATS_REFRESH_MS);
+        }
+    };
+    
+    /**
+     * Start or stop refreshing the link statistics
+     * @param shown true while the statistics are visible
+     */
+    private void showStats(boolean shown) {
+        linkStatsText.removeCallbacks(statsRefresh);
+        statsShown = shown;
+        if (shown) {
+            statsRefresh.run();
+        }
+    }
+    
+    /**
+     * Write the link statistics to a file for later analysis
+     */
+    private void saveStats() {
+        try {
+            File file = metrics.dumpToFile(FileSystemUtils.getItem("tools/arglasses"));
+            Toast.makeText(pluginContext, "Statistics saved to " + file.getPath(),
+                    Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving statistics", e);
+            Toast.makeText(pluginContext, "Could not save statistics: " + e.getMessage(),
+                    Toast.LENGTH_SHORT).show();
+        }
     }
     
     /**
@@ -135,10 +252,22 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
         // Load device address
         String deviceAddress = prefs.getString("device_address", "");
         deviceAddressInput.setText(deviceAddress);
+        extraAddressesInput.setText(prefs.getString("extra_addresses", ""));
         
         // Load update rate
         int updateRate = prefs.getInt("update_rate", 500);
         updateRateInput.setText(String.valueOf(updateRate));
+        mapUpdateRateInput.setText(String.valueOf(prefs.getInt("map_update_rate", 200)));
+        compassUpdateRateInput.setText(String.valueOf(
+                prefs.getInt("compass_update_rate", 33)));
+        
+        // Load stream radius
+        int streamRadius = prefs.getInt("stream_radius", 0);
+        streamRadiusInput.setText(String.valueOf(streamRadius));
+        
+        // Load per frame POI budget
+        maxPoisInput.setText(String.valueOf(prefs.getInt("max_pois_per_frame", 0)));
+        maxFrameBytesInput.setText(String.valueOf(prefs.getInt("max_frame_bytes", 0)));
         
         // Load data channel settings
         boolean enablePoi = prefs.getBoolean("enable_poi", true);
@@ -148,9 +277,30 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
         enablePoiCheckbox.setChecked(enablePoi);
         enableMapCheckbox.setChecked(enableMap);
         enableCompassCheckbox.setChecked(enableCompass);
+        udpPoseCheckbox.setChecked(prefs.getBoolean("udp_pose", false));
+        int compressionMode = prefs.getInt("compression_mode", FrameCompressor.MODE_OFF);
+        compressFramesCheckbox.setChecked(compressionMode != FrameCompressor.MODE_OFF);
+        compressStreamCheckbox.setChecked(compressionMode == FrameCompressor.MODE_STREAM);
+        localPositionsCheckbox.setChecked(prefs.getBoolean("local_positions", true));
+        positionPrecisionInput.setText(String.valueOf(prefs.getFloat("position_precision",
+                PositionQuantizer.DEFAULT_PRECISION)));
+        positionRangeInput.setText(String.valueOf(prefs.getInt("position_range",
+                PositionQuantizer.DEFAULT_RANGE)));
+        posePredictionCheckbox.setChecked(prefs.getBoolean("pose_prediction", true));
+        renderOffsetInput.setText(String.valueOf(prefs.getInt("render_offset_ms", 20)));
+
+        // Load field of view culling settings
+        fovCullingCheckbox.setChecked(prefs.getBoolean("fov_culling", false));
+        fovHorizontalInput.setText(String.valueOf(prefs.getFloat("fov_horizontal",
+                ViewFrustum.DEFAULT_HORIZONTAL_FOV)));
+        fovVerticalInput.setText(String.valueOf(prefs.getFloat("fov_vertical",
+                ViewFrustum.DEFAULT_VERTICAL_FOV)));
+        fovMarginInput.setText(String.valueOf(prefs.getFloat("fov_margin",
+                ViewFrustum.DEFAULT_MARGIN)));
+        recordFramesCheckbox.setChecked(prefs.getBoolean("record_frames", false));
         
         // Check if already connected
-        updateConnectionStatus(connectionManager.isConnected());
+        updateConnectionStatus(connectionManager.getState());
     }
     
     /**
@@ -163,6 +313,7 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
         // Save device address
         String deviceAddress = deviceAddressInput.getText().toString().trim();
         editor.putString("device_address", deviceAddress);
+        editor.putString("extra_addresses", extraAddressesInput.getText().toString().trim());
         
         // Save update rate
         String updateRateStr = updateRateInput.getText().toString().trim();
@@ -176,29 +327,212 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
         }
         editor.putInt("update_rate", updateRate);
         updateRateInput.setText(String.valueOf(updateRate));
+        editor.putInt("map_update_rate", parseRate(mapUpdateRateInput, 200, 50));
+        editor.putInt("compass_update_rate", parseRate(compassUpdateRateInput, 33, 16));
+        
+        // Save stream radius
+        int streamRadius = parseStreamRadius();
+        editor.putInt("stream_radius", streamRadius);
+        streamRadiusInput.setText(String.valueOf(streamRadius));
+        
+        // Save per frame POI budget
+        editor.putInt("max_pois_per_frame", parseLimit(maxPoisInput));
+        editor.putInt("max_frame_bytes", parseLimit(maxFrameBytesInput));
         
         // Save data channel settings
         editor.putBoolean("enable_poi", enablePoiCheckbox.isChecked());
         editor.putBoolean("enable_map", enableMapCheckbox.isChecked());
         editor.putBoolean("enable_compass", enableCompassCheckbox.isChecked());
+        editor.putBoolean("udp_pose", udpPoseCheckbox.isChecked());
+        editor.putInt("compression_mode", getCompressionMode());
+        editor.putBoolean("local_positions", localPositionsCheckbox.isChecked());
+        editor.putFloat("position_precision", parsePositionPrecision());
+        editor.putInt("position_range", parsePositionRange());
+        editor.putBoolean("pose_prediction", posePredictionCheckbox.isChecked());
+        editor.putInt("render_offset_ms", parseRenderOffset());
+
+        // Save field of view culling settings
+        editor.putBoolean("fov_culling", fovCullingCheckbox.isChecked());
+        editor.putFloat("fov_horizontal", parseAngle(fovHorizontalInput,
+                ViewFrustum.DEFAULT_HORIZONTAL_FOV));
+        editor.putFloat("fov_vertical", parseAngle(fovVerticalInput,
+                ViewFrustum.DEFAULT_VERTICAL_FOV));
+        editor.putFloat("fov_margin", parseAngle(fovMarginInput,
+                ViewFrustum.DEFAULT_MARGIN));
+        editor.putBoolean("record_frames", recordFramesCheckbox.isChecked());
         
         // Apply changes
         editor.apply();
     }
     
+    /**
+     * Parse the stream radius input
+     * @return The radius in meters, 0 to stream all POIs
+     */
+    private int parseStreamRadius() {
+        String streamRadiusStr = streamRadiusInput.getText().toString().trim();
+        int streamRadius = 0; // Default
+        try {
+            streamRadius = Integer.parseInt(streamRadiusStr);
+            if (streamRadius < 0) streamRadius = 0;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid stream radius, streaming all POIs");
+        }
+        return streamRadius;
+    }
+    
+    /**
+     * Parse a channel update rate input
+     * @param input The input to parse
+     * @param defaultValue The rate to use if the input is invalid
+     * @param min The fastest allowed rate in milliseconds
+     * @return The rate in milliseconds, at most 5 seconds
+     */
+    private int parseRate(EditText input, int defaultValue, int min) {
+        String rateStr = input.getText().toString().trim();
+        int rate = defaultValue;
+        try {
+            rate = Integer.parseInt(rateStr);
+            if (rate < min) rate = min;
+            if (rate > 5000) rate = 5000; // Maximum 5 seconds
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid update rate, using default");
+        }
+        input.setText(String.valueOf(rate));
+        return rate;
+    }
+    
+    /**
+     * Parse a per frame limit input
+     * @param input The input to parse
+     * @return The limit, 0 for no limit
+     */
+    private int parseLimit(EditText input) {
+        String limitStr = input.getText().toString().trim();
+        int limit = 0; // Default
+        try {
+            limit = Integer.parseInt(limitStr);
+            if (limit < 0) limit = 0;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid limit, using no limit");
+        }
+        input.setText(String.valueOf(limit));
+        return limit;
+    }
+
+    /**
+     * Parse the render offset input
+     * @return The render offset in milliseconds
+     */
+    private int parseRenderOffset() {
+        String offsetStr = renderOffsetInput.getText().toString().trim();
+        int offset = 20; // Default
+        try {
+            offset = Integer.parseInt(offsetStr);
+            if (offset < 0) offset = 0;
+            if (offset > 200) offset = 200; // Predictions are limited anyway
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid render offset, using default");
+        }
+        renderOffsetInput.setText(String.valueOf(offset));
+        return offset;
+    }
+
+    /**
+     * Parse the position precision input
+     * @return The step of the local POI positions in meters
+     */
+    private float parsePositionPrecision() {
+        String precisionStr = positionPrecisionInput.getText().toString().trim();
+        float precision = PositionQuantizer.DEFAULT_PRECISION;
+        try {
+            precision = Float.parseFloat(precisionStr);
+            if (!(precision >= 0.01f)) precision = 0.01f; // Also catches NaN
+            if (precision > 100) precision = 100;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid position precision, using default");
+        }
+        positionPrecisionInput.setText(String.valueOf(precision));
+        return precision;
+    }
+
+    /**
+     * Parse the position range input
+     * @return The distance local POI positions cover in meters
+     */
+    private int parsePositionRange() {
+        String rangeStr = positionRangeInput.getText().toString().trim();
+        int range = PositionQuantizer.DEFAULT_RANGE;
+        try {
+            range = Integer.parseInt(rangeStr);
+            if (range < 100) range = 100;
+            if (range > 1000000) range = 1000000; // Farther is sent absolute anyway
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid position range, using default");
+        }
+        positionRangeInput.setText(String.valueOf(range));
+        return range;
+    }
+
+    /**
+     * Get the compression mode from the compression checkboxes
+     * @return One of the FrameCompressor.MODE_* values
+     */
+    private int getCompressionMode() {
+        if (!compressFramesCheckbox.isChecked()) {
+            return FrameCompressor.MODE_OFF;
+        }
+        return compressStreamCheckbox.isChecked()
+                ? FrameCompressor.MODE_STREAM : FrameCompressor.MODE_FRAME;
+    }
+
+    /**
+     * Parse an angle input
+     * @param input The input to parse
+     * @param defaultValue The value to use if the input is invalid
+     * @return The angle in degrees, between 0 and 360
+     */
+    private float parseAngle(EditText input, float defaultValue) {
+        String angleStr = input.getText().toString().trim();
+        float angle = defaultValue;
+        try {
+            angle = Float.parseFloat(angleStr);
+            if (angle < 0) angle = 0;
+            if (angle > 360) angle = 360;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid angle, using default");
+        }
+        input.setText(String.valueOf(angle));
+        return angle;
+    }
+    
     /**
      * Update the connection status UI
-     * @param connected Whether connected or not
+     * @param state The connection state, one of the
+     *              ARGlassesConnectionManager.STATE_ constants
      */
-    private void updateConnectionStatus(boolean connected) {
-        if (connected) {
-            connectionStatusText.setText(R.string.connected);
-            connectionStatusText.setTextColor(Color.GREEN);
-            connectButton.setText(R.string.disconnect);
-        } else {
-            connectionStatusText.setText(R.string.not_connected);
-            connectionStatusText.setTextColor(Color.RED);
-            connectButton.setText(R.string.connect);
+    private void updateConnectionStatus(int state) {
+        switch (state) {
+            case ARGlassesConnectionManager.STATE_CONNECTED:
+                connectionStatusText.setText(R.string.connected);
+                connectionStatusText.setTextColor(Color.GREEN);
+                connectButton.setText(R.string.disconnect);
+                break;
+            case ARGlassesConnectionManager.STATE_CONNECTING:
+                connectionStatusText.setText(R.string.connecting);
+                connectionStatusText.setTextColor(Color.YELLOW);
+                connectButton.setText(R.string.disconnect);
+                break;
+            case ARGlassesConnectionManager.STATE_RECONNECTING:
+                connectionStatusText.setText(R.string.reconnecting);
+                connectionStatusText.setTextColor(Color.YELLOW);
+                connectButton.setText(R.string.disconnect);
+                break;
+            default:
+                connectionStatusText.setText(R.string.not_connected);
+                connectionStatusText.setTextColor(Color.RED);
+                connectButton.setText(R.string.connect);
+                break;
         }
     }
     
@@ -212,6 +546,7 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
         
         // Add current settings
         updateIntent.putExtra("device_address", deviceAddressInput.getText().toString().trim());
+        updateIntent.putExtra("extra_addresses", extraAddressesInput.getText().toString().trim());
         
         String updateRateStr = updateRateInput.getText().toString().trim();
         int updateRate = 500; // Default
@@ -221,10 +556,31 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
             Log.w(TAG, "Invalid update rate, using default");
         }
         updateIntent.putExtra("update_rate", updateRate);
-        
+        updateIntent.putExtra("map_update_rate", parseRate(mapUpdateRateInput, 200, 50));
+        updateIntent.putExtra("compass_update_rate",
+                parseRate(compassUpdateRateInput, 33, 16));
+        updateIntent.putExtra("stream_radius", parseStreamRadius());
+        updateIntent.putExtra("max_pois_per_frame", parseLimit(maxPoisInput));
+        updateIntent.putExtra("max_frame_bytes", parseLimit(maxFrameBytesInput));
+
         updateIntent.putExtra("enable_poi", enablePoiCheckbox.isChecked());
         updateIntent.putExtra("enable_map", enableMapCheckbox.isChecked());
         updateIntent.putExtra("enable_compass", enableCompassCheckbox.isChecked());
+        updateIntent.putExtra("udp_pose", udpPoseCheckbox.isChecked());
+        updateIntent.putExtra("compression_mode", getCompressionMode());
+        updateIntent.putExtra("local_positions", localPositionsCheckbox.isChecked());
+        updateIntent.putExtra("position_precision", parsePositionPrecision());
+        updateIntent.putExtra("position_range", parsePositionRange());
+        updateIntent.putExtra("pose_prediction", posePredictionCheckbox.isChecked());
+        updateIntent.putExtra("render_offset_ms", parseRenderOffset());
+        updateIntent.putExtra("fov_culling", fovCullingCheckbox.isChecked());
+        updateIntent.putExtra("fov_horizontal", parseAngle(fovHorizontalInput,
+                ViewFrustum.DEFAULT_HORIZONTAL_FOV));
+        updateIntent.putExtra("fov_vertical", parseAngle(fovVerticalInput,
+                ViewFrustum.DEFAULT_VERTICAL_FOV));
+        updateIntent.putExtra("fov_margin", parseAngle(fovMarginInput,
+                ViewFrustum.DEFAULT_MARGIN));
+        updateIntent.putExtra("record_frames", recordFramesCheckbox.isChecked());
         
         // Send the intent to update service settings
         pluginContext.startService(updateIntent);
@@ -264,8 +620,9 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
     public void onDropDownVisible(boolean visible) {
         if (visible) {
             // Refresh UI when dropdown becomes visible
-            updateConnectionStatus(connectionManager.isConnected());
+            updateConnectionStatus(connectionManager.getState());
         }
+        showStats(visible);
     }
 
     /**
@@ -283,7 +640,7 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
      */
     @Override
     public void onDropDownClose() {
-        // Nothing to do
+        showStats(false);
     }
 
     /**
@@ -291,5 +648,6 @@ public class ARGlassesDropDownReceiver extends DropDownReceiver implements DropD
      */
     @Override
     public void disposeImpl() {
-        // No resources to dispose
+        showStats(false);
     }
+}
@@ -6,7 +6,10 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 
+import com.atakmap.android.arglasses.data.ViewFrustum;
 import com.atakmap.android.arglasses.plugin.R;
+import com.atakmap.android.arglasses.protocol.FrameCompressor;
+import com.atakmap.android.arglasses.protocol.PositionQuantizer;
 import com.atakmap.android.ipc.AtakBroadcast.DocumentedIntentFilter;
 import com.atakmap.android.maps.MapView;
 import com.atakmap.coremap.log.Log;
@@ -99,14 +102,39 @@ public class ARGlassesMapComponent extends DropDownMapComponent {
         boolean enablePoi = prefs.getBoolean("enable_poi", true);
         boolean enableMap = prefs.getBoolean("enable_map", true);
         boolean enableCompass = prefs.getBoolean("enable_compass", true);
+        int streamRadius = prefs.getInt("stream_radius", 0);
         
         // Add settings to the intent
         Bundle extras = new Bundle();
         extras.putString("device_address", deviceAddress);
+        extras.putString("extra_addresses", prefs.getString("extra_addresses", ""));
         extras.putInt("update_rate", updateRate);
+        extras.putInt("map_update_rate", prefs.getInt("map_update_rate", 200));
+        extras.putInt("compass_update_rate", prefs.getInt("compass_update_rate", 33));
         extras.putBoolean("enable_poi", enablePoi);
         extras.putBoolean("enable_map", enableMap);
         extras.putBoolean("enable_compass", enableCompass);
+        extras.putBoolean("udp_pose", prefs.getBoolean("udp_pose", false));
+        extras.putInt("compression_mode", prefs.getInt("compression_mode",
+                FrameCompressor.MODE_OFF));
+        extras.putBoolean("local_positions", prefs.getBoolean("local_positions", true));
+        extras.putFloat("position_precision", prefs.getFloat("position_precision",
+                PositionQuantizer.DEFAULT_PRECISION));
+        extras.putInt("position_range", prefs.getInt("position_range",
+                PositionQuantizer.DEFAULT_RANGE));
+        extras.putBoolean("pose_prediction", prefs.getBoolean("pose_prediction", true));
+        extras.putInt("render_offset_ms", prefs.getInt("render_offset_ms", 20));
+        extras.putInt("stream_radius", streamRadius);
+        extras.putInt("max_pois_per_frame", prefs.getInt("max_pois_per_frame", 0));
+        extras.putInt("max_frame_bytes", prefs.getInt("max_frame_bytes", 0));
+        extras.putBoolean("fov_culling", prefs.getBoolean("fov_culling", false));
+        extras.putFloat("fov_horizontal", prefs.getFloat("fov_horizontal",
+                ViewFrustum.DEFAULT_HORIZONTAL_FOV));
+        extras.putFloat("fov_vertical", prefs.getFloat("fov_vertical",
+                ViewFrustum.DEFAULT_VERTICAL_FOV));
+        extras.putFloat("fov_margin", prefs.getFloat("fov_margin",
+                ViewFrustum.DEFAULT_MARGIN));
+        extras.putBoolean("record_frames", prefs.getBoolean("record_frames", false));
         dataServiceIntent.putExtras(extras);
         
         // Start the service
@@ -0,0 +1,426 @@
+package com.atakmap.android.arglasses;
+
+import com.atakmap.coremap.log.Log;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the data channels sent to the glasses, each at its own rate, on a
+ * single scheduler thread. Fast channels like the compass are no longer
+ * held back by the POI list, and rates can be changed while running
+ * without recreating the thread.
+ *
+ * Ticks are scheduled at fixed rate against absolute deadlines. A channel
+ * that falls more than a period behind skips the missed ticks instead of
+ * bursting to catch up. Lateness and jitter are tracked per channel.
+ *
+ * The thread waits for the earliest deadline itself rather than going
+ * through a ScheduledExecutorService, which allocates a task for every
+ * tick. Running the channels allocates nothing.
+ */
+public class ChannelScheduler {
+    
+    private static final String TAG = "ChannelScheduler";
+    
+    // A channel failing on every tick logs once per this interval
+    private static final long ERROR_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    
+    // Channels
+    public static final int CHANNEL_POI = 0;
+    public static final int CHANNEL_MAP = 1;
+    public static final int CHANNEL_COMPASS = 2;
+    public static final int CHANNEL_COUNT = 3;
+    
+    /**
+     * Receives the channel ticks, always on the scheduler thread
+     */
+    public interface Callback {
+        
+        /**
+         * Called when a channel is due
+         * @param channel The channel, one of the CHANNEL_ constants
+         */
+        void onTick(int channel);
+    }
+    
+    /**
+     * Timing statistics of a channel
+     */
+    public static class ChannelStats {
+        private long ticks;
+        private long skipped;
+        private long errors;
+        private double meanLatenessUs;
+        private long maxLatenessUs;
+        private double jitterUs;
+        
+        /**
+         * @return The number of ticks run
+         */
+        public long getTicks() {
+            return ticks;
+        }
+        
+        /**
+         * @return The number of ticks skipped because the channel fell behind
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+        
+        /**
+         * @return The number of ticks that threw
+         */
+        public long getErrors() {
+            return errors;
+        }
+        
+        /**
+         * @return The mean time ticks ran after their deadline in microseconds
+         */
+        public double getMeanLatenessUs() {
+            return meanLatenessUs;
+        }
+        
+        /**
+         * @return The largest time a tick ran after its deadline in microseconds
+         */
+        public long getMaxLatenessUs() {
+            return maxLatenessUs;
+        }
+        
+        /**
+         * @return The RMS deviation of the tick interval from the period
+         *         in microseconds
+         */
+        public double getJitterUs() {
+            return jitterUs;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "ticks=%d skipped=%d errors=%d lateness=%.0f/%dus jitter=%.0fus",
+                    ticks, skipped, errors, meanLatenessUs, maxLatenessUs, jitterUs);
+        }
+    }
+    
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean disposed;
+    private final Callback callback;
+    private final Channel[] channels = new Channel[CHANNEL_COUNT];
+    private boolean running; // Scheduler thread only
+    
+    /**
+     * Create a scheduler, every channel starts disabled
+     * @param callback Receives the channel ticks
+     */
+    public ChannelScheduler(Callback callback) {
+        this.callback = callback;
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            channels[i] = new Channel(i);
+        }
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "ARGlassesScheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Set the period of a channel, takes effect on the running schedule
+     * @param channel The channel, one of the CHANNEL_ constants
+     * @param periodMs The period in milliseconds, 0 to disable the channel
+     */
+    public void setPeriod(final int channel, long periodMs) {
+        final long periodNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, periodMs));
+        post(new Runnable() {
+            @Override
+            public void run() {
+                channels[channel].setPeriod(periodNanos);
+            }
+        });
+    }
+    
+    /**
+     * Start running the enabled channels, each ticks right away
+     */
+    public void start() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                running = true;
+                long now = System.nanoTime();
+                for (Channel c : channels) {
+                    c.resetStats();
+                    c.schedule(now);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Stop running the channels, the thread is kept for a later start
+     */
+    public void stop() {
+        stop(null);
+    }
+    
+    /**
+     * Stop running the channels, then run a task on the scheduler thread,
+     * e.g. to drop state the ticks kept
+     * @param stopped The task, run once no tick runs any more, may be null
+     */
+    public void stop(final Runnable stopped) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+                for (Channel c : channels) {
+                    c.cancel();
+                    c.lastTick = 0;
+                    c.lastMissed = false;
+                }
+                if (stopped != null) {
+                    stopped.run();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Tick every enabled channel right away, e.g. so a reconnected device
+     * gets a full picture without waiting out the slow channels
+     */
+    public void runAllNow() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (!running) {
+                    return;
+                }
+                long now = System.nanoTime();
+                for (Channel c : channels) {
+                    c.schedule(now);
+                    // The early tick says nothing about jitter
+                    c.lastMissed = true;
+                }
+            }
+        });
+    }
+    
+    /**
+     * Stop the channels and the scheduler thread
+     */
+    public void dispose() {
+        stop();
+        disposed = true;
+        LockSupport.unpark(thread);
+    }
+    
+    /**
+     * Copy the timing statistics of a channel
+     * @param channel The channel, one of the CHANNEL_ constants
+     * @return The statistics since the channel was last started or changed
+     */
+    public ChannelStats getStats(int channel) {
+        return channels[channel].getStats();
+    }
+    
+    /**
+     * Run a change on the scheduler thread, so that channel state is only
+     * ever touched from there
+     */
+    private void post(Runnable task) {
+        if (!disposed) {
+            tasks.add(task);
+            LockSupport.unpark(thread);
+        }
+    }
+    
+    /**
+     * The scheduler thread: run posted changes, then the channel with the
+     * earliest deadline once it is due
+     */
+    private void loop() {
+        while (!disposed) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            
+            Channel next = null;
+            for (Channel c : channels) {
+                if (c.scheduled && (next == null || c.deadline - next.deadline < 0)) {
+                    next = c;
+                }
+            }
+            if (next == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            long wait = next.deadline - System.nanoTime();
+            if (wait > 0) {
+                // Woken early by a posted change, or spuriously, the
+                // deadlines are looked at again
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            next.tick();
+        }
+    }
+    
+    /**
+     * A channel and its schedule
+     */
+    private final class Channel {
+        
+        private final int id;
+        
+        // Scheduler thread only
+        private long periodNanos;
+        private long deadline;
+        private long lastTick;
+        private boolean lastMissed;
+        private boolean scheduled;
+        private long lastErrorLog;
+        private int unloggedErrors;
+        
+        // Guarded by this
+        private long ticks;
+        private long skipped;
+        private long errors;
+        private long intervals;
+        private double latenessSum;
+        private long maxLateness;
+        private double deviationSquaredSum;
+        
+        Channel(int id) {
+            this.id = id;
+        }
+        
+        void setPeriod(long periodNanos) {
+            if (periodNanos == this.periodNanos) {
+                return;
+            }
+            this.periodNanos = periodNanos;
+            resetStats();
+            if (!running) {
+                return;
+            }
+            
+            // Keep the phase of the last tick, or tick now if it is overdue
+            long now = System.nanoTime();
+            schedule(lastTick != 0 ? Math.max(now, lastTick + periodNanos) : now);
+        }
+        
+        void schedule(long deadline) {
+            cancel();
+            if (periodNanos <= 0) {
+                return;
+            }
+            this.deadline = deadline;
+            scheduled = true;
+        }
+        
+        void cancel() {
+            scheduled = false;
+        }
+        
+        /**
+         * Log a tick that failed, at most once per ERROR_LOG_INTERVAL_NANOS
+         * with the count of failures not logged since
+         * @param e The exception the tick threw
+         */
+        void logError(RuntimeException e) {
+            long now = System.nanoTime();
+            if (lastErrorLog != 0 && now - lastErrorLog < ERROR_LOG_INTERVAL_NANOS) {
+                unloggedErrors++;
+                return;
+            }
+            String skipped = unloggedErrors > 0
+                    ? ", " + unloggedErrors + " more failures not logged" : "";
+            Log.e(TAG, "Channel " + id + " tick failed" + skipped, e);
+            lastErrorLog = now;
+            unloggedErrors = 0;
+        }
+        
+        void tick() {
+            if (!running || periodNanos <= 0) {
+                scheduled = false;
+                return;
+            }
+            
+            long now = System.nanoTime();
+            boolean failed = false;
+            try {
+                callback.onTick(id);
+            } catch (RuntimeException e) {
+                failed = true;
+                logError(e);
+            }
+            
+            // Move to the next deadline, skipping any that were missed
+            long next = deadline + periodNanos;
+            long missed = 0;
+            long after = System.nanoTime();
+            if (next <= after) {
+                missed = (after - next) / periodNanos + 1;
+                next += missed * periodNanos;
+            }
+            // Intervals spanning skipped ticks say nothing about jitter
+            boolean measured = lastTick != 0 && !lastMissed;
+            record(now - deadline, measured ? now - lastTick : -1, missed, failed);
+            lastTick = now;
+            lastMissed = missed > 0;
+            
+            this.deadline = next;
+        }
+        
+        synchronized void record(long lateness, long interval, long missed,
+                boolean failed) {
+            ticks++;
+            skipped += missed;
+            if (failed) {
+                errors++;
+            }
+            latenessSum += lateness;
+            maxLateness = Math.max(maxLateness, lateness);
+            if (interval >= 0) {
+                double deviation = interval - periodNanos;
+                deviationSquaredSum += deviation * deviation;
+                intervals++;
+            }
+        }
+        
+        synchronized void resetStats() {
+            ticks = 0;
+            skipped = 0;
+            errors = 0;
+            intervals = 0;
+            latenessSum = 0;
+            maxLateness = 0;
+            deviationSquaredSum = 0;
+        }
+        
+        synchronized ChannelStats getStats() {
+            ChannelStats stats = new ChannelStats();
+            stats.ticks = ticks;
+            stats.skipped = skipped;
+            stats.errors = errors;
+            stats.meanLatenessUs = ticks > 0 ? latenessSum / ticks / 1000.0 : 0;
+            stats.maxLatenessUs = maxLateness / 1000;
+            stats.jitterUs = intervals > 0
+                    ? Math.sqrt(deviationSquaredSum / intervals) / 1000.0 : 0;
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.atakmap.android.arglasses;
+
+/**
+ * Frames written to glasses that acknowledge data frames, until they do.
+ *
+ * Limiting these keeps stale frames out of the socket buffers: a frame
+ * that is not written yet can still be replaced in the OutboundQueue by a
+ * newer one, a frame in the send buffer of the socket cannot. Frames are
+ * written while the bytes in flight stay below what the glasses took in
+ * {@link #WINDOW_NANOS} at the rate they acknowledged so far, but at least
+ * {@link #MIN_WINDOW_BYTES}, so a fast link is not held back while a slow
+ * one keeps only a short backlog. The rate is taken over the time frames
+ * were in flight only, so pauses in the feed do not make the link look
+ * slower than it is.
+ *
+ * Frames are added on the connection thread and acknowledged on the
+ * inbound reader, so every method is synchronized.
+ */
+public class InFlightFrames {
+
+    // Smallest window, enough for a few frames on any link
+    public static final int MIN_WINDOW_BYTES = 4 * 1024;
+
+    // The window holds this much time at the delivery rate
+    public static final long WINDOW_NANOS = 250000000L;
+
+    // The delivery rate is sampled over at least this much busy time
+    private static final long RATE_INTERVAL_NANOS = 500000000L;
+
+    /**
+     * Told about every frame an ack covers, under the lock of the frames
+     */
+    public interface DeliveryListener {
+
+        /**
+         * Called for a delivered frame
+         * @param channel The channel of the frame
+         * @param queuedAt The System.nanoTime() the frame was queued
+         * @param createdAt The System.nanoTime() the frame content dates from
+         * @param deliveredAt The System.nanoTime() the glasses had the frame
+         */
+        void onDelivered(int channel, long queuedAt, long createdAt, long deliveredAt);
+    }
+
+    private final int[] sequences;
+    private final int[] channels;
+    private final int[] sizes;
+    private final long[] queuedAt;
+    private final long[] createdAt;
+    private final long[] writtenAt;
+    private int first;
+    private int count;
+    private int bytes;
+
+    // The newest ack, which can arrive before its frame is added
+    private boolean acked;
+    private int ackedSequence;
+    private long ackedAt;
+
+    // Delivery rate
+    private long busySince;
+    private long busyNanos;
+    private long ackedBytes;
+    private double bytesPerSecond;
+
+    /**
+     * Create an empty set
+     * @param capacity The most frames tracked, the oldest is forgotten
+     *                 when more are written
+     */
+    public InFlightFrames(int capacity) {
+        sequences = new int[capacity];
+        channels = new int[capacity];
+        sizes = new int[capacity];
+        queuedAt = new long[capacity];
+        createdAt = new long[capacity];
+        writtenAt = new long[capacity];
+    }
+
+    /**
+     * Check whether another frame may be written
+     * @return true if the bytes in flight are below the window
+     */
+    public synchronized boolean hasRoom() {
+        return bytes < getWindow();
+    }
+
+    /**
+     * Get the bytes that may be in flight at the measured delivery rate
+     * @return The window in bytes
+     */
+    public synchronized int getWindow() {
+        return (int) Math.max(MIN_WINDOW_BYTES, bytesPerSecond * WINDOW_NANOS / 1e9);
+    }
+
+    /**
+     * Get the bytes written and not acknowledged yet
+     * @return The byte count
+     */
+    public synchronized int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the measured delivery rate
+     * @return The smoothed rate in bytes per second, 0 before the first
+     *         sample
+     */
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Add a frame that was written. The glasses may have acknowledged it
+     * already, then it is delivered right away.
+     * @param sequence The sequence number of the frame
+     * @param channel The channel of the frame
+     * @param size The bytes written, headers included
+     * @param queued The System.nanoTime() the frame was queued
+     * @param created The System.nanoTime() the frame content dates from
+     * @param written The System.nanoTime() the write completed
+     * @param listener Told if the frame was acknowledged already, or null
+     */
+    public synchronized void add(int sequence, int channel, int size,
+            long queued, long created, long written, DeliveryListener listener) {
+        if (acked && sequence - ackedSequence <= 0) {
+            if (listener != null) {
+                listener.onDelivered(channel, queued, created, ackedAt);
+            }
+            ackedBytes += size;
+            return;
+        }
+        if (count == sequences.length) {
+            remove();
+        }
+        if (count == 0) {
+            busySince = written;
+        }
+        int slot = (first + count) % sequences.length;
+        sequences[slot] = sequence;
+        channels[slot] = channel;
+        sizes[slot] = size;
+        queuedAt[slot] = queued;
+        createdAt[slot] = created;
+        writtenAt[slot] = written;
+        bytes += size;
+        count++;
+    }
+
+    /**
+     * Remove the frames an ack covers: the frame with its sequence number
+     * and every one written before it
+     * @param sequence The sequence number acknowledged
+     * @param deliveredAt The System.nanoTime() the glasses had the frame
+     * @param listener Told about each frame removed, or null
+     * @return The number of frames removed
+     */
+    public synchronized int acknowledge(int sequence, long deliveredAt,
+            DeliveryListener listener) {
+        if (!acked || sequence - ackedSequence > 0) {
+            acked = true;
+            ackedSequence = sequence;
+            ackedAt = deliveredAt;
+        }
+        int removed = 0;
+        // Sequence numbers wrap, compare their distance
+        while (count > 0 && sequences[first] - sequence <= 0) {
+            if (listener != null) {
+                listener.onDelivered(channels[first], queuedAt[first],
+                        createdAt[first], deliveredAt);
+            }
+            ackedBytes += sizes[first];
+            remove();
+            removed++;
+        }
+        if (removed == 0) {
+            return 0;
+        }
+
+        long busy = busyNanos + Math.max(0, deliveredAt - busySince);
+        if (count == 0) {
+            busyNanos = busy;
+            busySince = deliveredAt;
+        }
+        if (busy >= RATE_INTERVAL_NANOS) {
+            double sample = ackedBytes * 1e9 / busy;
+            bytesPerSecond = bytesPerSecond == 0 ? sample
+                    : bytesPerSecond + (sample - bytesPerSecond) / 4;
+            ackedBytes = 0;
+            busyNanos = 0;
+            busySince = deliveredAt;
+        }
+        return removed;
+    }
+
+    /**
+     * Get when the oldest frame not acknowledged was written
+     * @return The System.nanoTime() of the write, 0 if none is in flight
+     */
+    public synchronized long getOldestWrittenAt() {
+        return count > 0 ? writtenAt[first] : 0;
+    }
+
+    /**
+     * Forget every frame and the delivery rate, for a new connection
+     */
+    public synchronized void clear() {
+        first = 0;
+        count = 0;
+        bytes = 0;
+        acked = false;
+        busyNanos = 0;
+        ackedBytes = 0;
+        bytesPerSecond = 0;
+    }
+
+    private void remove() {
+        bytes -= sizes[first];
+        first = (first + 1) % sequences.length;
+        count--;
+    }
+}
@@ -0,0 +1,244 @@
+package com.atakmap.android.arglasses;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Bounded queue of frames waiting to be written to the glasses, holding at
+ * most one frame per channel. A newer frame replaces an unsent older one
+ * of the same channel, so a stalled link drops stale frames instead of
+ * building up a backlog. Pending frames are written in the order their
+ * channels started waiting: a newer frame takes over the place of the one
+ * it replaces, so a channel that is replaced often, like the compass,
+ * still gets its turn when the link is only written a frame at a time.
+ *
+ * Frames are {@link SharedFrame}s the queues of every display hold a
+ * reference to, so queueing a frame copies nothing. Each channel holds at
+ * most two: the frame being written and the next one. The queue reads a
+ * frame through a view of its own, kept per frame of the pool and reused
+ * whenever the pooled frame comes round again, so nothing is allocated
+ * once every frame of the pool was seen.
+ */
+public class OutboundQueue {
+
+    // Results of offering a frame
+    public static final int RESULT_QUEUED = 0;
+    public static final int RESULT_REPLACED = 1;
+
+    private final SharedFrame[][] frames;
+    private final int[] pending;
+    private final int[] writing;
+    private final long[] order;
+    private final long[] dropped;
+    private final long[][] queuedAt;
+    private final long[][] createdAt;
+    private long nextOrder;
+    private int depth;
+    private int bytes;
+
+    // Views of the frames by their id, and the buffer each one views
+    private ByteBuffer[] views = new ByteBuffer[0];
+    private ByteBuffer[] viewed = new ByteBuffer[0];
+
+    /**
+     * Create a queue
+     * @param channelCount The number of channels
+     */
+    public OutboundQueue(int channelCount) {
+        frames = new SharedFrame[channelCount][2];
+        pending = new int[channelCount];
+        writing = new int[channelCount];
+        order = new long[channelCount];
+        dropped = new long[channelCount];
+        queuedAt = new long[channelCount][2];
+        createdAt = new long[channelCount][2];
+        for (int i = 0; i < channelCount; i++) {
+            pending[i] = -1;
+            writing[i] = -1;
+        }
+    }
+
+    /**
+     * Queue a frame, replacing the pending frame of the same channel
+     * @param channel The channel of the frame
+     * @param frame The frame, the queue takes a reference until it is
+     *              written or replaced
+     * @return RESULT_REPLACED if an unsent frame was dropped, otherwise
+     *         RESULT_QUEUED
+     */
+    public int offer(int channel, SharedFrame frame) {
+        return offer(channel, frame, System.nanoTime());
+    }
+
+    /**
+     * Queue a frame, replacing the pending frame of the same channel
+     * @param channel The channel of the frame
+     * @param frame The frame, the queue takes a reference until it is
+     *              written or replaced
+     * @param created The System.nanoTime() the frame content dates from,
+     *                for measuring its age when it is written
+     * @return RESULT_REPLACED if an unsent frame was dropped, otherwise
+     *         RESULT_QUEUED
+     */
+    public synchronized int offer(int channel, SharedFrame frame, long created) {
+        boolean replaced = pending[channel] >= 0;
+        int slot = replaced ? pending[channel] : (writing[channel] == 0 ? 1 : 0);
+
+        if (replaced) {
+            bytes -= frames[channel][slot].size();
+            frames[channel][slot].release();
+        }
+        frame.retain();
+        frames[channel][slot] = frame;
+
+        pending[channel] = slot;
+        queuedAt[channel][slot] = System.nanoTime();
+        createdAt[channel][slot] = created;
+        if (!replaced) {
+            order[channel] = nextOrder++;
+        }
+        bytes += frame.size();
+        if (replaced) {
+            dropped[channel]++;
+            return RESULT_REPLACED;
+        }
+        depth++;
+        return RESULT_QUEUED;
+    }
+
+    /**
+     * Take the oldest pending frame for writing. The frame stays owned by
+     * the caller until {@link #release(int)} is called for its channel.
+     * @return The channel of the frame, or -1 if nothing is pending
+     */
+    public synchronized int poll() {
+        int oldest = -1;
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i] >= 0 && (oldest < 0 || order[i] < order[oldest])) {
+                oldest = i;
+            }
+        }
+        if (oldest < 0) {
+            return -1;
+        }
+
+        writing[oldest] = pending[oldest];
+        pending[oldest] = -1;
+        bytes -= frames[oldest][writing[oldest]].size();
+        depth--;
+        return oldest;
+    }
+
+    /**
+     * Get the frame taken for writing on a channel
+     * @param channel The channel returned by {@link #poll()}
+     * @return The frame payload between position and limit
+     */
+    public synchronized ByteBuffer getWriting(int channel) {
+        SharedFrame frame = frames[channel][writing[channel]];
+        int id = frame.getId();
+        if (id >= views.length) {
+            views = Arrays.copyOf(views, Math.max(id + 1, views.length * 2));
+            viewed = Arrays.copyOf(viewed, views.length);
+        }
+        ByteBuffer data = frame.getData();
+        if (viewed[id] != data) {
+            views[id] = data.duplicate();
+            viewed[id] = data;
+        }
+        ByteBuffer view = views[id];
+        view.limit(data.limit());
+        view.position(0);
+        return view;
+    }
+
+    /**
+     * Get when the frame taken for writing on a channel was queued
+     * @param channel The channel returned by {@link #poll()}
+     * @return The System.nanoTime() of the offer
+     */
+    public synchronized long getWritingQueuedAt(int channel) {
+        return queuedAt[channel][writing[channel]];
+    }
+
+    /**
+     * Get when the content of the frame taken for writing on a channel
+     * dates from
+     * @param channel The channel returned by {@link #poll()}
+     * @return The System.nanoTime() given when the frame was offered
+     */
+    public synchronized long getWritingCreatedAt(int channel) {
+        return createdAt[channel][writing[channel]];
+    }
+
+    /**
+     * Drop the reference to a written frame
+     * @param channel The channel returned by {@link #poll()}
+     */
+    public synchronized void release(int channel) {
+        frames[channel][writing[channel]].release();
+        frames[channel][writing[channel]] = null;
+        writing[channel] = -1;
+    }
+
+    /**
+     * Check whether a channel still has a frame waiting
+     * @param channel The channel
+     * @return true if a frame is pending
+     */
+    public synchronized boolean isPending(int channel) {
+        return pending[channel] >= 0;
+    }
+
+    /**
+     * Drop every pending frame, without counting them as replaced
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < pending.length; i++) {
+            if (pending[i] >= 0) {
+                frames[i][pending[i]].release();
+                frames[i][pending[i]] = null;
+                pending[i] = -1;
+            }
+        }
+        depth = 0;
+        bytes = 0;
+    }
+
+    /**
+     * Get the number of pending frames
+     * @return The queue depth
+     */
+    public synchronized int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Get the size of the pending frames
+     * @return The number of bytes waiting
+     */
+    public synchronized int getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Get the number of frames of a channel replaced before they were sent
+     * @param channel The channel
+     * @return The number of dropped frames
+     */
+    public synchronized long getDropped(int channel) {
+        return dropped[channel];
+    }
+
+    /**
+     * Get the number of frames replaced before they were sent
+     * @return The number of dropped frames over all channels
+     */
+    public synchronized long getDropped() {
+        long total = 0;
+        for (long count : dropped) {
+            total += count;
+        }
+        return total;
+    }
+}
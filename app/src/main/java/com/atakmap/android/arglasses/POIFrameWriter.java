@@ -0,0 +1,556 @@
+package com.atakmap.android.arglasses;
+
+import com.atakmap.android.arglasses.data.POIBatch;
+import com.atakmap.android.arglasses.data.POIGeometry;
+import com.atakmap.android.arglasses.data.POIPrioritizer;
+import com.atakmap.android.arglasses.data.POISource;
+import com.atakmap.android.arglasses.data.POITypeFilter;
+import com.atakmap.android.arglasses.data.ViewFrustum;
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+import com.atakmap.android.arglasses.protocol.BinaryFrameEncoder;
+import com.atakmap.android.arglasses.protocol.FrameEncoder;
+import com.atakmap.android.arglasses.protocol.POIDeltaTracker;
+import com.atakmap.android.arglasses.protocol.PositionQuantizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the POI section of the frames. JSON glasses always get the full
+ * list, binary glasses get a keyframe now and then and otherwise only the
+ * POIs that changed. When a stream radius is set only the POIs in range of
+ * the self location are sent, and when field of view culling is on only
+ * the POIs in or near the view are sent. POIs that drop out of the
+ * filtered set are sent as removed. With a POI or byte budget set, binary
+ * frames carry the highest priority POIs first and the rest wait for the
+ * following frames. Displays that subscribed to some POI types only get
+ * those, and fields no display wants are left out of the comparison with
+ * the last sent state, so changes to them are not sent. The range, bearing
+ * and elevation of the POIs from self are computed in one batch for
+ * culling, ranking and the displays that subscribed to them. Binary
+ * glasses then get the geometry of the POIs they hold that only moved in
+ * their view.
+ *
+ * A frame runs in steps: {@link #collect} copies the POIs the frame looks
+ * at out of the source into a batch, {@link #filter} finds those the
+ * displays want that have to be sent, {@link #select} keeps the highest
+ * priority ones within the POI budget, {@link #encode} writes them within
+ * the byte budget and {@link #writeRemovals} the POIs that are gone. The
+ * steps hand the POIs on by their index in the batch. Once warmed up a
+ * binary frame allocates nothing. Runs on the scheduler thread, not
+ * thread safe.
+ */
+public class POIFrameWriter {
+    
+    // Last sent POI state, used to only send POI changes in binary frames
+    private final POIDeltaTracker tracker = new POIDeltaTracker();
+    private final POIBatch pois = new POIBatch();
+    private final List<String> removedPois = new ArrayList<>();
+    private final POITypeFilter typeFilter = new POITypeFilter();
+    private final ViewFrustum frustum = new ViewFrustum();
+    private boolean lastFrameFiltered;
+    
+    // Range, bearing and elevation of the POIs, for culling, ranking and
+    // the glasses that subscribed to them
+    private final POIGeometry geometry = new POIGeometry();
+    private int[] pendingSlots = new int[256]; // Batch index of each pending POI
+    private double geometryLat = Double.NaN; // Self location the glasses hold the geometry for
+    private double geometryLon = Double.NaN;
+    private double geometryAlt = Double.NaN;
+    
+    // Ranking of the POIs when a frame cannot hold all of them
+    private final POIPrioritizer prioritizer = new POIPrioritizer();
+    private int[] selectedSlots = new int[256]; // Batch index of each POI selected, in order
+    private final List<String> deferredPois = new ArrayList<>();
+    
+    // Settings
+    private int streamRadius; // Only stream POIs this close (m), 0 for all
+    private boolean fovCulling;
+    private int maxPoisPerFrame; // Most POIs sent per frame, 0 for no limit
+    private int maxFrameBytes; // POI byte budget per frame, 0 for no limit
+    private PositionQuantizer positions; // Null for absolute positions
+    
+    // The frame being written
+    private boolean hasSelf;
+    private double selfLat;
+    private double selfLon;
+    private double selfAlt;
+    private boolean ranged;
+    private boolean culled;
+    private boolean typed;
+    private boolean filtered;
+    private boolean delta;
+    private boolean budgeted;
+    private boolean viewKnown;
+    private boolean withGeometry;
+    private boolean keyframe;
+    private int fields = ARGlassesProtocol.FIELD_ALL; // The fields the POI section carries
+    private long collectNanos;
+    
+    /**
+     * Set the radius around self POIs are streamed within
+     * @param radiusMeters The radius in meters, 0 for all POIs
+     */
+    public void setStreamRadius(int radiusMeters) {
+        streamRadius = radiusMeters;
+    }
+    
+    /**
+     * Set whether only the POIs in or near the view are sent
+     * @param culling true to cull by the frustum
+     */
+    public void setFovCulling(boolean culling) {
+        fovCulling = culling;
+    }
+    
+    /**
+     * Set the budget of a binary frame
+     * @param maxPois The most POIs sent per frame, 0 for no limit
+     * @param maxBytes The POI bytes per frame, 0 for no limit
+     */
+    public void setBudget(int maxPois, int maxBytes) {
+        maxPoisPerFrame = maxPois;
+        maxFrameBytes = maxBytes;
+    }
+    
+    /**
+     * Set how POI positions are sent while the self location is known
+     * @param quantizer The quantizer of the offsets from self, null for
+     *                  absolute positions
+     */
+    public void setLocalPositions(PositionQuantizer quantizer) {
+        positions = quantizer;
+    }
+    
+    /**
+     * Set the self location of the next frame
+     * @param known Whether the self location is known
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param alt The altitude in meters
+     */
+    public void setSelf(boolean known, double lat, double lon, double alt) {
+        hasSelf = known;
+        selfLat = lat;
+        selfLon = lon;
+        selfAlt = alt;
+    }
+    
+    /**
+     * Check whether the next frame looks at where the head points, to cull
+     * or rank the POIs. If so the frustum has to be updated first.
+     * @param format One of the ARGlassesProtocol.FORMAT_* values
+     * @return true if the frame uses the frustum
+     */
+    public boolean needsView(int format) {
+        return hasSelf && (fovCulling || isBudgeted(format));
+    }
+    
+    /**
+     * Get the view the POIs are culled and ranked by
+     * @return The frustum
+     */
+    public ViewFrustum getFrustum() {
+        return frustum;
+    }
+    
+    /**
+     * Get the last sent POI state, which a resync frame repeats
+     * @return The delta tracker
+     */
+    public POIDeltaTracker getTracker() {
+        return tracker;
+    }
+    
+    /**
+     * Get the fields the POI section of the last frame carried
+     * @return The ARGlassesProtocol.FIELD_* bits
+     */
+    public int getFields() {
+        return fields;
+    }
+    
+    /**
+     * Get the time the last frame took to collect, filter and select the
+     * POIs
+     * @return The time in nanoseconds
+     */
+    public long getCollectNanos() {
+        return collectNanos;
+    }
+    
+    /**
+     * Forget what was sent and which POIs wait to be sent
+     */
+    public void reset() {
+        tracker.reset();
+        prioritizer.clear();
+    }
+    
+    /**
+     * Write the POI section of a frame, and the geometry section of a
+     * binary frame
+     * @param source The POIs
+     * @param encoder The frame encoder, after begin
+     * @param frameFields The fields the displays want
+     * @param types The POI type prefixes the displays subscribed to, null
+     *              for every type
+     * @param now The frame time in milliseconds
+     */
+    public void write(POISource source, FrameEncoder encoder, int frameFields,
+            List<String> types, long now) {
+        begin(encoder, frameFields, types, now);
+        long collectStart = System.nanoTime();
+        collect(source);
+        if (viewKnown || withGeometry) {
+            // The geometry indexes follow the batch
+            measure();
+        }
+        int pendingCount = filter();
+        int[] toSend = pendingSlots;
+        int sendCount = pendingCount;
+        if (budgeted) {
+            sendCount = select(pendingCount, now);
+            toSend = selectedSlots;
+        }
+        collectNanos = System.nanoTime() - collectStart;
+        
+        encoder.beginPois(keyframe);
+        encode(encoder, toSend, sendCount);
+        if (!deferredPois.isEmpty()) {
+            // Make sure the source reports the waiting POIs again next frame
+            source.requeue(deferredPois);
+        }
+        writeRemovals(encoder);
+        encoder.endPois();
+        if (delta && withGeometry) {
+            // The glasses hold POIs that did not change but moved in view,
+            // binary frames are written by the binary encoder
+            writeGeometry((BinaryFrameEncoder) encoder, budgeted ? maxFrameBytes : 0);
+        } else if (delta) {
+            // POIs sent from now on have no geometry, check all once it is back
+            geometryLat = Double.NaN;
+        }
+        pois.clear();
+    }
+    
+    /**
+     * Work out what the frame does and set up the encoder for it
+     * @param encoder The frame encoder
+     * @param frameFields The fields the displays want
+     * @param types The POI type prefixes, null for every type
+     * @param now The frame time in milliseconds
+     */
+    void begin(FrameEncoder encoder, int frameFields, List<String> types, long now) {
+        int format = encoder.getFormat();
+        ranged = streamRadius > 0 && hasSelf;
+        culled = fovCulling && hasSelf;
+        typed = types != null;
+        filtered = ranged || culled || typed;
+        deferredPois.clear();
+        delta = format == ARGlassesProtocol.FORMAT_BINARY;
+        budgeted = isBudgeted(format);
+        viewKnown = needsView(format);
+        if (typed) {
+            typeFilter.setPrefixes(types);
+        }
+        
+        // Without self there is nothing to measure from. The encoder and
+        // the comparison with the sent state both go by the same fields.
+        fields = hasSelf ? frameFields : frameFields & ~ARGlassesProtocol.FIELD_POI_GEOMETRY;
+        encoder.setFields(fields);
+        withGeometry = (fields & ARGlassesProtocol.FIELD_POI_GEOMETRY) != 0;
+        if (delta && filtered != lastFrameFiltered) {
+            // The set of POIs on the glasses no longer matches the source
+            tracker.requestKeyframe();
+            lastFrameFiltered = filtered;
+        }
+        keyframe = !delta || tracker.beginFrame(now);
+        
+        // Glasses that rebuild positions from an origin get offsets from
+        // the self location, they keep absolute positions, so the origin
+        // may move from frame to frame
+        if (positions != null && hasSelf) {
+            positions.setOrigin(selfLat, selfLon, selfAlt);
+            encoder.setLocalPositions(positions);
+        } else {
+            encoder.setLocalPositions(null);
+        }
+    }
+    
+    /**
+     * Copy the POIs the frame looks at into the batch. Filtered frames are
+     * diffed against the last sent state, unfiltered delta frames only look
+     * at the changes reported by the source. Only delta frames take the
+     * changes, JSON frames hold every POI and leave them to the binary
+     * frames, whatever order they are built in.
+     * @param source The POIs
+     * @return The number of POIs collected
+     */
+    int collect(POISource source) {
+        pois.clear();
+        removedPois.clear();
+        if (ranged) {
+            if (delta) {
+                source.clearChanges();
+            }
+            source.queryRadius(selfLat, selfLon, streamRadius, pois);
+        } else if (!delta) {
+            source.getAll(pois);
+        } else if (filtered) {
+            source.clearChanges();
+            source.getAll(pois);
+        } else if (keyframe) {
+            source.snapshot(pois);
+        } else {
+            source.drainChanges(pois, removedPois);
+        }
+        return pois.size();
+    }
+    
+    /**
+     * Compute the range, bearing and elevation from self of the batch
+     */
+    private void measure() {
+        geometry.begin(selfLat, selfLon, selfAlt);
+        for (int i = 0; i < pois.size(); i++) {
+            geometry.add(pois.getLat(i), pois.getLon(i), pois.getAlt(i));
+        }
+        geometry.compute();
+    }
+    
+    /**
+     * Find the POIs of the batch that have to be sent: those in view and of
+     * a subscribed type, that changed since they were sent in delta frames
+     * @return The number of POIs found, their batch indexes are the first
+     *         ones of getPending()
+     */
+    int filter() {
+        if (pendingSlots.length < pois.size()) {
+            pendingSlots = Arrays.copyOf(pendingSlots, pois.size());
+        }
+        int count = 0;
+        for (int i = 0; i < pois.size(); i++) {
+            if (culled && !inView(i)) {
+                continue;
+            }
+            if (typed && !typeFilter.accepts(pois, i)) {
+                continue;
+            }
+            if (!delta || tracker.hasChanged(pois.getId(i), sentName(i), sentType(i),
+                    pois.getLat(i), pois.getLon(i), sentAltitude(i), sentColor(i))) {
+                pendingSlots[count++] = i;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Keep the highest priority pending POIs within the POI budget, the
+     * rest wait for later frames
+     * @param pendingCount The number of pending POIs
+     * @param now The frame time in milliseconds
+     * @return The number of POIs selected, their batch indexes are the
+     *         first ones of getSelected(), highest priority first
+     */
+    int select(int pendingCount, long now) {
+        int limit = maxPoisPerFrame > 0 ? maxPoisPerFrame : pendingCount;
+        prioritizer.begin(pois, hasSelf, selfLat, selfLon, now, limit);
+        for (int n = 0; n < pendingCount; n++) {
+            int i = pendingSlots[n];
+            int deferred = viewKnown
+                    ? prioritizer.offer(i, inView(i), geometry.getGroundRange(i))
+                    : prioritizer.offer(i, false);
+            if (deferred >= 0) {
+                deferredPois.add(pois.getId(deferred));
+            }
+        }
+        if (selectedSlots.length < pendingCount) {
+            selectedSlots = new int[pendingSlots.length];
+        }
+        return prioritizer.drainSelected(selectedSlots);
+    }
+    
+    /**
+     * Write POIs of the batch, until the byte budget runs out
+     * @param encoder The frame encoder, in the POI section
+     * @param slots The batch indexes of the POIs, in order
+     * @param count The number of POIs
+     */
+    void encode(FrameEncoder encoder, int[] slots, int count) {
+        for (int n = 0; n < count; n++) {
+            int i = slots[n];
+            String id = pois.getId(i);
+            if (budgeted && maxFrameBytes > 0 && encoder.size() >= maxFrameBytes) {
+                // Out of bytes, the rest waits for later frames
+                prioritizer.defer(i);
+                deferredPois.add(id);
+                continue;
+            }
+            
+            float range = 0;
+            float bearing = 0;
+            float elevation = 0;
+            if (withGeometry) {
+                range = geometry.getRange(i);
+                bearing = geometry.getBearing(i);
+                elevation = geometry.getElevation(i);
+            }
+            encoder.writePoi(id, pois.getName(i), pois.getType(i), pois.getLat(i),
+                    pois.getLon(i), pois.getAlt(i), pois.getColor(i),
+                    range, bearing, elevation);
+            if (delta) {
+                tracker.markSent(id, sentName(i), sentType(i), pois.getLat(i),
+                        pois.getLon(i), sentAltitude(i), sentColor(i),
+                        withGeometry ? range : Float.NaN,
+                        withGeometry ? bearing : Float.NaN,
+                        withGeometry ? elevation : Float.NaN);
+            }
+            if (budgeted) {
+                prioritizer.sent(i);
+            }
+        }
+    }
+    
+    /**
+     * Write the POIs that are gone since they were sent. A frame diffed in
+     * full finds them in the sent state, a keyframe replaces the whole set;
+     * other delta frames get them from the source.
+     * @param encoder The frame encoder, in the POI section
+     */
+    void writeRemovals(FrameEncoder encoder) {
+        if (keyframe || filtered) {
+            if (delta) {
+                tracker.endFrame(removedPois);
+                if (!keyframe) {
+                    for (int i = 0; i < removedPois.size(); i++) {
+                        encoder.writeRemovedPoi(removedPois.get(i));
+                    }
+                }
+            }
+        } else {
+            for (int i = 0; i < removedPois.size(); i++) {
+                String id = removedPois.get(i);
+                if (tracker.remove(id)) {
+                    encoder.writeRemovedPoi(id);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Write the new geometry of the POIs the glasses hold that moved in
+     * their view since theirs was sent, as self moved, and did not change
+     * otherwise. Runs after the POI section of a delta frame, whose POIs
+     * the delta tracker already holds with their fresh geometry.
+     * @param encoder The binary encoder of the frame
+     * @param maxBytes The frame size to stop at, 0 for no limit
+     */
+    private void writeGeometry(BinaryFrameEncoder encoder, int maxBytes) {
+        if (selfLat == geometryLat && selfLon == geometryLon
+                && Double.compare(selfAlt, geometryAlt) == 0) {
+            // Only the POIs sent whole changed, with their geometry
+            return;
+        }
+        int count = tracker.getSentCount();
+        geometry.begin(selfLat, selfLon, selfAlt);
+        for (int i = 0; i < count; i++) {
+            geometry.add(tracker.getSentLat(i), tracker.getSentLon(i), tracker.getSentAlt(i));
+        }
+        geometry.compute();
+        
+        boolean complete = true;
+        encoder.beginPoiGeometry();
+        for (int i = 0; i < count; i++) {
+            float range = geometry.getRange(i);
+            float bearing = geometry.getBearing(i);
+            float elevation = geometry.getElevation(i);
+            if (!tracker.hasGeometryChanged(i, range, bearing, elevation)) {
+                continue;
+            }
+            if (maxBytes > 0 && encoder.size() >= maxBytes) {
+                // Out of bytes, the rest is checked again next frame
+                complete = false;
+                break;
+            }
+            encoder.writePoiGeometry(tracker.getSentId(i), range, bearing, elevation);
+            tracker.markGeometrySent(i, range, bearing, elevation);
+        }
+        encoder.endPoiGeometry();
+        if (complete) {
+            geometryLat = selfLat;
+            geometryLon = selfLon;
+            geometryAlt = selfAlt;
+        }
+    }
+    
+    /**
+     * Get the POIs of the frame
+     * @return The batch, filled by collect
+     */
+    POIBatch getBatch() {
+        return pois;
+    }
+    
+    /**
+     * Get the batch indexes filter found
+     * @return The indexes, valid up to the count filter returned
+     */
+    int[] getPending() {
+        return pendingSlots;
+    }
+    
+    /**
+     * Get the batch indexes select kept
+     * @return The indexes, valid up to the count select returned
+     */
+    int[] getSelected() {
+        return selectedSlots;
+    }
+    
+    /**
+     * Get the ids of the POIs that have to wait for a later frame
+     * @return The ids, filled by select and encode
+     */
+    List<String> getDeferred() {
+        return deferredPois;
+    }
+    
+    /**
+     * Get the ids of the POIs gone since the last frame
+     * @return The ids, filled by collect and writeRemovals
+     */
+    List<String> getRemoved() {
+        return removedPois;
+    }
+    
+    private boolean isBudgeted(int format) {
+        return format == ARGlassesProtocol.FORMAT_BINARY
+                && (maxPoisPerFrame > 0 || maxFrameBytes > 0);
+    }
+    
+    private boolean inView(int index) {
+        return frustum.containsDirection(geometry.getGroundRange(index),
+                geometry.getBearing(index), geometry.getElevation(index));
+    }
+    
+    // The POI fields as the frame carries them, null or 0 when left out
+    private String sentName(int index) {
+        return (fields & ARGlassesProtocol.FIELD_POI_NAME) != 0 ? pois.getName(index) : null;
+    }
+    
+    private String sentType(int index) {
+        return (fields & ARGlassesProtocol.FIELD_POI_TYPE) != 0 ? pois.getType(index) : null;
+    }
+    
+    // The geometry is computed from it too
+    private double sentAltitude(int index) {
+        return (fields & (ARGlassesProtocol.FIELD_POI_ALT
+                | ARGlassesProtocol.FIELD_POI_GEOMETRY)) != 0 ? pois.getAlt(index) : 0;
+    }
+    
+    private int sentColor(int index) {
+        return (fields & ARGlassesProtocol.FIELD_POI_COLOR) != 0 ? pois.getColor(index) : 0;
+    }
+}
@@ -0,0 +1,116 @@
+package com.atakmap.android.arglasses;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame shared by the outbound queues of several displays.
+ *
+ * The frame is copied out of the encoder once, into a direct buffer taken
+ * from a {@link Pool}, and every queue holding it takes a reference. The
+ * bytes are not changed again until the last reference is released, so
+ * each queue writes them out through a view of its own and links never
+ * move each other's position. The frame then goes back to its pool, and
+ * nothing is allocated once the pool holds enough frames large enough.
+ */
+public final class SharedFrame {
+
+    private final Pool pool;
+    private final int id;
+    private final AtomicInteger references = new AtomicInteger();
+    private ByteBuffer data;
+
+    private SharedFrame(Pool pool, int id, int capacity) {
+        this.pool = pool;
+        this.id = id;
+        this.data = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Get the number of the frame within its pool, for readers that keep
+     * a view per frame
+     * @return The id, from 0 up to the number of frames the pool created
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Get the frame bytes. They lie between 0 and the limit and must not
+     * be changed; readers take a view, e.g. with duplicate, and keep it
+     * while this returns the same buffer.
+     * @return The buffer of the frame
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    /**
+     * Get the size of the frame
+     * @return The number of bytes
+     */
+    public int size() {
+        return data.limit();
+    }
+
+    /**
+     * Take a reference, the frame stays unchanged until it is released
+     */
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Drop a reference, the last one hands the frame back to its pool
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            pool.recycle(this);
+        }
+    }
+
+    /**
+     * Frames handed out for reuse. Safe to use from any thread.
+     */
+    public static final class Pool {
+
+        private static final int INITIAL_CAPACITY = 4 * 1024;
+
+        private final List<SharedFrame> free = new ArrayList<>();
+        private int created;
+
+        /**
+         * Copy a frame out of an encoder. The caller holds the first
+         * reference and releases it once it offered the frame to the
+         * queues.
+         * @param payload The frame payload between position and limit,
+         *                left as it is
+         * @return The frame
+         */
+        public SharedFrame acquire(ByteBuffer payload) {
+            int size = payload.remaining();
+            SharedFrame frame;
+            synchronized (this) {
+                frame = free.isEmpty() ? new SharedFrame(this, created++,
+                        Math.max(INITIAL_CAPACITY, size)) : free.remove(free.size() - 1);
+            }
+            if (frame.data.capacity() < size) {
+                frame.data = ByteBuffer.allocateDirect(Math.max(size,
+                        frame.data.capacity() * 2));
+            }
+            int start = payload.position();
+            frame.data.clear();
+            frame.data.put(payload);
+            frame.data.flip();
+            payload.position(start);
+            frame.references.set(1);
+            return frame;
+        }
+
+        private synchronized void recycle(SharedFrame frame) {
+            free.add(frame);
+        }
+    }
+}
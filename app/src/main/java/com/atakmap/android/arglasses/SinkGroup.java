@@ -0,0 +1,643 @@
+package com.atakmap.android.arglasses;
+
+import android.content.Context;
+
+import com.atakmap.android.arglasses.metrics.MetricsRegistry;
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+import com.atakmap.android.arglasses.protocol.FrameCompressor;
+import com.atakmap.android.arglasses.protocol.Subscription;
+import com.atakmap.android.maps.MapView;
+import com.atakmap.coremap.log.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the data feed to several displays at once, e.g. the glasses and a
+ * vehicle HUD. Each display is a sink with a connection manager of its
+ * own, so with its own outbound queue, writer thread, keepalive and
+ * reconnects: a slow or lost sink never holds up the others.
+ *
+ * A frame is encoded once per wire format in use, copied once into a
+ * {@link SharedFrame} and queued for every sink that negotiated that
+ * format, each queue reading it through a view of its own. Binary sinks
+ * share the string table and POI state of the one encoder. A sink that
+ * connects, or falls behind on POI frames, while others keep up gets a
+ * resync frame of its own, holding the string table and a keyframe of the
+ * POIs the others hold, and takes the shared POI frames again from the
+ * next one on; the others carry on undisturbed. Only when no binary sink
+ * holds the encoder state, e.g. the first one connected, does the session
+ * id change and the encoders start over for all of them: the strings with
+ * a table reset and the POIs with a keyframe. The frame sequence runs on,
+ * sinks that stayed connected keep seeing newer sequence numbers.
+ *
+ * Each sink may subscribe to some channels, fields, rates and POI types,
+ * see {@link Subscription}. A frame holds what any sink of its format
+ * wants: the union of their fields and POI types, at the fastest rate any
+ * of them asked for. Map and compass frames are thinned out per sink to
+ * its own rate. POI frames build on each other, so every sink gets all of
+ * them.
+ *
+ * The sink list is replaced on the thread that connects and disconnects,
+ * the session and POI bookkeeping runs on the thread building the frames.
+ */
+public class SinkGroup {
+    
+    private static final String TAG = "SinkGroup";
+    
+    /**
+     * A display the frames go to
+     */
+    private static class Sink {
+        final String address;
+        final ARGlassesConnectionManager manager;
+        final MetricsRegistry metrics;
+        
+        // On the thread building the frames
+        int sessionId;
+        boolean poiPending;
+        boolean behind; // Skips POI frames until it sent the one it holds
+        boolean resync; // Skips POI frames until it got a resync frame
+        final long[] sentAt = new long[ChannelScheduler.CHANNEL_COUNT];
+        
+        Sink(String address, ARGlassesConnectionManager manager, MetricsRegistry metrics) {
+            this.address = address;
+            this.manager = manager;
+            this.metrics = metrics;
+        }
+    }
+    
+    private final MapView mapView;
+    private final Context pluginContext;
+    private final MetricsRegistry metrics;
+    
+    // Replaced as a whole, the first sink is the primary display
+    private volatile Sink[] sinks = new Sink[0];
+    
+    private volatile ARGlassesConnectionManager.StateListener stateListener;
+    private volatile boolean udpPoseEnabled;
+    private volatile int compressionMode = FrameCompressor.MODE_OFF;
+    
+    // A sink gets a frame when this much of its period has passed, so
+    // ticks that come a little early are not skipped
+    private static final int PERIOD_TOLERANCE_EIGHTHS = 7;
+    
+    // Encoder session, on the thread building the frames
+    private int sessionId;
+    private boolean restart;
+    
+    // The frames queued for the sinks
+    private final SharedFrame.Pool framePool = new SharedFrame.Pool();
+    
+    /**
+     * Constructor
+     * @param mapView The map view
+     * @param context The plugin context
+     * @param registry The registry the totals are recorded in, each sink
+     *                 also gets one of its own
+     */
+    public SinkGroup(MapView mapView, Context context, MetricsRegistry registry) {
+        this.mapView = mapView;
+        this.pluginContext = context;
+        this.metrics = registry;
+    }
+    
+    /**
+     * Set the listener told about connection state changes of the sinks
+     * @param listener The listener, called on the connection thread of the
+     *                 sink with its new state, or null
+     */
+    public void setStateListener(ARGlassesConnectionManager.StateListener listener) {
+        this.stateListener = listener;
+    }
+    
+    /**
+     * Offer to send the compass over UDP on TCP connections, see
+     * {@link ARGlassesConnectionManager#setUdpPoseEnabled(boolean)}
+     * @param enabled true to offer UDP pose datagrams
+     */
+    public void setUdpPoseEnabled(boolean enabled) {
+        this.udpPoseEnabled = enabled;
+    }
+    
+    /**
+     * Offer to compress binary frames, see
+     * {@link ARGlassesConnectionManager#setCompressionMode(int)}
+     * @param mode One of the FrameCompressor.MODE_* values
+     */
+    public void setCompressionMode(int mode) {
+        this.compressionMode = mode;
+    }
+    
+    /**
+     * Connect to a set of displays. Sinks already connected to one of the
+     * addresses stay as they are, sinks for addresses no longer listed are
+     * disconnected and dropped.
+     * @param addresses The device addresses, the primary display first
+     * @return true if a connection was started to at least one of them
+     */
+    public synchronized boolean connect(List<String> addresses) {
+        Sink[] current = sinks;
+        List<Sink> next = new ArrayList<>();
+        for (String address : addresses) {
+            if (find(next, address) != null) {
+                continue;
+            }
+            Sink sink = find(current, address);
+            boolean created = sink == null;
+            if (created) {
+                sink = createSink(address);
+            }
+            sink.manager.setUdpPoseEnabled(udpPoseEnabled);
+            sink.manager.setCompressionMode(compressionMode);
+            if (sink.manager.connect(address)) {
+                next.add(sink);
+            } else if (created) {
+                disposeSink(sink);
+            }
+        }
+        
+        for (Sink sink : current) {
+            if (!next.contains(sink)) {
+                disposeSink(sink);
+            }
+        }
+        sinks = next.toArray(new Sink[0]);
+        return !next.isEmpty();
+    }
+    
+    /**
+     * Disconnect every sink and stop reconnecting, the sinks are kept for
+     * the next {@link #connect(List)}
+     */
+    public synchronized void disconnect() {
+        for (Sink sink : sinks) {
+            sink.manager.disconnect();
+        }
+    }
+    
+    /**
+     * Disconnect every sink and release their threads
+     */
+    public synchronized void dispose() {
+        for (Sink sink : sinks) {
+            disposeSink(sink);
+        }
+        sinks = new Sink[0];
+    }
+    
+    /**
+     * Check whether any sink is connected
+     * @return true if frames can be sent
+     */
+    public boolean isConnected() {
+        for (Sink sink : sinks) {
+            if (sink.manager.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Get the wire formats the connected sinks negotiated
+     * @return A bit mask, 1 &lt;&lt; ARGlassesProtocol.FORMAT_* per format in use
+     */
+    public int getWireFormats() {
+        int formats = 0;
+        for (Sink sink : sinks) {
+            if (sink.manager.isConnected()) {
+                formats |= 1 << sink.manager.getWireFormat();
+            }
+        }
+        return formats;
+    }
+    
+    /**
+     * Get the fields the connected sinks of a wire format want
+     * @param format The wire format
+     * @return The union of their ARGlassesProtocol.FIELD_* bits, all fields
+     *         if none of them is connected
+     */
+    public int getFields(int format) {
+        int fields = 0;
+        boolean any = false;
+        for (Sink sink : sinks) {
+            if (sink.manager.isConnected() && sink.manager.getWireFormat() == format) {
+                fields |= sink.manager.getSubscription().getFields();
+                any = true;
+            }
+        }
+        return any ? fields : ARGlassesProtocol.FIELD_ALL;
+    }
+    
+    /**
+     * Check whether POI positions can be sent relative to an origin
+     * @param format The wire format
+     * @return true if every connected sink of the format accepted it
+     */
+    public boolean hasLocalPositions(int format) {
+        boolean any = false;
+        for (Sink sink : sinks) {
+            if (sink.manager.isConnected() && sink.manager.getWireFormat() == format) {
+                if (!sink.manager.hasLocalPositions()) {
+                    return false;
+                }
+                any = true;
+            }
+        }
+        return any;
+    }
+    
+    /**
+     * Get the POI types the connected sinks of a wire format want
+     * @param format The wire format
+     * @param types Receives the type prefixes of every sink, cleared first
+     * @return false if a sink wants every type, types is then empty
+     */
+    public boolean getPoiTypes(int format, List<String> types) {
+        types.clear();
+        for (Sink sink : sinks) {
+            if (!sink.manager.isConnected() || sink.manager.getWireFormat() != format
+                    || !sink.manager.isSubscribed(ChannelScheduler.CHANNEL_POI)) {
+                continue;
+            }
+            Subscription subscription = sink.manager.getSubscription();
+            if (!subscription.hasTypes()) {
+                types.clear();
+                return false;
+            }
+            for (int i = 0; i < subscription.getTypeCount(); i++) {
+                types.add(subscription.getType(i));
+            }
+        }
+        return !types.isEmpty();
+    }
+    
+    /**
+     * Get the period a channel has to run at for the connected sinks
+     * @param channel The channel
+     * @param settingMs The period set on the phone, 0 if the channel is off
+     * @return The shortest period a sink subscribed to the channel wants,
+     *         with settingMs for sinks that did not ask for one, 0 if no
+     *         connected sink wants the channel, settingMs while none is
+     *         connected
+     */
+    public long getPeriodMs(int channel, long settingMs) {
+        if (settingMs <= 0) {
+            return 0;
+        }
+        long period = 0;
+        boolean connected = false;
+        for (Sink sink : sinks) {
+            if (!sink.manager.isConnected()) {
+                continue;
+            }
+            connected = true;
+            Subscription subscription = sink.manager.getSubscription();
+            if (subscription.isSubscribed(channel)) {
+                int wanted = subscription.getPeriodMs(channel);
+                long sinkPeriod = wanted > 0 ? wanted : settingMs;
+                period = period == 0 ? sinkPeriod : Math.min(period, sinkPeriod);
+            }
+        }
+        return connected ? period : settingMs;
+    }
+    
+    /**
+     * Pick up the sinks that started a new connection or changed their
+     * subscription since the last frame, on the thread building the
+     * frames. Binary sinks among them wait for a resync frame before they
+     * take POI frames again.
+     * @return true if any did, the channel rates may have to change
+     */
+    public boolean updateSessions() {
+        boolean changed = false;
+        for (Sink sink : sinks) {
+            int id = sink.manager.getSessionId();
+            if (id != sink.sessionId) {
+                sink.sessionId = id;
+                sink.behind = false;
+                sink.resync = sink.manager.getWireFormat() == ARGlassesProtocol.FORMAT_BINARY;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+    
+    /**
+     * Get the id of the encoder session, on the thread building the
+     * frames, after {@link #updateSessions()}. The id changes when binary
+     * sinks wait for a resync but none holds the encoder state any more,
+     * e.g. when the first one connected, or a resync frame could not be
+     * built. The encoders then start over and every sink takes the next
+     * frames as they come.
+     * @return The session id
+     */
+    public int getSessionId() {
+        Sink[] current = sinks;
+        boolean waiting = false;
+        boolean inSync = false;
+        for (Sink sink : current) {
+            if (isTakingPois(sink)) {
+                waiting |= sink.resync;
+                inSync |= !sink.resync && !sink.behind;
+            }
+        }
+        if (restart || (waiting && !inSync)) {
+            restart = false;
+            sessionId++;
+            for (Sink sink : current) {
+                sink.resync = false;
+                sink.behind = false;
+            }
+        }
+        return sessionId;
+    }
+    
+    /**
+     * Have the encoders start over for every sink with the next frame, on
+     * the thread building the frames, when a resync frame could not be built
+     */
+    public void restart() {
+        restart = true;
+    }
+    
+    /**
+     * Check whether a POI frame can be built now, on the thread building
+     * the frames. POI frames build on the previous one, so a sink still
+     * holding an unsent one cannot take the next. When every sink holds one
+     * the frame waits, the changes stay for the next tick. Otherwise binary
+     * sinks that still hold one skip this and the following POI frames,
+     * and once they sent it they wait for a resync frame of their own.
+     * @return true to build the POI frame
+     */
+    public boolean beginPoiFrame() {
+        Sink[] current = sinks;
+        boolean waitForAll = true;
+        for (Sink sink : current) {
+            sink.poiPending = sink.manager.isSendPending(ChannelScheduler.CHANNEL_POI);
+            if (sink.manager.isConnected() && !sink.poiPending
+                    && sink.manager.isSubscribed(ChannelScheduler.CHANNEL_POI)) {
+                waitForAll = false;
+            }
+        }
+        if (waitForAll) {
+            return false;
+        }
+        
+        for (Sink sink : current) {
+            if (sink.poiPending && !sink.behind && sink.manager.isConnected()
+                    && sink.manager.getWireFormat() == ARGlassesProtocol.FORMAT_BINARY) {
+                Log.d(TAG, sink.address + " fell behind on POI frames");
+                sink.behind = true;
+            } else if (!sink.poiPending && sink.behind) {
+                sink.behind = false;
+                sink.resync = true;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Queue a frame for every connected sink using its wire format. The
+     * frame is copied once and every sink queues the copy, where a newer
+     * frame replaces one still waiting. Sinks that asked for a channel at a
+     * slower rate than it runs skip map and compass frames until their
+     * period passed, and sinks waiting for a resync skip POI frames.
+     * @param channel The channel of the frame, one of the
+     *                ChannelScheduler.CHANNEL_* values
+     * @param format The wire format the frame is encoded in
+     * @param data The frame payload between position and limit, left as it is
+     * @param created The System.nanoTime() the frame content dates from
+     * @return The number of sinks the frame was queued for
+     */
+    public int sendData(int channel, int format, ByteBuffer data, long created) {
+        SharedFrame frame = null;
+        int queued = 0;
+        int depth = 0;
+        long now = System.nanoTime();
+        for (Sink sink : sinks) {
+            ARGlassesConnectionManager manager = sink.manager;
+            // A sink that connected again since the frame was begun needs
+            // a resync first
+            if (manager.isConnected() && manager.getWireFormat() == format
+                    && manager.getSessionId() == sink.sessionId
+                    && !(channel == ChannelScheduler.CHANNEL_POI && (sink.behind || sink.resync))
+                    && isDue(sink, channel, now)) {
+                if (frame == null) {
+                    frame = framePool.acquire(data);
+                }
+                if (manager.sendData(channel, frame, created) >= 0) {
+                    sink.sentAt[channel] = now;
+                    queued++;
+                }
+            }
+            depth += manager.getQueueDepth();
+        }
+        if (frame != null) {
+            frame.release();
+        }
+        if (metrics != null) {
+            metrics.recordQueueDepth(depth);
+        }
+        return queued;
+    }
+    
+    /**
+     * Check whether a binary sink waits for a resync frame, on the thread
+     * building the frames
+     * @return true if one that takes POI frames does
+     */
+    public boolean needsResync() {
+        for (Sink sink : sinks) {
+            if (sink.resync && isTakingPois(sink)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Queue a resync frame for the binary sinks waiting for one, see
+     * {@link com.atakmap.android.arglasses.protocol.BinaryFrameEncoder#beginResync(long)}.
+     * They take the shared POI frames again from the next one on.
+     * @param data The frame payload between position and limit, left as it is
+     * @param created The System.nanoTime() the frame content dates from
+     * @return The number of sinks the frame was queued for
+     */
+    public int sendResync(ByteBuffer data, long created) {
+        SharedFrame frame = null;
+        int queued = 0;
+        for (Sink sink : sinks) {
+            if (!sink.resync || !isTakingPois(sink)) {
+                continue;
+            }
+            if (frame == null) {
+                frame = framePool.acquire(data);
+            }
+            if (sink.manager.sendData(ChannelScheduler.CHANNEL_POI, frame, created) >= 0) {
+                Log.d(TAG, sink.address + " resynced");
+                sink.resync = false;
+                sink.sentAt[ChannelScheduler.CHANNEL_POI] = System.nanoTime();
+                queued++;
+            }
+        }
+        if (frame != null) {
+            frame.release();
+        }
+        return queued;
+    }
+    
+    /**
+     * Get the time frames of a channel take to get onto the link of the
+     * primary display, or to the display when it acknowledges frames. The
+     * first connected sink is used while the primary display is down.
+     * @param channel The channel
+     * @return The smoothed latency in milliseconds
+     */
+    public long getLinkLatencyMs(int channel) {
+        for (Sink sink : sinks) {
+            if (sink.manager.isConnected()) {
+                return sink.manager.getLinkLatencyMs(channel);
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Get the head orientation reported by the glasses, of the first sink
+     * with a recent report
+     * @param orientation Receives the heading, the pitch, positive looking
+     *                    up, and the roll, in degrees
+     * @param maxAgeMs How old the report may be
+     * @return true if a sink reported within maxAgeMs
+     */
+    public boolean getGlassesOrientation(float[] orientation, long maxAgeMs) {
+        for (Sink sink : sinks) {
+            if (sink.manager.isConnected()
+                    && sink.manager.getGlassesOrientation(orientation, maxAgeMs)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Get the number of frames of a channel dropped for a newer frame
+     * @param channel The channel
+     * @return The number of dropped frames over all sinks
+     */
+    public long getDroppedFrames(int channel) {
+        long dropped = 0;
+        for (Sink sink : sinks) {
+            dropped += sink.manager.getDroppedFrames(channel);
+        }
+        return dropped;
+    }
+    
+    /**
+     * Describe the compression of a channel on each sink, for the log
+     * @param channel The channel
+     * @return The statistics of the sinks that compress, or an empty string
+     */
+    public String getCompressionStats(int channel) {
+        StringBuilder sb = new StringBuilder();
+        for (Sink sink : sinks) {
+            FrameCompressor.CompressionStats stats =
+                    sink.manager.getCompressionStats(channel);
+            if (stats != null) {
+                sb.append(' ').append(sink.address).append(" compression: ").append(stats);
+            }
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Check whether a sink is due a frame of a channel at the rate it
+     * subscribed to
+     * @param sink The sink
+     * @param channel The channel
+     * @param now The System.nanoTime() of the frame
+     * @return true if the sink asked for no rate of its own, the channel is
+     *         POIs or the period of the sink passed
+     */
+    private static boolean isDue(Sink sink, int channel, long now) {
+        int periodMs = sink.manager.getSubscription().getPeriodMs(channel);
+        if (periodMs == 0 || channel == ChannelScheduler.CHANNEL_POI
+                || sink.sentAt[channel] == 0) {
+            return true;
+        }
+        long periodNanos = periodMs * 1000000L;
+        return now - sink.sentAt[channel] >= periodNanos * PERIOD_TOLERANCE_EIGHTHS / 8;
+    }
+    
+    /**
+     * Check whether a sink takes the binary POI frames of this session
+     * @param sink The sink
+     * @return true if it is connected over the binary format, subscribed
+     *         to POIs and did not connect again since the last frame
+     */
+    private static boolean isTakingPois(Sink sink) {
+        ARGlassesConnectionManager manager = sink.manager;
+        return manager.isConnected()
+                && manager.getWireFormat() == ARGlassesProtocol.FORMAT_BINARY
+                && manager.getSessionId() == sink.sessionId
+                && manager.isSubscribed(ChannelScheduler.CHANNEL_POI);
+    }
+    
+    /**
+     * Create a sink and its connection manager
+     * @param address The device address
+     * @return The sink, not connected yet
+     */
+    private Sink createSink(String address) {
+        ARGlassesConnectionManager manager = new ARGlassesConnectionManager(mapView, pluginContext);
+        MetricsRegistry sinkMetrics = null;
+        if (metrics != null) {
+            sinkMetrics = metrics.addSink(address);
+            manager.setMetrics(metrics);
+            manager.setSinkMetrics(sinkMetrics);
+        }
+        manager.setStateListener(new ARGlassesConnectionManager.StateListener() {
+            @Override
+            public void onStateChanged(int state) {
+                ARGlassesConnectionManager.StateListener listener = stateListener;
+                if (listener != null) {
+                    listener.onStateChanged(state);
+                }
+            }
+        });
+        return new Sink(address, manager, sinkMetrics);
+    }
+    
+    /**
+     * Disconnect a sink for good
+     * @param sink The sink
+     */
+    private void disposeSink(Sink sink) {
+        sink.manager.dispose();
+        if (sink.metrics != null) {
+            metrics.removeSink(sink.metrics);
+        }
+    }
+    
+    private static Sink find(List<Sink> list, String address) {
+        for (Sink sink : list) {
+            if (sink.address.equals(address)) {
+                return sink;
+            }
+        }
+        return null;
+    }
+    
+    private static Sink find(Sink[] array, String address) {
+        for (Sink sink : array) {
+            if (sink.address.equals(address)) {
+                return sink;
+            }
+        }
+        return null;
+    }
+}
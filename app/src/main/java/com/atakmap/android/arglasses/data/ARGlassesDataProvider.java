@@ -5,40 +5,57 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 
-import com.atakmap.android.maps.MapGroup;
-import com.atakmap.android.maps.MapItem;
 import com.atakmap.android.maps.MapView;
-import com.atakmap.android.maps.Marker;
 import com.atakmap.coremap.log.Log;
 import com.atakmap.coremap.maps.coords.GeoPoint;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
 /**
  * Provides data from ATAK to the AR glasses service.
  * Collects map data, POIs, and device orientation.
+ *
+ * Orientation comes from the fused rotation vector sensor when the device
+ * has one, which combines gyroscope, accelerometer and magnetometer, and
+ * falls back to accelerometer and magnetometer, or to the game rotation
+ * vector on devices without a magnetometer. Sensor events are handled on
+ * their own thread, which turns each event into a {@link PoseSnapshot} and
+ * publishes it with a single volatile write. Readers get the latest
+ * complete pose without locking and without recomputing it.
  */
 public class ARGlassesDataProvider implements SensorEventListener {
-
+    
     private static final String TAG = "ARGlassesDataProvider";
     
     private final Context context;
     private MapView mapView;
     
+    // Markers on the map, kept up to date by map listeners
+    private final POIIndex poiIndex = new POIIndex();
+    
     // Sensor variables for device orientation
     private final SensorManager sensorManager;
-    private final Sensor accelerometer;
-    private final Sensor magnetometer;
+    private final HandlerThread sensorThread;
+    private int poseSource = PoseSnapshot.SOURCE_NONE;
+    
+    // Accelerometer and magnetometer fallback, only touched on the sensor thread
     private final float[] accelerometerReading = new float[3];
     private final float[] magnetometerReading = new float[3];
     private final float[] rotationMatrix = new float[9];
-    private final float[] orientationAngles = new float[3];
     private boolean hasAccelerometerReading = false;
     private boolean hasMagnetometerReading = false;
     
+    // Adds the angular velocity to every pose, only used on the sensor thread
+    private final PosePredictor posePredictor = new PosePredictor();
+    
+    // Latest orientation, replaced as a whole on every sensor event
+    private volatile PoseSnapshot pose = PoseSnapshot.EMPTY;
+    
     /**
      * Constructor
      * @param context The application context
@@ -49,17 +66,46 @@ public class ARGlassesDataProvider implements SensorEventListener {
         // Get MapView instance
         this.mapView = MapView.getMapView();
         
-        // Initialize sensors for device orientation
+        // Start indexing the markers on the map
+        if (mapView != null) {
+            poiIndex.start(mapView.getRootGroup());
+        }
+        
+        // Initialize sensors for device orientation, delivered on their own thread
         sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        sensorThread = new HandlerThread("ARGlassesSensors");
+        sensorThread.start();
+        registerOrientationSensors(new Handler(sensorThread.getLooper()));
+    }
+    
+    /**
+     * Register the best orientation sensors the device has
+     * @param handler The handler of the sensor thread
+     */
+    private void registerOrientationSensors(Handler handler) {
+        Sensor rotationVector = sensorManager.getDefaultSensor(Sensor.TYPE_ROTATION_VECTOR);
+        Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        Sensor magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
+        Sensor gameRotationVector =
+                sensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
         
-        // Register sensor listeners
-        if (accelerometer != null && magnetometer != null) {
-            sensorManager.registerListener(this, accelerometer, 
-                    SensorManager.SENSOR_DELAY_NORMAL);
-            sensorManager.registerListener(this, magnetometer, 
-                    SensorManager.SENSOR_DELAY_NORMAL);
+        // The game rate keeps up with the compass channel
+        if (rotationVector != null) {
+            poseSource = PoseSnapshot.SOURCE_ROTATION_VECTOR;
+            sensorManager.registerListener(this, rotationVector,
+                    SensorManager.SENSOR_DELAY_GAME, handler);
+        } else if (accelerometer != null && magnetometer != null) {
+            poseSource = PoseSnapshot.SOURCE_ACCEL_MAG;
+            sensorManager.registerListener(this, accelerometer,
+                    SensorManager.SENSOR_DELAY_GAME, handler);
+            sensorManager.registerListener(this, magnetometer,
+                    SensorManager.SENSOR_DELAY_GAME, handler);
+        } else if (gameRotationVector != null) {
+            // No magnetometer, the heading is relative to the start
+            poseSource = PoseSnapshot.SOURCE_GAME_ROTATION_VECTOR;
+            sensorManager.registerListener(this, gameRotationVector,
+                    SensorManager.SENSOR_DELAY_GAME, handler);
+            Log.w(TAG, "No magnetometer, heading will not be relative to north");
         } else {
             Log.w(TAG, "Sensors not available");
         }
@@ -99,66 +145,65 @@ public class ARGlassesDataProvider implements SensorEventListener {
     }
     
     /**
-     * Get a list of POIs from the map
+     * Get a list of POIs from the map. Frames read the index into a
+     * {@link POIBatch} instead, this makes an object per POI.
      * @return List of POI data objects
      */
     public List<POIData> getPointsOfInterest() {
-        List<POIData> pois = new ArrayList<>();
-        
-        if (mapView == null) {
-            return pois;
-        }
-        
-        // Get all map items in view
-        MapGroup rootGroup = mapView.getRootGroup();
-        Collection<MapItem> items = rootGroup.getAllItems();
-        
-        for (MapItem item : items) {
-            // Only include markers with valid points
-            if (item instanceof Marker && item.getPoint() != null) {
-                Marker marker = (Marker) item;
-                
-                // Create POI data object
-                POIData poi = new POIData(
-                        marker.getUID(),
-                        marker.getTitle(),
-                        determineMarkerType(marker),
-                        marker.getPoint(),
-                        marker.getStrokeColor()
-                );
-                
-                pois.add(poi);
-            }
+        POIBatch batch = new POIBatch();
+        poiIndex.getAll(batch);
+        List<POIData> pois = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            pois.add(new POIData(batch.getId(i), batch.getName(i), batch.getType(i),
+                    new GeoPoint(batch.getLat(i), batch.getLon(i), batch.getAlt(i)),
+                    batch.getColor(i), batch.getUpdateTime(i)));
         }
-        
         return pois;
     }
     
     /**
-     * Determines the type of marker based on its properties
-     * @param marker The marker to check
-     * @return The type of the marker as a string
+     * Get the index of the POIs on the map, which also tracks the POIs
+     * that changed since the last frame
+     * @return The POI index
      */
-    private String determineMarkerType(Marker marker) {
-        // Try to determine marker type based on icon, style, etc.
-        String type = marker.getType();
-        
-        // If no type available, check icon path
-        if (type == null || type.isEmpty()) {
-            String iconPath = marker.getIconPath();
-            if (iconPath != null && !iconPath.isEmpty()) {
-                // Extract the last part of the icon path as the type
-                String[] parts = iconPath.split("/");
-                if (parts.length > 0) {
-                    return parts[parts.length - 1].replace(".png", "");
-                }
-            }
-            
-            // Default type if nothing else available
-            return "marker";
+    public POIIndex getPOIIndex() {
+        return poiIndex;
+    }
+    
+    /**
+     * Get the latest device orientation. Read it once per frame and take
+     * every angle from the same snapshot.
+     * @return The pose, PoseSnapshot.EMPTY before the first sensor event
+     */
+    public PoseSnapshot getPose() {
+        return pose;
+    }
+    
+    /**
+     * Get the device orientation expected at a time ahead, extrapolated
+     * from the latest pose at its angular velocity. The time since the
+     * sensor measured the pose is added to the look-ahead.
+     * @param aheadMs How far past now to predict in milliseconds
+     * @param out At least PosePredictor.PREDICTION_SIZE floats, receives
+     *            the predicted heading, pitch and roll followed by the
+     *            predicted quaternion
+     * @return The pose the prediction started from
+     */
+    public PoseSnapshot getPredictedPose(long aheadMs, float[] out) {
+        PoseSnapshot current = pose;
+        if (current.getTimestampNanos() == 0) {
+            PosePredictor.predict(current, 0, out);
+            return current;
         }
         
-        return type;
+        // Sensor time runs on the elapsed realtime clock
+        long age = SystemClock.elapsedRealtimeNanos() - current.getTimestampNanos();
+        if (age < 0 || age > PosePredictor.MAX_PREDICTION_NANOS) {
+            // A sensor on another clock, or no recent event
+            age = 0;
+        }
+        PosePredictor.predict(current, age + aheadMs * 1000000L, out);
+        return current;
     }
     
     /**
@@ -166,9 +211,7 @@ public class ARGlassesDataProvider implements SensorEventListener {
      * @return The heading in degrees
      */
     public float getDeviceHeading() {
-        updateOrientationAngles();
-        // Orientation[0] is azimuth (heading), convert from radians to degrees
-        return (float) Math.toDegrees(orientationAngles[0]);
+        return pose.getHeading();
     }
     
     /**
@@ -176,9 +219,7 @@ public class ARGlassesDataProvider implements SensorEventListener {
      * @return The tilt in degrees
      */
     public float getDeviceTilt() {
-        updateOrientationAngles();
-        // Orientation[1] is pitch (tilt), convert from radians to degrees
-        return (float) Math.toDegrees(orientationAngles[1]);
+        return pose.getPitch();
     }
     
     /**
@@ -186,35 +227,35 @@ public class ARGlassesDataProvider implements SensorEventListener {
      * @return The roll in degrees
      */
     public float getDeviceRoll() {
-        updateOrientationAngles();
-        // Orientation[2] is roll, convert from radians to degrees
-        return (float) Math.toDegrees(orientationAngles[2]);
-    }
-    
-    /**
-     * Update orientation angles from sensor readings
-     */
-    private void updateOrientationAngles() {
-        if (!hasAccelerometerReading || !hasMagnetometerReading) {
-            return;
-        }
-        
-        if (SensorManager.getRotationMatrix(rotationMatrix, null, 
-                accelerometerReading, magnetometerReading)) {
-            SensorManager.getOrientation(rotationMatrix, orientationAngles);
-        }
+        return pose.getRoll();
     }
     
     @Override
     public void onSensorChanged(SensorEvent event) {
-        if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-            System.arraycopy(event.values, 0, accelerometerReading, 
-                    0, accelerometerReading.length);
-            hasAccelerometerReading = true;
-        } else if (event.sensor.getType() == Sensor.TYPE_MAGNETIC_FIELD) {
-            System.arraycopy(event.values, 0, magnetometerReading, 
-                    0, magnetometerReading.length);
-            hasMagnetometerReading = true;
+        // Called on the sensor thread
+        switch (event.sensor.getType()) {
+            case Sensor.TYPE_ROTATION_VECTOR:
+            case Sensor.TYPE_GAME_ROTATION_VECTOR:
+                pose = posePredictor.update(PoseSnapshot.fromRotationVector(
+                        event.values, event.timestamp, poseSource));
+                break;
+            case Sensor.TYPE_ACCELEROMETER:
+                System.arraycopy(event.values, 0, accelerometerReading, 
+                        0, accelerometerReading.length);
+                hasAccelerometerReading = true;
+                break;
+            case Sensor.TYPE_MAGNETIC_FIELD:
+                System.arraycopy(event.values, 0, magnetometerReading, 
+                        0, magnetometerReading.length);
+                hasMagnetometerReading = true;
+                
+                // Publish once per magnetometer event, the slower of the two
+                if (hasAccelerometerReading && SensorManager.getRotationMatrix(
+                        rotationMatrix, null, accelerometerReading, magnetometerReading)) {
+                    pose = posePredictor.update(PoseSnapshot.fromRotationMatrix(
+                            rotationMatrix, event.timestamp, poseSource));
+                }
+                break;
         }
     }
     
@@ -231,6 +272,10 @@ public class ARGlassesDataProvider implements SensorEventListener {
         if (sensorManager != null) {
             sensorManager.unregisterListener(this);
         }
+        sensorThread.quitSafely();
+        
+        // Stop listening to the map
+        poiIndex.dispose();
         
         // Clear references
         mapView = null;
@@ -0,0 +1,45 @@
+package com.atakmap.android.arglasses.data;
+
+/**
+ * Works out the type string sent for a marker. Kept apart from the map
+ * listeners so it runs, and can be benchmarked, without ATAK.
+ */
+public final class MarkerTypes {
+    
+    // Type of markers that carry neither a type nor an icon
+    public static final String DEFAULT_TYPE = "marker";
+    
+    private MarkerTypes() {
+    }
+    
+    /**
+     * Determines the type of marker based on its properties
+     * @param type The CoT type of the marker, may be null
+     * @param iconPath The icon path of the marker, may be null
+     * @return The CoT type if there is one, otherwise the icon file name
+     *         without ".png", otherwise DEFAULT_TYPE
+     */
+    public static String determineMarkerType(String type, String iconPath) {
+        if (type != null && !type.isEmpty()) {
+            return type;
+        }
+        
+        // Extract the last part of the icon path as the type, ignoring
+        // trailing slashes. Scanned by hand, splitting the path compiles
+        // a pattern and allocates every part for every marker update.
+        if (iconPath != null) {
+            int end = iconPath.length();
+            while (end > 0 && iconPath.charAt(end - 1) == '/') {
+                end--;
+            }
+            if (end > 0) {
+                int start = iconPath.lastIndexOf('/', end - 1) + 1;
+                String name = iconPath.substring(start, end);
+                return name.contains(".png") ? name.replace(".png", "") : name;
+            }
+        }
+        
+        // Default type if nothing else available
+        return DEFAULT_TYPE;
+    }
+}
@@ -0,0 +1,207 @@
+package com.atakmap.android.arglasses.data;
+
+import java.util.Arrays;
+
+/**
+ * POIs copied out of the {@link POIStore} of a {@link POIIndex} for one
+ * frame, as columns indexed from 0 to {@link #size()}.
+ *
+ * The store changes while markers move and its slots are reused once a
+ * POI is removed, so a frame does not read it outside the index lock.
+ * The index copies the POIs the frame asks for into a batch instead, and
+ * the frame filters, measures, ranks and encodes them by their index in
+ * the batch. Names and types are carried as their ids in the store's
+ * {@link POIStringTable}, so what depends only on the type, e.g. whether a
+ * display wants it, is worked out once per type id instead of once per
+ * POI. The batch keeps its own copy of the strings of the ids it holds,
+ * since the table reuses ids once no POI holds them. The columns are kept
+ * from frame to frame, so once they are large enough a batch allocates
+ * nothing. Not thread safe.
+ */
+public class POIBatch {
+    
+    private static final int INITIAL_CAPACITY = 256;
+    
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private int[] nameIds = new int[INITIAL_CAPACITY];
+    private int[] typeIds = new int[INITIAL_CAPACITY];
+    private double[] lats = new double[INITIAL_CAPACITY];
+    private double[] lons = new double[INITIAL_CAPACITY];
+    private double[] alts = new double[INITIAL_CAPACITY];
+    private int[] colors = new int[INITIAL_CAPACITY];
+    private long[] updateTimes = new long[INITIAL_CAPACITY];
+    private int size;
+    
+    // The strings of the name and type ids, as the table held them when
+    // the POIs were added
+    private String[] strings = new String[INITIAL_CAPACITY];
+    private int idLimit = POIStringTable.NULL_ID + 1;
+    
+    /**
+     * Append the POI held in a slot of a store
+     * @param store The store
+     * @param slot The slot, holding a POI
+     * @return The index of the POI
+     */
+    int add(POIStore store, int slot) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            slots = Arrays.copyOf(slots, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            typeIds = Arrays.copyOf(typeIds, capacity);
+            lats = Arrays.copyOf(lats, capacity);
+            lons = Arrays.copyOf(lons, capacity);
+            alts = Arrays.copyOf(alts, capacity);
+            colors = Arrays.copyOf(colors, capacity);
+            updateTimes = Arrays.copyOf(updateTimes, capacity);
+        }
+        POIStringTable table = store.getStrings();
+        idLimit = table.getIdLimit();
+        if (strings.length < idLimit) {
+            strings = Arrays.copyOf(strings, Math.max(idLimit, strings.length * 2));
+        }
+        int nameId = store.getNameId(slot);
+        int typeId = store.getTypeId(slot);
+        strings[nameId] = table.get(nameId);
+        strings[typeId] = table.get(typeId);
+        
+        ids[size] = store.getId(slot);
+        slots[size] = slot;
+        nameIds[size] = nameId;
+        typeIds[size] = typeId;
+        lats[size] = store.getLat(slot);
+        lons[size] = store.getLon(slot);
+        alts[size] = store.getAlt(slot);
+        colors[size] = store.getColor(slot);
+        updateTimes[size] = store.getUpdateTime(slot);
+        return size++;
+    }
+    
+    /**
+     * Remove every POI, the columns keep their capacity. The strings of the
+     * ids stay until the ids are added again, one per id at most.
+     */
+    public void clear() {
+        // Let go of the ids of markers that may be gone
+        Arrays.fill(ids, 0, size, null);
+        size = 0;
+    }
+    
+    /**
+     * Get the bound of the name and type ids, for arrays indexed by id
+     * @return One past the highest id the batch may hold
+     */
+    public int getIdLimit() {
+        return idLimit;
+    }
+    
+    /**
+     * Get the number of POIs
+     * @return The POI count
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Get the unique identifier of a POI
+     * @param index The index, below size()
+     * @return The ID
+     */
+    public String getId(int index) {
+        return ids[index];
+    }
+    
+    /**
+     * Get the slot a POI was copied from. The POI keeps it until it is
+     * removed, then it goes to another POI.
+     * @param index The index, below size()
+     * @return The slot in the store
+     */
+    public int getSlot(int index) {
+        return slots[index];
+    }
+    
+    /**
+     * Get the display name of a POI
+     * @param index The index, below size()
+     * @return The name
+     */
+    public String getName(int index) {
+        return strings[nameIds[index]];
+    }
+    
+    /**
+     * Get the id of the display name of a POI
+     * @param index The index, below size()
+     * @return The id, below getIdLimit()
+     */
+    public int getNameId(int index) {
+        return nameIds[index];
+    }
+    
+    /**
+     * Get the type of a POI
+     * @param index The index, below size()
+     * @return The type
+     */
+    public String getType(int index) {
+        return strings[typeIds[index]];
+    }
+    
+    /**
+     * Get the id of the type of a POI, equal ids in a batch are equal types
+     * @param index The index, below size()
+     * @return The id, below getIdLimit()
+     */
+    public int getTypeId(int index) {
+        return typeIds[index];
+    }
+    
+    /**
+     * Get the latitude of a POI
+     * @param index The index, below size()
+     * @return The latitude in degrees
+     */
+    public double getLat(int index) {
+        return lats[index];
+    }
+    
+    /**
+     * Get the longitude of a POI
+     * @param index The index, below size()
+     * @return The longitude in degrees
+     */
+    public double getLon(int index) {
+        return lons[index];
+    }
+    
+    /**
+     * Get the altitude of a POI
+     * @param index The index, below size()
+     * @return The altitude in meters
+     */
+    public double getAlt(int index) {
+        return alts[index];
+    }
+    
+    /**
+     * Get the display color of a POI
+     * @param index The index, below size()
+     * @return The color as an integer
+     */
+    public int getColor(int index) {
+        return colors[index];
+    }
+    
+    /**
+     * Get the time a POI last changed
+     * @param index The index, below size()
+     * @return The time in milliseconds, 0 if unknown
+     */
+    public long getUpdateTime(int index) {
+        return updateTimes[index];
+    }
+}
@@ -0,0 +1,244 @@
+package com.atakmap.android.arglasses.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The POIs on the map and the changes to them since the frames last took
+ * them, without the map listeners of the {@link POIIndex} that keeps it
+ * up to date.
+ *
+ * The POIs are held once, as the columns of a {@link POIStore}. The
+ * spatial index and the changes refer to them by slot: the changed and
+ * the removed POIs are lists of slots with a flag byte per slot, so a
+ * marker adds no object anywhere. A removed POI keeps its slot, and its id
+ * in the store, until the removal is drained, and a POI put again before
+ * then gets the same slot back. Frames get the POIs they ask for copied
+ * into a {@link POIBatch}. Not thread safe.
+ */
+public class POICollection implements POISource {
+    
+    private static final int INITIAL_CAPACITY = 256;
+    
+    // Flags per slot: changed, removed, and whether the slot is already in
+    // the list of changed or removed slots, which may hold slots whose flag
+    // was cleared since
+    private static final byte CHANGED = 1;
+    private static final byte CHANGED_LISTED = 2;
+    private static final byte REMOVED = 4;
+    private static final byte REMOVED_LISTED = 8;
+    
+    private final POIStore store = new POIStore();
+    private final POISpatialIndex spatialIndex = new POISpatialIndex();
+    private int[] inRange = new int[INITIAL_CAPACITY];
+    
+    private byte[] flags = new byte[INITIAL_CAPACITY];
+    private int[] changedSlots = new int[INITIAL_CAPACITY];
+    private int changedCount;
+    private int[] removedSlots = new int[INITIAL_CAPACITY];
+    private int removedCount;
+    private int removedPending; // Slots flagged REMOVED
+    
+    /**
+     * Add a POI or update the one with the same id, and mark it changed
+     * @param id The unique identifier
+     * @param name The display name
+     * @param type The type of POI
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param alt The altitude in meters
+     * @param color The display color
+     * @param updateTime The time the POI last changed in milliseconds
+     */
+    public void put(String id, String name, String type, double lat, double lon,
+            double alt, int color, long updateTime) {
+        int slot = store.put(id, name, type, lat, lon, alt, color, updateTime);
+        if (slot >= flags.length) {
+            flags = Arrays.copyOf(flags, Math.max(slot + 1, flags.length * 2));
+        }
+        if ((flags[slot] & REMOVED) != 0) {
+            // Back before its removal was drained
+            flags[slot] &= ~REMOVED;
+            removedPending--;
+        }
+        spatialIndex.put(slot, lat, lon);
+        markChanged(slot);
+    }
+    
+    /**
+     * Remove a POI, its removal is reported by the next drain
+     * @param id The unique identifier
+     * @return true if the collection held the POI
+     */
+    public boolean remove(String id) {
+        int slot = store.find(id);
+        if (slot == POIStore.NO_SLOT || (flags[slot] & REMOVED) != 0) {
+            return false;
+        }
+        spatialIndex.remove(slot);
+        flags[slot] &= ~CHANGED;
+        flags[slot] |= REMOVED;
+        removedPending++;
+        if ((flags[slot] & REMOVED_LISTED) == 0) {
+            flags[slot] |= REMOVED_LISTED;
+            removedSlots = append(removedSlots, removedCount++, slot);
+        }
+        return true;
+    }
+    
+    /**
+     * Remove every POI and every pending change
+     */
+    public void clear() {
+        store.clear();
+        spatialIndex.clear();
+        Arrays.fill(flags, (byte) 0);
+        changedCount = 0;
+        removedCount = 0;
+        removedPending = 0;
+    }
+    
+    /**
+     * Get the number of POIs held
+     * @return The POI count
+     */
+    public int size() {
+        return store.size() - removedPending;
+    }
+    
+    /**
+     * Copy every POI
+     * @param out Receives the POIs
+     */
+    @Override
+    public void getAll(POIBatch out) {
+        for (int slot = 0; slot < store.getSlotLimit(); slot++) {
+            if (store.isLive(slot) && (flags[slot] & REMOVED) == 0) {
+                out.add(store, slot);
+            }
+        }
+    }
+    
+    /**
+     * Copy every POI and drop the pending changes, for frames that carry
+     * the full POI set
+     * @param out Receives the POIs
+     */
+    @Override
+    public void snapshot(POIBatch out) {
+        getAll(out);
+        clearChanges();
+    }
+    
+    /**
+     * Find the POIs within a distance of a point
+     * @param lat The latitude of the center in degrees
+     * @param lon The longitude of the center in degrees
+     * @param radiusMeters The search radius in meters
+     * @param out Receives the POIs in range
+     */
+    @Override
+    public void queryRadius(double lat, double lon, double radiusMeters, POIBatch out) {
+        if (inRange.length < spatialIndex.size()) {
+            inRange = new int[Math.max(spatialIndex.size(), inRange.length * 2)];
+        }
+        int count = spatialIndex.queryRadius(lat, lon, radiusMeters, inRange);
+        for (int i = 0; i < count; i++) {
+            out.add(store, inRange[i]);
+        }
+    }
+    
+    /**
+     * Mark POIs as changed again, for POIs that could not be sent yet
+     * @param ids The unique identifiers of the POIs
+     */
+    @Override
+    public void requeue(List<String> ids) {
+        for (int i = 0; i < ids.size(); i++) {
+            int slot = store.find(ids.get(i));
+            if (slot != POIStore.NO_SLOT && (flags[slot] & REMOVED) == 0) {
+                markChanged(slot);
+            }
+        }
+    }
+    
+    /**
+     * Drop the pending changes, for frames that diff the POIs themselves
+     */
+    @Override
+    public void clearChanges() {
+        for (int i = 0; i < changedCount; i++) {
+            flags[changedSlots[i]] &= ~(CHANGED | CHANGED_LISTED);
+        }
+        changedCount = 0;
+        for (int i = 0; i < removedCount; i++) {
+            release(removedSlots[i]);
+        }
+        removedCount = 0;
+    }
+    
+    /**
+     * Move the pending changes out
+     * @param changed Receives the POIs added or changed since the last drain
+     * @param removedIds Receives the ids removed since the last drain
+     */
+    @Override
+    public void drainChanges(POIBatch changed, List<String> removedIds) {
+        for (int i = 0; i < changedCount; i++) {
+            int slot = changedSlots[i];
+            if ((flags[slot] & CHANGED) != 0) {
+                changed.add(store, slot);
+            }
+            flags[slot] &= ~(CHANGED | CHANGED_LISTED);
+        }
+        changedCount = 0;
+        for (int i = 0; i < removedCount; i++) {
+            int slot = removedSlots[i];
+            if ((flags[slot] & REMOVED) != 0) {
+                removedIds.add(store.getId(slot));
+            }
+            release(slot);
+        }
+        removedCount = 0;
+    }
+    
+    /**
+     * Flag a slot as changed, listing it once
+     * @param slot The slot
+     */
+    private void markChanged(int slot) {
+        flags[slot] |= CHANGED;
+        if ((flags[slot] & CHANGED_LISTED) == 0) {
+            flags[slot] |= CHANGED_LISTED;
+            changedSlots = append(changedSlots, changedCount++, slot);
+        }
+    }
+    
+    /**
+     * Take a slot off the removed list, freeing it in the store if the POI
+     * was not put again since
+     * @param slot The slot
+     */
+    private void release(int slot) {
+        if ((flags[slot] & REMOVED) != 0) {
+            store.remove(store.getId(slot));
+            removedPending--;
+        }
+        flags[slot] &= ~(REMOVED | REMOVED_LISTED);
+    }
+    
+    /**
+     * Set an element of a list of slots, growing its array
+     * @param slots The array
+     * @param index The index to set
+     * @param slot The slot
+     * @return The array, a larger copy if it was full
+     */
+    private static int[] append(int[] slots, int index, int slot) {
+        if (index == slots.length) {
+            slots = Arrays.copyOf(slots, index * 2);
+        }
+        slots[index] = slot;
+        return slots;
+    }
+}
@@ -13,6 +13,7 @@ public class POIData {
     private final String type;
     private final GeoPoint location;
     private final int color;
+    private final long updateTime;
     
     /**
      * Constructor
@@ -23,11 +24,26 @@ public class POIData {
      * @param color The display color
      */
     public POIData(String id, String name, String type, GeoPoint location, int color) {
+        this(id, name, type, location, color, 0);
+    }
+    
+    /**
+     * Constructor
+     * @param id The unique identifier
+     * @param name The display name
+     * @param type The type of POI
+     * @param location The geographic location
+     * @param color The display color
+     * @param updateTime The time the POI last changed in milliseconds
+     */
+    public POIData(String id, String name, String type, GeoPoint location, int color,
+                   long updateTime) {
         this.id = id;
         this.name = name;
         this.type = type;
         this.location = location;
         this.color = color;
+        this.updateTime = updateTime;
     }
     
     /**
@@ -70,6 +86,14 @@ public class POIData {
         return color;
     }
     
+    /**
+     * Get the time the POI last changed
+     * @return The time in milliseconds, 0 if unknown
+     */
+    public long getUpdateTime() {
+        return updateTime;
+    }
+    
     @Override
     public String toString() {
         return "POIData{" +
@@ -0,0 +1,250 @@
+package com.atakmap.android.arglasses.data;
+
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+
+import java.util.Arrays;
+
+/**
+ * Range, bearing and elevation angle from self of a batch of POIs, taken
+ * in one pass over primitive arrays.
+ *
+ * Uses the same local flat earth around self as the ViewFrustum. The trig
+ * of the self latitude is done once per batch, and the loops do only
+ * arithmetic on arrays, without calls or branches, so the JIT can unroll
+ * and vectorize them. Angles come from a polynomial atan2 accurate to
+ * about 0.0002 degrees rather than Math.atan2, which is a call per angle.
+ *
+ * Usage per frame: {@link #begin}, {@link #add} for every POI, then
+ * {@link #compute()} and the getters by the order the POIs were added.
+ * The arrays are kept between frames, so a frame allocates nothing once
+ * they have grown. Not thread safe.
+ */
+public class POIGeometry {
+    
+    // The scale of the local positions, so the geometry matches them
+    private static final double METERS_PER_DEGREE = ARGlassesProtocol.METERS_PER_DEGREE;
+    
+    private static final float HALF_PI = (float) (Math.PI / 2);
+    private static final float PI = (float) Math.PI;
+    private static final float DEGREES_PER_RADIAN = (float) (180 / Math.PI);
+    
+    // Keeps the 0 or 1 factors finite at 0 / 0
+    private static final float TINY = 1e-30f;
+    
+    private static final int INITIAL_CAPACITY = 256;
+    
+    private double selfLat;
+    private double selfLon;
+    private double selfAlt;
+    private int size;
+    
+    // Inputs, the altitude as the height above self
+    private double[] lats = new double[INITIAL_CAPACITY];
+    private double[] lons = new double[INITIAL_CAPACITY];
+    private float[] ups = new float[INITIAL_CAPACITY];
+    
+    // Outputs, north and east are kept for the angle pass
+    private float[] norths = new float[INITIAL_CAPACITY];
+    private float[] easts = new float[INITIAL_CAPACITY];
+    private float[] grounds = new float[INITIAL_CAPACITY];
+    private float[] ranges = new float[INITIAL_CAPACITY];
+    private float[] bearings = new float[INITIAL_CAPACITY];
+    private float[] elevations = new float[INITIAL_CAPACITY];
+    
+    /**
+     * Start a batch
+     * @param lat The self latitude in degrees
+     * @param lon The self longitude in degrees
+     * @param alt The self altitude in meters, NaN if unknown
+     */
+    public void begin(double lat, double lon, double alt) {
+        selfLat = lat;
+        selfLon = lon;
+        selfAlt = alt;
+        size = 0;
+    }
+    
+    /**
+     * Add a POI to the batch
+     * @param lat The POI latitude in degrees
+     * @param lon The POI longitude in degrees
+     * @param alt The POI altitude in meters, NaN if unknown
+     * @return The index of the POI in the batch
+     */
+    public int add(double lat, double lon, double alt) {
+        if (size == lats.length) {
+            grow();
+        }
+        lats[size] = lat;
+        lons[size] = lon;
+        // Unknown altitudes are treated as level with self
+        ups[size] = Double.isNaN(alt) || Double.isNaN(selfAlt) ? 0 : (float) (alt - selfAlt);
+        return size++;
+    }
+    
+    /**
+     * Get the number of POIs in the batch
+     * @return The POI count
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Compute the geometry of every POI added
+     */
+    public void compute() {
+        compute(size, selfLat, selfLon, lats, lons, ups, norths, easts,
+                grounds, ranges, bearings, elevations);
+    }
+    
+    /**
+     * Get the distance of a POI along the ground
+     * @param index The index add returned
+     * @return The distance in meters
+     */
+    public float getGroundRange(int index) {
+        return grounds[index];
+    }
+    
+    /**
+     * Get the straight line distance of a POI
+     * @param index The index add returned
+     * @return The distance in meters
+     */
+    public float getRange(int index) {
+        return ranges[index];
+    }
+    
+    /**
+     * Get the direction of a POI
+     * @param index The index add returned
+     * @return The bearing in degrees from true north, 0 to 360
+     */
+    public float getBearing(int index) {
+        return bearings[index];
+    }
+    
+    /**
+     * Get the angle of a POI above the horizon
+     * @param index The index add returned
+     * @return The elevation in degrees, negative below the horizon
+     */
+    public float getElevation(int index) {
+        return elevations[index];
+    }
+    
+    /**
+     * Compute the geometry of POIs stored in arrays
+     * @param count The number of POIs
+     * @param selfLat The self latitude in degrees
+     * @param selfLon The self longitude in degrees
+     * @param lats The POI latitudes in degrees
+     * @param lons The POI longitudes in degrees
+     * @param ups The POI heights above self in meters
+     * @param norths Receives the offsets north in meters
+     * @param easts Receives the offsets east in meters
+     * @param grounds Receives the distances along the ground in meters
+     * @param ranges Receives the straight line distances in meters
+     * @param bearings Receives the bearings in degrees, 0 to 360
+     * @param elevations Receives the elevation angles in degrees
+     */
+    public static void compute(int count, double selfLat, double selfLon,
+            double[] lats, double[] lons, float[] ups, float[] norths, float[] easts,
+            float[] grounds, float[] ranges, float[] bearings, float[] elevations) {
+        double metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(selfLat));
+        for (int i = 0; i < count; i++) {
+            // Across the antimeridian the short way round
+            double dLon = lons[i] - selfLon;
+            dLon -= 360 * Math.rint(dLon * (1.0 / 360));
+            norths[i] = (float) ((lats[i] - selfLat) * METERS_PER_DEGREE);
+            easts[i] = (float) (dLon * metersPerDegreeLon);
+        }
+        for (int i = 0; i < count; i++) {
+            float ground = (float) Math.sqrt(norths[i] * norths[i] + easts[i] * easts[i]);
+            grounds[i] = ground;
+            ranges[i] = (float) Math.sqrt(ground * ground + ups[i] * ups[i]);
+        }
+        atan2Degrees(count, easts, norths, bearings);
+        for (int i = 0; i < count; i++) {
+            // Plus 360 for negative bearings
+            float bearing = bearings[i];
+            float absolute = Math.abs(bearing);
+            bearings[i] = bearing + 360 * (absolute - bearing) / (2 * absolute + TINY);
+        }
+        atan2Degrees(count, ups, grounds, elevations);
+    }
+    
+    /**
+     * Approximate Math.atan2 over arrays, to within about 0.0002 degrees.
+     * The quadrant is picked with arithmetic on 0 or 1 factors instead of
+     * branches. The two loops are kept short and in methods of their own,
+     * HotSpot vectorized neither as one loop or as two in one method.
+     * @param count The number of angles
+     * @param ys The y coordinates
+     * @param xs The x coordinates
+     * @param angles Receives the angles in degrees, -180 to 180
+     */
+    static void atan2Degrees(int count, float[] ys, float[] xs, float[] angles) {
+        octantAngles(count, ys, xs, angles);
+        quadrantDegrees(count, ys, xs, angles);
+    }
+    
+    /**
+     * Take the atan of the smaller over the larger magnitude of each pair
+     * @param count The number of angles
+     * @param ys The y coordinates
+     * @param xs The x coordinates
+     * @param angles Receives the angles in radians, 0 to pi / 4
+     */
+    private static void octantAngles(int count, float[] ys, float[] xs, float[] angles) {
+        for (int i = 0; i < count; i++) {
+            float ax = Math.abs(xs[i]);
+            float ay = Math.abs(ys[i]);
+            float larger = Math.max(ax, ay);
+            float a = (ax + ay - larger) / (larger + TINY);
+            float s = a * a;
+            angles[i] = a * (0.99997726f + s * (-0.33262347f + s * (0.19354346f
+                    + s * (-0.11643287f + s * (0.05265332f - s * 0.01172120f)))));
+        }
+    }
+    
+    /**
+     * Move octant angles to the quadrant of their coordinates
+     * @param count The number of angles
+     * @param ys The y coordinates
+     * @param xs The x coordinates
+     * @param angles The angles from octantAngles, receives the angles in
+     *               degrees, -180 to 180
+     */
+    private static void quadrantDegrees(int count, float[] ys, float[] xs, float[] angles) {
+        for (int i = 0; i < count; i++) {
+            float x = xs[i];
+            float y = ys[i];
+            float ax = Math.abs(x);
+            float ay = Math.abs(y);
+            float d = ay - ax;
+            float ad = Math.abs(d);
+            float angle = angles[i];
+            // pi / 2 - angle when |y| > |x|, pi - angle when x < 0, negated
+            // when y < 0
+            angle += (d + ad) / (2 * ad + TINY) * (HALF_PI - 2 * angle);
+            angle += (ax - x) / (2 * ax + TINY) * (PI - 2 * angle);
+            angles[i] = angle * (DEGREES_PER_RADIAN
+                    - 2 * DEGREES_PER_RADIAN * (ay - y) / (2 * ay + TINY));
+        }
+    }
+    
+    private void grow() {
+        int capacity = lats.length * 2;
+        lats = Arrays.copyOf(lats, capacity);
+        lons = Arrays.copyOf(lons, capacity);
+        ups = Arrays.copyOf(ups, capacity);
+        norths = new float[capacity];
+        easts = new float[capacity];
+        grounds = new float[capacity];
+        ranges = new float[capacity];
+        bearings = new float[capacity];
+        elevations = new float[capacity];
+    }
+}
@@ -0,0 +1,233 @@
+package com.atakmap.android.arglasses.data;
+
+import com.atakmap.android.maps.MapGroup;
+import com.atakmap.android.maps.MapItem;
+import com.atakmap.android.maps.Marker;
+import com.atakmap.android.maps.PointMapItem;
+import com.atakmap.coremap.log.Log;
+import com.atakmap.coremap.maps.coords.GeoPoint;
+
+import java.util.List;
+
+/**
+ * Persistent index of the markers on the map.
+ * Kept up to date by map group and marker listeners instead of scanning
+ * the whole map every frame, and tracks which POIs changed since the
+ * last time the changes were drained. The POIs and their changes are held
+ * by a {@link POICollection}, as columns of a {@link POIStore} and lists
+ * of slots, so a marker update writes into them instead of allocating,
+ * and frames get the POIs they ask for copied into a {@link POIBatch} of
+ * their own.
+ */
+public class POIIndex implements POISource,
+        MapGroup.OnItemListChangedListener,
+        MapGroup.OnGroupListChangedListener,
+        PointMapItem.OnPointChangedListener,
+        Marker.OnTitleChangedListener {
+    
+    private static final String TAG = "POIIndex";
+    
+    private volatile MapGroup rootGroup;
+    
+    // Current POIs keyed by marker UID, with the changes since the last drain
+    private final POICollection pois = new POICollection();
+    
+    /**
+     * Start tracking the markers below a map group.
+     * The index lock is never held while calling into a map group, since
+     * groups notify their listeners while holding their own lock.
+     * @param rootGroup The root map group
+     */
+    public void start(MapGroup rootGroup) {
+        dispose();
+        this.rootGroup = rootGroup;
+        attachGroup(rootGroup);
+        Log.d(TAG, "Indexed " + size() + " POIs");
+    }
+    
+    /**
+     * Stop tracking markers and clear the index
+     */
+    public void dispose() {
+        MapGroup group = rootGroup;
+        rootGroup = null;
+        if (group != null) {
+            detachGroup(group);
+        }
+        
+        synchronized (this) {
+            pois.clear();
+        }
+    }
+    
+    /**
+     * Get the number of POIs in the index
+     * @return The POI count
+     */
+    public synchronized int size() {
+        return pois.size();
+    }
+    
+    /**
+     * Copy every POI in the index
+     * @param out Receives the POIs
+     */
+    @Override
+    public synchronized void getAll(POIBatch out) {
+        pois.getAll(out);
+    }
+    
+    /**
+     * Copy every POI in the index and clear the pending changes, for frames
+     * that carry the full POI set
+     * @param out Receives the POIs
+     */
+    @Override
+    public synchronized void snapshot(POIBatch out) {
+        pois.snapshot(out);
+    }
+    
+    /**
+     * Find the POIs within a distance of a point
+     * @param lat The latitude of the center in degrees
+     * @param lon The longitude of the center in degrees
+     * @param radiusMeters The search radius in meters
+     * @param out Receives the POIs in range
+     */
+    @Override
+    public synchronized void queryRadius(double lat, double lon,
+            double radiusMeters, POIBatch out) {
+        pois.queryRadius(lat, lon, radiusMeters, out);
+    }
+    
+    /**
+     * Mark POIs as changed again, for POIs that could not be sent yet
+     * @param ids The UIDs of the POIs
+     */
+    @Override
+    public synchronized void requeue(List<String> ids) {
+        pois.requeue(ids);
+    }
+    
+    /**
+     * Drop the pending changes, for frames that diff the POIs themselves
+     */
+    @Override
+    public synchronized void clearChanges() {
+        pois.clearChanges();
+    }
+    
+    /**
+     * Move the pending changes out of the index
+     * @param changed Receives the POIs added or changed since the last drain
+     * @param removedIds Receives the UIDs removed since the last drain
+     */
+    @Override
+    public synchronized void drainChanges(POIBatch changed, List<String> removedIds) {
+        pois.drainChanges(changed, removedIds);
+    }
+    
+    @Override
+    public void onItemAdded(MapItem item, MapGroup group) {
+        if (item instanceof Marker) {
+            Marker marker = (Marker) item;
+            marker.addOnPointChangedListener(this);
+            marker.addOnTitleChangedListener(this);
+            update(marker);
+        }
+    }
+    
+    @Override
+    public void onItemRemoved(MapItem item, MapGroup group) {
+        if (item instanceof Marker) {
+            Marker marker = (Marker) item;
+            marker.removeOnPointChangedListener(this);
+            marker.removeOnTitleChangedListener(this);
+            remove(marker.getUID());
+        }
+    }
+    
+    @Override
+    public void onGroupAdded(MapGroup group, MapGroup parent) {
+        attachGroup(group);
+    }
+    
+    @Override
+    public void onGroupRemoved(MapGroup group, MapGroup parent) {
+        detachGroup(group);
+    }
+    
+    @Override
+    public void onPointChanged(PointMapItem item) {
+        if (item instanceof Marker) {
+            update((Marker) item);
+        }
+    }
+    
+    @Override
+    public void onTitleChanged(Marker marker) {
+        update(marker);
+    }
+    
+    /**
+     * Listen to a group and its children and index their markers
+     * @param group The group to attach to
+     */
+    private void attachGroup(MapGroup group) {
+        group.addOnItemListChangedListener(this);
+        group.addOnGroupListChangedListener(this);
+        
+        for (MapItem item : group.getItems()) {
+            onItemAdded(item, group);
+        }
+        for (MapGroup child : group.getChildGroups()) {
+            attachGroup(child);
+        }
+    }
+    
+    /**
+     * Stop listening to a group and its children and drop their markers
+     * @param group The group to detach from
+     */
+    private void detachGroup(MapGroup group) {
+        group.removeOnItemListChangedListener(this);
+        group.removeOnGroupListChangedListener(this);
+        
+        for (MapItem item : group.getItems()) {
+            onItemRemoved(item, group);
+        }
+        for (MapGroup child : group.getChildGroups()) {
+            detachGroup(child);
+        }
+    }
+    
+    /**
+     * Refresh the POI for a marker and mark it dirty
+     * @param marker The marker that was added or changed
+     */
+    private void update(Marker marker) {
+        GeoPoint point = marker.getPoint();
+        if (point == null) {
+            return;
+        }
+        
+        String uid = marker.getUID();
+        String name = marker.getTitle();
+        String type = MarkerTypes.determineMarkerType(marker.getType(), marker.getIconPath());
+        int color = marker.getStrokeColor();
+        long now = System.currentTimeMillis();
+        
+        synchronized (this) {
+            pois.put(uid, name, type, point.getLatitude(), point.getLongitude(),
+                    point.getAltitude(), color, now);
+        }
+    }
+    
+    /**
+     * Drop the POI for a marker
+     * @param uid The UID of the marker that was removed
+     */
+    private synchronized void remove(String uid) {
+        pois.remove(uid);
+    }
+}
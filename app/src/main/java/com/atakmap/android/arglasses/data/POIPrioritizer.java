@@ -0,0 +1,246 @@
+package com.atakmap.android.arglasses.data;
+
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+
+import java.util.Arrays;
+
+/**
+ * Ranks the POIs waiting to be sent when a frame cannot hold all of them.
+ * The priority combines the affiliation from the CoT type (hostile before
+ * friendly before anything else), whether the POI is in view, its distance
+ * from self and how recently it changed. POIs that lose out gain priority
+ * for every frame they wait, so the overflow is worked through over the
+ * following frames instead of starving. POIs are ranked by their index
+ * in the {@link POIBatch} of the frame. The frames a POI waited are kept
+ * by its store slot, next to the id that held the slot, so a count left
+ * by a removed POI is dropped once its slot goes to another POI and the
+ * counts never outgrow the store. Not thread safe.
+ */
+public class POIPrioritizer {
+    
+    // Score weights, the affiliation dominates
+    private static final double WEIGHT_TYPE = 4.0;
+    private static final double WEIGHT_IN_VIEW = 2.0;
+    private static final double WEIGHT_DISTANCE = 2.0;
+    private static final double WEIGHT_RECENCY = 1.0;
+    private static final double WEIGHT_WAITING = 0.25;
+    
+    // Distance and age at which those terms drop to half
+    private static final double DISTANCE_HALF_M = 500;
+    private static final double RECENCY_HALF_MS = 10000;
+    
+    private static final double METERS_PER_DEGREE = ARGlassesProtocol.METERS_PER_DEGREE;
+    
+    private final TopKSelector selector = new TopKSelector();
+    
+    // By type id, the affiliation rank and the type string it was worked
+    // out for, an id taken over by another type comes with another string
+    private int[] ranks = new int[64];
+    private String[] rankedTypes = new String[64];
+    
+    // By store slot, the number of frames the deferred POI has been
+    // waiting, and its id, null if none waits
+    private int[] waitingFrames = new int[256];
+    private String[] waitingIds = new String[256];
+    
+    private boolean hasSelf;
+    private double selfLat;
+    private double selfLon;
+    private double metersPerDegreeLon;
+    private long now;
+    private POIBatch pois;
+    
+    /**
+     * Start ranking the POIs for a frame
+     * @param pois The POIs of the frame, the offered indexes refer to them
+     * @param hasSelf Whether the self location is known
+     * @param lat The self latitude in degrees
+     * @param lon The self longitude in degrees
+     * @param now The current time in milliseconds
+     * @param limit The maximum number of POIs to select
+     */
+    public void begin(POIBatch pois, boolean hasSelf, double lat, double lon,
+            long now, int limit) {
+        this.pois = pois;
+        this.hasSelf = hasSelf;
+        this.selfLat = lat;
+        this.selfLon = lon;
+        this.metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        this.now = now;
+        selector.reset(limit);
+    }
+    
+    /**
+     * Offer a POI waiting to be sent
+     * @param index The index of the POI in the batch
+     * @param inView Whether the POI is in or near the view
+     * @return The index of the POI that lost out and has to wait, -1 if none
+     */
+    public int offer(int index, boolean inView) {
+        return offer(index, inView, distance(index));
+    }
+    
+    /**
+     * Offer a POI waiting to be sent whose distance is known
+     * @param index The index of the POI in the batch
+     * @param inView Whether the POI is in or near the view
+     * @param distance The distance from self in meters, NaN if unknown
+     * @return The index of the POI that lost out and has to wait, -1 if none
+     */
+    public int offer(int index, boolean inView, double distance) {
+        int evicted = selector.offer(index, score(index, inView, distance));
+        if (evicted == TopKSelector.NONE) {
+            return -1;
+        }
+        defer(evicted);
+        return evicted;
+    }
+    
+    /**
+     * Move the selected POIs out, highest priority first
+     * @param out Receives the batch indexes, room for every POI offered
+     * @return The number of POIs selected
+     */
+    public int drainSelected(int[] out) {
+        return selector.drainDescending(out);
+    }
+    
+    /**
+     * Record that a POI was sent
+     * @param index The index of the POI in the batch
+     */
+    public void sent(int index) {
+        int slot = pois.getSlot(index);
+        if (slot < waitingIds.length) {
+            waitingIds[slot] = null;
+        }
+    }
+    
+    /**
+     * Record that a POI had to wait for a later frame
+     * @param index The index of the POI in the batch
+     */
+    public void defer(int index) {
+        int slot = pois.getSlot(index);
+        if (slot >= waitingIds.length) {
+            int capacity = Math.max(slot + 1, waitingIds.length * 2);
+            waitingFrames = Arrays.copyOf(waitingFrames, capacity);
+            waitingIds = Arrays.copyOf(waitingIds, capacity);
+        }
+        waitingFrames[slot] = getWaitingFrames(index) + 1;
+        waitingIds[slot] = pois.getId(index);
+    }
+    
+    /**
+     * Forget every waiting POI, e.g. when the sent state starts over
+     */
+    public void clear() {
+        Arrays.fill(waitingIds, null);
+    }
+    
+    /**
+     * Compute the priority of a POI, higher is sent first
+     * @param index The index of the POI in the batch
+     * @param inView Whether the POI is in or near the view
+     * @return The score
+     */
+    public double score(int index, boolean inView) {
+        return score(index, inView, distance(index));
+    }
+    
+    /**
+     * Compute the priority of a POI whose distance is known
+     * @param index The index of the POI in the batch
+     * @param inView Whether the POI is in or near the view
+     * @param distance The distance from self in meters, NaN if unknown
+     * @return The score
+     */
+    public double score(int index, boolean inView, double distance) {
+        double score = WEIGHT_TYPE * typeRank(index);
+        if (inView) {
+            score += WEIGHT_IN_VIEW;
+        }
+        
+        if (!Double.isNaN(distance)) {
+            score += WEIGHT_DISTANCE * DISTANCE_HALF_M / (DISTANCE_HALF_M + distance);
+        }
+        
+        long age = Math.max(0, now - pois.getUpdateTime(index));
+        score += WEIGHT_RECENCY * RECENCY_HALF_MS / (RECENCY_HALF_MS + age);
+        
+        score += WEIGHT_WAITING * getWaitingFrames(index);
+        return score;
+    }
+    
+    /**
+     * Get the number of frames a POI has been waiting
+     * @param index The index of the POI in the batch
+     * @return The frame count, 0 if it is not waiting
+     */
+    private int getWaitingFrames(int index) {
+        int slot = pois.getSlot(index);
+        // The store keeps the id of a POI as it was first put, a slot that
+        // went to another POI holds another id
+        if (slot < waitingIds.length && waitingIds[slot] == pois.getId(index)) {
+            return waitingFrames[slot];
+        }
+        return 0;
+    }
+    
+    /**
+     * Get the distance of a POI from self
+     * @param index The index of the POI in the batch
+     * @return The distance in meters, NaN if the self location is unknown
+     */
+    private double distance(int index) {
+        if (!hasSelf) {
+            return Double.NaN;
+        }
+        double north = (pois.getLat(index) - selfLat) * METERS_PER_DEGREE;
+        double east = (pois.getLon(index) - selfLon) * metersPerDegreeLon;
+        return Math.sqrt(north * north + east * east);
+    }
+    
+    /**
+     * Get the affiliation rank of a POI, worked out once per type id
+     * @param index The index of the POI in the batch
+     * @return The rank of its type
+     */
+    private int typeRank(int index) {
+        int id = pois.getTypeId(index);
+        if (id >= rankedTypes.length) {
+            int capacity = Math.max(pois.getIdLimit(), rankedTypes.length * 2);
+            ranks = Arrays.copyOf(ranks, capacity);
+            rankedTypes = Arrays.copyOf(rankedTypes, capacity);
+        }
+        String type = pois.getType(index);
+        if (rankedTypes[id] != type) {
+            ranks[id] = typeRank(type);
+            rankedTypes[id] = type;
+        }
+        return ranks[id];
+    }
+    
+    /**
+     * Rank the affiliation encoded in a CoT type
+     * @param type The CoT type, e.g. a-h-G
+     * @return 2 for hostile, 1 for friendly, 0 for anything else
+     */
+    public static int typeRank(String type) {
+        if (type == null || type.length() < 3 || !type.startsWith("a-")) {
+            return 0;
+        }
+        switch (type.charAt(2)) {
+            case 'h': // hostile
+            case 's': // suspect
+            case 'j': // joker
+            case 'k': // faker
+                return 2;
+            case 'f': // friend
+            case 'a': // assumed friend
+                return 1;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.atakmap.android.arglasses.data;
+
+import java.util.List;
+
+/**
+ * The POIs a frame is built from, and the changes to them since the
+ * frames last took them. Frames get the POIs they ask for copied into a
+ * {@link POIBatch} of their own.
+ */
+public interface POISource {
+    
+    /**
+     * Copy every POI
+     * @param out Receives the POIs
+     */
+    void getAll(POIBatch out);
+    
+    /**
+     * Copy every POI and drop the pending changes, for frames that carry
+     * the full POI set
+     * @param out Receives the POIs
+     */
+    void snapshot(POIBatch out);
+    
+    /**
+     * Find the POIs within a distance of a point
+     * @param lat The latitude of the center in degrees
+     * @param lon The longitude of the center in degrees
+     * @param radiusMeters The search radius in meters
+     * @param out Receives the POIs in range
+     */
+    void queryRadius(double lat, double lon, double radiusMeters, POIBatch out);
+    
+    /**
+     * Mark POIs as changed again, for POIs that could not be sent yet
+     * @param ids The unique identifiers of the POIs
+     */
+    void requeue(List<String> ids);
+    
+    /**
+     * Drop the pending changes, for frames that diff the POIs themselves
+     */
+    void clearChanges();
+    
+    /**
+     * Move the pending changes out
+     * @param changed Receives the POIs added or changed since the last drain
+     * @param removedIds Receives the ids removed since the last drain
+     */
+    void drainChanges(POIBatch changed, List<String> removedIds);
+}
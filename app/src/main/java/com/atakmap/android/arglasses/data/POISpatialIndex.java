@@ -0,0 +1,324 @@
+package com.atakmap.android.arglasses.data;
+
+import java.util.Arrays;
+
+/**
+ * Uniform lat/lon grid over POI locations for range limited queries.
+ * POIs are keyed by their slot in the {@link POIStore}, and the index
+ * holds them as columns indexed by slot and cells of slots, so it adds no
+ * object per POI. POIs are bucketed by cell and can be moved one at a time
+ * as markers move, so the index never has to be rebuilt. Queries do not
+ * allocate. Not thread safe.
+ */
+public class POISpatialIndex {
+    
+    // Mean earth radius used for distance checks
+    public static final double EARTH_RADIUS_M = 6371008.8;
+    
+    // Default cell size, roughly 1.1 km of latitude
+    public static final double DEFAULT_CELL_SIZE_DEG = 0.01;
+    
+    private static final int INITIAL_CELL_CAPACITY = 64;
+    private static final int INITIAL_SLOT_CAPACITY = 256;
+    private static final int INITIAL_BUCKET_CAPACITY = 4;
+    
+    // The position of a slot that is not in the index
+    private static final int ABSENT = -1;
+    
+    private final double cellSize;
+    private final int lonCells;
+    private int size;
+    
+    // Columns indexed by slot: the location, the cell and the position in
+    // the bucket of that cell, ABSENT for slots not in the index
+    private double[] lats = new double[INITIAL_SLOT_CAPACITY];
+    private double[] lons = new double[INITIAL_SLOT_CAPACITY];
+    private long[] cells = new long[INITIAL_SLOT_CAPACITY];
+    private int[] positions = newPositions(INITIAL_SLOT_CAPACITY);
+    
+    // Non-empty cells by cellKey, in an open addressing table with linear
+    // probing so that lookups do not box the key like a Map<Long, ...>.
+    // Each bucket lists the slots in the cell, a null bucket marks a free
+    // entry of the table.
+    private long[] cellKeys = new long[INITIAL_CELL_CAPACITY];
+    private int[][] cellBuckets = new int[INITIAL_CELL_CAPACITY][];
+    private int[] cellSizes = new int[INITIAL_CELL_CAPACITY];
+    private int cellCount;
+    
+    /**
+     * Create an index with the default cell size
+     */
+    public POISpatialIndex() {
+        this(DEFAULT_CELL_SIZE_DEG);
+    }
+    
+    /**
+     * Create an index
+     * @param cellSizeDegrees The size of a grid cell in degrees
+     */
+    public POISpatialIndex(double cellSizeDegrees) {
+        this.cellSize = cellSizeDegrees;
+        this.lonCells = (int) Math.ceil(360.0 / cellSizeDegrees);
+    }
+    
+    /**
+     * Get the number of POIs in the index
+     * @return The POI count
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Add a POI or move it to a new location
+     * @param slot The slot of the POI in its store, not negative
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     */
+    public void put(int slot, double lat, double lon) {
+        long cell = cellKey(latCell(lat), lonCell(lon));
+        if (slot >= positions.length) {
+            growSlots(slot + 1);
+        }
+        
+        if (positions[slot] == ABSENT) {
+            addToCell(slot, cell);
+            size++;
+        } else if (cells[slot] != cell) {
+            removeFromCell(slot);
+            addToCell(slot, cell);
+        }
+        lats[slot] = lat;
+        lons[slot] = lon;
+    }
+    
+    /**
+     * Remove a POI
+     * @param slot The slot of the POI in its store
+     */
+    public void remove(int slot) {
+        if (slot < positions.length && positions[slot] != ABSENT) {
+            removeFromCell(slot);
+            positions[slot] = ABSENT;
+            size--;
+        }
+    }
+    
+    /**
+     * Check whether a POI is in the index
+     * @param slot The slot of the POI in its store
+     * @return true if it was put and not removed since
+     */
+    public boolean contains(int slot) {
+        return slot < positions.length && positions[slot] != ABSENT;
+    }
+    
+    /**
+     * Remove every POI, the columns keep their capacity
+     */
+    public void clear() {
+        Arrays.fill(positions, ABSENT);
+        Arrays.fill(cellBuckets, null);
+        cellCount = 0;
+        size = 0;
+    }
+    
+    /**
+     * Find the POIs within a distance of a point
+     * @param lat The latitude of the center in degrees
+     * @param lon The longitude of the center in degrees
+     * @param radiusMeters The search radius in meters
+     * @param out Receives the slots of the POIs in range from index 0, room
+     *            for size() slots
+     * @return The number of slots written
+     */
+    public int queryRadius(double lat, double lon, double radiusMeters, int[] out) {
+        double latRadius = Math.toDegrees(radiusMeters / EARTH_RADIUS_M);
+        double cosLat = Math.cos(Math.toRadians(lat));
+        double lonRadius = cosLat > 1e-6 ? latRadius / cosLat : 360;
+        
+        int minLatCell = latCell(Math.max(-90, lat - latRadius));
+        int maxLatCell = latCell(Math.min(90, lat + latRadius));
+        int lonSpan = (int) Math.ceil(lonRadius / cellSize);
+        int centerLonCell = lonCell(lon);
+        int minLonOffset = -lonSpan;
+        int maxLonOffset = lonSpan;
+        if (2 * lonSpan + 1 >= lonCells) {
+            // The query wraps all the way around, visit every column once
+            minLonOffset = -centerLonCell;
+            maxLonOffset = lonCells - 1 - centerLonCell;
+        }
+        
+        double sinHalf = Math.sin(radiusMeters / (2 * EARTH_RADIUS_M));
+        double maxHaversine = radiusMeters >= Math.PI * EARTH_RADIUS_M
+                ? 1 : sinHalf * sinHalf;
+        double latRad = Math.toRadians(lat);
+        
+        int added = 0;
+        for (int latIdx = minLatCell; latIdx <= maxLatCell; latIdx++) {
+            for (int offset = minLonOffset; offset <= maxLonOffset; offset++) {
+                int lonIdx = Math.floorMod(centerLonCell + offset, lonCells);
+                int index = findCell(cellKey(latIdx, lonIdx));
+                int[] bucket = cellBuckets[index];
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i = 0; i < cellSizes[index]; i++) {
+                    int slot = bucket[i];
+                    if (haversine(latRad, cosLat, lon, lats[slot], lons[slot]) <= maxHaversine) {
+                        out[added++] = slot;
+                    }
+                }
+            }
+        }
+        return added;
+    }
+    
+    /**
+     * Haversine term of the great circle distance between two points,
+     * compared against sin^2(d / 2R) to avoid the inverse trig
+     */
+    private static double haversine(double lat1Rad, double cosLat1, double lon1,
+            double lat2, double lon2) {
+        double lat2Rad = Math.toRadians(lat2);
+        double sinDLat = Math.sin((lat2Rad - lat1Rad) / 2);
+        double sinDLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        return sinDLat * sinDLat + cosLat1 * Math.cos(lat2Rad) * sinDLon * sinDLon;
+    }
+    
+    private int latCell(double lat) {
+        return (int) Math.floor((lat + 90) / cellSize);
+    }
+    
+    private int lonCell(double lon) {
+        return Math.floorMod((int) Math.floor((lon + 180) / cellSize), lonCells);
+    }
+    
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+    
+    private void addToCell(int slot, long cell) {
+        int index = findCell(cell);
+        int[] bucket = cellBuckets[index];
+        if (bucket == null) {
+            bucket = new int[INITIAL_BUCKET_CAPACITY];
+            if ((cellCount + 1) * 4 > cellKeys.length * 3) {
+                growCells();
+                index = findCell(cell);
+            }
+            cellKeys[index] = cell;
+            cellBuckets[index] = bucket;
+            cellSizes[index] = 0;
+            cellCount++;
+        } else if (cellSizes[index] == bucket.length) {
+            bucket = Arrays.copyOf(bucket, bucket.length * 2);
+            cellBuckets[index] = bucket;
+        }
+        cells[slot] = cell;
+        positions[slot] = cellSizes[index];
+        bucket[cellSizes[index]++] = slot;
+    }
+    
+    private void removeFromCell(int slot) {
+        int index = findCell(cells[slot]);
+        int[] bucket = cellBuckets[index];
+        if (bucket == null) {
+            return;
+        }
+        
+        // Move the last slot of the bucket into the gap
+        int last = --cellSizes[index];
+        int moved = bucket[last];
+        if (moved != slot) {
+            bucket[positions[slot]] = moved;
+            positions[moved] = positions[slot];
+        }
+        if (last == 0) {
+            removeCell(index);
+        }
+    }
+    
+    private void growSlots(int minCapacity) {
+        int capacity = Math.max(minCapacity, positions.length * 2);
+        int old = positions.length;
+        lats = Arrays.copyOf(lats, capacity);
+        lons = Arrays.copyOf(lons, capacity);
+        cells = Arrays.copyOf(cells, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        Arrays.fill(positions, old, capacity, ABSENT);
+    }
+    
+    private static int[] newPositions(int capacity) {
+        int[] positions = new int[capacity];
+        Arrays.fill(positions, ABSENT);
+        return positions;
+    }
+    
+    /**
+     * Find the entry of a cell in the table
+     * @param key The cell key
+     * @return The entry holding the cell, or the free entry it would go in
+     */
+    private int findCell(long key) {
+        int mask = cellKeys.length - 1;
+        int index = hash(key) & mask;
+        while (cellBuckets[index] != null && cellKeys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+    
+    /**
+     * Free an entry of the table, moving later cells of the same probe run
+     * back so that no tombstones are needed
+     * @param index The entry to free
+     */
+    private void removeCell(int index) {
+        int mask = cellKeys.length - 1;
+        cellBuckets[index] = null;
+        cellCount--;
+        
+        int next = index;
+        while (true) {
+            next = (next + 1) & mask;
+            if (cellBuckets[next] == null) {
+                return;
+            }
+            // Leave cells whose home slot lies after the gap
+            int home = hash(cellKeys[next]) & mask;
+            boolean reachable = index <= next
+                    ? index < home && home <= next
+                    : index < home || home <= next;
+            if (!reachable) {
+                cellKeys[index] = cellKeys[next];
+                cellBuckets[index] = cellBuckets[next];
+                cellSizes[index] = cellSizes[next];
+                cellBuckets[next] = null;
+                index = next;
+            }
+        }
+    }
+    
+    private void growCells() {
+        long[] oldKeys = cellKeys;
+        int[][] oldBuckets = cellBuckets;
+        int[] oldSizes = cellSizes;
+        cellKeys = new long[oldKeys.length * 2];
+        cellBuckets = new int[oldKeys.length * 2][];
+        cellSizes = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldBuckets[i] != null) {
+                int index = findCell(oldKeys[i]);
+                cellKeys[index] = oldKeys[i];
+                cellBuckets[index] = oldBuckets[i];
+                cellSizes[index] = oldSizes[i];
+            }
+        }
+    }
+    
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,287 @@
+package com.atakmap.android.arglasses.data;
+
+import java.util.Arrays;
+
+/**
+ * POIs stored as columns of primitives, one array per field and one slot
+ * per POI, instead of an object per POI.
+ *
+ * Positions, colors and times are plain arrays, and names and types are
+ * ids into a shared {@link POIStringTable}, so an update writes into the
+ * columns without allocating and a scan over one field reads consecutive
+ * memory. The footprint stays a few arrays however many markers the map
+ * holds. Slots of removed POIs are reused by the next POIs added, so the
+ * columns only grow to the most POIs held at once.
+ *
+ * Scans go over the slots below {@link #getSlotLimit()} and skip the ones
+ * {@link #isLive} rejects:
+ * <pre>
+ *   for (int slot = 0; slot &lt; store.getSlotLimit(); slot++) {
+ *       if (store.isLive(slot) &amp;&amp; store.getTypeId(slot) == hostile) {
+ *           geometry.add(store.getLat(slot), store.getLon(slot), store.getAlt(slot));
+ *       }
+ *   }
+ * </pre>
+ * A slot keeps its POI until the POI is removed. Not thread safe.
+ */
+public class POIStore {
+    
+    public static final int NO_SLOT = -1;
+    
+    private static final int INITIAL_CAPACITY = 256;
+    
+    private final POIStringTable strings = new POIStringTable();
+    private final StringIndex slots = new StringIndex();
+    
+    // Columns indexed by slot, a null id marks a free slot
+    private String[] ids = new String[INITIAL_CAPACITY];
+    private int[] nameIds = new int[INITIAL_CAPACITY];
+    private int[] typeIds = new int[INITIAL_CAPACITY];
+    private double[] lats = new double[INITIAL_CAPACITY];
+    private double[] lons = new double[INITIAL_CAPACITY];
+    private double[] alts = new double[INITIAL_CAPACITY];
+    private int[] colors = new int[INITIAL_CAPACITY];
+    private long[] updateTimes = new long[INITIAL_CAPACITY];
+    
+    // Free slots below slotLimit, the most recently freed last
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    private int slotLimit;
+    
+    /**
+     * Add a POI or update the one with the same id
+     * @param id The unique identifier
+     * @param name The display name
+     * @param type The type of POI
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param alt The altitude in meters
+     * @param color The display color
+     * @param updateTime The time the POI last changed in milliseconds
+     * @return The slot of the POI
+     */
+    public int put(String id, String name, String type, double lat, double lon,
+            double alt, int color, long updateTime) {
+        int slot = slots.find(id, ids);
+        if (slot >= 0) {
+            // Most updates only move the POI, the strings are looked up
+            // only when they changed
+            nameIds[slot] = replace(nameIds[slot], name);
+            typeIds[slot] = replace(typeIds[slot], type);
+        } else {
+            slot = allocate();
+            ids[slot] = id;
+            slots.add(id, slot, ids);
+            nameIds[slot] = strings.acquire(name);
+            typeIds[slot] = strings.acquire(type);
+        }
+        lats[slot] = lat;
+        lons[slot] = lon;
+        alts[slot] = alt;
+        colors[slot] = color;
+        updateTimes[slot] = updateTime;
+        return slot;
+    }
+    
+    /**
+     * Remove a POI, its slot is reused by a later put
+     * @param id The unique identifier
+     * @return true if the store held the POI
+     */
+    public boolean remove(String id) {
+        int slot = slots.find(id, ids);
+        if (slot < 0) {
+            return false;
+        }
+        slots.remove(id, ids);
+        strings.release(nameIds[slot]);
+        strings.release(typeIds[slot]);
+        ids[slot] = null;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        return true;
+    }
+    
+    /**
+     * Remove every POI, the columns keep their capacity
+     */
+    public void clear() {
+        slots.clear();
+        strings.clear();
+        Arrays.fill(ids, 0, slotLimit, null);
+        freeCount = 0;
+        slotLimit = 0;
+    }
+    
+    /**
+     * Get the number of POIs held
+     * @return The POI count
+     */
+    public int size() {
+        return slots.size();
+    }
+    
+    /**
+     * Find the slot of a POI
+     * @param id The unique identifier
+     * @return The slot, NO_SLOT if the store does not hold the POI
+     */
+    public int find(String id) {
+        return slots.find(id, ids);
+    }
+    
+    /**
+     * Get the bound of the slots in use, scans go from 0 up to it
+     * @return One past the highest slot handed out
+     */
+    public int getSlotLimit() {
+        return slotLimit;
+    }
+    
+    /**
+     * Check whether a slot holds a POI
+     * @param slot The slot, below getSlotLimit()
+     * @return false if the slot is free
+     */
+    public boolean isLive(int slot) {
+        return ids[slot] != null;
+    }
+    
+    /**
+     * Get the table the name and type ids refer to
+     * @return The string table
+     */
+    public POIStringTable getStrings() {
+        return strings;
+    }
+    
+    /**
+     * Get the unique identifier of a POI
+     * @param slot The slot
+     * @return The ID, null for a free slot
+     */
+    public String getId(int slot) {
+        return ids[slot];
+    }
+    
+    /**
+     * Get the display name of a POI
+     * @param slot The slot
+     * @return The name
+     */
+    public String getName(int slot) {
+        return strings.get(nameIds[slot]);
+    }
+    
+    /**
+     * Get the id of the display name of a POI
+     * @param slot The slot
+     * @return The id in the string table
+     */
+    public int getNameId(int slot) {
+        return nameIds[slot];
+    }
+    
+    /**
+     * Get the type of a POI
+     * @param slot The slot
+     * @return The type
+     */
+    public String getType(int slot) {
+        return strings.get(typeIds[slot]);
+    }
+    
+    /**
+     * Get the id of the type of a POI, equal ids are equal types
+     * @param slot The slot
+     * @return The id in the string table
+     */
+    public int getTypeId(int slot) {
+        return typeIds[slot];
+    }
+    
+    /**
+     * Get the latitude of a POI
+     * @param slot The slot
+     * @return The latitude in degrees
+     */
+    public double getLat(int slot) {
+        return lats[slot];
+    }
+    
+    /**
+     * Get the longitude of a POI
+     * @param slot The slot
+     * @return The longitude in degrees
+     */
+    public double getLon(int slot) {
+        return lons[slot];
+    }
+    
+    /**
+     * Get the altitude of a POI
+     * @param slot The slot
+     * @return The altitude in meters
+     */
+    public double getAlt(int slot) {
+        return alts[slot];
+    }
+    
+    /**
+     * Get the display color of a POI
+     * @param slot The slot
+     * @return The color as an integer
+     */
+    public int getColor(int slot) {
+        return colors[slot];
+    }
+    
+    /**
+     * Get the time a POI last changed
+     * @param slot The slot
+     * @return The time in milliseconds, 0 if unknown
+     */
+    public long getUpdateTime(int slot) {
+        return updateTimes[slot];
+    }
+    
+    /**
+     * Swap the string a POI uses for another
+     * @param id The id of the current string
+     * @param string The new string
+     * @return The id of the new string
+     */
+    private int replace(int id, String string) {
+        String current = strings.get(id);
+        if (current == null ? string == null : current.equals(string)) {
+            return id;
+        }
+        int replaced = strings.acquire(string);
+        strings.release(id);
+        return replaced;
+    }
+    
+    /**
+     * Take a free slot, or a new one past the end
+     * @return The slot
+     */
+    private int allocate() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (slotLimit == ids.length) {
+            int capacity = slotLimit * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            typeIds = Arrays.copyOf(typeIds, capacity);
+            lats = Arrays.copyOf(lats, capacity);
+            lons = Arrays.copyOf(lons, capacity);
+            alts = Arrays.copyOf(alts, capacity);
+            colors = Arrays.copyOf(colors, capacity);
+            updateTimes = Arrays.copyOf(updateTimes, capacity);
+        }
+        return slotLimit++;
+    }
+}
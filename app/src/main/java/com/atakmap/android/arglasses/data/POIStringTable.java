@@ -0,0 +1,121 @@
+package com.atakmap.android.arglasses.data;
+
+import java.util.Arrays;
+
+/**
+ * Interned strings with integer ids, for the names and types of the
+ * POIs in a {@link POIStore}.
+ *
+ * Each distinct string is held once however many POIs use it, and POIs
+ * keep only its id. Ids are reference counted: an id names the same
+ * string as long as a POI uses it, and is reused for another string once
+ * none does, so names that change with every update do not grow the
+ * table. Id 0 is null. Not thread safe.
+ */
+public class POIStringTable {
+    
+    public static final int NULL_ID = 0;
+    
+    private static final int INITIAL_CAPACITY = 64;
+    
+    private final StringIndex ids = new StringIndex();
+    private String[] strings = new String[INITIAL_CAPACITY];
+    private int[] references = new int[INITIAL_CAPACITY];
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int freeCount;
+    private int idLimit = 1;
+    
+    /**
+     * Take a reference to a string, adding it if it is new
+     * @param string The string, may be null
+     * @return The id of the string, NULL_ID for null
+     */
+    public int acquire(String string) {
+        if (string == null) {
+            return NULL_ID;
+        }
+        int existing = ids.find(string, strings);
+        if (existing >= 0) {
+            references[existing]++;
+            return existing;
+        }
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (idLimit == strings.length) {
+                strings = Arrays.copyOf(strings, idLimit * 2);
+                references = Arrays.copyOf(references, idLimit * 2);
+            }
+            id = idLimit++;
+        }
+        strings[id] = string;
+        references[id] = 1;
+        ids.add(string, id, strings);
+        return id;
+    }
+    
+    /**
+     * Drop a reference taken by acquire, the string is removed with the
+     * last one
+     * @param id The id of the string
+     */
+    public void release(int id) {
+        if (id == NULL_ID || --references[id] > 0) {
+            return;
+        }
+        ids.remove(strings[id], strings);
+        strings[id] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+    
+    /**
+     * Get the string of an id
+     * @param id The id
+     * @return The string, null for NULL_ID or an unused id
+     */
+    public String get(int id) {
+        return strings[id];
+    }
+    
+    /**
+     * Look up the id of a string without taking a reference
+     * @param string The string
+     * @return The id, NULL_ID if the table does not hold it
+     */
+    public int find(String string) {
+        int id = string != null ? ids.find(string, strings) : -1;
+        return id >= 0 ? id : NULL_ID;
+    }
+    
+    /**
+     * Get the number of distinct strings held
+     * @return The string count
+     */
+    public int size() {
+        return ids.size();
+    }
+    
+    /**
+     * Get the bound of the ids in use, for arrays indexed by id, e.g. the
+     * types a filter wants
+     * @return One past the highest id handed out
+     */
+    public int getIdLimit() {
+        return idLimit;
+    }
+    
+    /**
+     * Remove every string
+     */
+    public void clear() {
+        ids.clear();
+        Arrays.fill(strings, null);
+        Arrays.fill(references, 0);
+        freeCount = 0;
+        idLimit = 1;
+    }
+}
@@ -0,0 +1,91 @@
+package com.atakmap.android.arglasses.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The POI types the displays subscribed to, as CoT type prefixes.
+ * Whether a type matches is worked out once per type id of the
+ * {@link POIBatch} and kept, so a frame looks up one flag per POI instead
+ * of matching every prefix against its type. A kept flag is only used
+ * while its id still names the same string, the string table reuses ids
+ * for other strings once no POI holds them. Not thread safe.
+ */
+public class POITypeFilter {
+    
+    private final List<String> prefixes = new ArrayList<>();
+    
+    // By type id, whether the type matches, and the type string it was
+    // worked out for, null if not yet
+    private boolean[] wanted = new boolean[64];
+    private String[] resolved = new String[64];
+    
+    /**
+     * Set the prefixes of the wanted types, the matches worked out are
+     * dropped when they change
+     * @param types The prefixes
+     */
+    public void setPrefixes(List<String> types) {
+        if (isSame(types)) {
+            return;
+        }
+        prefixes.clear();
+        prefixes.addAll(types);
+        Arrays.fill(resolved, null);
+    }
+    
+    /**
+     * Check whether a display subscribed to the type of a POI
+     * @param pois The batch
+     * @param index The index of the POI in the batch
+     * @return true if the type starts with one of the prefixes
+     */
+    public boolean accepts(POIBatch pois, int index) {
+        int id = pois.getTypeId(index);
+        if (id >= resolved.length) {
+            int capacity = Math.max(pois.getIdLimit(), resolved.length * 2);
+            wanted = Arrays.copyOf(wanted, capacity);
+            resolved = Arrays.copyOf(resolved, capacity);
+        }
+        String type = pois.getType(index);
+        // An id taken over by another type comes with another string
+        if (resolved[id] != type) {
+            wanted[id] = matches(type);
+            resolved[id] = type;
+        }
+        return wanted[id];
+    }
+    
+    /**
+     * Check a type against the prefixes
+     * @param type The type, may be null
+     * @return true if it starts with one of them
+     */
+    private boolean matches(String type) {
+        if (type == null) {
+            return false;
+        }
+        for (int i = 0; i < prefixes.size(); i++) {
+            if (type.startsWith(prefixes.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Compare the prefixes without the iterators List.equals would take
+     */
+    private boolean isSame(List<String> types) {
+        if (types.size() != prefixes.size()) {
+            return false;
+        }
+        for (int i = 0; i < types.size(); i++) {
+            if (!types.get(i).equals(prefixes.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
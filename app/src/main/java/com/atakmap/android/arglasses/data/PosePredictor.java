@@ -0,0 +1,148 @@
+package com.atakmap.android.arglasses.data;
+
+/**
+ * Estimates how fast the device is turning and extrapolates its pose.
+ *
+ * The angular velocity is taken from the rotation between consecutive
+ * sensor poses and smoothed over a few tens of milliseconds, which is short
+ * enough to follow a head turn and long enough to keep sensor noise from
+ * being amplified by the prediction. Poses are extrapolated at constant
+ * angular velocity, limited to {@link #MAX_PREDICTION_NANOS} so a stale or
+ * noisy estimate cannot swing the pose far off.
+ *
+ * {@link #update(PoseSnapshot)} keeps state and must only be called from
+ * the sensor thread. The predict methods only read the snapshot they are
+ * given and can be called from any thread.
+ */
+public class PosePredictor {
+    
+    // Furthest a pose is extrapolated
+    public static final long MAX_PREDICTION_NANOS = 250000000L;
+    
+    // Floats written by predict(PoseSnapshot, long, float[])
+    public static final int PREDICTION_SIZE = 7;
+    
+    // Smoothing time constant of the angular velocity
+    private static final double SMOOTHING_NANOS = 40e6;
+    
+    // Sensor gaps longer than this restart the estimate
+    private static final long MAX_GAP_NANOS = 500000000L;
+    
+    private PoseSnapshot last;
+    private double velocityX;
+    private double velocityY;
+    private double velocityZ;
+    
+    /**
+     * Add a measured pose and attach the smoothed angular velocity to it
+     * @param measured The pose from the sensor, without motion
+     * @return The pose with its angular velocity
+     */
+    public PoseSnapshot update(PoseSnapshot measured) {
+        PoseSnapshot previous = last;
+        long dt = previous != null
+                ? measured.getTimestampNanos() - previous.getTimestampNanos() : 0;
+        if (previous == null || dt <= 0 || dt > MAX_GAP_NANOS
+                || previous.getSource() != measured.getSource()) {
+            velocityX = 0;
+            velocityY = 0;
+            velocityZ = 0;
+        } else {
+            // Rotation since the previous pose, in the world frame
+            float pw = previous.getQw();
+            float px = -previous.getQx();
+            float py = -previous.getQy();
+            float pz = -previous.getQz();
+            float cw = measured.getQw();
+            float cx = measured.getQx();
+            float cy = measured.getQy();
+            float cz = measured.getQz();
+            double dw = cw * pw - cx * px - cy * py - cz * pz;
+            double dx = cw * px + cx * pw + cy * pz - cz * py;
+            double dy = cw * py - cx * pz + cy * pw + cz * px;
+            double dz = cw * pz + cx * py - cy * px + cz * pw;
+            if (dw < 0) {
+                // Take the short way around
+                dw = -dw;
+                dx = -dx;
+                dy = -dy;
+                dz = -dz;
+            }
+            
+            double sin = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            double seconds = dt / 1e9;
+            double scale = sin > 0 ? 2 * Math.atan2(sin, dw) / (sin * seconds) : 0;
+            
+            double alpha = dt / (SMOOTHING_NANOS + dt);
+            velocityX += alpha * (dx * scale - velocityX);
+            velocityY += alpha * (dy * scale - velocityY);
+            velocityZ += alpha * (dz * scale - velocityZ);
+        }
+        last = measured;
+        
+        return PoseSnapshot.withMotion(measured.getQw(), measured.getQx(),
+                measured.getQy(), measured.getQz(), (float) velocityX,
+                (float) velocityY, (float) velocityZ, measured.getTimestampNanos(),
+                measured.getSource());
+    }
+    
+    /**
+     * Forget the motion history, e.g. when the sensors are re-registered
+     */
+    public void reset() {
+        last = null;
+        velocityX = 0;
+        velocityY = 0;
+        velocityZ = 0;
+    }
+    
+    /**
+     * Extrapolate a pose at its angular velocity
+     * @param pose The pose to start from
+     * @param aheadNanos How far ahead of the pose time to predict, limited
+     *                   to MAX_PREDICTION_NANOS
+     * @return The predicted pose, carrying the same angular velocity, or the
+     *         pose itself if it has no motion or nothing is to be predicted
+     */
+    public static PoseSnapshot predict(PoseSnapshot pose, long aheadNanos) {
+        if (!pose.hasMotion() || aheadNanos <= 0) {
+            return pose;
+        }
+        long ahead = Math.min(aheadNanos, MAX_PREDICTION_NANOS);
+        float[] q = new float[4];
+        PoseSnapshot.rotate(pose.getQw(), pose.getQx(), pose.getQy(), pose.getQz(),
+                pose.getAngularVelocityX(), pose.getAngularVelocityY(),
+                pose.getAngularVelocityZ(), ahead / 1e9, q, 0);
+        return PoseSnapshot.withMotion(q[0], q[1], q[2], q[3],
+                pose.getAngularVelocityX(), pose.getAngularVelocityY(),
+                pose.getAngularVelocityZ(), pose.getTimestampNanos() + ahead,
+                pose.getSource());
+    }
+    
+    /**
+     * Extrapolate a pose at its angular velocity without allocating, for
+     * the per-frame path
+     * @param pose The pose to start from
+     * @param aheadNanos How far ahead of the pose time to predict, limited
+     *                   to MAX_PREDICTION_NANOS
+     * @param out At least PREDICTION_SIZE floats, receives the predicted
+     *            heading, pitch and roll in degrees followed by the
+     *            predicted quaternion w, x, y and z
+     */
+    public static void predict(PoseSnapshot pose, long aheadNanos, float[] out) {
+        long ahead = pose.hasMotion()
+                ? Math.max(0, Math.min(aheadNanos, MAX_PREDICTION_NANOS)) : 0;
+        PoseSnapshot.rotate(pose.getQw(), pose.getQx(), pose.getQy(), pose.getQz(),
+                pose.getAngularVelocityX(), pose.getAngularVelocityY(),
+                pose.getAngularVelocityZ(), ahead / 1e9, out, 3);
+        if (ahead == 0) {
+            out[0] = pose.getHeading();
+            out[1] = pose.getPitch();
+            out[2] = pose.getRoll();
+            return;
+        }
+        out[0] = (float) PoseSnapshot.headingOf(out[3], out[4], out[5], out[6]);
+        out[1] = (float) PoseSnapshot.pitchOf(out[3], out[4], out[5], out[6]);
+        out[2] = (float) PoseSnapshot.rollOf(out[3], out[4], out[5], out[6]);
+    }
+}
@@ -0,0 +1,410 @@
+package com.atakmap.android.arglasses.data;
+
+/**
+ * Immutable device orientation at one instant, as a unit quaternion and as
+ * the heading, pitch and roll Android's SensorManager.getOrientation would
+ * report for it, optionally with the angular velocity at that instant. A
+ * snapshot is built once per sensor event and then only read, so a reader
+ * that holds one always sees a quaternion and angles that belong together,
+ * no matter how often or from which thread it reads.
+ */
+public final class PoseSnapshot {
+    
+    // Where the orientation came from
+    public static final int SOURCE_NONE = 0;
+    public static final int SOURCE_ROTATION_VECTOR = 1;
+    public static final int SOURCE_GAME_ROTATION_VECTOR = 2;
+    public static final int SOURCE_ACCEL_MAG = 3;
+    
+    // Pose before the first sensor event, facing north and level
+    public static final PoseSnapshot EMPTY = new PoseSnapshot(0, SOURCE_NONE,
+            1, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    
+    // Step used to turn the angular velocity into heading, pitch and roll rates
+    private static final double RATE_STEP_SECONDS = 0.01;
+    
+    private final long timestampNanos;
+    private final int source;
+    private final float qw;
+    private final float qx;
+    private final float qy;
+    private final float qz;
+    private final float heading;
+    private final float pitch;
+    private final float roll;
+    
+    // Angular velocity in the east-north-up frame, radians per second
+    private final float angularVelocityX;
+    private final float angularVelocityY;
+    private final float angularVelocityZ;
+    private final float headingRate;
+    private final float pitchRate;
+    private final float rollRate;
+    
+    private PoseSnapshot(long timestampNanos, int source, float qw, float qx,
+                         float qy, float qz, float heading, float pitch, float roll,
+                         float angularVelocityX, float angularVelocityY,
+                         float angularVelocityZ) {
+        this.timestampNanos = timestampNanos;
+        this.source = source;
+        this.qw = qw;
+        this.qx = qx;
+        this.qy = qy;
+        this.qz = qz;
+        this.heading = heading;
+        this.pitch = pitch;
+        this.roll = roll;
+        this.angularVelocityX = angularVelocityX;
+        this.angularVelocityY = angularVelocityY;
+        this.angularVelocityZ = angularVelocityZ;
+        
+        // Heading, pitch and roll a short step ahead give their rates
+        // (worked out inline so that a snapshot allocates nothing else)
+        double rate = Math.sqrt(angularVelocityX * angularVelocityX
+                + angularVelocityY * angularVelocityY + angularVelocityZ * angularVelocityZ);
+        if (rate > 0) {
+            double half = rate * RATE_STEP_SECONDS / 2;
+            double s = Math.sin(half) / rate;
+            double dw = Math.cos(half);
+            double dx = angularVelocityX * s;
+            double dy = angularVelocityY * s;
+            double dz = angularVelocityZ * s;
+            double w = dw * qw - dx * qx - dy * qy - dz * qz;
+            double x = dw * qx + dx * qw + dy * qz - dz * qy;
+            double y = dw * qy - dx * qz + dy * qw + dz * qx;
+            double z = dw * qz + dx * qy - dy * qx + dz * qw;
+            headingRate = (float) (wrapDegrees(headingOf(w, x, y, z) - heading)
+                    / RATE_STEP_SECONDS);
+            pitchRate = (float) ((pitchOf(w, x, y, z) - pitch) / RATE_STEP_SECONDS);
+            rollRate = (float) (wrapDegrees(rollOf(w, x, y, z) - roll) / RATE_STEP_SECONDS);
+        } else {
+            headingRate = 0;
+            pitchRate = 0;
+            rollRate = 0;
+        }
+    }
+    
+    /**
+     * Create a snapshot from the values of a rotation vector sensor event
+     * @param values The event values: x, y, z and optionally w of the
+     *               rotation quaternion
+     * @param timestampNanos The event time in nanoseconds
+     * @param source One of the SOURCE_* values
+     * @return The snapshot
+     */
+    public static PoseSnapshot fromRotationVector(float[] values, long timestampNanos,
+                                                  int source) {
+        float x = values[0];
+        float y = values[1];
+        float z = values[2];
+        float w;
+        if (values.length >= 4) {
+            w = values[3];
+        } else {
+            // Older devices leave out w, it follows from the unit length
+            float ww = 1 - x * x - y * y - z * z;
+            w = ww > 0 ? (float) Math.sqrt(ww) : 0;
+        }
+        return fromQuaternion(w, x, y, z, timestampNanos, source);
+    }
+    
+    /**
+     * Create a snapshot from a unit quaternion rotating device coordinates
+     * into east-north-up world coordinates
+     * @param w The scalar part
+     * @param x The x part
+     * @param y The y part
+     * @param z The z part
+     * @param timestampNanos The sensor time in nanoseconds
+     * @param source One of the SOURCE_* values
+     * @return The snapshot
+     */
+    public static PoseSnapshot fromQuaternion(float w, float x, float y, float z,
+                                              long timestampNanos, int source) {
+        // Normalize so sensor rounding does not leak into the angles
+        return withMotion(w, x, y, z, 0, 0, 0, timestampNanos, source);
+    }
+    
+    /**
+     * Create a snapshot of a rotating device
+     * @param w The scalar part of the orientation quaternion
+     * @param x The x part
+     * @param y The y part
+     * @param z The z part
+     * @param angularVelocityX The east angular velocity in radians per second
+     * @param angularVelocityY The north angular velocity in radians per second
+     * @param angularVelocityZ The up angular velocity in radians per second
+     * @param timestampNanos The sensor time in nanoseconds
+     * @param source One of the SOURCE_* values
+     * @return The snapshot
+     */
+    public static PoseSnapshot withMotion(float w, float x, float y, float z,
+                                          float angularVelocityX, float angularVelocityY,
+                                          float angularVelocityZ, long timestampNanos,
+                                          int source) {
+        // Normalize so sensor rounding does not leak into the angles
+        double norm = Math.sqrt(w * w + x * x + y * y + z * z);
+        if (norm == 0) {
+            return new PoseSnapshot(timestampNanos, source, 1, 0, 0, 0, 0, 0, 0,
+                    angularVelocityX, angularVelocityY, angularVelocityZ);
+        }
+        w /= norm;
+        x /= norm;
+        y /= norm;
+        z /= norm;
+        
+        return new PoseSnapshot(timestampNanos, source, w, x, y, z,
+                (float) headingOf(w, x, y, z), (float) pitchOf(w, x, y, z),
+                (float) rollOf(w, x, y, z), angularVelocityX, angularVelocityY,
+                angularVelocityZ);
+    }
+    
+    // Heading, pitch and roll of a unit quaternion in degrees, from the
+    // rotation matrix elements getOrientation reads, as
+    // SensorManager.getRotationMatrixFromVector lays them out
+    
+    static double headingOf(double w, double x, double y, double z) {
+        return Math.toDegrees(Math.atan2(2 * (x * y - z * w), 1 - 2 * (x * x + z * z)));
+    }
+    
+    static double pitchOf(double w, double x, double y, double z) {
+        return Math.toDegrees(Math.asin(clamp(-2 * (y * z + x * w))));
+    }
+    
+    static double rollOf(double w, double x, double y, double z) {
+        return Math.toDegrees(Math.atan2(-2 * (x * z - y * w), 1 - 2 * (x * x + y * y)));
+    }
+    
+    /**
+     * Rotate an orientation by a constant angular velocity
+     * @param w The scalar part of the orientation quaternion
+     * @param x The x part
+     * @param y The y part
+     * @param z The z part
+     * @param wx The east angular velocity in radians per second
+     * @param wy The north angular velocity in radians per second
+     * @param wz The up angular velocity in radians per second
+     * @param seconds How long to rotate
+     * @param out Receives w, x, y and z of the rotated orientation
+     * @param offset Where in out to put them
+     */
+    static void rotate(float w, float x, float y, float z, float wx, float wy,
+                       float wz, double seconds, float[] out, int offset) {
+        double rate = Math.sqrt(wx * wx + wy * wy + wz * wz);
+        double half = rate * seconds / 2;
+        if (half == 0) {
+            out[offset + 0] = w;
+            out[offset + 1] = x;
+            out[offset + 2] = y;
+            out[offset + 3] = z;
+            return;
+        }
+        
+        // The step is a rotation in the world frame, so it goes in front
+        double s = Math.sin(half) / rate;
+        double dw = Math.cos(half);
+        double dx = wx * s;
+        double dy = wy * s;
+        double dz = wz * s;
+        out[offset + 0] = (float) (dw * w - dx * x - dy * y - dz * z);
+        out[offset + 1] = (float) (dw * x + dx * w + dy * z - dz * y);
+        out[offset + 2] = (float) (dw * y - dx * z + dy * w + dz * x);
+        out[offset + 3] = (float) (dw * z + dx * y - dy * x + dz * w);
+    }
+    
+    private static double wrapDegrees(double degrees) {
+        while (degrees > 180) {
+            degrees -= 360;
+        }
+        while (degrees < -180) {
+            degrees += 360;
+        }
+        return degrees;
+    }
+    
+    /**
+     * Create a snapshot from a 3x3 rotation matrix, as filled in by
+     * SensorManager.getRotationMatrix
+     * @param r The row-major rotation matrix
+     * @param timestampNanos The sensor time in nanoseconds
+     * @param source One of the SOURCE_* values
+     * @return The snapshot
+     */
+    public static PoseSnapshot fromRotationMatrix(float[] r, long timestampNanos, int source) {
+        // Pick the largest diagonal term to stay accurate near 180 degrees
+        double trace = r[0] + r[4] + r[8];
+        double w;
+        double x;
+        double y;
+        double z;
+        if (trace > 0) {
+            double s = 2 * Math.sqrt(trace + 1);
+            w = s / 4;
+            x = (r[7] - r[5]) / s;
+            y = (r[2] - r[6]) / s;
+            z = (r[3] - r[1]) / s;
+        } else if (r[0] > r[4] && r[0] > r[8]) {
+            double s = 2 * Math.sqrt(1 + r[0] - r[4] - r[8]);
+            w = (r[7] - r[5]) / s;
+            x = s / 4;
+            y = (r[1] + r[3]) / s;
+            z = (r[2] + r[6]) / s;
+        } else if (r[4] > r[8]) {
+            double s = 2 * Math.sqrt(1 + r[4] - r[0] - r[8]);
+            w = (r[2] - r[6]) / s;
+            x = (r[1] + r[3]) / s;
+            y = s / 4;
+            z = (r[5] + r[7]) / s;
+        } else {
+            double s = 2 * Math.sqrt(1 + r[8] - r[0] - r[4]);
+            w = (r[3] - r[1]) / s;
+            x = (r[2] + r[6]) / s;
+            y = (r[5] + r[7]) / s;
+            z = s / 4;
+        }
+        return fromQuaternion((float) w, (float) x, (float) y, (float) z,
+                timestampNanos, source);
+    }
+    
+    private static double clamp(double value) {
+        return Math.max(-1, Math.min(1, value));
+    }
+    
+    /**
+     * Get the sensor time of the pose
+     * @return The time in nanoseconds, on the SensorEvent clock
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+    
+    /**
+     * Get where the orientation came from
+     * @return One of the SOURCE_* values
+     */
+    public int getSource() {
+        return source;
+    }
+    
+    /**
+     * Check whether the heading is relative to north. The game rotation
+     * vector does not use the magnetometer, so its heading drifts from an
+     * arbitrary start.
+     * @return true if the heading is a compass heading
+     */
+    public boolean isHeadingAbsolute() {
+        return source == SOURCE_ROTATION_VECTOR || source == SOURCE_ACCEL_MAG;
+    }
+    
+    /**
+     * Get the scalar part of the orientation quaternion
+     * @return w
+     */
+    public float getQw() {
+        return qw;
+    }
+    
+    /**
+     * Get the x part of the orientation quaternion
+     * @return x
+     */
+    public float getQx() {
+        return qx;
+    }
+    
+    /**
+     * Get the y part of the orientation quaternion
+     * @return y
+     */
+    public float getQy() {
+        return qy;
+    }
+    
+    /**
+     * Get the z part of the orientation quaternion
+     * @return z
+     */
+    public float getQz() {
+        return qz;
+    }
+    
+    /**
+     * Get the heading (azimuth)
+     * @return The heading in degrees, -180 to 180 with 0 at north
+     */
+    public float getHeading() {
+        return heading;
+    }
+    
+    /**
+     * Get the pitch, negative when the top edge of the device is raised
+     * @return The pitch in degrees
+     */
+    public float getPitch() {
+        return pitch;
+    }
+    
+    /**
+     * Get the roll
+     * @return The roll in degrees
+     */
+    public float getRoll() {
+        return roll;
+    }
+    
+    /**
+     * Check whether the angular velocity is known
+     * @return true if the snapshot carries a non-zero angular velocity
+     */
+    public boolean hasMotion() {
+        return angularVelocityX != 0 || angularVelocityY != 0 || angularVelocityZ != 0;
+    }
+    
+    /**
+     * Get the angular velocity around the east axis
+     * @return The rate in radians per second
+     */
+    public float getAngularVelocityX() {
+        return angularVelocityX;
+    }
+    
+    /**
+     * Get the angular velocity around the north axis
+     * @return The rate in radians per second
+     */
+    public float getAngularVelocityY() {
+        return angularVelocityY;
+    }
+    
+    /**
+     * Get the angular velocity around the up axis
+     * @return The rate in radians per second
+     */
+    public float getAngularVelocityZ() {
+        return angularVelocityZ;
+    }
+    
+    /**
+     * Get how fast the heading changes
+     * @return The rate in degrees per second
+     */
+    public float getHeadingRate() {
+        return headingRate;
+    }
+    
+    /**
+     * Get how fast the pitch changes
+     * @return The rate in degrees per second
+     */
+    public float getPitchRate() {
+        return pitchRate;
+    }
+    
+    /**
+     * Get how fast the roll changes
+     * @return The rate in degrees per second
+     */
+    public float getRollRate() {
+        return rollRate;
+    }
+}
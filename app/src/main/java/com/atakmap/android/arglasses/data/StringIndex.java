@@ -0,0 +1,120 @@
+package com.atakmap.android.arglasses.data;
+
+import java.util.Arrays;
+
+/**
+ * Hash index from strings to their position in an array the owner keeps,
+ * as an open addressing int table with linear probing. Unlike a
+ * Map&lt;String, Integer&gt; it holds no entry object and no boxed position
+ * per string, only an int per bucket. The owner passes its array to every
+ * call, keys are compared against it. Not thread safe.
+ */
+final class StringIndex {
+    
+    private static final int INITIAL_CAPACITY = 64;
+    
+    // Position + 1 per bucket, 0 marks an empty bucket
+    private int[] table = new int[INITIAL_CAPACITY];
+    private int count;
+    
+    /**
+     * Find the position of a string
+     * @param key The string
+     * @param keys The array of the owner
+     * @return The position in keys, -1 if not indexed
+     */
+    int find(String key, String[] keys) {
+        int mask = table.length - 1;
+        for (int i = home(key, mask); table[i] != 0; i = (i + 1) & mask) {
+            int position = table[i] - 1;
+            if (key.equals(keys[position])) {
+                return position;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Index a string, which must not be indexed yet
+     * @param key The string, already stored in keys at the position
+     * @param position The position in keys
+     * @param keys The array of the owner
+     */
+    void add(String key, int position, String[] keys) {
+        if ((count + 1) * 3 > table.length * 2) {
+            rehash(table.length * 2, keys);
+        }
+        insert(key, position);
+        count++;
+    }
+    
+    /**
+     * Drop a string from the index
+     * @param key The string, still stored in keys
+     * @param keys The array of the owner
+     */
+    void remove(String key, String[] keys) {
+        int mask = table.length - 1;
+        int i = home(key, mask);
+        while (table[i] != 0 && !key.equals(keys[table[i] - 1])) {
+            i = (i + 1) & mask;
+        }
+        if (table[i] == 0) {
+            return;
+        }
+        table[i] = 0;
+        count--;
+        
+        // Move back the entries after the hole that probed past it
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int wanted = home(keys[table[j] - 1], mask);
+            // Leave an entry whose home lies cyclically in (i, j]
+            if (i <= j ? (i < wanted && wanted <= j) : (i < wanted || wanted <= j)) {
+                continue;
+            }
+            table[i] = table[j];
+            table[j] = 0;
+            i = j;
+        }
+    }
+    
+    /**
+     * Get the number of strings indexed
+     * @return The string count
+     */
+    int size() {
+        return count;
+    }
+    
+    /**
+     * Drop every string, the table keeps its capacity
+     */
+    void clear() {
+        Arrays.fill(table, 0);
+        count = 0;
+    }
+    
+    private void rehash(int capacity, String[] keys) {
+        int[] old = table;
+        table = new int[capacity];
+        for (int entry : old) {
+            if (entry != 0) {
+                insert(keys[entry - 1], entry - 1);
+            }
+        }
+    }
+    
+    private void insert(String key, int position) {
+        int mask = table.length - 1;
+        int i = home(key, mask);
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = position + 1;
+    }
+    
+    private static int home(String key, int mask) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
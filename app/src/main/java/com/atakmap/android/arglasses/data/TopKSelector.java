@@ -0,0 +1,137 @@
+package com.atakmap.android.arglasses.data;
+
+/**
+ * Keeps the K highest scored items out of a stream using a bounded
+ * min-heap, so picking the top K of N items costs O(N log K) instead of a
+ * full sort. Items are non-negative ints, e.g. the indexes of the POIs in
+ * a batch, held in primitive arrays. Storage is reused between rounds, so
+ * a selection does not allocate. Not thread safe.
+ */
+public class TopKSelector {
+    
+    public static final int NONE = -1;
+    
+    private double[] scores = new double[16];
+    private int[] items = new int[16];
+    private int size;
+    private int limit;
+    
+    /**
+     * Start a new selection round
+     * @param k The number of items to keep
+     */
+    public void reset(int k) {
+        size = 0;
+        limit = k;
+        if (scores.length < k) {
+            scores = new double[k];
+            items = new int[k];
+        }
+    }
+    
+    /**
+     * Offer an item to the selection
+     * @param item The item, not negative
+     * @param score The item score, higher is better
+     * @return The item that was pushed out of the selection, or the offered
+     *         item itself if it did not make it in, NONE if nothing was
+     *         pushed out
+     */
+    public int offer(int item, double score) {
+        if (limit <= 0) {
+            return item;
+        }
+        if (size < limit) {
+            scores[size] = score;
+            items[size] = item;
+            siftUp(size++);
+            return NONE;
+        }
+        if (score <= scores[0]) {
+            return item;
+        }
+        
+        // Replace the lowest scored item at the root
+        int evicted = items[0];
+        scores[0] = score;
+        items[0] = item;
+        siftDown(0);
+        return evicted;
+    }
+    
+    /**
+     * Get the number of selected items
+     * @return The selection size
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Move the selected items out, highest score first
+     * @param out Receives the items from index 0, room for size()
+     * @return The number of items moved out
+     */
+    public int drainDescending(int[] out) {
+        int count = size;
+        // Popping the min-heap yields ascending order, fill from the back
+        for (int i = count - 1; i >= 0; i--) {
+            out[i] = pollLowest();
+        }
+        return count;
+    }
+    
+    /**
+     * Move the lowest scored selected item out
+     * @return The item, NONE if none is selected
+     */
+    public int pollLowest() {
+        if (size == 0) {
+            return NONE;
+        }
+        int item = items[0];
+        size--;
+        scores[0] = scores[size];
+        items[0] = items[size];
+        if (size > 0) {
+            siftDown(0);
+        }
+        return item;
+    }
+    
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (scores[parent] <= scores[index]) {
+                break;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+    
+    private void siftDown(int index) {
+        while (true) {
+            int left = 2 * index + 1;
+            if (left >= size) {
+                break;
+            }
+            int right = left + 1;
+            int smallest = right < size && scores[right] < scores[left] ? right : left;
+            if (scores[index] <= scores[smallest]) {
+                break;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+    
+    private void swap(int a, int b) {
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+        int item = items[a];
+        items[a] = items[b];
+        items[b] = item;
+    }
+}
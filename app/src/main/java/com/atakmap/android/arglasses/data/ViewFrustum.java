@@ -0,0 +1,149 @@
+package com.atakmap.android.arglasses.data;
+
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+
+/**
+ * Angular view volume of the wearer, used to skip POIs that are nowhere
+ * near the display. Built from the self position and the device heading,
+ * pitch and roll, with a margin so that POIs just outside the view are
+ * already on the glasses when the head turns.
+ *
+ * Uses a local flat earth approximation around self, which is accurate
+ * well past the ranges that matter for a head mounted display.
+ */
+public class ViewFrustum {
+    
+    // Defaults roughly matching a monocular AR display
+    public static final float DEFAULT_HORIZONTAL_FOV = 40f;
+    public static final float DEFAULT_VERTICAL_FOV = 25f;
+    public static final float DEFAULT_MARGIN = 15f;
+    
+    // POIs closer than this are always in view
+    public static final double DEFAULT_NEAR_RADIUS_M = 25;
+    
+    private static final double METERS_PER_DEGREE = ARGlassesProtocol.METERS_PER_DEGREE;
+    
+    private float horizontalFov = DEFAULT_HORIZONTAL_FOV;
+    private float verticalFov = DEFAULT_VERTICAL_FOV;
+    private float margin = DEFAULT_MARGIN;
+    private double nearRadius = DEFAULT_NEAR_RADIUS_M;
+    
+    // Per frame state
+    private double selfLat;
+    private double selfLon;
+    private double selfAlt;
+    private double metersPerDegreeLon;
+    private double heading;
+    private double pitch;
+    private double cosRoll = 1;
+    private double sinRoll;
+    private double halfWidth;
+    private double halfHeight;
+    
+    /**
+     * Set the display field of view and the margin added on every side
+     * @param horizontalFov The horizontal field of view in degrees
+     * @param verticalFov The vertical field of view in degrees
+     * @param margin The margin for head movement in degrees
+     */
+    public void setFieldOfView(float horizontalFov, float verticalFov, float margin) {
+        this.horizontalFov = horizontalFov;
+        this.verticalFov = verticalFov;
+        this.margin = margin;
+    }
+    
+    /**
+     * Set the distance under which POIs are always considered in view
+     * @param nearRadius The distance in meters
+     */
+    public void setNearRadius(double nearRadius) {
+        this.nearRadius = nearRadius;
+    }
+    
+    /**
+     * Update the frustum for the current pose
+     * @param lat The self latitude in degrees
+     * @param lon The self longitude in degrees
+     * @param alt The self altitude in meters, NaN if unknown
+     * @param heading The view heading in degrees from true north
+     * @param pitch The view elevation in degrees, positive looking up
+     * @param roll The view roll in degrees
+     */
+    public void update(double lat, double lon, double alt,
+            double heading, double pitch, double roll) {
+        this.selfLat = lat;
+        this.selfLon = lon;
+        this.selfAlt = alt;
+        this.metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+        this.heading = heading;
+        this.pitch = pitch;
+        double rollRad = Math.toRadians(roll);
+        this.cosRoll = Math.cos(rollRad);
+        this.sinRoll = Math.sin(rollRad);
+        this.halfWidth = horizontalFov / 2.0 + margin;
+        this.halfHeight = verticalFov / 2.0 + margin;
+    }
+    
+    /**
+     * Check whether a POI is in or near the view
+     * @param lat The POI latitude in degrees
+     * @param lon The POI longitude in degrees
+     * @param alt The POI altitude in meters, NaN if unknown
+     * @return true if the POI should be sent
+     */
+    public boolean contains(double lat, double lon, double alt) {
+        double dLon = lon - selfLon;
+        if (dLon > 180) {
+            dLon -= 360;
+        } else if (dLon < -180) {
+            dLon += 360;
+        }
+        double north = (lat - selfLat) * METERS_PER_DEGREE;
+        double east = dLon * metersPerDegreeLon;
+        double ground = Math.sqrt(north * north + east * east);
+        if (ground <= nearRadius) {
+            return true;
+        }
+        
+        // Unknown altitudes are treated as level with self
+        double up = Double.isNaN(alt) || Double.isNaN(selfAlt) ? 0 : alt - selfAlt;
+        return containsDirection(ground, Math.toDegrees(Math.atan2(east, north)),
+                Math.toDegrees(Math.atan2(up, ground)));
+    }
+    
+    /**
+     * Check whether a POI is in or near the view, from where it lies as
+     * seen from self, e.g. as POIGeometry computed it
+     * @param ground The distance along the ground in meters
+     * @param bearing The bearing in degrees from true north
+     * @param elevation The elevation angle in degrees
+     * @return true if the POI should be sent
+     */
+    public boolean containsDirection(double ground, double bearing, double elevation) {
+        if (ground <= nearRadius) {
+            return true;
+        }
+        
+        // Angular offset from the view center, rotated into display axes
+        double dx = normalize(bearing - heading);
+        double dy = elevation - pitch;
+        double x = dx * cosRoll + dy * sinRoll;
+        double y = -dx * sinRoll + dy * cosRoll;
+        return Math.abs(x) <= halfWidth && Math.abs(y) <= halfHeight;
+    }
+    
+    /**
+     * Wrap an angle to [-180, 180)
+     * @param degrees The angle in degrees
+     * @return The wrapped angle
+     */
+    private static double normalize(double degrees) {
+        degrees %= 360;
+        if (degrees >= 180) {
+            degrees -= 360;
+        } else if (degrees < -180) {
+            degrees += 360;
+        }
+        return degrees;
+    }
+}
@@ -0,0 +1,362 @@
+package com.atakmap.android.arglasses.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last frames sent to the glasses in a ring file of fixed size,
+ * so what the glasses were shown can be looked at after the fact.
+ *
+ * The file is memory mapped: recording a frame copies it into the mapping
+ * and updates the header, without a system call or allocation, and the
+ * kernel writes the pages out in the background. Frames recorded before
+ * the plugin crashes are kept, only a crash of the whole device can lose
+ * the last few seconds. An existing recording is appended to, so it
+ * survives restarts of ATAK.
+ *
+ * File layout (big endian): a header of {@link #HEADER_SIZE} bytes
+ * <pre>
+ *   magic     4 bytes  'A' 'R' 'F' 'R'
+ *   version   4 bytes
+ *   capacity  4 bytes  size of the record area
+ *   reserved  4 bytes
+ *   head      8 bytes  offset the next record goes to
+ *   tail      8 bytes  offset of the oldest record
+ *   records   8 bytes  records written since the file was created
+ *   created   8 bytes  time the file was created, ms since the epoch
+ * </pre>
+ * then the record area. Offsets count every byte ever written and are
+ * taken modulo the capacity. Each record is a length (4 bytes), the
+ * channel, wire format and FLAG_ bits (1 byte each), a reserved byte, the
+ * time in ms since the epoch and in System.nanoTime() (8 bytes each) and
+ * the frame. Records do not wrap: when one does not fit before the end of
+ * the area, a length of -1, or fewer than 4 bytes, marks the rest as
+ * unused and the record goes to the start.
+ */
+public class FlightRecorder {
+    
+    public static final int DEFAULT_CAPACITY = 8 * 1024 * 1024;
+    public static final String FILE_NAME = "frames.rec";
+    
+    // Record flags
+    public static final int FLAG_SESSION_START = 0x01; // First frame after the encoders started over
+    
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_HEADER_SIZE = 24;
+    
+    private static final int MAGIC = 0x41524652;
+    private static final int VERSION = 1;
+    private static final int PADDING = -1;
+    
+    // Header fields
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEAD_OFFSET = 16;
+    private static final int TAIL_OFFSET = 24;
+    private static final int RECORDS_OFFSET = 32;
+    private static final int CREATED_OFFSET = 40;
+    
+    /**
+     * A frame read back from a recording
+     */
+    public static class Record {
+        private final int channel;
+        private final int format;
+        private final int flags;
+        private final long timestamp;
+        private final long nanos;
+        private final byte[] frame;
+        
+        Record(int channel, int format, int flags, long timestamp, long nanos, byte[] frame) {
+            this.channel = channel;
+            this.format = format;
+            this.flags = flags;
+            this.timestamp = timestamp;
+            this.nanos = nanos;
+            this.frame = frame;
+        }
+        
+        /**
+         * @return The channel the frame was sent on
+         */
+        public int getChannel() {
+            return channel;
+        }
+        
+        /**
+         * @return The wire format of the frame, ARGlassesProtocol.FORMAT_*
+         */
+        public int getFormat() {
+            return format;
+        }
+        
+        /**
+         * Check a flag of the record
+         * @param flag One of the FLAG_ bits
+         * @return true if set
+         */
+        public boolean hasFlag(int flag) {
+            return (flags & flag) != 0;
+        }
+        
+        /**
+         * @return The time the frame was recorded, ms since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+        
+        /**
+         * @return The System.nanoTime() the frame was recorded at, to
+         *         time replays by
+         */
+        public long getNanos() {
+            return nanos;
+        }
+        
+        /**
+         * @return The frame payload as the encoder built it, uncompressed
+         *         and without the message header
+         */
+        public byte[] getFrame() {
+            return frame;
+        }
+    }
+    
+    private final File file;
+    private final int capacity;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private long head;
+    private long tail;
+    private long records;
+    private long skipped;
+    
+    /**
+     * Open a recording, continuing it if it has the same capacity and
+     * starting it over otherwise
+     * @param file The ring file, its directory is created if missing
+     * @param capacity The size of the record area in bytes
+     * @throws IOException if the file could not be opened or mapped
+     */
+    public FlightRecorder(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean resume = raf.length() == HEADER_SIZE + (long) capacity;
+            raf.setLength(HEADER_SIZE + (long) capacity);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) capacity);
+            if (resume && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                    && buffer.getInt(CAPACITY_OFFSET) == capacity) {
+                head = buffer.getLong(HEAD_OFFSET);
+                tail = buffer.getLong(TAIL_OFFSET);
+                records = buffer.getLong(RECORDS_OFFSET);
+                resume = tail >= 0 && tail <= head && head - tail <= capacity;
+            } else {
+                resume = false;
+            }
+            if (!resume) {
+                head = 0;
+                tail = 0;
+                records = 0;
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putLong(CREATED_OFFSET, System.currentTimeMillis());
+                writePositions();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Get the ring file
+     * @return The file
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * Record a frame, overwriting the oldest records as needed
+     * @param channel The channel of the frame
+     * @param format The wire format of the frame
+     * @param flags FLAG_ bits
+     * @param timestamp The time in ms since the epoch
+     * @param nanos The System.nanoTime() of the frame
+     * @param frame The frame between position and limit, left as it is
+     * @return false if the recorder is closed or the frame is too large
+     *         for a quarter of the ring
+     */
+    public synchronized boolean record(int channel, int format, int flags,
+            long timestamp, long nanos, ByteBuffer frame) {
+        if (buffer == null) {
+            return false;
+        }
+        int length = frame.remaining();
+        int size = RECORD_HEADER_SIZE + length;
+        if (size > capacity / 4) {
+            skipped++;
+            return false;
+        }
+        
+        int position = (int) (head % capacity);
+        if (capacity - position < size) {
+            if (capacity - position >= 4) {
+                buffer.putInt(HEADER_SIZE + position, PADDING);
+            }
+            head += capacity - position;
+            position = 0;
+        }
+        long end = head + size;
+        while (tail < end - capacity) {
+            tail = next(buffer, HEADER_SIZE, capacity, tail);
+        }
+        
+        int at = HEADER_SIZE + position;
+        buffer.putInt(at, length);
+        buffer.put(at + 4, (byte) channel);
+        buffer.put(at + 5, (byte) format);
+        buffer.put(at + 6, (byte) flags);
+        buffer.put(at + 7, (byte) 0);
+        buffer.putLong(at + 8, timestamp);
+        buffer.putLong(at + 16, nanos);
+        int start = frame.position();
+        buffer.position(at + RECORD_HEADER_SIZE);
+        buffer.put(frame);
+        frame.position(start);
+        
+        // The positions go last, so a record is only seen once complete
+        head = end;
+        records++;
+        writePositions();
+        return true;
+    }
+    
+    /**
+     * Get the number of records written since the file was created
+     * @return The record count, including overwritten ones
+     */
+    public synchronized long getRecordCount() {
+        return records;
+    }
+    
+    /**
+     * Get the number of frames too large to record
+     * @return The count since the recorder was opened
+     */
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+    
+    /**
+     * Write the mapping out and close the file. Frames recorded after are
+     * ignored.
+     */
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // The mapping stays valid until collected
+            }
+            raf = null;
+        }
+    }
+    
+    /**
+     * Read every record of a ring file, oldest first
+     * @param file The ring file
+     * @return The records
+     * @throws IOException if the file cannot be read or is not a recording
+     */
+    public static List<Record> read(File file) throws IOException {
+        byte[] bytes;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() < HEADER_SIZE || in.length() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a frame recording");
+            }
+            bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        int capacity = data.getInt(CAPACITY_OFFSET);
+        long head = data.getLong(HEAD_OFFSET);
+        long tail = data.getLong(TAIL_OFFSET);
+        if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION
+                || capacity <= 0 || HEADER_SIZE + (long) capacity != bytes.length
+                || tail < 0 || tail > head || head - tail > capacity) {
+            throw new IOException(file + " is not a frame recording");
+        }
+        
+        List<Record> list = new ArrayList<>();
+        long offset = tail;
+        while (offset < head) {
+            int position = (int) (offset % capacity);
+            if (capacity - position >= RECORD_HEADER_SIZE) {
+                int at = HEADER_SIZE + position;
+                int length = data.getInt(at);
+                if (length >= 0) {
+                    if (length > capacity - position - RECORD_HEADER_SIZE) {
+                        throw new IOException("Record at " + offset + " runs past the ring");
+                    }
+                    byte[] frame = new byte[length];
+                    System.arraycopy(bytes, at + RECORD_HEADER_SIZE, frame, 0, length);
+                    list.add(new Record(data.get(at + 4) & 0xFF, data.get(at + 5) & 0xFF,
+                            data.get(at + 6) & 0xFF, data.getLong(at + 8),
+                            data.getLong(at + 16), frame));
+                }
+            }
+            offset = next(data, HEADER_SIZE, capacity, offset);
+        }
+        return list;
+    }
+    
+    /**
+     * Get the offset of the record after the one at an offset
+     * @param data The file contents
+     * @param base The position of the record area in data
+     * @param capacity The size of the record area
+     * @param offset The offset of a record
+     * @return The offset of the next record
+     */
+    private static long next(ByteBuffer data, int base, int capacity, long offset) {
+        int position = (int) (offset % capacity);
+        if (capacity - position < RECORD_HEADER_SIZE) {
+            return offset + capacity - position;
+        }
+        int length = data.getInt(base + position);
+        if (length < 0) {
+            return offset + capacity - position;
+        }
+        return offset + RECORD_HEADER_SIZE + length;
+    }
+    
+    private void writePositions() {
+        buffer.putLong(HEAD_OFFSET, head);
+        buffer.putLong(TAIL_OFFSET, tail);
+        buffer.putLong(RECORDS_OFFSET, records);
+    }
+}
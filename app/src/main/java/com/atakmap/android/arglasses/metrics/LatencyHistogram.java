@@ -0,0 +1,139 @@
+package com.atakmap.android.arglasses.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in fixed buckets. Recording is a few atomic updates
+ * without locks or allocation, so it can be done for every frame from any
+ * thread. Percentiles are read back at the resolution of the buckets,
+ * which follow a 1-2-5 series from 10 us to 5 s.
+ */
+public class LatencyHistogram {
+    
+    // Upper bounds of the buckets in microseconds, one more bucket takes
+    // everything above the last bound
+    private static final long[] BOUNDS_US = {
+            10, 20, 50, 100, 200, 500,
+            1000, 2000, 5000, 10000, 20000, 50000,
+            100000, 200000, 500000, 1000000, 2000000, 5000000
+    };
+    
+    // Number of buckets, including the one above the last bound
+    public static final int BUCKET_COUNT = BOUNDS_US.length + 1;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    
+    /**
+     * Record a duration
+     * @param nanos The duration in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long us = nanos / 1000L;
+        int bucket = 0;
+        while (bucket < BOUNDS_US.length && us > BOUNDS_US[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+        
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+    
+    /**
+     * Get the number of durations recorded
+     * @return The count
+     */
+    public long getCount() {
+        return count.get();
+    }
+    
+    /**
+     * Get the mean duration
+     * @return The mean in microseconds, 0 if nothing was recorded
+     */
+    public double getMeanUs() {
+        long n = count.get();
+        return n > 0 ? sumNanos.get() / 1000.0 / n : 0;
+    }
+    
+    /**
+     * Get the longest duration
+     * @return The maximum in microseconds
+     */
+    public long getMaxUs() {
+        return maxNanos.get() / 1000L;
+    }
+    
+    /**
+     * Get a percentile of the durations
+     * @param fraction The fraction of durations that are not longer, e.g.
+     *                 0.99 for the 99th percentile
+     * @return The upper bound of the bucket holding the percentile in
+     *         microseconds, at most the maximum, 0 if nothing was recorded
+     */
+    public long getPercentileUs(double fraction) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_US.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(BOUNDS_US[i], getMaxUs());
+            }
+        }
+        return getMaxUs();
+    }
+    
+    /**
+     * Get the upper bound of a bucket
+     * @param bucket The bucket
+     * @return The bound in microseconds, Long.MAX_VALUE for the last bucket
+     */
+    public static long getBucketBoundUs(int bucket) {
+        return bucket < BOUNDS_US.length ? BOUNDS_US[bucket] : Long.MAX_VALUE;
+    }
+    
+    /**
+     * Get the number of durations in a bucket
+     * @param bucket The bucket
+     * @return The count
+     */
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+    
+    /**
+     * Forget everything recorded. Durations recorded while resetting may
+     * be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sumNanos.set(0);
+        maxNanos.set(0);
+    }
+    
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d mean=%.0fus p50=%dus p99=%dus max=%dus",
+                getCount(), getMeanUs(), getPercentileUs(0.5),
+                getPercentileUs(0.99), getMaxUs());
+    }
+}
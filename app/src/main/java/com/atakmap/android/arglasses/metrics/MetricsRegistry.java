@@ -0,0 +1,394 @@
+package com.atakmap.android.arglasses.metrics;
+
+import com.atakmap.android.arglasses.ChannelScheduler;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and stage timings of the data feed, shared by the service that
+ * sends the frames and the settings panel that shows them.
+ *
+ * Every frame is timed per channel through the stages it passes: reading
+ * the sensor and map state, collecting the POIs, encoding, waiting in the
+ * outbound queue and the write. The total runs from the sample the frame
+ * carries (compass) or the start of the tick (map and POIs) until the
+ * write completed. With glasses that acknowledge frames the delivery runs
+ * from the same start until the glasses had the frame. Recording only
+ * touches atomics, so the sending threads never wait on a reader.
+ *
+ * When frames go to several displays each display, or sink, also records
+ * its link counters and queue and write timings in a registry of its own,
+ * added with {@link #addSink(String)} and shown below the totals.
+ */
+public class MetricsRegistry {
+    
+    // Stages of a frame
+    public static final int STAGE_SNAPSHOT = 0;
+    public static final int STAGE_COLLECT = 1;
+    public static final int STAGE_ENCODE = 2;
+    public static final int STAGE_QUEUE = 3;
+    public static final int STAGE_WRITE = 4;
+    public static final int STAGE_TOTAL = 5;
+    public static final int STAGE_DELIVERY = 6; // Until acknowledged by the glasses
+    public static final int STAGE_COUNT = 7;
+    
+    // Counters
+    public static final int COUNTER_FRAMES = 0; // Frames written to the link
+    public static final int COUNTER_BYTES = 1; // Bytes written, with headers
+    public static final int COUNTER_DROPPED = 2; // Frames replaced before being written
+    public static final int COUNTER_RECONNECTS = 3;
+    public static final int COUNTER_LINK_LOSSES = 4;
+    public static final int COUNTER_COUNT = 5;
+    
+    private static final String[] STAGE_NAMES = {
+            "snapshot", "collect", "encode", "queue", "write", "total", "delivery"
+    };
+    private static final String[] COUNTER_NAMES = {
+            "frames", "bytes", "dropped", "reconnects", "link losses"
+    };
+    private static final String[] CHANNEL_NAMES = {
+            "POI", "Map", "Compass"
+    };
+    
+    // Rates are taken over at least this long
+    private static final long RATE_WINDOW_NANOS = 1000000000L;
+    
+    private static MetricsRegistry instance;
+    
+    private final LatencyHistogram[][] stages;
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private volatile long resetAt = System.currentTimeMillis();
+    
+    // Registries of the sinks, and the name and link state of a sink registry
+    private final CopyOnWriteArrayList<MetricsRegistry> sinks = new CopyOnWriteArrayList<>();
+    private final String name;
+    private volatile boolean connected;
+    
+    // Guarded by this, only touched by readers
+    private final long[] rateBase = new long[COUNTER_COUNT];
+    private final double[] rates = new double[COUNTER_COUNT];
+    private long rateBaseNanos = System.nanoTime();
+    
+    /**
+     * Get the registry of the plugin
+     * @return The registry, created on first use
+     */
+    public static synchronized MetricsRegistry getInstance() {
+        if (instance == null) {
+            instance = new MetricsRegistry(ChannelScheduler.CHANNEL_COUNT);
+        }
+        return instance;
+    }
+    
+    /**
+     * Create a registry
+     * @param channelCount The number of channels timed
+     */
+    public MetricsRegistry(int channelCount) {
+        this(channelCount, null);
+    }
+    
+    /**
+     * Create a registry
+     * @param channelCount The number of channels timed
+     * @param name The name shown for a sink registry, null for the totals
+     */
+    private MetricsRegistry(int channelCount, String name) {
+        this.name = name;
+        stages = new LatencyHistogram[channelCount][STAGE_COUNT];
+        for (int c = 0; c < channelCount; c++) {
+            for (int s = 0; s < STAGE_COUNT; s++) {
+                stages[c][s] = new LatencyHistogram();
+            }
+        }
+    }
+    
+    /**
+     * Add a registry for the frames going to one sink
+     * @param sinkName The name shown for the sink, e.g. its address
+     * @return The registry of the sink
+     */
+    public MetricsRegistry addSink(String sinkName) {
+        MetricsRegistry sink = new MetricsRegistry(stages.length, sinkName);
+        sinks.add(sink);
+        return sink;
+    }
+    
+    /**
+     * Stop showing a sink
+     * @param sink A registry returned by {@link #addSink(String)}
+     */
+    public void removeSink(MetricsRegistry sink) {
+        sinks.remove(sink);
+    }
+    
+    /**
+     * Set whether the link of a sink is up, for the summary
+     * @param linkUp true while the sink is connected
+     */
+    public void setConnected(boolean linkUp) {
+        this.connected = linkUp;
+    }
+    
+    /**
+     * Record how long a frame spent in a stage
+     * @param channel The channel of the frame
+     * @param stage One of the STAGE_ constants
+     * @param nanos The time spent in nanoseconds
+     */
+    public void recordStage(int channel, int stage, long nanos) {
+        stages[channel][stage].record(nanos);
+    }
+    
+    /**
+     * Add to a counter
+     * @param counter One of the COUNTER_ constants
+     * @param delta The amount to add
+     */
+    public void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+    
+    /**
+     * Record the number of frames waiting to be written
+     * @param depth The queue depth
+     */
+    public void recordQueueDepth(int depth) {
+        queueDepth.set(depth);
+        int max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth)) {
+            max = maxQueueDepth.get();
+        }
+    }
+    
+    /**
+     * Get the timings of a stage
+     * @param channel The channel
+     * @param stage One of the STAGE_ constants
+     * @return The histogram, live
+     */
+    public LatencyHistogram getStage(int channel, int stage) {
+        return stages[channel][stage];
+    }
+    
+    /**
+     * Get a counter
+     * @param counter One of the COUNTER_ constants
+     * @return The count since the last reset
+     */
+    public long getCounter(int counter) {
+        return counters.get(counter);
+    }
+    
+    /**
+     * Get how fast a counter grows. The rate is taken between calls at
+     * least a second apart, so call this regularly, e.g. from the display.
+     * @param counter One of the COUNTER_ constants
+     * @return The rate per second over the last window
+     */
+    public synchronized double getRate(int counter) {
+        long now = System.nanoTime();
+        long elapsed = now - rateBaseNanos;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                long value = counters.get(i);
+                rates[i] = (value - rateBase[i]) * 1e9 / elapsed;
+                rateBase[i] = value;
+            }
+            rateBaseNanos = now;
+        }
+        return rates[counter];
+    }
+    
+    /**
+     * Get the last recorded queue depth
+     * @return The number of frames waiting
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+    
+    /**
+     * Get the deepest the queue was since the last reset
+     * @return The number of frames
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+    
+    /**
+     * Clear all counters and timings, e.g. when the data feed starts
+     */
+    public synchronized void reset() {
+        for (LatencyHistogram[] channel : stages) {
+            for (LatencyHistogram stage : channel) {
+                stage.reset();
+            }
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            counters.set(i, 0);
+            rateBase[i] = 0;
+            rates[i] = 0;
+        }
+        queueDepth.set(0);
+        maxQueueDepth.set(0);
+        rateBaseNanos = System.nanoTime();
+        resetAt = System.currentTimeMillis();
+        for (MetricsRegistry sink : sinks) {
+            sink.reset();
+        }
+    }
+    
+    /**
+     * Describe the link and the latency of each channel in a few lines,
+     * for the settings panel
+     * @return The summary
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "Link: %.1f KB/s, %.0f frames/s, queue %d (max %d)\n",
+                getRate(COUNTER_BYTES) / 1024, getRate(COUNTER_FRAMES),
+                getQueueDepth(), getMaxQueueDepth()));
+        sb.append(String.format(Locale.US,
+                "Dropped %d, reconnects %d, link losses %d",
+                getCounter(COUNTER_DROPPED), getCounter(COUNTER_RECONNECTS),
+                getCounter(COUNTER_LINK_LOSSES)));
+        for (int c = 0; c < stages.length; c++) {
+            LatencyHistogram total = stages[c][STAGE_TOTAL];
+            if (total.getCount() == 0) {
+                continue;
+            }
+            sb.append(String.format(Locale.US,
+                    "\n%s: total p50 %.1f / p99 %.1f ms, encode p99 %.1f ms, write p99 %.1f ms",
+                    channelName(c), total.getPercentileUs(0.5) / 1000.0,
+                    total.getPercentileUs(0.99) / 1000.0,
+                    stages[c][STAGE_ENCODE].getPercentileUs(0.99) / 1000.0,
+                    stages[c][STAGE_WRITE].getPercentileUs(0.99) / 1000.0));
+            LatencyHistogram delivery = stages[c][STAGE_DELIVERY];
+            if (delivery.getCount() > 0) {
+                sb.append(String.format(Locale.US, ", delivered p99 %.1f ms",
+                        delivery.getPercentileUs(0.99) / 1000.0));
+            }
+        }
+        
+        // A single sink would only repeat the totals
+        if (sinks.size() > 1) {
+            for (MetricsRegistry sink : sinks) {
+                sb.append('\n').append(sink.getSinkLine());
+            }
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Describe a sink registry in one line
+     * @return The line
+     */
+    private String getSinkLine() {
+        LatencyHistogram total = stages[ChannelScheduler.CHANNEL_COMPASS][STAGE_TOTAL];
+        return String.format(Locale.US,
+                "%s%s: %.1f KB/s, %.0f frames/s, queue %d, dropped %d, reconnects %d%s",
+                name, connected ? "" : " (down)", getRate(COUNTER_BYTES) / 1024,
+                getRate(COUNTER_FRAMES), getQueueDepth(), getCounter(COUNTER_DROPPED),
+                getCounter(COUNTER_RECONNECTS), total.getCount() == 0 ? ""
+                        : String.format(Locale.US, ", compass p99 %.1f ms",
+                        total.getPercentileUs(0.99) / 1000.0));
+    }
+    
+    /**
+     * Write every counter and the full histogram of every stage
+     * @param out The writer, left open
+     * @throws IOException if writing failed
+     */
+    public void dump(Writer out) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+        out.write("# AR glasses link metrics\n");
+        out.write("since=" + format.format(new Date(resetAt)) + "\n");
+        out.write("written=" + format.format(new Date()) + "\n");
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            out.write(String.format(Locale.US, "%s=%d rate=%.1f/s\n",
+                    COUNTER_NAMES[i], getCounter(i), getRate(i)));
+        }
+        out.write("queue depth=" + getQueueDepth() + " max=" + getMaxQueueDepth() + "\n");
+        dumpStages(out, "");
+        
+        for (MetricsRegistry sink : sinks) {
+            out.write("\n# Sink " + sink.name + (sink.connected ? "" : " (down)") + "\n");
+            for (int i = 0; i < COUNTER_COUNT; i++) {
+                out.write(String.format(Locale.US, "%s=%d rate=%.1f/s\n",
+                        COUNTER_NAMES[i], sink.getCounter(i), sink.getRate(i)));
+            }
+            out.write("queue depth=" + sink.getQueueDepth()
+                    + " max=" + sink.getMaxQueueDepth() + "\n");
+            sink.dumpStages(out, sink.name + " ");
+        }
+    }
+    
+    /**
+     * Write the full histogram of every stage that has timings
+     * @param out The writer
+     * @param prefix Put before each histogram name
+     * @throws IOException if writing failed
+     */
+    private void dumpStages(Writer out, String prefix) throws IOException {
+        for (int c = 0; c < stages.length; c++) {
+            for (int s = 0; s < STAGE_COUNT; s++) {
+                LatencyHistogram histogram = stages[c][s];
+                if (histogram.getCount() == 0) {
+                    continue;
+                }
+                out.write("\n" + prefix + channelName(c) + " " + STAGE_NAMES[s] + ": "
+                        + histogram + "\n");
+                for (int b = 0; b < LatencyHistogram.BUCKET_COUNT; b++) {
+                    long count = histogram.getBucketCount(b);
+                    if (count == 0) {
+                        continue;
+                    }
+                    long bound = LatencyHistogram.getBucketBoundUs(b);
+                    out.write((bound == Long.MAX_VALUE ? "  >"
+                            + LatencyHistogram.getBucketBoundUs(b - 1)
+                            : "  <=" + bound) + "us " + count + "\n");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Dump the metrics to a new time stamped file
+     * @param directory The directory, created if missing
+     * @return The file written
+     * @throws IOException if the file could not be written
+     */
+    public File dumpToFile(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        String name = "metrics-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+                .format(new Date()) + ".txt";
+        File file = new File(directory, name);
+        Writer out = new FileWriter(file);
+        try {
+            dump(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+    
+    private static String channelName(int channel) {
+        return channel < CHANNEL_NAMES.length ? CHANNEL_NAMES[channel]
+                : "Channel " + channel;
+    }
+}
@@ -0,0 +1,182 @@
+package com.atakmap.android.arglasses.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and framing helpers for the AR glasses wire protocol.
+ *
+ * Every binary message on the link starts with a fixed 8 byte header:
+ * <pre>
+ *   magic   2 bytes  'A' 'R'
+ *   version 1 byte   protocol version
+ *   type    1 byte   message type (MSG_*)
+ *   length  4 bytes  payload length, big endian
+ * </pre>
+ * The JSON format is the legacy fallback and is sent unframed.
+ *
+ * Glasses that answered the hello send framed messages back: pongs, acks
+ * of the data frames they decoded, their own head pose and what they want
+ * sent, see {@link Subscription}. An ack covers the frame it names and every earlier
+ * frame of the reliable link, pose datagrams are not acknowledged.
+ * Messages of unknown types are skipped, so glasses and phone can add
+ * messages independently.
+ */
+public final class ARGlassesProtocol {
+    
+    // Header layout
+    public static final byte MAGIC_0 = 'A';
+    public static final byte MAGIC_1 = 'R';
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    
+    // Largest payload a receiver is expected to accept
+    public static final int MAX_PAYLOAD_SIZE = 4 * 1024 * 1024;
+    
+    // Message types
+    public static final int MSG_HELLO_REPLY = 0x02;
+    public static final int MSG_DATA = 0x10;
+    public static final int MSG_DATA_DEFLATE = 0x11; // One data frame, deflated on its own
+    public static final int MSG_DATA_DEFLATE_STREAM = 0x12; // Next block of the connection stream
+    public static final int MSG_PING = 0x20; // Phone nanoTime, 8 bytes
+    public static final int MSG_PONG = 0x21; // Glasses echo the ping payload
+    public static final int MSG_ACK = 0x22; // Sequence of the newest data frame decoded, 4 bytes
+    public static final int MSG_GLASSES_POSE = 0x30; // Heading, pitch, roll, float degrees
+    public static final int MSG_SUBSCRIBE = 0x31; // Channels, fields, rates and POI types wanted, see Subscription
+    
+    // Wire formats, also used as bit positions in the hello format mask
+    public static final int FORMAT_JSON = 0;
+    public static final int FORMAT_BINARY = 1;
+    
+    // Optional features offered in the hello
+    public static final int FEATURE_UDP_POSE = 0x01;
+    public static final int FEATURE_DEFLATE = 0x02;
+    public static final int FEATURE_KEEPALIVE = 0x04;
+    public static final int FEATURE_ACKS = 0x08; // Glasses acknowledge data frames
+    public static final int FEATURE_LOCAL_POSITIONS = 0x10; // POI positions relative to an origin, see PositionQuantizer
+    
+    // Hello reply payload: version, format and optionally a UDP port and
+    // the accepted features
+    public static final int HELLO_REPLY_MIN_SIZE = 2;
+    public static final int HELLO_REPLY_MAX_SIZE = 64;
+    
+    // Payload sizes of the messages from the glasses
+    public static final int ACK_SIZE = 4;
+    public static final int GLASSES_POSE_SIZE = 12;
+    public static final int SUBSCRIBE_MIN_SIZE = 1;
+    
+    // Data frame flags
+    public static final int FLAG_TABLE_RESET = 0x01;
+    
+    // Data frame section tags
+    public static final int SECTION_POI = 0x01;
+    public static final int SECTION_MAP = 0x02;
+    public static final int SECTION_COMPASS = 0x03;
+    public static final int SECTION_POI_DELTA = 0x04;
+    public static final int SECTION_POI_FIELDS = 0x05; // POI section with a FIELD_POI_* byte first
+    public static final int SECTION_POI_DELTA_FIELDS = 0x06; // POI delta section with a FIELD_POI_* byte first
+    public static final int SECTION_ORIGIN = 0x07; // Origin of the local positions that follow
+    public static final int SECTION_STRINGS = 0x08; // String table of a resync frame
+    public static final int SECTION_POI_GEOMETRY = 0x09; // New geometry of POIs the glasses hold
+    
+    // Map section flags
+    public static final int MAP_FLAG_HAS_SELF = 0x01;
+    public static final int MAP_FLAG_NO_VIEW = 0x02; // Zoom level and bearing left out
+    
+    // Optional fields glasses can subscribe to. POI ids and positions, the
+    // self location and the compass angles are always sent, the POI
+    // geometry only to glasses that subscribe to it.
+    public static final int FIELD_POI_NAME = 0x01;
+    public static final int FIELD_POI_TYPE = 0x02;
+    public static final int FIELD_POI_ALT = 0x04;
+    public static final int FIELD_POI_COLOR = 0x08;
+    public static final int FIELD_MAP_VIEW = 0x10; // Zoom level and bearing
+    public static final int FIELD_COMPASS_RATES = 0x20; // Rates and prediction time
+    public static final int FIELD_POI_GEOMETRY = 0x40; // Range, bearing and elevation from self
+    public static final int FIELD_POI_ALL = 0x0F;
+    public static final int FIELD_ALL = 0x3F; // Without a subscription
+    public static final int FIELD_MASK = 0x7F;
+    
+    // Layout bit in the field byte of a POI section: positions are offsets
+    // from the last origin section, see PositionQuantizer
+    public static final int POI_FLAG_LOCAL = 0x80;
+    
+    // Scale applied to POI latitude/longitude before truncating to an int
+    public static final double COORD_SCALE = 1e7;
+    
+    // Meters per degree of latitude, and of longitude at the equator, of
+    // every local flat earth offset: the local positions the glasses
+    // rebuild, the geometry, the view culling and the ranking distance
+    public static final double METERS_PER_DEGREE = 6378137.0 * Math.PI / 180.0;
+    
+    private ARGlassesProtocol() {
+    }
+    
+    /**
+     * Build the hello message sent by the phone right after connecting.
+     * The hello is a single JSON object so that legacy JSON-only glasses
+     * can parse and ignore it.
+     * @param features The optional features offered, FEATURE_* bits
+     * @return The hello message bytes
+     */
+    public static byte[] createHello(int features) {
+        return createHello((1 << FORMAT_JSON) | (1 << FORMAT_BINARY), features);
+    }
+    
+    /**
+     * Build a hello offering only some wire formats, e.g. to replay frames
+     * recorded in one format
+     * @param formats The formats offered, bit 1 &lt;&lt; FORMAT_* per format
+     * @param features The optional features offered, FEATURE_* bits
+     * @return The hello message bytes
+     */
+    public static byte[] createHello(int formats, int features) {
+        String hello = "{\"hello\":{\"version\":" + VERSION
+                + ",\"formats\":" + formats
+                + ",\"features\":" + features
+                + "}}";
+        return hello.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Write a message header
+     * @param buffer The buffer to write to
+     * @param type The message type
+     * @param length The payload length
+     */
+    public static void writeHeader(ByteBuffer buffer, int type, int length) {
+        buffer.put(MAGIC_0);
+        buffer.put(MAGIC_1);
+        buffer.put((byte) VERSION);
+        buffer.put((byte) type);
+        buffer.putInt(length);
+    }
+    
+    /**
+     * Check whether the buffer holds a valid header at its current position
+     * @param buffer The buffer to check, positioned at the header
+     * @return true if the magic matches
+     */
+    public static boolean isHeader(ByteBuffer buffer) {
+        int pos = buffer.position();
+        return buffer.remaining() >= HEADER_SIZE
+                && buffer.get(pos) == MAGIC_0
+                && buffer.get(pos + 1) == MAGIC_1;
+    }
+    
+    /**
+     * Get a printable name for a wire format
+     * @param format The format
+     * @return The name
+     */
+    public static String formatName(int format) {
+        switch (format) {
+            case FORMAT_BINARY:
+                return "binary";
+            case FORMAT_JSON:
+                return "json";
+            default:
+                return "unknown(" + format + ")";
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package com.atakmap.android.arglasses.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes frames in the compact binary format.
+ *
+ * Payload layout (big endian):
+ * <pre>
+ *   sequence  4 bytes
+ *   timestamp 8 bytes
+ *   flags     1 byte   FLAG_*
+ *   sections  repeated: tag (1 byte), length (4 bytes), body
+ * </pre>
+ * POI section body: count (4 bytes) then per POI the id, name and type as
+ * string references, lat and lon as int degrees * 1e7, alt as float and the
+ * color as int. The POI section replaces the whole POI set on the glasses.
+ * POI delta section body: the same as the POI section, followed by a removed
+ * count (4 bytes) and the ids of the removed POIs as string references. The
+ * glasses apply it on top of the set they already hold.
+ * Map section body: flags (1 byte), self lat/lon as double and self alt as
+ * float when MAP_FLAG_HAS_SELF is set, zoom level as double and bearing as
+ * float unless MAP_FLAG_NO_VIEW is set.
+ * Compass section body: heading, tilt and roll as floats, then their rates
+ * in degrees per second as floats and the prediction time in milliseconds
+ * as an unsigned short. Glasses that only read the first three floats skip
+ * the rest by the section length.
+ *
+ * Glasses that subscribed to fewer fields get the sections without them:
+ * POI sections are then sent as SECTION_POI_FIELDS or
+ * SECTION_POI_DELTA_FIELDS, whose body starts with the FIELD_POI_* bits
+ * present and leaves out the name, type, alt and color the bits do not
+ * name. The map section sets MAP_FLAG_NO_VIEW and the compass section
+ * ends after the roll.
+ *
+ * Glasses that subscribed to FIELD_POI_GEOMETRY get it in a field byte POI
+ * section, after the color of each POI: the range from self in meters as
+ * float, the bearing from true north as unsigned short in 1/100 degree
+ * and the elevation angle as signed short in 1/100 degree. As self moves,
+ * the geometry of POIs that did not change is updated by a geometry
+ * section after the POI section, see {@link #beginPoiGeometry()}: count
+ * (4 bytes), then per POI the id as string reference and the range,
+ * bearing and elevation as above.
+ *
+ * Glasses that accepted FEATURE_LOCAL_POSITIONS get, while the self
+ * location is known, a SECTION_ORIGIN before each POI section and the
+ * positions as offsets from it, see {@link PositionQuantizer}. The POI
+ * section is then always sent with a field byte, with POI_FLAG_LOCAL set.
+ *
+ * Strings are sent once per connection. A string reference is a varint:
+ * 0 is null, 1 means a new string follows (varint byte length + UTF-8) and
+ * is appended to the table, n >= 2 refers to table entry n - 2. When the
+ * table is cleared the next frame that defines a string carries
+ * FLAG_TABLE_RESET.
+ *
+ * Glasses that join the frames of other displays, or fell behind on them,
+ * get a resync frame of their own, see {@link #beginResync(long)}. It
+ * carries FLAG_TABLE_RESET and starts with a strings section: count (4
+ * bytes) and then every string of the table in order as varint byte
+ * length + UTF-8, each appended to the table.
+ */
+public class BinaryFrameEncoder implements FrameEncoder {
+    
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+    private static final int MAX_STRINGS = 65535;
+    
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private final Map<String, Integer> stringTable = new HashMap<>();
+    private final List<String> tableStrings = new ArrayList<>();
+    private boolean tableReset = true;
+    private boolean resyncing;
+    private boolean resyncComplete;
+    private int sequence;
+    private int fields = ARGlassesProtocol.FIELD_ALL;
+    private PositionQuantizer localPositions;
+    
+    // Positions that are patched once a section is complete
+    private int flagsPosition;
+    private int sectionPosition;
+    private int poiCountPosition;
+    private int poiCount;
+    private boolean poiKeyframe;
+    private int poiFields;
+    private PositionQuantizer poiPositions;
+    private int removedCountPosition;
+    private int removedCount;
+    private int geometryStart;
+    private int geometryCountPosition;
+    private int geometryCount;
+    
+    @Override
+    public int getFormat() {
+        return ARGlassesProtocol.FORMAT_BINARY;
+    }
+    
+    @Override
+    public void setFields(int fields) {
+        this.fields = fields;
+    }
+    
+    @Override
+    public void setLocalPositions(PositionQuantizer positions) {
+        localPositions = positions;
+    }
+    
+    @Override
+    public void begin(long timestamp) {
+        buffer.clear();
+        buffer.putInt(sequence++);
+        buffer.putLong(timestamp);
+        flagsPosition = buffer.position();
+        buffer.put((byte) 0);
+        
+        if (stringTable.size() >= MAX_STRINGS) {
+            clearStrings();
+        }
+    }
+    
+    /**
+     * Start a frame that brings one display up to the state the others
+     * hold, for glasses that connected while others stayed connected or
+     * that skipped frames. It stands in for the last frame begun, with its
+     * sequence, so the next frame follows on. It resets the string table
+     * and defines every string of it again, then a POI keyframe of what the
+     * other glasses hold is written into it as usual, and the frames after
+     * it read the same on every display. Finish it with
+     * {@link #endResync()} before {@link #finishBuffer()}.
+     * @param timestamp The frame time in milliseconds
+     */
+    public void beginResync(long timestamp) {
+        buffer.clear();
+        buffer.putInt(sequence - 1);
+        buffer.putLong(timestamp);
+        flagsPosition = buffer.position();
+        buffer.put((byte) ARGlassesProtocol.FLAG_TABLE_RESET);
+        
+        beginSection(ARGlassesProtocol.SECTION_STRINGS);
+        ensureCapacity(4);
+        buffer.putInt(tableStrings.size());
+        for (int i = 0; i < tableStrings.size(); i++) {
+            String value = tableStrings.get(i);
+            int length = utf8Length(value);
+            ensureCapacity(5 + length);
+            writeVarInt(length);
+            writeUtf8(value);
+        }
+        endSection();
+        resyncing = true;
+        resyncComplete = true;
+    }
+    
+    /**
+     * Finish the POIs of a resync frame
+     * @return false if they used a string the table does not hold, e.g.
+     *         after it filled up and started over, so the other glasses
+     *         would not read it the same; the frame must then be dropped
+     *         and the encoder started over for every display
+     */
+    public boolean endResync() {
+        resyncing = false;
+        return resyncComplete;
+    }
+    
+    @Override
+    public void beginPois(boolean keyframe) {
+        poiFields = fields & (ARGlassesProtocol.FIELD_POI_ALL
+                | ARGlassesProtocol.FIELD_POI_GEOMETRY);
+        poiPositions = localPositions;
+        if (poiPositions != null) {
+            beginSection(ARGlassesProtocol.SECTION_ORIGIN);
+            ensureCapacity(PositionQuantizer.ORIGIN_SIZE);
+            poiPositions.writeOrigin(buffer);
+            endSection();
+        }
+        if (poiFields == ARGlassesProtocol.FIELD_POI_ALL && poiPositions == null) {
+            beginSection(keyframe ? ARGlassesProtocol.SECTION_POI
+                    : ARGlassesProtocol.SECTION_POI_DELTA);
+        } else {
+            beginSection(keyframe ? ARGlassesProtocol.SECTION_POI_FIELDS
+                    : ARGlassesProtocol.SECTION_POI_DELTA_FIELDS);
+            ensureCapacity(1);
+            buffer.put((byte) (poiFields
+                    | (poiPositions != null ? ARGlassesProtocol.POI_FLAG_LOCAL : 0)));
+        }
+        ensureCapacity(4);
+        poiCountPosition = buffer.position();
+        buffer.putInt(0);
+        poiCount = 0;
+        poiKeyframe = keyframe;
+        removedCountPosition = -1;
+        removedCount = 0;
+    }
+    
+    @Override
+    public void writePoi(String id, String name, String type,
+            double lat, double lon, double alt, int color,
+            float range, float bearing, float elevation) {
+        writeString(id);
+        if ((poiFields & ARGlassesProtocol.FIELD_POI_NAME) != 0) {
+            writeString(name);
+        }
+        if ((poiFields & ARGlassesProtocol.FIELD_POI_TYPE) != 0) {
+            writeString(type);
+        }
+        // An absolute position after a local escape, the color and geometry
+        ensureCapacity(32);
+        boolean withAlt = (poiFields & ARGlassesProtocol.FIELD_POI_ALT) != 0;
+        if (poiPositions != null) {
+            poiPositions.write(buffer, lat, lon, alt, withAlt);
+        } else {
+            buffer.putInt((int) Math.round(lat * ARGlassesProtocol.COORD_SCALE));
+            buffer.putInt((int) Math.round(lon * ARGlassesProtocol.COORD_SCALE));
+            if (withAlt) {
+                buffer.putFloat((float) alt);
+            }
+        }
+        if ((poiFields & ARGlassesProtocol.FIELD_POI_COLOR) != 0) {
+            buffer.putInt(color);
+        }
+        if ((poiFields & ARGlassesProtocol.FIELD_POI_GEOMETRY) != 0) {
+            buffer.putFloat(range);
+            buffer.putShort((short) (Math.round(bearing * 100) % 36000));
+            buffer.putShort((short) Math.round(elevation * 100));
+        }
+        poiCount++;
+    }
+    
+    @Override
+    public void writeRemovedPoi(String id) {
+        if (removedCountPosition < 0) {
+            ensureCapacity(4);
+            removedCountPosition = buffer.position();
+            buffer.putInt(0);
+        }
+        writeString(id);
+        removedCount++;
+    }
+    
+    @Override
+    public void endPois() {
+        buffer.putInt(poiCountPosition, poiCount);
+        if (!poiKeyframe) {
+            if (removedCountPosition < 0) {
+                ensureCapacity(4);
+                buffer.putInt(0);
+            } else {
+                buffer.putInt(removedCountPosition, removedCount);
+            }
+        }
+        endSection();
+    }
+    
+    /**
+     * Start a section of new geometry for POIs the glasses already hold,
+     * written after their POI section when they subscribed to
+     * FIELD_POI_GEOMETRY
+     */
+    public void beginPoiGeometry() {
+        geometryStart = buffer.position();
+        beginSection(ARGlassesProtocol.SECTION_POI_GEOMETRY);
+        ensureCapacity(4);
+        geometryCountPosition = buffer.position();
+        buffer.putInt(0);
+        geometryCount = 0;
+    }
+    
+    /**
+     * Write the geometry of a POI the glasses hold
+     * @param id The unique identifier
+     * @param range The range from self in meters
+     * @param bearing The bearing from self in degrees
+     * @param elevation The elevation angle from self in degrees
+     */
+    public void writePoiGeometry(String id, float range, float bearing, float elevation) {
+        writeString(id);
+        ensureCapacity(8);
+        buffer.putFloat(range);
+        buffer.putShort((short) (Math.round(bearing * 100) % 36000));
+        buffer.putShort((short) Math.round(elevation * 100));
+        geometryCount++;
+    }
+    
+    /**
+     * Finish the geometry section, it is left out of the frame when no
+     * POI was written to it
+     */
+    public void endPoiGeometry() {
+        if (geometryCount == 0) {
+            buffer.position(geometryStart);
+            return;
+        }
+        buffer.putInt(geometryCountPosition, geometryCount);
+        endSection();
+    }
+    
+    @Override
+    public void writeMap(boolean hasSelf, double selfLat, double selfLon,
+            double selfAlt, double zoomLevel, double mapBearing) {
+        beginSection(ARGlassesProtocol.SECTION_MAP);
+        ensureCapacity(33);
+        boolean view = (fields & ARGlassesProtocol.FIELD_MAP_VIEW) != 0;
+        buffer.put((byte) ((hasSelf ? ARGlassesProtocol.MAP_FLAG_HAS_SELF : 0)
+                | (view ? 0 : ARGlassesProtocol.MAP_FLAG_NO_VIEW)));
+        if (hasSelf) {
+            buffer.putDouble(selfLat);
+            buffer.putDouble(selfLon);
+            buffer.putFloat((float) selfAlt);
+        }
+        if (view) {
+            buffer.putDouble(zoomLevel);
+            buffer.putFloat((float) mapBearing);
+        }
+        endSection();
+    }
+    
+    @Override
+    public void writeCompass(float heading, float tilt, float roll, float headingRate,
+            float tiltRate, float rollRate, int predictedMs) {
+        beginSection(ARGlassesProtocol.SECTION_COMPASS);
+        ensureCapacity(26);
+        buffer.putFloat(heading);
+        buffer.putFloat(tilt);
+        buffer.putFloat(roll);
+        if ((fields & ARGlassesProtocol.FIELD_COMPASS_RATES) != 0) {
+            buffer.putFloat(headingRate);
+            buffer.putFloat(tiltRate);
+            buffer.putFloat(rollRate);
+            buffer.putShort((short) Math.max(0, Math.min(0xFFFF, predictedMs)));
+        }
+        endSection();
+    }
+    
+    @Override
+    public int size() {
+        return buffer.position();
+    }
+    
+    @Override
+    public byte[] finish() {
+        ByteBuffer payload = finishBuffer();
+        byte[] data = new byte[payload.remaining()];
+        payload.get(data);
+        return data;
+    }
+    
+    @Override
+    public ByteBuffer finishBuffer() {
+        buffer.flip();
+        return buffer;
+    }
+    
+    @Override
+    public void reset() {
+        clearStrings();
+        sequence = 0;
+    }
+    
+    /**
+     * Forget the strings sent, so the next frame that defines one starts the
+     * table over. Unlike {@link #reset()} the sequence runs on, for glasses
+     * that stay connected.
+     */
+    public void clearStrings() {
+        stringTable.clear();
+        tableStrings.clear();
+        tableReset = true;
+    }
+    
+    /**
+     * Start a section, the length is patched by endSection
+     * @param tag The section tag
+     */
+    private void beginSection(int tag) {
+        ensureCapacity(9);
+        buffer.put((byte) tag);
+        sectionPosition = buffer.position();
+        buffer.putInt(0);
+    }
+    
+    /**
+     * Patch the length of the current section
+     */
+    private void endSection() {
+        buffer.putInt(sectionPosition, buffer.position() - sectionPosition - 4);
+    }
+    
+    /**
+     * Write a string reference, defining the string if it is new
+     * @param value The string to write
+     */
+    private void writeString(String value) {
+        if (value == null) {
+            ensureCapacity(1);
+            buffer.put((byte) 0);
+            return;
+        }
+        
+        Integer index = stringTable.get(value);
+        if (index != null) {
+            ensureCapacity(5);
+            writeVarInt(index + 2);
+            return;
+        }
+        if (resyncing) {
+            // Defining it here would leave this table longer than the one
+            // of the other glasses
+            resyncComplete = false;
+            ensureCapacity(1);
+            buffer.put((byte) 0);
+            return;
+        }
+        
+        // Only frames that define strings carry the reset, frames without
+        // strings may be dropped on the way out
+        if (tableReset) {
+            buffer.put(flagsPosition, (byte) ARGlassesProtocol.FLAG_TABLE_RESET);
+            tableReset = false;
+        }
+        
+        int length = utf8Length(value);
+        ensureCapacity(6 + length);
+        buffer.put((byte) 1);
+        writeVarInt(length);
+        writeUtf8(value);
+        stringTable.put(value, stringTable.size());
+        tableStrings.add(value);
+    }
+    
+    /**
+     * Get the UTF-8 length of a string, as String.getBytes would encode it
+     * @param value The string
+     * @return The length in bytes
+     */
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced by '?'
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Write a string as UTF-8 straight into the buffer, without the byte
+     * array String.getBytes would allocate
+     * @param value The string, with utf8Length bytes of room in the buffer
+     */
+    private void writeUtf8(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+    
+    /**
+     * Write an unsigned LEB128 varint
+     * @param value The value to write
+     */
+    private void writeVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+    
+    /**
+     * Grow the buffer if fewer than the requested bytes remain
+     * @param bytes The number of bytes about to be written
+     */
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < bytes) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
@@ -0,0 +1,292 @@
+package com.atakmap.android.arglasses.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses binary data frames with raw deflate (RFC 1951) primed with a
+ * dictionary both ends know, so even the first frame benefits from the CoT
+ * type strings and UID prefixes that fill POI frames.
+ *
+ * Frames are compressed either on their own, as MSG_DATA_DEFLATE, or as
+ * the next block of one deflate stream that lasts for the connection, as
+ * MSG_DATA_DEFLATE_STREAM. Streamed frames also reuse everything sent
+ * before them but have to arrive complete and in order, so the stream is
+ * only used on reliable links. Frames smaller than {@link #MIN_FRAME_SIZE},
+ * like compass frames, and frames that do not get smaller are sent as
+ * plain MSG_DATA.
+ *
+ * Used from the connection thread only, except for {@link #getStats(int)}.
+ */
+public class FrameCompressor {
+    
+    // Compression modes picked by the user
+    public static final int MODE_OFF = 0;
+    public static final int MODE_FRAME = 1;
+    public static final int MODE_STREAM = 2;
+    
+    // Smaller frames are not worth the header deflate adds
+    public static final int MIN_FRAME_SIZE = 128;
+    
+    // Level trading ratio for time, small frames gain little above this
+    private static final int LEVEL = Deflater.BEST_SPEED;
+    
+    private static final int INITIAL_CAPACITY = 4096;
+    
+    /**
+     * The preset dictionary, version 1. Glasses that accept
+     * ARGlassesProtocol.FEATURE_DEFLATE prime their inflater with exactly
+     * these bytes. Deflate matches best against the end of the dictionary,
+     * so the most common strings come last.
+     */
+    public static final byte[] DICTIONARY = buildDictionary();
+    
+    /**
+     * Compression statistics of a channel
+     */
+    public static class CompressionStats {
+        private long frames;
+        private long compressed;
+        private long bytesIn;
+        private long bytesOut;
+        private long nanos;
+        
+        /**
+         * @return The number of frames looked at
+         */
+        public long getFrames() {
+            return frames;
+        }
+        
+        /**
+         * @return The number of frames sent compressed
+         */
+        public long getCompressed() {
+            return compressed;
+        }
+        
+        /**
+         * @return The frame bytes before compression
+         */
+        public long getBytesIn() {
+            return bytesIn;
+        }
+        
+        /**
+         * @return The frame bytes sent, compressed or not
+         */
+        public long getBytesOut() {
+            return bytesOut;
+        }
+        
+        /**
+         * @return The bytes sent per frame byte, 1 when nothing was saved
+         */
+        public double getRatio() {
+            return bytesIn > 0 ? (double) bytesOut / bytesIn : 1;
+        }
+        
+        /**
+         * @return The mean time spent compressing a frame in microseconds
+         */
+        public double getMeanCostUs() {
+            return frames > 0 ? nanos / 1000.0 / frames : 0;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "frames=%d compressed=%d ratio=%.2f cost=%.1fus",
+                    frames, compressed, getRatio(), getMeanCostUs());
+        }
+    }
+    
+    private final long[][] counters;
+    private Deflater frameDeflater;
+    private Deflater streamDeflater;
+    private byte[] input = new byte[INITIAL_CAPACITY];
+    private byte[] output = new byte[INITIAL_CAPACITY];
+    private ByteBuffer outputBuffer = ByteBuffer.wrap(output);
+    
+    /**
+     * Create a compressor for a new connection
+     * @param channelCount The number of channels statistics are kept for
+     */
+    public FrameCompressor(int channelCount) {
+        counters = new long[channelCount][5];
+    }
+    
+    /**
+     * Compress a frame if it pays off
+     * @param channel The channel of the frame, for the statistics
+     * @param frame The frame between position and limit, left as it is
+     * @param stream true to continue the connection stream, false to
+     *               compress the frame on its own
+     * @return The message type to send: MSG_DATA to send the frame itself,
+     *         otherwise MSG_DATA_DEFLATE or MSG_DATA_DEFLATE_STREAM to send
+     *         {@link #getOutput()}
+     */
+    public int compress(int channel, ByteBuffer frame, boolean stream) {
+        int length = frame.remaining();
+        if (length < MIN_FRAME_SIZE) {
+            record(channel, length, length, 0, false);
+            return ARGlassesProtocol.MSG_DATA;
+        }
+        
+        long start = System.nanoTime();
+        if (input.length < length) {
+            input = new byte[Math.max(length, input.length * 2)];
+        }
+        frame.get(input, 0, length);
+        frame.position(frame.position() - length);
+        
+        int compressedLength = stream ? deflateStream(length) : deflateFrame(length);
+        long nanos = System.nanoTime() - start;
+        
+        // A streamed frame has to go out even if it grew, the glasses'
+        // inflater needs it to stay in step
+        if (!stream && compressedLength >= length) {
+            record(channel, length, length, nanos, false);
+            return ARGlassesProtocol.MSG_DATA;
+        }
+        record(channel, length, compressedLength, nanos, true);
+        outputBuffer.clear();
+        outputBuffer.limit(compressedLength);
+        return stream ? ARGlassesProtocol.MSG_DATA_DEFLATE_STREAM
+                : ARGlassesProtocol.MSG_DATA_DEFLATE;
+    }
+    
+    /**
+     * Get the compressed frame
+     * @return The output of the last compress call that compressed
+     */
+    public ByteBuffer getOutput() {
+        return outputBuffer;
+    }
+    
+    /**
+     * Copy the statistics of a channel
+     * @param channel The channel
+     * @return The statistics since the compressor was created
+     */
+    public synchronized CompressionStats getStats(int channel) {
+        long[] c = counters[channel];
+        CompressionStats stats = new CompressionStats();
+        stats.frames = c[0];
+        stats.compressed = c[1];
+        stats.bytesIn = c[2];
+        stats.bytesOut = c[3];
+        stats.nanos = c[4];
+        return stats;
+    }
+    
+    /**
+     * Free the native deflate state, the compressor cannot be used after
+     */
+    public void end() {
+        if (frameDeflater != null) {
+            frameDeflater.end();
+            frameDeflater = null;
+        }
+        if (streamDeflater != null) {
+            streamDeflater.end();
+            streamDeflater = null;
+        }
+    }
+    
+    /**
+     * Compress the input as a complete deflate stream of its own
+     * @param length The input length
+     * @return The compressed length
+     */
+    private int deflateFrame(int length) {
+        if (frameDeflater == null) {
+            frameDeflater = new Deflater(LEVEL, true);
+        } else {
+            frameDeflater.reset();
+        }
+        frameDeflater.setDictionary(DICTIONARY);
+        frameDeflater.setInput(input, 0, length);
+        frameDeflater.finish();
+        
+        int size = 0;
+        while (!frameDeflater.finished()) {
+            if (size == output.length) {
+                growOutput();
+            }
+            size += frameDeflater.deflate(output, size, output.length - size);
+        }
+        return size;
+    }
+    
+    /**
+     * Compress the input as the next block of the connection stream, ending
+     * on a byte boundary so the glasses can inflate it right away
+     * @param length The input length
+     * @return The compressed length
+     */
+    private int deflateStream(int length) {
+        if (streamDeflater == null) {
+            streamDeflater = new Deflater(LEVEL, true);
+            streamDeflater.setDictionary(DICTIONARY);
+        }
+        streamDeflater.setInput(input, 0, length);
+        
+        // A full output buffer may hold back more of the flush
+        int size = 0;
+        do {
+            if (size == output.length) {
+                growOutput();
+            }
+            size += streamDeflater.deflate(output, size, output.length - size,
+                    Deflater.SYNC_FLUSH);
+        } while (size == output.length);
+        return size;
+    }
+    
+    private void growOutput() {
+        byte[] grown = new byte[output.length * 2];
+        System.arraycopy(output, 0, grown, 0, output.length);
+        output = grown;
+        outputBuffer = ByteBuffer.wrap(output);
+    }
+    
+    private synchronized void record(int channel, int bytesIn, int bytesOut,
+            long nanos, boolean compressed) {
+        long[] c = counters[channel];
+        c[0]++;
+        if (compressed) {
+            c[1]++;
+        }
+        c[2] += bytesIn;
+        c[3] += bytesOut;
+        c[4] += nanos;
+    }
+    
+    private static byte[] buildDictionary() {
+        // Rarer strings first: less common CoT types and UID prefixes
+        String text = "b-m-p-w-GOTO" + "b-m-p-c-ip" + "b-m-p-c-cp" + "b-m-r"
+                + "u-d-c-c" + "u-d-r" + "u-d-f" + "u-d-p" + "u-rb-a"
+                + "b-r-f-h-c" + "b-d" + "a-u-A" + "a-n-A" + "a-h-A" + "a-f-A"
+                + "a-f-G-E-V" + "a-h-G-E-V" + "a-f-G-U-C-I" + "a-h-G-U-C-I"
+                + "a-f-S" + "a-h-S" + "a-u-S" + "a-n-S"
+                + "icons/" + ".png" + "marker" + "Marker" + "ANDROID-"
+                + "a-u-G" + "a-n-G" + "a-h-G" + "a-f-G-U-C" + "a-f-G"
+                + "b-m-p-s-m" + "b-m-p-s-p-i" + "b-m-p-w";
+        byte[] strings = text.getBytes(StandardCharsets.UTF_8);
+        
+        // Then the ARGB colors markers most often carry, most common last
+        int[] colors = {
+                0xFF800080, 0xFF00FFFF, 0xFFFFA500, 0xFFFFFF00,
+                0xFF00FF00, 0xFF0000FF, 0xFFFF0000, 0xFFFFFFFF
+        };
+        ByteBuffer dictionary = ByteBuffer.allocate(strings.length + colors.length * 4);
+        dictionary.put(strings);
+        for (int color : colors) {
+            dictionary.putInt(color);
+        }
+        return dictionary.array();
+    }
+}
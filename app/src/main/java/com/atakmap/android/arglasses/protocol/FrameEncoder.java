@@ -0,0 +1,127 @@
+package com.atakmap.android.arglasses.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes one data frame for the AR glasses.
+ * A frame is built by calling {@link #begin(long)}, then any of the section
+ * writers, then {@link #finish()} or {@link #finishBuffer()}.
+ * Implementations are not thread safe and are meant to be reused for
+ * every frame.
+ */
+public interface FrameEncoder {
+    
+    /**
+     * Get the wire format produced by this encoder
+     * @return One of the ARGlassesProtocol.FORMAT_* values
+     */
+    int getFormat();
+    
+    /**
+     * Set the optional fields written by the sections that follow. The
+     * section writers take every value and leave out the fields not set.
+     * FIELD_POI_GEOMETRY is only written when set, glasses ask for it.
+     * @param fields ARGlassesProtocol.FIELD_* bits
+     */
+    void setFields(int fields);
+    
+    /**
+     * Set how POI positions are written, from the next POI section on.
+     * Formats without local positions ignore it.
+     * @param positions The quantizer holding the origin to write offsets
+     *                  from, or null for absolute positions
+     */
+    void setLocalPositions(PositionQuantizer positions);
+    
+    /**
+     * Start a new frame
+     * @param timestamp The frame timestamp in milliseconds
+     */
+    void begin(long timestamp);
+    
+    /**
+     * Start the POI section
+     * @param keyframe true if the section holds the full POI set, false if
+     *                 it only holds the changes since the previous frame
+     */
+    void beginPois(boolean keyframe);
+    
+    /**
+     * Write a single POI, must be called between beginPois and endPois
+     * @param id The unique identifier
+     * @param name The display name
+     * @param type The type of POI
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param alt The altitude in meters
+     * @param color The display color
+     * @param range The straight line distance from self in meters
+     * @param bearing The bearing from self in degrees, 0 to 360
+     * @param elevation The angle above the horizon seen from self in degrees
+     */
+    void writePoi(String id, String name, String type,
+            double lat, double lon, double alt, int color,
+            float range, float bearing, float elevation);
+    
+    /**
+     * Write the id of a POI that was removed since the previous frame.
+     * Only valid in a non keyframe POI section, after all writePoi calls.
+     * @param id The unique identifier
+     */
+    void writeRemovedPoi(String id);
+    
+    /**
+     * Finish the POI section
+     */
+    void endPois();
+    
+    /**
+     * Write the map section
+     * @param hasSelf Whether the self location is known
+     * @param selfLat The self latitude in degrees
+     * @param selfLon The self longitude in degrees
+     * @param selfAlt The self altitude in meters
+     * @param zoomLevel The map scale
+     * @param mapBearing The map bearing in degrees
+     */
+    void writeMap(boolean hasSelf, double selfLat, double selfLon,
+            double selfAlt, double zoomLevel, double mapBearing);
+    
+    /**
+     * Write the compass section
+     * @param heading The heading in degrees
+     * @param tilt The tilt in degrees
+     * @param roll The roll in degrees
+     * @param headingRate The heading rate in degrees per second
+     * @param tiltRate The tilt rate in degrees per second
+     * @param rollRate The roll rate in degrees per second
+     * @param predictedMs How far past the frame time the angles are predicted
+     */
+    void writeCompass(float heading, float tilt, float roll, float headingRate,
+            float tiltRate, float rollRate, int predictedMs);
+    
+    /**
+     * Get the size of the frame written so far
+     * @return The size in bytes, an estimate for text formats
+     */
+    int size();
+    
+    /**
+     * Finish the frame
+     * @return The encoded frame payload
+     */
+    byte[] finish();
+    
+    /**
+     * Finish the frame without copying it out of the encoder
+     * @return A buffer holding the encoded frame payload between its
+     *         position and limit, only valid until the next frame is begun
+     */
+    ByteBuffer finishBuffer();
+
+    /**
+     * Forget any per-connection state, called whenever a new connection
+     * is established
+     */
+    void reset();
+}
@@ -0,0 +1,75 @@
+package com.atakmap.android.arglasses.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The answer of the glasses to the hello.
+ * Payload layout: protocol version (1 byte), chosen wire format (1 byte),
+ * then optionally the UDP port for pose datagrams (2 bytes, 0 for none)
+ * and the offered features the glasses accept (1 byte, FEATURE_* bits).
+ * Fields the glasses do not send keep their defaults, so older glasses
+ * that only send the first two bytes are still understood.
+ */
+public final class HelloReply {
+    
+    private final int version;
+    private final int format;
+    private final int udpPort;
+    private final int features;
+    
+    private HelloReply(int version, int format, int udpPort, int features) {
+        this.version = version;
+        this.format = format;
+        this.udpPort = udpPort;
+        this.features = features;
+    }
+    
+    /**
+     * Parse a hello reply payload
+     * @param payload The payload between position and limit
+     * @return The reply, or null if the payload is too short
+     */
+    public static HelloReply parse(ByteBuffer payload) {
+        if (payload.remaining() < ARGlassesProtocol.HELLO_REPLY_MIN_SIZE) {
+            return null;
+        }
+        int version = payload.get() & 0xFF;
+        int format = payload.get() & 0xFF;
+        int udpPort = payload.remaining() >= 2 ? payload.getShort() & 0xFFFF : 0;
+        int features = payload.remaining() >= 1 ? payload.get() & 0xFF : 0;
+        return new HelloReply(version, format, udpPort, features);
+    }
+    
+    /**
+     * Get the protocol version of the glasses
+     * @return The protocol version
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Get the wire format chosen by the glasses
+     * @return One of the ARGlassesProtocol.FORMAT_* values
+     */
+    public int getFormat() {
+        return format;
+    }
+    
+    /**
+     * Get the UDP port the glasses take pose datagrams on
+     * @return The UDP port, 0 for none
+     */
+    public int getUdpPort() {
+        return udpPort;
+    }
+    
+    /**
+     * Check whether the glasses accepted an offered feature
+     * @param feature One of the ARGlassesProtocol.FEATURE_* bits
+     * @return true if accepted
+     */
+    public boolean hasFeature(int feature) {
+        return (features & feature) != 0;
+    }
+}
@@ -0,0 +1,197 @@
+package com.atakmap.android.arglasses.protocol;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes frames in the legacy JSON format.
+ * Kept as the fallback for glasses that do not answer the hello.
+ */
+public class JsonFrameEncoder implements FrameEncoder {
+    
+    // Approximate size of the keys and punctuation of each object
+    private static final int POI_OVERHEAD = 90;
+    private static final int GEOMETRY_SIZE = 55;
+    private static final int MAP_SIZE = 130;
+    private static final int COMPASS_SIZE = 150;
+    
+    private JSONObject frame;
+    private JSONArray pois;
+    private JSONArray removedPois;
+    private boolean poiKeyframe;
+    private int fields = ARGlassesProtocol.FIELD_ALL;
+    
+    // Running estimate of the encoded size, JSON is only rendered at the end
+    private int estimatedSize;
+
+    @Override
+    public int getFormat() {
+        return ARGlassesProtocol.FORMAT_JSON;
+    }
+    
+    @Override
+    public void setFields(int fields) {
+        this.fields = fields;
+    }
+    
+    @Override
+    public void setLocalPositions(PositionQuantizer positions) {
+        // Legacy glasses only read absolute positions
+    }
+    
+    @Override
+    public void begin(long timestamp) {
+        frame = new JSONObject();
+        pois = null;
+        estimatedSize = 32;
+        try {
+            frame.put("timestamp", timestamp);
+        } catch (JSONException e) {
+            throw new IllegalStateException("Error creating JSON data", e);
+        }
+    }
+    
+    @Override
+    public void beginPois(boolean keyframe) {
+        pois = new JSONArray();
+        removedPois = null;
+        poiKeyframe = keyframe;
+    }
+    
+    @Override
+    public void writePoi(String id, String name, String type,
+            double lat, double lon, double alt, int color,
+            float range, float bearing, float elevation) {
+        try {
+            JSONObject poiJson = new JSONObject();
+            poiJson.put("id", id);
+            if (hasField(ARGlassesProtocol.FIELD_POI_NAME)) {
+                poiJson.put("name", name);
+            }
+            if (hasField(ARGlassesProtocol.FIELD_POI_TYPE)) {
+                poiJson.put("type", type);
+            }
+            poiJson.put("lat", lat);
+            poiJson.put("lon", lon);
+            if (hasField(ARGlassesProtocol.FIELD_POI_ALT)) {
+                poiJson.put("alt", alt);
+            }
+            if (hasField(ARGlassesProtocol.FIELD_POI_COLOR)) {
+                poiJson.put("color", color);
+            }
+            if (hasField(ARGlassesProtocol.FIELD_POI_GEOMETRY)) {
+                poiJson.put("range", range);
+                poiJson.put("bearing", bearing);
+                poiJson.put("elevation", elevation);
+                estimatedSize += GEOMETRY_SIZE;
+            }
+            pois.put(poiJson);
+            estimatedSize += POI_OVERHEAD + length(id) + length(name) + length(type);
+        } catch (JSONException e) {
+            throw new IllegalStateException("Error creating JSON data", e);
+        }
+    }
+    
+    @Override
+    public void writeRemovedPoi(String id) {
+        if (removedPois == null) {
+            removedPois = new JSONArray();
+        }
+        removedPois.put(id);
+        estimatedSize += 3 + length(id);
+    }
+    
+    @Override
+    public void endPois() {
+        try {
+            if (poiKeyframe) {
+                frame.put("pois", pois);
+            } else {
+                frame.put("poi_updates", pois);
+                if (removedPois != null) {
+                    frame.put("poi_removed", removedPois);
+                }
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException("Error creating JSON data", e);
+        }
+        pois = null;
+        removedPois = null;
+    }
+    
+    @Override
+    public void writeMap(boolean hasSelf, double selfLat, double selfLon,
+            double selfAlt, double zoomLevel, double mapBearing) {
+        try {
+            JSONObject mapData = new JSONObject();
+            if (hasSelf) {
+                mapData.put("self_lat", selfLat);
+                mapData.put("self_lon", selfLon);
+                mapData.put("self_alt", selfAlt);
+            }
+            if (hasField(ARGlassesProtocol.FIELD_MAP_VIEW)) {
+                mapData.put("zoom_level", zoomLevel);
+                mapData.put("map_bearing", mapBearing);
+            }
+            frame.put("map", mapData);
+            estimatedSize += MAP_SIZE;
+        } catch (JSONException e) {
+            throw new IllegalStateException("Error creating JSON data", e);
+        }
+    }
+    
+    @Override
+    public void writeCompass(float heading, float tilt, float roll, float headingRate,
+            float tiltRate, float rollRate, int predictedMs) {
+        try {
+            JSONObject compassData = new JSONObject();
+            compassData.put("heading", heading);
+            compassData.put("tilt", tilt);
+            compassData.put("roll", roll);
+            if (hasField(ARGlassesProtocol.FIELD_COMPASS_RATES)) {
+                compassData.put("heading_rate", headingRate);
+                compassData.put("tilt_rate", tiltRate);
+                compassData.put("roll_rate", rollRate);
+                compassData.put("predicted_ms", predictedMs);
+            }
+            frame.put("compass", compassData);
+            estimatedSize += COMPASS_SIZE;
+        } catch (JSONException e) {
+            throw new IllegalStateException("Error creating JSON data", e);
+        }
+    }
+    
+    @Override
+    public int size() {
+        return estimatedSize;
+    }
+    
+    @Override
+    public byte[] finish() {
+        byte[] data = frame.toString().getBytes(StandardCharsets.UTF_8);
+        frame = null;
+        return data;
+    }
+    
+    @Override
+    public ByteBuffer finishBuffer() {
+        return ByteBuffer.wrap(finish());
+    }
+    
+    @Override
+    public void reset() {
+        // JSON frames are self contained
+    }
+    
+    private boolean hasField(int field) {
+        return (fields & field) != 0;
+    }
+    
+    private static int length(String value) {
+        return value == null ? 4 : value.length() + 2;
+    }
+}
@@ -0,0 +1,401 @@
+package com.atakmap.android.arglasses.protocol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the POI state last sent to the glasses, keyed by POI id, so a
+ * frame only needs to carry the POIs that were added, changed or removed.
+ * A full keyframe is sent periodically and on request so a receiver that
+ * joined late or lost a frame can resync.
+ *
+ * Usage per keyframe: {@link #beginFrame(long)}, {@link #offer} for every
+ * current POI, then {@link #endFrame(List)}. Delta frames may instead only
+ * {@link #offer} the POIs known to have changed and {@link #remove} the ones
+ * known to be gone. When not every pending POI fits in the frame, use
+ * {@link #hasChanged} to find the pending POIs and {@link #markSent} for the
+ * ones actually written. The POIs the glasses hold can be read back by
+ * position, from 0 to {@link #getSentCount()}, e.g. to bring other glasses
+ * to the same state. Not thread safe except for {@link #requestKeyframe()}.
+ *
+ * The range, bearing and elevation from self are remembered as well but
+ * kept out of {@link #hasChanged}, as they change for every POI whenever
+ * self moves. Once self moved, {@link #hasGeometryChanged} tells which of
+ * the POIs the glasses hold moved far enough in their view to be resent,
+ * and {@link #markGeometrySent} records the geometry sent for them.
+ *
+ * Once every POI has been seen a frame allocates nothing: states are kept
+ * in a list as well as the map so they can be swept without an iterator,
+ * and states of removed POIs are reused.
+ */
+public class POIDeltaTracker {
+    
+    // Default time between periodic keyframes
+    public static final long DEFAULT_KEYFRAME_INTERVAL_MS = 10000;
+    
+    // Geometry that moved less than this is not resent: the bearing and
+    // elevation in degrees, the range by a fraction of it or at least meters
+    private static final float GEOMETRY_ANGLE_TOLERANCE = 0.25f;
+    private static final float GEOMETRY_RANGE_TOLERANCE = 0.01f;
+    private static final float GEOMETRY_MIN_RANGE_TOLERANCE = 0.5f;
+    
+    /**
+     * Last sent state of a POI, stored the way it goes over the wire so
+     * that changes too small to be encoded are not resent
+     */
+    private static final class SentState {
+        String id;
+        int slot;
+        String name;
+        String type;
+        int lat;
+        int lon;
+        float alt;
+        int color;
+        float range;
+        float bearing;
+        float elevation;
+        int frame;
+    }
+    
+    private final Map<String, SentState> sent = new HashMap<>();
+    private final ArrayList<SentState> sentList = new ArrayList<>();
+    private final ArrayList<SentState> pool = new ArrayList<>();
+    private long keyframeIntervalMs = DEFAULT_KEYFRAME_INTERVAL_MS;
+    private long lastKeyframeTime;
+    private volatile boolean keyframeRequested = true;
+    private boolean keyframe;
+    private int frame;
+    
+    /**
+     * Set the time between periodic keyframes
+     * @param intervalMs The interval in milliseconds
+     */
+    public void setKeyframeInterval(long intervalMs) {
+        keyframeIntervalMs = intervalMs;
+    }
+    
+    /**
+     * Force the next frame to be a keyframe. Safe to call from any thread.
+     */
+    public void requestKeyframe() {
+        keyframeRequested = true;
+    }
+    
+    /**
+     * Start a new frame
+     * @param now The current time in milliseconds
+     * @return true if this frame is a keyframe
+     */
+    public boolean beginFrame(long now) {
+        frame++;
+        keyframe = keyframeRequested || now - lastKeyframeTime >= keyframeIntervalMs;
+        if (keyframe) {
+            keyframeRequested = false;
+            lastKeyframeTime = now;
+        }
+        return keyframe;
+    }
+    
+    /**
+     * Offer a current POI to the frame
+     * @param id The unique identifier
+     * @param name The display name
+     * @param type The type of POI
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param alt The altitude in meters
+     * @param color The display color
+     * @return true if the POI has to be written to the frame
+     */
+    public boolean offer(String id, String name, String type,
+            double lat, double lon, double alt, int color) {
+        if (hasChanged(id, name, type, lat, lon, alt, color)) {
+            markSent(id, name, type, lat, lon, alt, color);
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Check whether a current POI has to be sent, without recording it as
+     * sent. Outside keyframes the POI counts as still present on the glasses.
+     * @param id The unique identifier
+     * @param name The display name
+     * @param type The type of POI
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param alt The altitude in meters
+     * @param color The display color
+     * @return true if the POI is new, changed or this is a keyframe
+     */
+    public boolean hasChanged(String id, String name, String type,
+            double lat, double lon, double alt, int color) {
+        SentState state = sent.get(id);
+        if (state == null) {
+            return true;
+        }
+        if (keyframe) {
+            // Only POIs written to the keyframe survive it
+            return true;
+        }
+        
+        state.frame = frame;
+        return state.lat != (int) Math.round(lat * ARGlassesProtocol.COORD_SCALE)
+                || state.lon != (int) Math.round(lon * ARGlassesProtocol.COORD_SCALE)
+                || Float.compare(state.alt, (float) alt) != 0
+                || state.color != color
+                || !equals(state.name, name)
+                || !equals(state.type, type);
+    }
+    
+    /**
+     * Record that a POI was written to the frame
+     * @param id The unique identifier
+     * @param name The display name
+     * @param type The type of POI
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param alt The altitude in meters
+     * @param color The display color
+     */
+    public void markSent(String id, String name, String type,
+            double lat, double lon, double alt, int color) {
+        markSent(id, name, type, lat, lon, alt, color, Float.NaN, Float.NaN, Float.NaN);
+    }
+    
+    /**
+     * Record that a POI was written to the frame with its geometry
+     * @param id The unique identifier
+     * @param name The display name
+     * @param type The type of POI
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param alt The altitude in meters
+     * @param color The display color
+     * @param range The range from self in meters
+     * @param bearing The bearing from self in degrees
+     * @param elevation The elevation angle from self in degrees
+     */
+    public void markSent(String id, String name, String type,
+            double lat, double lon, double alt, int color,
+            float range, float bearing, float elevation) {
+        SentState state = sent.get(id);
+        if (state == null) {
+            state = pool.isEmpty() ? new SentState() : pool.remove(pool.size() - 1);
+            state.id = id;
+            state.slot = sentList.size();
+            sentList.add(state);
+            sent.put(id, state);
+        }
+        state.frame = frame;
+        state.name = name;
+        state.type = type;
+        state.lat = (int) Math.round(lat * ARGlassesProtocol.COORD_SCALE);
+        state.lon = (int) Math.round(lon * ARGlassesProtocol.COORD_SCALE);
+        state.alt = (float) alt;
+        state.color = color;
+        state.range = range;
+        state.bearing = bearing;
+        state.elevation = elevation;
+    }
+    
+    /**
+     * Check whether the geometry of a POI the glasses hold moved so far
+     * since it was last sent that it has to be sent again
+     * @param index The position, below getSentCount()
+     * @param range The current range from self in meters
+     * @param bearing The current bearing from self in degrees
+     * @param elevation The current elevation angle from self in degrees
+     * @return true if it moved past the tolerance, or none was sent yet
+     */
+    public boolean hasGeometryChanged(int index, float range, float bearing, float elevation) {
+        SentState state = sentList.get(index);
+        float turn = Math.abs(bearing - state.bearing);
+        if (turn > 180) {
+            turn = 360 - turn;
+        }
+        // Written so that geometry never sent, NaN, counts as changed
+        return !(turn < GEOMETRY_ANGLE_TOLERANCE
+                && Math.abs(elevation - state.elevation) < GEOMETRY_ANGLE_TOLERANCE
+                && Math.abs(range - state.range) < Math.max(GEOMETRY_MIN_RANGE_TOLERANCE,
+                        state.range * GEOMETRY_RANGE_TOLERANCE));
+    }
+    
+    /**
+     * Record that the geometry of a POI the glasses hold was sent
+     * @param index The position, below getSentCount()
+     * @param range The range from self in meters
+     * @param bearing The bearing from self in degrees
+     * @param elevation The elevation angle from self in degrees
+     */
+    public void markGeometrySent(int index, float range, float bearing, float elevation) {
+        SentState state = sentList.get(index);
+        state.range = range;
+        state.bearing = bearing;
+        state.elevation = elevation;
+    }
+    
+    /**
+     * Finish the frame, forgetting every POI that was not offered
+     * @param removed Receives the ids of the POIs that disappeared
+     */
+    public void endFrame(List<String> removed) {
+        // Backwards, so the states swapped into freed slots were already seen
+        for (int i = sentList.size() - 1; i >= 0; i--) {
+            SentState state = sentList.get(i);
+            if (state.frame != frame) {
+                removed.add(state.id);
+                sent.remove(state.id);
+                release(state);
+            }
+        }
+    }
+    
+    /**
+     * Forget a POI that is no longer on the map
+     * @param id The unique identifier
+     * @return true if the POI had been sent and its removal has to be
+     *         written to the frame
+     */
+    public boolean remove(String id) {
+        SentState state = sent.remove(id);
+        if (state == null) {
+            return false;
+        }
+        release(state);
+        return true;
+    }
+    
+    /**
+     * Forget all sent state, the next frame will be a keyframe
+     */
+    public void reset() {
+        for (int i = sentList.size() - 1; i >= 0; i--) {
+            release(sentList.get(i));
+        }
+        sent.clear();
+        keyframeRequested = true;
+    }
+    
+    /**
+     * Get the number of POIs the glasses hold
+     * @return The POI count
+     */
+    public int getSentCount() {
+        return sentList.size();
+    }
+    
+    /**
+     * Get the unique identifier of a POI the glasses hold
+     * @param index The position, below getSentCount()
+     * @return The ID
+     */
+    public String getSentId(int index) {
+        return sentList.get(index).id;
+    }
+    
+    /**
+     * Get the display name last sent of a POI
+     * @param index The position, below getSentCount()
+     * @return The name
+     */
+    public String getSentName(int index) {
+        return sentList.get(index).name;
+    }
+    
+    /**
+     * Get the type last sent of a POI
+     * @param index The position, below getSentCount()
+     * @return The type
+     */
+    public String getSentType(int index) {
+        return sentList.get(index).type;
+    }
+    
+    /**
+     * Get the latitude last sent of a POI
+     * @param index The position, below getSentCount()
+     * @return The latitude in degrees, as encoded
+     */
+    public double getSentLat(int index) {
+        return sentList.get(index).lat / ARGlassesProtocol.COORD_SCALE;
+    }
+    
+    /**
+     * Get the longitude last sent of a POI
+     * @param index The position, below getSentCount()
+     * @return The longitude in degrees, as encoded
+     */
+    public double getSentLon(int index) {
+        return sentList.get(index).lon / ARGlassesProtocol.COORD_SCALE;
+    }
+    
+    /**
+     * Get the altitude last sent of a POI
+     * @param index The position, below getSentCount()
+     * @return The altitude in meters
+     */
+    public double getSentAlt(int index) {
+        return sentList.get(index).alt;
+    }
+    
+    /**
+     * Get the display color last sent of a POI
+     * @param index The position, below getSentCount()
+     * @return The color as an integer
+     */
+    public int getSentColor(int index) {
+        return sentList.get(index).color;
+    }
+    
+    /**
+     * Get the range last sent of a POI
+     * @param index The position, below getSentCount()
+     * @return The range from self in meters, NaN if none was sent
+     */
+    public float getSentRange(int index) {
+        return sentList.get(index).range;
+    }
+    
+    /**
+     * Get the bearing last sent of a POI
+     * @param index The position, below getSentCount()
+     * @return The bearing from self in degrees, NaN if none was sent
+     */
+    public float getSentBearing(int index) {
+        return sentList.get(index).bearing;
+    }
+    
+    /**
+     * Get the elevation angle last sent of a POI
+     * @param index The position, below getSentCount()
+     * @return The elevation angle from self in degrees, NaN if none was sent
+     */
+    public float getSentElevation(int index) {
+        return sentList.get(index).elevation;
+    }
+    
+    /**
+     * Take a state out of the list and keep it for reuse
+     * @param state The state, already removed from the map
+     */
+    private void release(SentState state) {
+        // Swap the last state into the freed slot
+        SentState last = sentList.remove(sentList.size() - 1);
+        if (last != state) {
+            sentList.set(state.slot, last);
+            last.slot = state.slot;
+        }
+        state.id = null;
+        state.name = null;
+        state.type = null;
+        pool.add(state);
+    }
+    
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
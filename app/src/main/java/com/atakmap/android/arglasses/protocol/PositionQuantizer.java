@@ -0,0 +1,221 @@
+package com.atakmap.android.arglasses.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes POI positions as fixed point offsets east, north and up of an
+ * origin, usually the self location, instead of absolute coordinates.
+ *
+ * Offsets are taken on a local flat earth: east is the longitude
+ * difference times {@link ARGlassesProtocol#METERS_PER_DEGREE} times the
+ * cosine of the origin latitude, north the latitude difference times it,
+ * up the altitude difference. Each is rounded to a multiple of the
+ * precision and sent as a big endian signed int of 2, 3 or 4 bytes, the
+ * fewest that cover the range, up at most {@link #MAX_VERTICAL_RANGE}.
+ * Glasses invert the same formula and get the position back to within
+ * half the precision.
+ *
+ * Origin section body (SECTION_ORIGIN): lat and lon as double, alt as
+ * float, the precision in meters as float, then the bytes per east and
+ * north offset and the bytes per up offset (1 byte each). A POI outside
+ * the range is sent with the smallest value of its width as east offset,
+ * then lat and lon as int degrees * 1e7 and, when altitudes are sent, alt
+ * as float. So is a POI whose altitude, or the origin's, is unknown (NaN)
+ * while altitudes are sent: its alt is sent as is, NaN for unknown, so
+ * glasses never take it for the height of the origin.
+ *
+ * Not thread safe.
+ */
+public class PositionQuantizer {
+    
+    private static final double METERS_PER_DEGREE = ARGlassesProtocol.METERS_PER_DEGREE;
+    
+    public static final float DEFAULT_PRECISION = 0.1f;
+    public static final int DEFAULT_RANGE = 20000;
+    
+    // Up offsets only cover this much, higher POIs, e.g. aircraft, are
+    // sent absolute
+    public static final int MAX_VERTICAL_RANGE = 3000;
+    
+    public static final int ORIGIN_SIZE = 26;
+    
+    private final float precision;
+    private final int horizontalBytes;
+    private final int verticalBytes;
+    private final long horizontalLimit;
+    private final long verticalLimit;
+    
+    private double originLat;
+    private double originLon;
+    private double originAlt;
+    private double metersPerDegreeLon;
+    
+    /**
+     * Constructor
+     * @param precision The step of the offsets in meters
+     * @param range The distance from the origin the offsets have to cover
+     *              in meters
+     */
+    public PositionQuantizer(float precision, int range) {
+        this.precision = precision;
+        horizontalBytes = bytesFor(range / (double) precision);
+        verticalBytes = bytesFor(Math.min(range, MAX_VERTICAL_RANGE) / (double) precision);
+        horizontalLimit = limit(horizontalBytes);
+        verticalLimit = limit(verticalBytes);
+    }
+    
+    /**
+     * Get the step of the offsets
+     * @return The precision in meters
+     */
+    public float getPrecision() {
+        return precision;
+    }
+    
+    /**
+     * Get the size of an east or north offset
+     * @return The bytes per offset
+     */
+    public int getHorizontalBytes() {
+        return horizontalBytes;
+    }
+    
+    /**
+     * Get the size of an up offset
+     * @return The bytes per offset
+     */
+    public int getVerticalBytes() {
+        return verticalBytes;
+    }
+    
+    /**
+     * Set the point the following positions are relative to
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param alt The altitude in meters
+     */
+    public void setOrigin(double lat, double lon, double alt) {
+        originLat = lat;
+        originLon = lon;
+        originAlt = (float) alt; // As the glasses get it
+        metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(lat));
+    }
+    
+    /**
+     * Write the origin section body
+     * @param buffer The buffer, with ORIGIN_SIZE bytes of room
+     */
+    public void writeOrigin(ByteBuffer buffer) {
+        buffer.putDouble(originLat);
+        buffer.putDouble(originLon);
+        buffer.putFloat((float) originAlt);
+        buffer.putFloat(precision);
+        buffer.put((byte) horizontalBytes);
+        buffer.put((byte) verticalBytes);
+    }
+    
+    /**
+     * Write a position relative to the origin
+     * @param buffer The buffer, with room for 3 ints and a float
+     * @param lat The latitude in degrees
+     * @param lon The longitude in degrees
+     * @param alt The altitude in meters
+     * @param withAlt Whether the altitude is sent
+     * @return false if the position was out of range, or its altitude or the
+     *         origin's unknown, and written absolute
+     */
+    public boolean write(ByteBuffer buffer, double lat, double lon, double alt,
+            boolean withAlt) {
+        long east = Math.round((lon - originLon) * metersPerDegreeLon / precision);
+        long north = Math.round((lat - originLat) * METERS_PER_DEGREE / precision);
+        // Math.round takes NaN to 0, the height of the origin
+        double height = alt - originAlt;
+        long up = Math.round(height / precision);
+        if (Math.abs(east) > horizontalLimit || Math.abs(north) > horizontalLimit
+                || (withAlt && (Double.isNaN(height) || Math.abs(up) > verticalLimit))) {
+            writeInt(buffer, -horizontalLimit - 1, horizontalBytes);
+            buffer.putInt((int) Math.round(lat * ARGlassesProtocol.COORD_SCALE));
+            buffer.putInt((int) Math.round(lon * ARGlassesProtocol.COORD_SCALE));
+            if (withAlt) {
+                buffer.putFloat((float) alt);
+            }
+            return false;
+        }
+        writeInt(buffer, east, horizontalBytes);
+        writeInt(buffer, north, horizontalBytes);
+        if (withAlt) {
+            writeInt(buffer, up, verticalBytes);
+        }
+        return true;
+    }
+    
+    /**
+     * Read a position the way glasses do
+     * @param buffer The buffer, positioned at the position
+     * @param origin The origin section body as {@link #readOrigin} read it
+     * @param withAlt Whether the altitude is sent
+     * @param position Receives the latitude, longitude and altitude, the
+     *                 altitude of the origin when not sent
+     */
+    public static void read(ByteBuffer buffer, double[] origin, boolean withAlt,
+            double[] position) {
+        double precision = origin[3];
+        int horizontalBytes = (int) origin[4];
+        int verticalBytes = (int) origin[5];
+        long east = readInt(buffer, horizontalBytes);
+        if (east == -limit(horizontalBytes) - 1) {
+            position[0] = buffer.getInt() / ARGlassesProtocol.COORD_SCALE;
+            position[1] = buffer.getInt() / ARGlassesProtocol.COORD_SCALE;
+            position[2] = withAlt ? buffer.getFloat() : origin[2];
+            return;
+        }
+        long north = readInt(buffer, horizontalBytes);
+        long up = withAlt ? readInt(buffer, verticalBytes) : 0;
+        double metersPerDegreeLon = METERS_PER_DEGREE * Math.cos(Math.toRadians(origin[0]));
+        position[0] = origin[0] + north * precision / METERS_PER_DEGREE;
+        position[1] = origin[1] + east * precision / metersPerDegreeLon;
+        position[2] = origin[2] + up * precision;
+    }
+    
+    /**
+     * Read an origin section body
+     * @param buffer The buffer, positioned at the body
+     * @param origin Receives the lat, lon, alt, precision, bytes per east
+     *               and north offset and bytes per up offset
+     */
+    public static void readOrigin(ByteBuffer buffer, double[] origin) {
+        origin[0] = buffer.getDouble();
+        origin[1] = buffer.getDouble();
+        origin[2] = buffer.getFloat();
+        origin[3] = buffer.getFloat();
+        origin[4] = buffer.get();
+        origin[5] = buffer.get();
+    }
+    
+    private static int bytesFor(double steps) {
+        if (steps <= limit(2)) {
+            return 2;
+        }
+        return steps <= limit(3) ? 3 : 4;
+    }
+    
+    // Largest offset a signed int of the width holds, its negation minus
+    // one marks an absolute position
+    private static long limit(int bytes) {
+        return (1L << (8 * bytes - 1)) - 2;
+    }
+    
+    private static void writeInt(ByteBuffer buffer, long value, int bytes) {
+        for (int shift = 8 * (bytes - 1); shift >= 0; shift -= 8) {
+            buffer.put((byte) (value >> shift));
+        }
+    }
+    
+    private static long readInt(ByteBuffer buffer, int bytes) {
+        long value = buffer.get(); // Sign extended
+        for (int i = 1; i < bytes; i++) {
+            value = (value << 8) | (buffer.get() & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,199 @@
+package com.atakmap.android.arglasses.protocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * What the glasses want sent: the channels, the fields of each channel,
+ * the rate of each channel and the types of POIs.
+ * Payload layout:
+ * <pre>
+ *   channels  1 byte   1 &lt;&lt; channel bits
+ *   fields    1 byte   FIELD_* bits of the fields the glasses use
+ *   rates     1 byte   count n, then n times 2 bytes: the period of
+ *                      channel 0..n-1 in ms, 0 for the phone setting
+ *   types     1 byte   count m, then m times a length (1 byte) and a
+ *                      UTF-8 POI type prefix, none for every type
+ * </pre>
+ * Parts the glasses do not send keep their defaults, so glasses that only
+ * send the channels are still understood. The POI id and position, the
+ * self location and the compass angles are always sent.
+ */
+public final class Subscription {
+    
+    // Shortest channel period the glasses can ask for
+    public static final int MIN_PERIOD_MS = 10;
+    
+    private static final int MAX_CHANNELS = 8;
+    private static final int MAX_TYPES = 0xFF;
+    
+    /**
+     * Every channel with every field, at the rates set on the phone
+     */
+    public static final Subscription ALL = new Subscription(0xFF,
+            ARGlassesProtocol.FIELD_ALL, new int[0], new String[0]);
+    
+    private final int channels;
+    private final int fields;
+    private final int[] periodsMs;
+    private final String[] types;
+    
+    /**
+     * Constructor
+     * @param channels The channels, 1 &lt;&lt; channel bits
+     * @param fields The fields, ARGlassesProtocol.FIELD_* bits
+     * @param periodsMs The period of each channel in ms, 0 for the phone
+     *                  setting, channels past the end use the phone setting
+     * @param types The POI type prefixes, empty for every type, each at
+     *              most 255 bytes of UTF-8
+     */
+    public Subscription(int channels, int fields, int[] periodsMs, String[] types) {
+        this.channels = channels & 0xFF;
+        this.fields = fields & ARGlassesProtocol.FIELD_MASK;
+        this.periodsMs = Arrays.copyOf(periodsMs, Math.min(periodsMs.length, MAX_CHANNELS));
+        this.types = Arrays.copyOf(types, Math.min(types.length, MAX_TYPES));
+    }
+    
+    /**
+     * Parse a subscription payload
+     * @param payload The payload between position and limit
+     * @return The subscription, or null if the payload is empty or ends
+     *         inside a part
+     */
+    public static Subscription parse(ByteBuffer payload) {
+        if (payload.remaining() < ARGlassesProtocol.SUBSCRIBE_MIN_SIZE) {
+            return null;
+        }
+        try {
+            int channels = payload.get() & 0xFF;
+            int fields = payload.hasRemaining() ? payload.get() & 0xFF
+                    : ARGlassesProtocol.FIELD_ALL;
+            int[] periodsMs = new int[payload.hasRemaining() ? payload.get() & 0xFF : 0];
+            for (int i = 0; i < periodsMs.length; i++) {
+                int period = payload.getShort() & 0xFFFF;
+                periodsMs[i] = period == 0 ? 0 : Math.max(MIN_PERIOD_MS, period);
+            }
+            String[] types = new String[payload.hasRemaining() ? payload.get() & 0xFF : 0];
+            for (int i = 0; i < types.length; i++) {
+                byte[] type = new byte[payload.get() & 0xFF];
+                payload.get(type);
+                types[i] = new String(type, StandardCharsets.UTF_8);
+            }
+            return new Subscription(channels, fields, periodsMs, types);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Build the subscribe message, header included, as glasses send it
+     * @return The message bytes
+     */
+    public byte[] createMessage() {
+        int length = 3 + 2 * periodsMs.length + 1;
+        byte[][] encoded = new byte[types.length][];
+        for (int i = 0; i < types.length; i++) {
+            encoded[i] = types[i].getBytes(StandardCharsets.UTF_8);
+            length += 1 + Math.min(encoded[i].length, 0xFF);
+        }
+        ByteBuffer message = ByteBuffer.allocate(ARGlassesProtocol.HEADER_SIZE + length);
+        ARGlassesProtocol.writeHeader(message, ARGlassesProtocol.MSG_SUBSCRIBE, length);
+        message.put((byte) channels);
+        message.put((byte) fields);
+        message.put((byte) periodsMs.length);
+        for (int period : periodsMs) {
+            message.putShort((short) Math.min(period, 0xFFFF));
+        }
+        message.put((byte) types.length);
+        for (byte[] type : encoded) {
+            int size = Math.min(type.length, 0xFF);
+            message.put((byte) size);
+            message.put(type, 0, size);
+        }
+        return message.array();
+    }
+    
+    /**
+     * Check whether the glasses want a channel
+     * @param channel The channel
+     * @return true if subscribed
+     */
+    public boolean isSubscribed(int channel) {
+        return (channels & (1 << channel)) != 0;
+    }
+    
+    /**
+     * Get the fields the glasses use
+     * @return ARGlassesProtocol.FIELD_* bits
+     */
+    public int getFields() {
+        return fields;
+    }
+    
+    /**
+     * Get the period the glasses want a channel at
+     * @param channel The channel
+     * @return The period in ms, 0 for the phone setting
+     */
+    public int getPeriodMs(int channel) {
+        return channel < periodsMs.length ? periodsMs[channel] : 0;
+    }
+    
+    /**
+     * Check whether the glasses limit the POIs to some types
+     * @return false if they want every type
+     */
+    public boolean hasTypes() {
+        return types.length > 0;
+    }
+    
+    /**
+     * Get the number of POI type prefixes
+     * @return The count, 0 for every type
+     */
+    public int getTypeCount() {
+        return types.length;
+    }
+    
+    /**
+     * Get a POI type prefix
+     * @param index The index, below getTypeCount()
+     * @return The prefix, e.g. "a-h" for every hostile type
+     */
+    public String getType(int index) {
+        return types[index];
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Subscription)) {
+            return false;
+        }
+        Subscription other = (Subscription) o;
+        return channels == other.channels && fields == other.fields
+                && Arrays.equals(periodsMs, other.periodsMs)
+                && Arrays.equals(types, other.types);
+    }
+    
+    @Override
+    public int hashCode() {
+        int result = channels;
+        result = 31 * result + fields;
+        result = 31 * result + Arrays.hashCode(periodsMs);
+        result = 31 * result + Arrays.hashCode(types);
+        return result;
+    }
+    
+    @Override
+    public String toString() {
+        return "channels=0x" + Integer.toHexString(channels)
+                + " fields=0x" + Integer.toHexString(fields)
+                + " periods=" + Arrays.toString(periodsMs)
+                + " types=" + Arrays.toString(types);
+    }
+}
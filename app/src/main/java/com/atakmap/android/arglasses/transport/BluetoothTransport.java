@@ -0,0 +1,147 @@
+package com.atakmap.android.arglasses.transport;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * Bluetooth RFCOMM link using the Serial Port Profile.
+ * RFCOMM sockets only offer streams, so header and payload are copied into
+ * one reused array and go out in a single write.
+ */
+public class BluetoothTransport implements Transport {
+    
+    // UUID for Bluetooth Serial Port Profile (SPP)
+    public static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    
+    private static final long READ_POLL_MS = 20;
+    
+    private final BluetoothDevice device;
+    private volatile BluetoothSocket socket;
+    private InputStream inputStream;
+    private OutputStream outputStream;
+    
+    // Reused to write messages to the stream
+    private byte[] scratch = new byte[16 * 1024];
+    private ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+    
+    /**
+     * Create a transport
+     * @param device The remote device
+     */
+    public BluetoothTransport(BluetoothDevice device) {
+        this.device = device;
+    }
+    
+    @Override
+    public void open() throws IOException {
+        close();
+        BluetoothSocket s = device.createRfcommSocketToServiceRecord(SPP_UUID);
+        socket = s;
+        try {
+            s.connect();
+            inputStream = s.getInputStream();
+            outputStream = s.getOutputStream();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Read by polling the stream, RFCOMM streams have no read timeout.
+     * The buffer must be backed by an array.
+     */
+    @Override
+    public int read(ByteBuffer dst, long timeoutMs) throws IOException {
+        int total = 0;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            // Checked once even with no timeout, for reads that must not wait
+            while (dst.hasRemaining()) {
+                if (inputStream.available() > 0) {
+                    int count = inputStream.read(dst.array(),
+                            dst.arrayOffset() + dst.position(), dst.remaining());
+                    if (count < 0) {
+                        if (total == 0) {
+                            throw new EOFException("Closed by the glasses");
+                        }
+                        break;
+                    }
+                    dst.position(dst.position() + count);
+                    total += count;
+                } else if (System.currentTimeMillis() >= deadline) {
+                    break;
+                } else {
+                    Thread.sleep(READ_POLL_MS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return total;
+    }
+    
+    @Override
+    public void writeMessage(int type, ByteBuffer payload) throws IOException {
+        writeToStream(type, payload);
+    }
+    
+    @Override
+    public void write(ByteBuffer payload) throws IOException {
+        writeToStream(-1, payload);
+    }
+    
+    /**
+     * Copy an optional header and the payload into the scratch array and
+     * write it out
+     * @param type The message type, or -1 for no header
+     * @param payload The payload between position and limit, consumed
+     */
+    private void writeToStream(int type, ByteBuffer payload) throws IOException {
+        int headerSize = type >= 0 ? ARGlassesProtocol.HEADER_SIZE : 0;
+        int length = headerSize + payload.remaining();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+            scratchBuffer = ByteBuffer.wrap(scratch);
+        }
+        if (type >= 0) {
+            scratchBuffer.clear();
+            ARGlassesProtocol.writeHeader(scratchBuffer, type, payload.remaining());
+        }
+        payload.get(scratch, headerSize, payload.remaining());
+        outputStream.write(scratch, 0, length);
+        outputStream.flush();
+    }
+    
+    @Override
+    public boolean isReliable() {
+        return true;
+    }
+    
+    @Override
+    public boolean isOpen() {
+        BluetoothSocket s = socket;
+        return s != null && s.isConnected();
+    }
+    
+    @Override
+    public void close() {
+        BluetoothSocket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+}
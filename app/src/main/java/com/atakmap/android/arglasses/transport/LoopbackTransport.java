@@ -0,0 +1,206 @@
+package com.atakmap.android.arglasses.transport;
+
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process link, used to run the plugin against simulated glasses
+ * without a radio. The glasses side calls {@link #listen(String)} and
+ * the plugin connects to the same name with the address
+ * "loopback:&lt;name&gt;". Bytes written on one end are read on the other,
+ * in order and without loss, like TCP.
+ */
+public class LoopbackTransport implements Transport {
+    
+    // Address prefix the connection manager maps to this transport
+    public static final String ADDRESS_PREFIX = "loopback:";
+    
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    
+    // Glasses side ends waiting for the plugin to connect, by name
+    private static final Map<String, LoopbackTransport> listeners = new HashMap<>();
+    
+    private final String name;
+    private LoopbackTransport peer;
+    private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private final ByteBuffer header = ByteBuffer.allocate(ARGlassesProtocol.HEADER_SIZE);
+    private boolean open;
+    
+    private LoopbackTransport(String name) {
+        this.name = name;
+    }
+    
+    /**
+     * Create the glasses side end of a link and wait for the plugin
+     * @param name The name the plugin connects to
+     * @return The glasses side end, open once the plugin connects
+     */
+    public static LoopbackTransport listen(String name) {
+        LoopbackTransport end = new LoopbackTransport(name);
+        synchronized (listeners) {
+            listeners.put(name, end);
+        }
+        return end;
+    }
+    
+    /**
+     * Create the plugin side end of a link
+     * @param name The name the glasses side listens on
+     * @return The plugin side end, connected by {@link #open()}
+     */
+    public static LoopbackTransport connect(String name) {
+        return new LoopbackTransport(name);
+    }
+    
+    @Override
+    public void open() throws IOException {
+        LoopbackTransport other;
+        synchronized (listeners) {
+            other = listeners.remove(name);
+        }
+        if (other == null) {
+            throw new IOException("Nothing listening on " + ADDRESS_PREFIX + name);
+        }
+        synchronized (this) {
+            peer = other;
+            open = true;
+        }
+        synchronized (other) {
+            other.peer = this;
+            other.open = true;
+            other.notifyAll();
+        }
+    }
+    
+    /**
+     * Wait until the other end has connected
+     * @param timeoutMs How long to wait
+     * @return true if connected
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitConnection(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (peer == null) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+    
+    @Override
+    public synchronized int read(ByteBuffer dst, long timeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int total = 0;
+        try {
+            while (dst.hasRemaining()) {
+                if (inbound.position() > 0) {
+                    inbound.flip();
+                    int count = Math.min(inbound.remaining(), dst.remaining());
+                    int limit = inbound.limit();
+                    inbound.limit(inbound.position() + count);
+                    dst.put(inbound);
+                    inbound.limit(limit);
+                    inbound.compact();
+                    total += count;
+                    continue;
+                }
+                if (!open) {
+                    if (total == 0 && peer != null) {
+                        throw new EOFException();
+                    }
+                    break;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    break;
+                }
+                wait(wait);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return total;
+    }
+    
+    @Override
+    public void writeMessage(int type, ByteBuffer payload) throws IOException {
+        LoopbackTransport other = connectedPeer();
+        synchronized (other) {
+            header.clear();
+            ARGlassesProtocol.writeHeader(header, type, payload.remaining());
+            header.flip();
+            other.deliver(header);
+            other.deliver(payload);
+            other.notifyAll();
+        }
+    }
+    
+    @Override
+    public void write(ByteBuffer payload) throws IOException {
+        LoopbackTransport other = connectedPeer();
+        synchronized (other) {
+            other.deliver(payload);
+            other.notifyAll();
+        }
+    }
+    
+    private synchronized LoopbackTransport connectedPeer() throws IOException {
+        if (!open || peer == null) {
+            throw new IOException("Loopback " + name + " is closed");
+        }
+        return peer;
+    }
+    
+    /**
+     * Append bytes to the inbound buffer, called with this end locked
+     */
+    private void deliver(ByteBuffer bytes) {
+        if (inbound.remaining() < bytes.remaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(inbound.capacity() * 2,
+                    inbound.position() + bytes.remaining()));
+            inbound.flip();
+            grown.put(inbound);
+            inbound = grown;
+        }
+        inbound.put(bytes);
+    }
+    
+    @Override
+    public boolean isReliable() {
+        return true;
+    }
+    
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+    
+    @Override
+    public void close() {
+        LoopbackTransport other;
+        synchronized (this) {
+            open = false;
+            other = peer;
+            notifyAll();
+        }
+        synchronized (listeners) {
+            if (listeners.get(name) == this) {
+                listeners.remove(name);
+            }
+        }
+        if (other != null) {
+            synchronized (other) {
+                other.open = false;
+                other.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.atakmap.android.arglasses.transport;
+
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TCP link to the glasses over a non-blocking SocketChannel.
+ * Messages are written with a single gathering write of the header and the
+ * payload straight from direct buffers, without copying them into a byte
+ * array first. Partial writes are finished by waiting for the socket to
+ * become writable again, up to a write timeout, so a stalled link fails
+ * instead of blocking the sender forever. Reads wait on a selector of
+ * their own, so a reader thread can wait for the glasses while the sender
+ * waits for the socket to drain.
+ */
+public class NioTcpTransport implements Transport {
+    
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_WRITE_TIMEOUT_MS = 2000;
+    
+    // Enough for a few POI keyframes in flight without holding a stale backlog
+    public static final int DEFAULT_SEND_BUFFER_SIZE = 64 * 1024;
+    
+    // IP type of service, low delay
+    private static final int IPTOS_LOWDELAY = 0x10;
+    
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMs;
+    private final int sendBufferSize;
+    private final int writeTimeoutMs;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(ARGlassesProtocol.HEADER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    
+    private volatile SocketChannel channel;
+    private volatile Selector selector;
+    private volatile SelectionKey key;
+    private volatile Selector readSelector;
+    private volatile SelectionKey readKey;
+    private long bytesWritten;
+    private long partialWrites;
+    
+    /**
+     * Create a transport with the default timeouts and send buffer size
+     * @param host The host name or IP address
+     * @param port The TCP port
+     */
+    public NioTcpTransport(String host, int port) {
+        this(host, port, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_SEND_BUFFER_SIZE,
+                DEFAULT_WRITE_TIMEOUT_MS);
+    }
+    
+    /**
+     * Create a transport
+     * @param host The host name or IP address
+     * @param port The TCP port
+     * @param connectTimeoutMs How long to wait for the connection
+     * @param sendBufferSize The socket send buffer size in bytes
+     * @param writeTimeoutMs How long a write may wait for the socket to drain
+     */
+    public NioTcpTransport(String host, int port, int connectTimeoutMs,
+            int sendBufferSize, int writeTimeoutMs) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.sendBufferSize = sendBufferSize;
+        this.writeTimeoutMs = writeTimeoutMs;
+    }
+    
+    /**
+     * Get the host this transport connects to
+     * @return The host name or IP address
+     */
+    public String getHost() {
+        return host;
+    }
+    
+    /**
+     * Open the connection and switch it to non-blocking mode
+     * @throws IOException if the connection failed
+     */
+    @Override
+    public void open() throws IOException {
+        close();
+        bytesWritten = 0;
+        partialWrites = 0;
+        channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.setSendBufferSize(sendBufferSize);
+            try {
+                socket.setTrafficClass(IPTOS_LOWDELAY);
+            } catch (IOException e) {
+                // Not every network stack honors the type of service
+            }
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            key = channel.register(selector, 0);
+            readSelector = Selector.open();
+            readKey = channel.register(readSelector, 0);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Read until a buffer is full, the timeout expires or the peer closes
+     * @param dst The buffer to read into
+     * @param timeoutMs How long to wait in total
+     * @return The number of bytes read
+     * @throws IOException if the read failed, EOFException if the glasses
+     *                     closed the connection before a byte was read
+     */
+    @Override
+    public int read(ByteBuffer dst, long timeoutMs) throws IOException {
+        int total = 0;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (dst.hasRemaining()) {
+            int count = channel.read(dst);
+            if (count < 0) {
+                if (total == 0) {
+                    throw new EOFException("Closed by the glasses");
+                }
+                break;
+            }
+            total += count;
+            if (count > 0) {
+                continue;
+            }
+            
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
+            await(readSelector, readKey, SelectionKey.OP_READ, wait);
+        }
+        return total;
+    }
+    
+    /**
+     * Write a message, prefixed with the protocol header
+     * @param type The message type
+     * @param payload The payload between position and limit, consumed
+     * @throws IOException if the write failed or timed out
+     */
+    @Override
+    public void writeMessage(int type, ByteBuffer payload) throws IOException {
+        header.clear();
+        ARGlassesProtocol.writeHeader(header, type, payload.remaining());
+        header.flip();
+        gather[0] = header;
+        gather[1] = payload;
+        try {
+            writeFully(gather, 0, 2);
+        } finally {
+            gather[1] = null;
+        }
+    }
+    
+    /**
+     * Write raw bytes without a header, for the legacy JSON format
+     * @param payload The bytes between position and limit, consumed
+     * @throws IOException if the write failed or timed out
+     */
+    @Override
+    public void write(ByteBuffer payload) throws IOException {
+        gather[1] = payload;
+        try {
+            writeFully(gather, 1, 1);
+        } finally {
+            gather[1] = null;
+        }
+    }
+    
+    /**
+     * Gather write until every buffer is drained
+     */
+    private void writeFully(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        ByteBuffer last = buffers[offset + length - 1];
+        long deadline = 0;
+        while (last.hasRemaining()) {
+            long written = channel.write(buffers, offset, length);
+            bytesWritten += written;
+            if (!last.hasRemaining()) {
+                break;
+            }
+            
+            // The send buffer is full, wait for it to drain
+            partialWrites++;
+            long now = System.currentTimeMillis();
+            if (deadline == 0) {
+                deadline = now + writeTimeoutMs;
+            } else if (now >= deadline) {
+                throw new SocketTimeoutException("Write timed out");
+            }
+            await(selector, key, SelectionKey.OP_WRITE, Math.max(1, deadline - now));
+        }
+    }
+    
+    /**
+     * Wait for the socket to become ready
+     * @param waitSelector The selector of the reads or of the writes
+     * @param waitKey The key of the channel in that selector
+     * @param ops The selection key operations to wait for
+     * @param timeoutMs How long to wait at most
+     * @throws AsynchronousCloseException if the transport was closed
+     */
+    private static void await(Selector waitSelector, SelectionKey waitKey, int ops,
+            long timeoutMs) throws IOException {
+        try {
+            waitKey.interestOps(ops);
+            try {
+                waitSelector.select(timeoutMs);
+                waitSelector.selectedKeys().clear();
+            } finally {
+                waitKey.interestOps(0);
+            }
+        } catch (ClosedSelectorException | CancelledKeyException e) {
+            throw new AsynchronousCloseException();
+        }
+    }
+    
+    @Override
+    public boolean isReliable() {
+        return true;
+    }
+    
+    /**
+     * Check whether the connection is open
+     * @return true if open
+     */
+    @Override
+    public boolean isOpen() {
+        return channel != null && channel.isOpen();
+    }
+    
+    /**
+     * Get the number of bytes written since the connection was opened
+     * @return The byte count
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+    
+    /**
+     * Get the number of writes that had to wait for the socket to drain
+     * @return The number of partial writes
+     */
+    public long getPartialWrites() {
+        return partialWrites;
+    }
+    
+    /**
+     * Close the connection. A read or write still in progress fails with a
+     * ClosedChannelException.
+     */
+    @Override
+    public void close() {
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        try {
+            if (readSelector != null) {
+                readSelector.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.atakmap.android.arglasses.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A link to the glasses. The connection manager opens a transport, runs
+ * the hello over it and then writes data messages to it from a single
+ * sender thread while a single reader thread takes the messages of the
+ * glasses. Implementations only have to be safe for that one writer, that
+ * one reader and a concurrent {@link #close()}.
+ */
+public interface Transport {
+    
+    /**
+     * Open the link
+     * @throws IOException if the link could not be opened
+     */
+    void open() throws IOException;
+    
+    /**
+     * Read until a buffer is full, the timeout expires or the peer closes
+     * @param dst The buffer to read into
+     * @param timeoutMs How long to wait in total
+     * @return The number of bytes read
+     * @throws IOException if the read failed, EOFException if the peer
+     *                     closed the link before a byte was read
+     */
+    int read(ByteBuffer dst, long timeoutMs) throws IOException;
+    
+    /**
+     * Write a message, prefixed with the protocol header
+     * @param type The message type
+     * @param payload The payload between position and limit, consumed
+     * @throws IOException if the write failed
+     */
+    void writeMessage(int type, ByteBuffer payload) throws IOException;
+    
+    /**
+     * Write raw bytes without a header, for the hello and the legacy JSON
+     * format
+     * @param payload The bytes between position and limit, consumed
+     * @throws IOException if the write failed
+     */
+    void write(ByteBuffer payload) throws IOException;
+    
+    /**
+     * Check whether messages arrive complete and in order. Unreliable
+     * transports may only carry messages that the glasses can lose.
+     * @return true if reliable
+     */
+    boolean isReliable();
+    
+    /**
+     * Check whether the link is open
+     * @return true if open
+     */
+    boolean isOpen();
+    
+    /**
+     * Close the link, may be called from any thread
+     */
+    void close();
+}
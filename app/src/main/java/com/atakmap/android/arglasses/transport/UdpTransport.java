@@ -0,0 +1,135 @@
+package com.atakmap.android.arglasses.transport;
+
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Datagram link for high rate pose data. Every message goes out as one
+ * datagram holding the protocol header and the payload, and is never
+ * retransmitted. A lost compass frame is simply replaced by the next one,
+ * and a retransmit of an old pose can never hold up the newest one the
+ * way it would on TCP. The glasses use the sequence number in the data
+ * frame to drop datagrams that arrive out of order.
+ *
+ * Messages must fit in a single datagram, which the small pose frames
+ * always do.
+ */
+public class UdpTransport implements Transport {
+    
+    // Stays below the usual 1500 byte MTU so datagrams are never fragmented
+    public static final int MAX_DATAGRAM_SIZE = 1400;
+    
+    private final String host;
+    private final int port;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(ARGlassesProtocol.HEADER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    
+    private volatile DatagramChannel channel;
+    private long datagramsSent;
+    
+    /**
+     * Create a transport
+     * @param host The host name or IP address of the glasses
+     * @param port The UDP port the glasses listen on
+     */
+    public UdpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+    
+    @Override
+    public void open() throws IOException {
+        close();
+        datagramsSent = 0;
+        channel = DatagramChannel.open();
+        try {
+            channel.connect(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Pose datagrams only flow to the glasses, nothing is read back
+     * @return Always 0
+     */
+    @Override
+    public int read(ByteBuffer dst, long timeoutMs) {
+        return 0;
+    }
+    
+    /**
+     * Send a message as one datagram. A datagram the socket cannot take
+     * right now is dropped, the next pose replaces it anyway.
+     * @param type The message type
+     * @param payload The payload between position and limit, consumed
+     * @throws IOException if the message is too large or the send failed
+     */
+    @Override
+    public void writeMessage(int type, ByteBuffer payload) throws IOException {
+        int length = ARGlassesProtocol.HEADER_SIZE + payload.remaining();
+        if (length > MAX_DATAGRAM_SIZE) {
+            throw new IOException("Message too large for a datagram: " + length);
+        }
+        header.clear();
+        ARGlassesProtocol.writeHeader(header, type, payload.remaining());
+        header.flip();
+        gather[0] = header;
+        gather[1] = payload;
+        try {
+            if (channel.write(gather) > 0) {
+                datagramsSent++;
+            }
+        } finally {
+            gather[1] = null;
+        }
+        payload.position(payload.limit());
+    }
+    
+    @Override
+    public void write(ByteBuffer payload) throws IOException {
+        if (payload.remaining() > MAX_DATAGRAM_SIZE) {
+            throw new IOException("Message too large for a datagram: "
+                    + payload.remaining());
+        }
+        if (channel.write(payload) > 0) {
+            datagramsSent++;
+        }
+        payload.position(payload.limit());
+    }
+    
+    @Override
+    public boolean isReliable() {
+        return false;
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return channel != null && channel.isOpen();
+    }
+    
+    /**
+     * Get the number of datagrams handed to the network
+     * @return The datagram count
+     */
+    public long getDatagramsSent() {
+        return datagramsSent;
+    }
+    
+    @Override
+    public void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.atakmap.android.arglasses.bench;
+
+import com.atakmap.android.arglasses.OutboundQueue;
+import com.atakmap.android.arglasses.POIFrameWriter;
+import com.atakmap.android.arglasses.SharedFrame;
+import com.atakmap.android.arglasses.data.POICollection;
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+import com.atakmap.android.arglasses.protocol.BinaryFrameEncoder;
+import com.atakmap.android.arglasses.protocol.PositionQuantizer;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that a POI frame on the binary send path allocates nothing once
+ * warmed up. The frames run through the same classes the service uses:
+ * markers move in a POICollection, whose changes and radius queries the
+ * POIFrameWriter turns into POI sections with the delta diff, the POI
+ * budget and its deferrals, local positions and the geometry section,
+ * and the frame passes through the outbound queues of two displays
+ * sharing it. Garbage made per frame shows as GC pauses on the device at
+ * the frame rate, so this runs with gradle check and fails the build.
+ *
+ *   cd benchmarks
+ *   gradle allocationCheck
+ *
+ * Allocations are counted per thread by the JVM, so the check needs a JVM
+ * that supports com.sun.management.ThreadMXBean, as HotSpot does. The JIT
+ * may still allocate a few bytes on the thread once in a while, e.g. when
+ * a method is recompiled, so the frames are measured in a few windows and
+ * the one that allocated least counts: garbage made per frame shows in
+ * every window.
+ */
+public final class AllocationCheck {
+    
+    private static final int MARKERS = 1000;
+    private static final int MOVING = 20;
+    private static final int MAX_POIS_PER_FRAME = MOVING / 2;
+    private static final int RADIUS_M = 50000;
+    // Frames streamed without and then with the radius. Switching resends
+    // every POI, which the tracker allocates for, so each is warmed up on
+    // its own.
+    private static final int[] RADII_M = {0, RADIUS_M};
+    private static final int WARMUP_FRAMES = 10000;
+    private static final int WINDOWS = 5;
+    private static final int WINDOW_FRAMES = 1000;
+    private static final int CHANNEL = 0;
+    
+    private final Scene scene = Scene.create(MARKERS, 17);
+    private final POICollection pois = new POICollection();
+    private final POIFrameWriter writer = new POIFrameWriter();
+    private final BinaryFrameEncoder encoder = new BinaryFrameEncoder();
+    private final SharedFrame.Pool frames = new SharedFrame.Pool();
+    private final OutboundQueue[] queues = {new OutboundQueue(1), new OutboundQueue(1)};
+    private final int[] moving = new int[MOVING];
+    private long now;
+    
+    private AllocationCheck() {
+        writer.getTracker().setKeyframeInterval(Long.MAX_VALUE);
+        writer.setSelf(true, Scene.SELF_LAT, Scene.SELF_LON, 100);
+        writer.setBudget(MAX_POIS_PER_FRAME, 0);
+        writer.setLocalPositions(new PositionQuantizer(PositionQuantizer.DEFAULT_PRECISION,
+                PositionQuantizer.DEFAULT_RANGE));
+        writer.getFrustum().update(Scene.SELF_LAT, Scene.SELF_LON, 100, 45, 0, 0);
+        for (int i = 0; i < MOVING; i++) {
+            moving[i] = i * MARKERS / MOVING;
+        }
+        for (int i = 0; i < scene.size; i++) {
+            put(i);
+        }
+    }
+    
+    public static void main(String[] args) {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.err.println("Allocation counting is not supported by this JVM");
+            System.exit(2);
+        }
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        long thread = Thread.currentThread().getId();
+        
+        AllocationCheck check = new AllocationCheck();
+        int bytes = 0;
+        long allocated = 0;
+        for (int radius : RADII_M) {
+            check.writer.setStreamRadius(radius);
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                bytes += check.frame();
+            }
+            
+            long least = Long.MAX_VALUE;
+            for (int w = 0; w < WINDOWS; w++) {
+                long before = counter.getThreadAllocatedBytes(thread);
+                for (int i = 0; i < WINDOW_FRAMES; i++) {
+                    bytes += check.frame();
+                }
+                least = Math.min(least, counter.getThreadAllocatedBytes(thread) - before);
+            }
+            allocated += least;
+        }
+        
+        int frames = WINDOW_FRAMES * RADII_M.length;
+        System.out.println("Frames: " + frames + " of " + MARKERS + " markers, "
+                + MOVING + " moving, " + bytes + " bytes sent");
+        System.out.println("Allocated: " + allocated + " bytes, "
+                + (double) allocated / frames + " per frame");
+        if (allocated != 0) {
+            System.err.println("The binary send path allocates per frame");
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Build, queue and write one frame
+     * @return The bytes written to both displays
+     */
+    private int frame() {
+        now++;
+        move();
+        
+        encoder.setFields(ARGlassesProtocol.FIELD_ALL);
+        encoder.begin(now);
+        writer.write(pois, encoder, ARGlassesProtocol.FIELD_ALL, null, now);
+        SharedFrame frame = frames.acquire(encoder.finishBuffer());
+        for (OutboundQueue queue : queues) {
+            queue.offer(CHANNEL, frame, now);
+        }
+        frame.release();
+        
+        int size = 0;
+        for (OutboundQueue queue : queues) {
+            int channel = queue.poll();
+            ByteBuffer written = queue.getWriting(channel);
+            size += written.remaining();
+            written.position(written.limit());
+            queue.release(channel);
+        }
+        return size;
+    }
+    
+    /**
+     * Move the moving markers by about 10 m, back and forth
+     */
+    private void move() {
+        double step = (now & 1) == 0 ? 1e-4 : -1e-4;
+        for (int i : moving) {
+            scene.lats[i] += step;
+            put(i);
+        }
+    }
+    
+    private void put(int i) {
+        pois.put(scene.ids[i], scene.names[i], scene.types[i], scene.lats[i],
+                scene.lons[i], scene.alts[i], scene.colors[i], now);
+    }
+}
@@ -0,0 +1,100 @@
+package com.atakmap.android.arglasses.bench;
+
+import com.atakmap.android.arglasses.protocol.POIDeltaTracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Working out which POIs changed since the last frame while one percent
+ * of them move every frame. The full diff compares every POI against the
+ * last sent state, as filtered frames do. The changes variant only looks
+ * at the POIs the index reported as changed, as unfiltered frames do.
+ */
+@State(Scope.Benchmark)
+public class DeltaBenchmark {
+    
+    @Param({"100", "1000", "10000", "100000"})
+    public int markers;
+    
+    private Scene scene;
+    private POIDeltaTracker tracker;
+    private final List<String> removed = new ArrayList<>();
+    private int[] moving;
+    private long now;
+    
+    @Setup
+    public void setUp() {
+        scene = Scene.create(markers, 3);
+        tracker = new POIDeltaTracker();
+        tracker.setKeyframeInterval(Long.MAX_VALUE);
+        moving = new int[Math.max(1, markers / 100)];
+        for (int i = 0; i < moving.length; i++) {
+            moving[i] = (int) ((long) i * markers / moving.length);
+        }
+        
+        // The keyframe everything is diffed against
+        now = 1;
+        tracker.beginFrame(now);
+        for (int i = 0; i < scene.size; i++) {
+            markSent(i);
+        }
+        tracker.endFrame(removed);
+    }
+    
+    @Benchmark
+    public int fullDiff() {
+        move();
+        tracker.beginFrame(++now);
+        int changed = 0;
+        for (int i = 0; i < scene.size; i++) {
+            if (hasChanged(i)) {
+                markSent(i);
+                changed++;
+            }
+        }
+        removed.clear();
+        tracker.endFrame(removed);
+        return changed;
+    }
+    
+    @Benchmark
+    public int changes() {
+        move();
+        tracker.beginFrame(++now);
+        int changed = 0;
+        for (int index : moving) {
+            if (hasChanged(index)) {
+                markSent(index);
+                changed++;
+            }
+        }
+        return changed;
+    }
+    
+    /**
+     * Move the moving markers by about 10 m, back and forth
+     */
+    private void move() {
+        double step = (now & 1) == 0 ? 1e-4 : -1e-4;
+        for (int index : moving) {
+            scene.lats[index] += step;
+        }
+    }
+    
+    private boolean hasChanged(int i) {
+        return tracker.hasChanged(scene.ids[i], scene.names[i], scene.types[i],
+                scene.lats[i], scene.lons[i], scene.alts[i], scene.colors[i]);
+    }
+    
+    private void markSent(int i) {
+        tracker.markSent(scene.ids[i], scene.names[i], scene.types[i],
+                scene.lats[i], scene.lons[i], scene.alts[i], scene.colors[i]);
+    }
+}
@@ -0,0 +1,83 @@
+package com.atakmap.android.arglasses.bench;
+
+import com.atakmap.android.arglasses.protocol.BinaryFrameEncoder;
+import com.atakmap.android.arglasses.protocol.FrameCompressor;
+import com.atakmap.android.arglasses.protocol.FrameEncoder;
+import com.atakmap.android.arglasses.protocol.JsonFrameEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding a full POI frame with map and compass sections in each wire
+ * format. The binary encoder is measured on a connection that is up, with
+ * its string table filled, and right after connecting, when every string
+ * still has to be sent. The deflate format adds frame compression to the
+ * steady binary frame.
+ */
+@State(Scope.Benchmark)
+public class FrameEncodeBenchmark {
+    
+    @Param({"100", "1000", "10000", "100000"})
+    public int markers;
+    
+    @Param({"json", "binary", "binary-deflate"})
+    public String format;
+    
+    private Scene scene;
+    private FrameEncoder encoder;
+    private FrameCompressor compressor;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        scene = Scene.create(markers, 2);
+        encoder = "json".equals(format) ? new JsonFrameEncoder() : new BinaryFrameEncoder();
+        if ("binary-deflate".equals(format)) {
+            compressor = new FrameCompressor(1);
+        }
+        encode();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (compressor != null) {
+            compressor.end();
+        }
+    }
+    
+    @Benchmark
+    public int keyframe() {
+        return encode();
+    }
+    
+    @Benchmark
+    public int keyframeAfterConnect() {
+        encoder.reset();
+        return encode();
+    }
+    
+    private int encode() {
+        encoder.begin(1700000000000L);
+        encoder.beginPois(true);
+        for (int i = 0; i < scene.size; i++) {
+            encoder.writePoi(scene.ids[i], scene.names[i], scene.types[i],
+                    scene.lats[i], scene.lons[i], scene.alts[i], scene.colors[i], 0, 0, 0);
+        }
+        encoder.endPois();
+        encoder.writeMap(true, Scene.SELF_LAT, Scene.SELF_LON, 12, 15, 90);
+        encoder.writeCompass(90, 5, 1, 10, 0, 0, 20);
+        ByteBuffer frame = encoder.finishBuffer();
+        if (compressor == null) {
+            return frame.remaining();
+        }
+        compressor.compress(0, frame, false);
+        return compressor.getOutput().remaining();
+    }
+}
@@ -0,0 +1,57 @@
+package com.atakmap.android.arglasses.bench;
+
+import com.atakmap.android.arglasses.data.MarkerTypes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Type classification of every marker of a scene, as done when the POI
+ * index is filled. The split variant is the classification the plugin
+ * used before, kept as the baseline.
+ */
+@State(Scope.Benchmark)
+public class MarkerTypeBenchmark {
+    
+    @Param({"100", "1000", "10000", "100000"})
+    public int markers;
+    
+    private Scene scene;
+    
+    @Setup
+    public void setUp() {
+        scene = Scene.create(markers, 1);
+    }
+    
+    @Benchmark
+    public void classify(Blackhole blackhole) {
+        for (int i = 0; i < scene.size; i++) {
+            blackhole.consume(MarkerTypes.determineMarkerType(scene.cotTypes[i],
+                    scene.iconPaths[i]));
+        }
+    }
+    
+    @Benchmark
+    public void classifyBySplit(Blackhole blackhole) {
+        for (int i = 0; i < scene.size; i++) {
+            blackhole.consume(splitType(scene.cotTypes[i], scene.iconPaths[i]));
+        }
+    }
+    
+    private static String splitType(String type, String iconPath) {
+        if (type == null || type.isEmpty()) {
+            if (iconPath != null && !iconPath.isEmpty()) {
+                String[] parts = iconPath.split("/");
+                if (parts.length > 0) {
+                    return parts[parts.length - 1].replace(".png", "");
+                }
+            }
+            return "marker";
+        }
+        return type;
+    }
+}
@@ -0,0 +1,86 @@
+package com.atakmap.android.arglasses.bench;
+
+import com.atakmap.android.arglasses.data.PosePredictor;
+import com.atakmap.android.arglasses.data.PoseSnapshot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * The orientation math of every sensor event and every compass frame:
+ * turning a rotation vector into heading, pitch and roll, estimating the
+ * angular velocity, and predicting the pose ahead. Runs over a synthetic
+ * head turn sampled at 200 Hz.
+ */
+@State(Scope.Thread)
+public class OrientationBenchmark {
+    
+    private static final int SAMPLES = 1024;
+    private static final long SAMPLE_NANOS = 5000000L;
+    
+    private final float[][] rotationVectors = new float[SAMPLES][];
+    private final PoseSnapshot[] moving = new PoseSnapshot[SAMPLES];
+    private final float[] prediction = new float[PosePredictor.PREDICTION_SIZE];
+    private final PosePredictor predictor = new PosePredictor();
+    private int next;
+    
+    @Setup
+    public void setUp() {
+        Random random = new Random(4);
+        PosePredictor setupPredictor = new PosePredictor();
+        for (int i = 0; i < SAMPLES; i++) {
+            // Turning about the up axis at 90 deg/s with a little sensor noise
+            double yaw = Math.toRadians(90.0 * i * SAMPLE_NANOS / 1e9);
+            double pitch = Math.toRadians(10 + random.nextGaussian() * 0.2);
+            float[] vector = rotationVector(yaw, pitch);
+            rotationVectors[i] = vector;
+            moving[i] = setupPredictor.update(PoseSnapshot.fromRotationVector(vector,
+                    i * SAMPLE_NANOS, PoseSnapshot.SOURCE_ROTATION_VECTOR));
+        }
+    }
+    
+    @Benchmark
+    public PoseSnapshot fromRotationVector() {
+        int i = next++ & (SAMPLES - 1);
+        return PoseSnapshot.fromRotationVector(rotationVectors[i], i * SAMPLE_NANOS,
+                PoseSnapshot.SOURCE_ROTATION_VECTOR);
+    }
+    
+    @Benchmark
+    public PoseSnapshot sensorEvent() {
+        // Everything done per sensor event: the snapshot and the motion
+        int i = next++ & (SAMPLES - 1);
+        if (i == 0) {
+            predictor.reset();
+        }
+        return predictor.update(PoseSnapshot.fromRotationVector(rotationVectors[i],
+                i * SAMPLE_NANOS, PoseSnapshot.SOURCE_ROTATION_VECTOR));
+    }
+    
+    @Benchmark
+    public float[] predict() {
+        PosePredictor.predict(moving[next++ & (SAMPLES - 1)], 40000000L, prediction);
+        return prediction;
+    }
+    
+    /**
+     * Build the rotation vector of a device held upright and turned
+     * @param yaw The rotation about the up axis in radians
+     * @param pitch The rotation about the east axis in radians
+     * @return x, y, z and w of the rotation quaternion
+     */
+    private static float[] rotationVector(double yaw, double pitch) {
+        double cy = Math.cos(yaw / 2);
+        double sy = Math.sin(yaw / 2);
+        double cp = Math.cos(pitch / 2);
+        double sp = Math.sin(pitch / 2);
+        // Yaw about z, then pitch about x
+        return new float[] {
+                (float) (cy * sp), (float) (sy * sp), (float) (sy * cp), (float) (cy * cp)
+        };
+    }
+}
@@ -0,0 +1,143 @@
+package com.atakmap.android.arglasses.bench;
+
+import com.atakmap.android.arglasses.data.POIStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Scanning every marker for the hostile ones near self, and moving one
+ * percent of the markers by id, with the markers in the columns of a POIStore
+ * against an object per marker holding a point object and its strings,
+ * the way POIData holds them. The objects are listed in a different
+ * order than they were allocated in, as markers that changed at
+ * different times are.
+ */
+@State(Scope.Benchmark)
+public class POIStoreBenchmark {
+    
+    private static final double BOX_DEG = 0.25;
+    
+    private static final class Point {
+        final double lat;
+        final double lon;
+        final double alt;
+        
+        Point(double lat, double lon, double alt) {
+            this.lat = lat;
+            this.lon = lon;
+            this.alt = alt;
+        }
+    }
+    
+    private static final class Poi {
+        final String id;
+        final String name;
+        final String type;
+        final Point location;
+        final int color;
+        final long updateTime;
+        
+        Poi(String id, String name, String type, Point location, int color,
+                long updateTime) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.location = location;
+            this.color = color;
+            this.updateTime = updateTime;
+        }
+    }
+    
+    @Param({"10000", "50000", "100000"})
+    public int markers;
+    
+    private Scene scene;
+    private final POIStore store = new POIStore();
+    private final List<Poi> pois = new ArrayList<>();
+    private final Map<String, Poi> poisById = new HashMap<>();
+    private int[] moving;
+    private long now;
+    
+    @Setup
+    public void setUp() {
+        scene = Scene.create(markers, 13);
+        store.clear();
+        pois.clear();
+        poisById.clear();
+        for (int i = 0; i < scene.size; i++) {
+            store.put(scene.ids[i], scene.names[i], scene.types[i], scene.lats[i],
+                    scene.lons[i], scene.alts[i], scene.colors[i], 0);
+            Poi poi = new Poi(scene.ids[i], scene.names[i], scene.types[i],
+                    new Point(scene.lats[i], scene.lons[i], scene.alts[i]),
+                    scene.colors[i], 0);
+            pois.add(poi);
+            poisById.put(poi.id, poi);
+        }
+        Collections.shuffle(pois, new Random(13));
+        moving = new int[Math.max(1, markers / 100)];
+        for (int i = 0; i < moving.length; i++) {
+            moving[i] = (int) ((long) i * markers / moving.length);
+        }
+    }
+    
+    @Benchmark
+    public int storeScan() {
+        int hostile = store.getStrings().find("a-h-G");
+        int found = 0;
+        for (int slot = 0; slot < store.getSlotLimit(); slot++) {
+            if (store.isLive(slot) && store.getTypeId(slot) == hostile
+                    && Math.abs(store.getLat(slot) - Scene.SELF_LAT) < BOX_DEG
+                    && Math.abs(store.getLon(slot) - Scene.SELF_LON) < BOX_DEG) {
+                found++;
+            }
+        }
+        return found;
+    }
+    
+    @Benchmark
+    public int objectScan() {
+        int found = 0;
+        for (int i = 0; i < pois.size(); i++) {
+            Poi poi = pois.get(i);
+            if ("a-h-G".equals(poi.type)
+                    && Math.abs(poi.location.lat - Scene.SELF_LAT) < BOX_DEG
+                    && Math.abs(poi.location.lon - Scene.SELF_LON) < BOX_DEG) {
+                found++;
+            }
+        }
+        return found;
+    }
+    
+    @Benchmark
+    public int storeUpdate() {
+        now++;
+        for (int i : moving) {
+            store.put(scene.ids[i], scene.names[i], scene.types[i],
+                    scene.lats[i] + (now & 0xFF) * 1e-6, scene.lons[i], scene.alts[i],
+                    scene.colors[i], now);
+        }
+        return store.size();
+    }
+    
+    @Benchmark
+    public int objectUpdate() {
+        now++;
+        for (int i : moving) {
+            poisById.put(scene.ids[i], new Poi(scene.ids[i], scene.names[i], scene.types[i],
+                    new Point(scene.lats[i] + (now & 0xFF) * 1e-6, scene.lons[i],
+                            scene.alts[i]), scene.colors[i], now));
+        }
+        return poisById.size();
+    }
+}
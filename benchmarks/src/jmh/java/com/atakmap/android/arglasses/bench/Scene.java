@@ -0,0 +1,79 @@
+package com.atakmap.android.arglasses.bench;
+
+import java.util.Random;
+
+/**
+ * A synthetic map of markers, the same for a given size and seed so runs
+ * compare. Markers are spread over two by two degrees around the self
+ * location. Most carry a CoT type, some only an icon and a few neither,
+ * the mix the type classification sees on a busy map.
+ */
+final class Scene {
+    
+    // Self location the markers are spread around
+    static final double SELF_LAT = 38.8977;
+    static final double SELF_LON = -77.0365;
+    static final double SPREAD_DEG = 2.0;
+    
+    private static final String[] TYPES = {
+            "a-f-G-U-C", "a-h-G", "a-n-G", "a-u-G", "a-f-G-E-V", "a-h-G-E-V",
+            "a-f-A", "b-m-p-s-m", "b-m-p-w", "u-d-p", "b-m-p-c-ip"
+    };
+    private static final String[] ICONS = {
+            "asset://icons/reference_point.png", "icons/friendly/8.png",
+            "34ae1613-9645-4222-a9d2-e5f243dea2865/Google/camera.png",
+            "COT_MAPPING_SPOTMAP/b-m-p-s-m/-65536", "icons/hostile/",
+            "sqlite://icons.sqlite/Military/ambush.png"
+    };
+    private static final int[] COLORS = {
+            0xFFFFFFFF, 0xFFFF0000, 0xFF0000FF, 0xFF00FF00, 0xFFFFFF00
+    };
+    
+    final int size;
+    final String[] ids;
+    final String[] names;
+    final String[] cotTypes; // Empty for markers typed by their icon
+    final String[] iconPaths; // Null for markers without an icon
+    final String[] types; // The classified type
+    final double[] lats;
+    final double[] lons;
+    final float[] alts;
+    final int[] colors;
+    
+    private Scene(int size) {
+        this.size = size;
+        ids = new String[size];
+        names = new String[size];
+        cotTypes = new String[size];
+        iconPaths = new String[size];
+        types = new String[size];
+        lats = new double[size];
+        lons = new double[size];
+        alts = new float[size];
+        colors = new int[size];
+    }
+    
+    /**
+     * Create a scene
+     * @param size The number of markers
+     * @param seed The random seed
+     * @return The scene
+     */
+    static Scene create(int size, long seed) {
+        Random random = new Random(seed);
+        Scene scene = new Scene(size);
+        for (int i = 0; i < size; i++) {
+            scene.ids[i] = "ANDROID-" + Long.toHexString(random.nextLong()) + "-" + i;
+            scene.names[i] = "Marker " + i;
+            int kind = random.nextInt(10);
+            scene.cotTypes[i] = kind < 7 ? TYPES[random.nextInt(TYPES.length)] : "";
+            scene.iconPaths[i] = kind < 9 ? ICONS[random.nextInt(ICONS.length)] : null;
+            scene.types[i] = kind < 7 ? scene.cotTypes[i] : "marker";
+            scene.lats[i] = SELF_LAT + (random.nextDouble() - 0.5) * SPREAD_DEG;
+            scene.lons[i] = SELF_LON + (random.nextDouble() - 0.5) * SPREAD_DEG;
+            scene.alts[i] = (float) (random.nextDouble() * 500);
+            scene.colors[i] = COLORS[random.nextInt(COLORS.length)];
+        }
+        return scene;
+    }
+}
@@ -0,0 +1,61 @@
+package com.atakmap.android.arglasses.bench;
+
+import com.atakmap.android.arglasses.data.POISpatialIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Finding the markers within the stream radius of the self location with
+ * the grid index against a linear haversine scan over every marker, what
+ * each POI frame cost before the index.
+ */
+@State(Scope.Benchmark)
+public class SpatialQueryBenchmark {
+    
+    @Param({"100", "1000", "10000", "100000"})
+    public int markers;
+    
+    @Param({"5000"})
+    public double radiusMeters;
+    
+    private Scene scene;
+    private final POISpatialIndex index = new POISpatialIndex();
+    private int[] out;
+    
+    @Setup
+    public void setUp() {
+        scene = Scene.create(markers, 5);
+        out = new int[scene.size];
+        for (int i = 0; i < scene.size; i++) {
+            index.put(i, scene.lats[i], scene.lons[i]);
+        }
+    }
+    
+    @Benchmark
+    public int grid() {
+        return index.queryRadius(Scene.SELF_LAT, Scene.SELF_LON, radiusMeters, out);
+    }
+    
+    @Benchmark
+    public int linearScan() {
+        int count = 0;
+        double lat1 = Math.toRadians(Scene.SELF_LAT);
+        double cosLat1 = Math.cos(lat1);
+        for (int i = 0; i < scene.size; i++) {
+            double lat2 = Math.toRadians(scene.lats[i]);
+            double sinDLat = Math.sin((lat2 - lat1) / 2);
+            double sinDLon = Math.sin(Math.toRadians(scene.lons[i] - Scene.SELF_LON) / 2);
+            double a = sinDLat * sinDLat + cosLat1 * Math.cos(lat2) * sinDLon * sinDLon;
+            double distance = 2 * POISpatialIndex.EARTH_RADIUS_M
+                    * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+            if (distance <= radiusMeters) {
+                out[count++] = i;
+            }
+        }
+        return count;
+    }
+}
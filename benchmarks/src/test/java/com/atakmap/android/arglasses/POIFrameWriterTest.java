@@ -0,0 +1,162 @@
+package com.atakmap.android.arglasses;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.atakmap.android.arglasses.data.POIBatch;
+import com.atakmap.android.arglasses.data.POICollection;
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+import com.atakmap.android.arglasses.protocol.BinaryFrameEncoder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The steps a {@link POIFrameWriter} builds a binary POI section in.
+ */
+public class POIFrameWriterTest {
+    
+    private static final double SELF_LAT = 38.9;
+    private static final double SELF_LON = -77.0;
+    
+    private final POICollection source = new POICollection();
+    private final POIFrameWriter writer = new POIFrameWriter();
+    private final BinaryFrameEncoder encoder = new BinaryFrameEncoder();
+    private long now = 1000;
+    
+    @Before
+    public void setUp() {
+        writer.setSelf(true, SELF_LAT, SELF_LON, 10);
+        put("friend", "a-f-G", 0.001);
+        put("hostile", "a-h-G", 0.002);
+        put("point", "b-m-p-s-m", 0.003);
+    }
+    
+    @Test
+    public void keyframeThenOnlyTheChangedPois() {
+        frame(null);
+        assertEquals(3, writer.getTracker().getSentCount());
+        
+        put("hostile", "a-h-G", 0.004);
+        begin(null);
+        assertEquals(1, writer.collect(source));
+        assertEquals(Arrays.asList("hostile"), pending(writer.filter()));
+    }
+    
+    @Test
+    public void filterKeepsTheSubscribedTypes() {
+        List<String> types = Arrays.asList("a-h", "b-m");
+        begin(types);
+        assertEquals(3, writer.collect(source));
+        assertEquals(Arrays.asList("hostile", "point"), pending(writer.filter()));
+    }
+    
+    @Test
+    public void filterSkipsChangesToFieldsLeftOut() {
+        int fields = ARGlassesProtocol.FIELD_ALL & ~ARGlassesProtocol.FIELD_POI_NAME;
+        frame(fields);
+        
+        source.put("friend", "renamed", "a-f-G", SELF_LAT + 0.001, SELF_LON, 10,
+                0xFFFFFFFF, now);
+        now += 100;
+        encoder.begin(now);
+        writer.begin(encoder, fields, null, now);
+        assertEquals(1, writer.collect(source));
+        assertEquals(0, writer.filter());
+    }
+    
+    @Test
+    public void selectSendsHostilesFirstAndDefersTheRest() {
+        writer.setBudget(2, 0);
+        begin(null);
+        writer.collect(source);
+        int selected = writer.select(writer.filter(), now);
+        assertEquals(2, selected);
+        POIBatch pois = writer.getBatch();
+        assertEquals("hostile", pois.getId(writer.getSelected()[0]));
+        assertEquals("friend", pois.getId(writer.getSelected()[1]));
+        assertEquals(Collections.singletonList("point"), writer.getDeferred());
+    }
+    
+    @Test
+    public void deferredPoisAreSentByTheNextFrames() {
+        writer.setBudget(1, 0);
+        frame(null);
+        assertEquals(1, writer.getTracker().getSentCount());
+        frame(null);
+        frame(null);
+        assertEquals(3, writer.getTracker().getSentCount());
+        
+        // Nothing waits any more
+        begin(null);
+        writer.collect(source);
+        assertEquals(0, writer.filter());
+    }
+    
+    @Test
+    public void removedPoisAreWrittenOnce() {
+        frame(null);
+        source.remove("point");
+        
+        begin(null);
+        writer.collect(source);
+        assertEquals(Collections.singletonList("point"), writer.getRemoved());
+        encoder.beginPois(false);
+        writer.writeRemovals(encoder);
+        encoder.endPois();
+        assertEquals(2, writer.getTracker().getSentCount());
+        assertFalse(writer.getTracker().remove("point"));
+    }
+    
+    @Test
+    public void streamRadiusLeavesFarPoisOut() {
+        put("far", "a-h-G", 1.0);
+        writer.setStreamRadius(5000);
+        begin(null);
+        assertEquals(3, writer.collect(source));
+        assertFalse(pending(writer.filter()).contains("far"));
+        
+        writer.setSelf(false, 0, 0, 0);
+        begin(null);
+        assertEquals(4, writer.collect(source));
+    }
+    
+    private void put(String id, String type, double north) {
+        source.put(id, "name " + id, type, SELF_LAT + north, SELF_LON, 10,
+                0xFFFFFFFF, now);
+    }
+    
+    private void begin(List<String> types) {
+        now += 100;
+        encoder.begin(now);
+        writer.begin(encoder, ARGlassesProtocol.FIELD_ALL, types, now);
+    }
+    
+    private void frame(List<String> types) {
+        frame(ARGlassesProtocol.FIELD_ALL, types);
+    }
+    
+    private void frame(int fields) {
+        frame(fields, null);
+    }
+    
+    private void frame(int fields, List<String> types) {
+        now += 100;
+        encoder.begin(now);
+        writer.write(source, encoder, fields, types, now);
+        encoder.finishBuffer();
+    }
+    
+    private List<String> pending(int count) {
+        List<String> ids = new ArrayList<>();
+        for (int n = 0; n < count; n++) {
+            ids.add(writer.getBatch().getId(writer.getPending()[n]));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,127 @@
+package com.atakmap.android.arglasses.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The changes a {@link POICollection} reports, with removals that keep
+ * their slot until they are drained.
+ */
+public class POICollectionTest {
+    
+    private final POICollection pois = new POICollection();
+    private final POIBatch batch = new POIBatch();
+    private final List<String> removed = new ArrayList<>();
+    
+    @Test
+    public void drainReportsEachChangeOnceInOrder() {
+        put("a", 38.9);
+        put("b", 38.9);
+        put("a", 38.91);
+        drain();
+        assertEquals(Arrays.asList("a", "b"), ids());
+        assertEquals(38.91, batch.getLat(0), 0);
+        assertTrue(removed.isEmpty());
+        
+        drain();
+        assertEquals(0, batch.size());
+    }
+    
+    @Test
+    public void removalIsDrainedWithItsId() {
+        put("a", 38.9);
+        put("b", 38.9);
+        drain();
+        
+        put("a", 38.92);
+        assertTrue(pois.remove("a"));
+        assertFalse(pois.remove("a"));
+        assertEquals(1, pois.size());
+        drain();
+        assertEquals(0, batch.size());
+        assertEquals(Arrays.asList("a"), removed);
+        
+        pois.getAll(batch);
+        assertEquals(Arrays.asList("b"), ids());
+    }
+    
+    @Test
+    public void putBackBeforeTheDrainCancelsTheRemoval() {
+        put("a", 38.9);
+        drain();
+        
+        pois.remove("a");
+        put("a", 38.93);
+        assertEquals(1, pois.size());
+        drain();
+        assertEquals(Arrays.asList("a"), ids());
+        assertTrue(removed.isEmpty());
+        
+        // Removed again, the slot is listed once more
+        pois.remove("a");
+        drain();
+        assertEquals(Arrays.asList("a"), removed);
+        assertEquals(0, pois.size());
+    }
+    
+    @Test
+    public void rangeQueriesSkipRemovedPois() {
+        put("near", 38.9);
+        put("far", 40.0);
+        put("gone", 38.9);
+        pois.remove("gone");
+        pois.queryRadius(38.9, -77.0, 5000, batch);
+        assertEquals(Arrays.asList("near"), ids());
+    }
+    
+    @Test
+    public void requeueMarksHeldPoisChangedAgain() {
+        put("a", 38.9);
+        put("b", 38.9);
+        drain();
+        
+        pois.remove("b");
+        pois.requeue(Arrays.asList("a", "b", "unknown"));
+        drain();
+        assertEquals(Arrays.asList("a"), ids());
+        assertEquals(Arrays.asList("b"), removed);
+    }
+    
+    @Test
+    public void snapshotDropsThePendingChanges() {
+        put("a", 38.9);
+        put("b", 38.9);
+        pois.remove("b");
+        pois.snapshot(batch);
+        assertEquals(Arrays.asList("a"), ids());
+        
+        drain();
+        assertEquals(0, batch.size());
+        assertTrue(removed.isEmpty());
+    }
+    
+    private void put(String id, double lat) {
+        pois.put(id, "name " + id, "a-f-G", lat, -77.0, 10, 0xFFFFFFFF, 1);
+    }
+    
+    private void drain() {
+        batch.clear();
+        removed.clear();
+        pois.drainChanges(batch, removed);
+    }
+    
+    private List<String> ids() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            ids.add(batch.getId(i));
+        }
+        return ids;
+    }
+}
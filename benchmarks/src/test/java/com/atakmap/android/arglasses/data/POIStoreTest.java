@@ -0,0 +1,89 @@
+package com.atakmap.android.arglasses.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Slots and strings of a {@link POIStore} as POIs are put, removed and
+ * put again.
+ */
+public class POIStoreTest {
+    
+    private final POIStore store = new POIStore();
+    
+    @Test
+    public void putUpdatesThePoiInItsSlot() {
+        int slot = put("a", "Alpha", 38.9);
+        assertEquals(slot, put("a", "Alpha", 38.95));
+        assertEquals(1, store.size());
+        assertEquals(38.95, store.getLat(slot), 0);
+        assertEquals("Alpha", store.getName(slot));
+        assertEquals("a-f-G", store.getType(slot));
+        assertEquals(slot, store.find("a"));
+    }
+    
+    @Test
+    public void renamingReleasesTheOldName() {
+        int slot = put("a", "Alpha", 38.9);
+        put("a", "Bravo", 38.9);
+        assertEquals("Bravo", store.getName(slot));
+        assertEquals(POIStringTable.NULL_ID, store.getStrings().find("Alpha"));
+        // The type id is shared and kept
+        assertEquals(store.getStrings().find("a-f-G"), store.getTypeId(slot));
+    }
+    
+    @Test
+    public void removedSlotsAreReused() {
+        int a = put("a", "Alpha", 38.9);
+        int b = put("b", "Bravo", 38.9);
+        int limit = store.getSlotLimit();
+        
+        assertTrue(store.remove("a"));
+        assertFalse(store.remove("a"));
+        assertFalse(store.isLive(a));
+        assertNull(store.getId(a));
+        assertEquals(POIStore.NO_SLOT, store.find("a"));
+        assertEquals(1, store.size());
+        assertEquals(POIStringTable.NULL_ID, store.getStrings().find("Alpha"));
+        
+        int c = put("c", "Charlie", 39.0);
+        assertEquals(a, c);
+        assertEquals(limit, store.getSlotLimit());
+        assertTrue(store.isLive(c));
+        assertEquals("Charlie", store.getName(c));
+        assertEquals(b, store.find("b"));
+    }
+    
+    @Test
+    public void clearEmptiesTheSlotsAndStrings() {
+        put("a", "Alpha", 38.9);
+        put("b", "Bravo", 38.9);
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getSlotLimit());
+        assertEquals(0, store.getStrings().size());
+        assertEquals(POIStore.NO_SLOT, store.find("a"));
+        assertEquals(0, put("b", "Bravo", 38.9));
+    }
+    
+    @Test
+    public void columnsGrowPastTheirInitialCapacity() {
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, put("poi-" + i, "name " + i, 38.9 + i * 1e-4));
+        }
+        for (int i = 0; i < 1000; i++) {
+            int slot = store.find("poi-" + i);
+            assertEquals(i, slot);
+            assertEquals("name " + i, store.getName(slot));
+            assertEquals(38.9 + i * 1e-4, store.getLat(slot), 0);
+        }
+    }
+    
+    private int put(String id, String name, double lat) {
+        return store.put(id, name, "a-f-G", lat, -77.0, 10, 0xFFFFFFFF, 1);
+    }
+}
@@ -0,0 +1,73 @@
+package com.atakmap.android.arglasses.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Reference counting and id reuse in a {@link POIStringTable}.
+ */
+public class POIStringTableTest {
+    
+    private final POIStringTable table = new POIStringTable();
+    
+    @Test
+    public void equalStringsShareOneId() {
+        int first = table.acquire("a-h-G");
+        int second = table.acquire(new String("a-h-G"));
+        assertEquals(first, second);
+        assertEquals(1, table.size());
+        assertEquals("a-h-G", table.get(first));
+        assertEquals(first, table.find("a-h-G"));
+    }
+    
+    @Test
+    public void stringStaysUntilTheLastReferenceIsReleased() {
+        int id = table.acquire("Alpha");
+        table.acquire("Alpha");
+        
+        table.release(id);
+        assertEquals("Alpha", table.get(id));
+        assertEquals(id, table.find("Alpha"));
+        
+        table.release(id);
+        assertNull(table.get(id));
+        assertEquals(POIStringTable.NULL_ID, table.find("Alpha"));
+        assertEquals(0, table.size());
+    }
+    
+    @Test
+    public void releasedIdsAreReusedWithoutGrowing() {
+        int first = table.acquire("name 1");
+        int limit = table.getIdLimit();
+        for (int i = 2; i < 1000; i++) {
+            // A name that changes with every update
+            table.release(first);
+            first = table.acquire("name " + i);
+        }
+        assertEquals(limit, table.getIdLimit());
+        assertEquals("name 999", table.get(first));
+        assertEquals(1, table.size());
+    }
+    
+    @Test
+    public void nullIsTheNullId() {
+        assertEquals(POIStringTable.NULL_ID, table.acquire(null));
+        assertNull(table.get(POIStringTable.NULL_ID));
+        table.release(POIStringTable.NULL_ID);
+        assertEquals(0, table.size());
+        assertEquals(POIStringTable.NULL_ID, table.find(null));
+    }
+    
+    @Test
+    public void clearStartsTheIdsOver() {
+        table.acquire("a");
+        table.acquire("b");
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(POIStringTable.NULL_ID + 1, table.getIdLimit());
+        assertEquals(POIStringTable.NULL_ID, table.find("a"));
+        assertEquals(POIStringTable.NULL_ID + 1, table.acquire("c"));
+    }
+}
@@ -0,0 +1,129 @@
+package com.atakmap.android.arglasses.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Lookups in a {@link StringIndex} after removals, which move the entries
+ * of a probe run back into the hole instead of leaving tombstones.
+ */
+public class StringIndexTest {
+    
+    // The table size of a new index, and the most keys it holds unresized
+    private static final int TABLE_SIZE = 64;
+    private static final int UNRESIZED = 42;
+    
+    private final StringIndex index = new StringIndex();
+    private final String[] keys = new String[1024];
+    
+    @Test
+    public void removeInTheMiddleOfAProbeRunKeepsTheRestFound() {
+        List<String> colliding = keysWithHome(5, 5);
+        for (int i = 0; i < colliding.size(); i++) {
+            add(colliding.get(i), i);
+        }
+        
+        index.remove(colliding.get(1), keys);
+        keys[1] = null;
+        assertEquals(-1, index.find(colliding.get(1), keys));
+        for (int i = 0; i < colliding.size(); i++) {
+            if (i != 1) {
+                assertEquals(i, index.find(colliding.get(i), keys));
+            }
+        }
+        assertEquals(4, index.size());
+    }
+    
+    @Test
+    public void removeAtTheEndOfTheTableMovesWrappedEntriesBack() {
+        // Run from the last bucket around to the first ones, followed by a
+        // key at home in bucket 1 that had to probe past them
+        List<String> wrapping = keysWithHome(TABLE_SIZE - 1, 3);
+        String behind = keysWithHome(1, 1).get(0);
+        for (int i = 0; i < wrapping.size(); i++) {
+            add(wrapping.get(i), i);
+        }
+        add(behind, 3);
+        
+        index.remove(wrapping.get(0), keys);
+        keys[0] = null;
+        assertEquals(1, index.find(wrapping.get(1), keys));
+        assertEquals(2, index.find(wrapping.get(2), keys));
+        assertEquals(3, index.find(behind, keys));
+        
+        index.remove(wrapping.get(2), keys);
+        keys[2] = null;
+        assertEquals(1, index.find(wrapping.get(1), keys));
+        assertEquals(3, index.find(behind, keys));
+    }
+    
+    @Test
+    public void randomAddsAndRemovesMatchAMap() {
+        Map<String, Integer> expected = new HashMap<>();
+        Random random = new Random(11);
+        for (int step = 0; step < 20000; step++) {
+            int position = random.nextInt(keys.length);
+            String key = "poi-" + position;
+            if (keys[position] == null) {
+                add(key, position);
+                expected.put(key, position);
+            } else {
+                index.remove(key, keys);
+                keys[position] = null;
+                expected.remove(key);
+            }
+            
+            if (step % 500 == 0) {
+                for (int i = 0; i < keys.length; i++) {
+                    String probe = "poi-" + i;
+                    Integer found = expected.get(probe);
+                    assertEquals(found != null ? found : -1, index.find(probe, keys));
+                }
+                assertEquals(expected.size(), index.size());
+            }
+        }
+    }
+    
+    @Test
+    public void clearDropsEveryKey() {
+        add("a", 0);
+        add("b", 1);
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(-1, index.find("a", keys));
+        add("b", 1);
+        assertEquals(1, index.find("b", keys));
+    }
+    
+    private void add(String key, int position) {
+        keys[position] = key;
+        index.add(key, position, keys);
+    }
+    
+    /**
+     * Make keys that all land in the same bucket of a new index
+     * @param home The bucket
+     * @param count The number of keys
+     * @return The keys
+     */
+    private static List<String> keysWithHome(int home, int count) {
+        List<String> found = new ArrayList<>();
+        for (int i = 0; found.size() < count; i++) {
+            String key = "key-" + i;
+            int hash = key.hashCode();
+            if (((hash ^ (hash >>> 16)) & (TABLE_SIZE - 1)) == home) {
+                found.add(key);
+            }
+        }
+        assertTrue(count <= UNRESIZED);
+        return found;
+    }
+}
@@ -0,0 +1,76 @@
+package com.atakmap.android.arglasses.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The items a {@link TopKSelector} keeps and the order they come out in.
+ */
+public class TopKSelectorTest {
+    
+    private final TopKSelector selector = new TopKSelector();
+    
+    @Test
+    public void keepsTheHighestScoresHighestFirst() {
+        double[] scores = {0.5, 3, 1, 7, 2, 9, 4};
+        selector.reset(3);
+        for (int i = 0; i < scores.length; i++) {
+            selector.offer(i, scores[i]);
+        }
+        int[] out = new int[3];
+        assertEquals(3, selector.drainDescending(out));
+        assertArrayEquals(new int[] {5, 3, 6}, out);
+        assertEquals(0, selector.size());
+    }
+    
+    @Test
+    public void offerReturnsTheItemThatLostOut() {
+        selector.reset(2);
+        assertEquals(TopKSelector.NONE, selector.offer(0, 1));
+        assertEquals(TopKSelector.NONE, selector.offer(1, 5));
+        // Pushes out the lowest
+        assertEquals(0, selector.offer(2, 3));
+        // Does not make it in
+        assertEquals(3, selector.offer(3, 2));
+        assertEquals(2, selector.pollLowest());
+        assertEquals(1, selector.pollLowest());
+        assertEquals(TopKSelector.NONE, selector.pollLowest());
+    }
+    
+    @Test
+    public void nothingIsKeptWithoutRoom() {
+        selector.reset(0);
+        assertEquals(4, selector.offer(4, 100));
+        assertEquals(0, selector.size());
+    }
+    
+    @Test
+    public void randomRoundsMatchASort() {
+        Random random = new Random(3);
+        for (int round = 0; round < 200; round++) {
+            int count = random.nextInt(300);
+            int k = random.nextInt(50);
+            double[] scores = new double[count];
+            selector.reset(k);
+            for (int i = 0; i < count; i++) {
+                // Distinct scores, ties may come out in any order
+                scores[i] = i + random.nextInt(1000) * 1000.0;
+                selector.offer(i, scores[i]);
+            }
+            
+            double[] sorted = scores.clone();
+            Arrays.sort(sorted);
+            int kept = Math.min(k, count);
+            int[] out = new int[kept];
+            assertEquals(kept, selector.drainDescending(out));
+            for (int n = 0; n < kept; n++) {
+                assertEquals(sorted[count - 1 - n], scores[out[n]], 0);
+            }
+        }
+    }
+}
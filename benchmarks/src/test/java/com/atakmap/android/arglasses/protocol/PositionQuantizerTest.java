@@ -0,0 +1,106 @@
+package com.atakmap.android.arglasses.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Round trips of POI positions through {@link PositionQuantizer#write} and
+ * the static {@link PositionQuantizer#read} the glasses mirror.
+ */
+public class PositionQuantizerTest {
+    
+    private static final double METERS_PER_DEGREE = ARGlassesProtocol.METERS_PER_DEGREE;
+    
+    // Rounding slack on top of half the precision
+    private static final double SLACK_M = 1e-6;
+    
+    private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+    private final double[] origin = new double[6];
+    private final double[] position = new double[3];
+    
+    @Test
+    public void positionsInRangeComeBackWithinHalfThePrecision() {
+        for (float precision : new float[] {0.1f, 1f}) {
+            for (double originLat : new double[] {38.9, -33.87, 70.2}) {
+                PositionQuantizer quantizer = new PositionQuantizer(precision,
+                        PositionQuantizer.DEFAULT_RANGE);
+                quantizer.setOrigin(originLat, -77.0365, 120.7);
+                Random random = new Random(7);
+                for (int i = 0; i < 1000; i++) {
+                    double lat = originLat + (random.nextDouble() - 0.5) * 0.2;
+                    double lon = -77.0365 + (random.nextDouble() - 0.5) * 0.2;
+                    double alt = 120.7 + (random.nextDouble() - 0.5) * 2000;
+                    assertTrue(roundTrip(quantizer, lat, lon, alt, true));
+                    
+                    double metersPerDegreeLon = METERS_PER_DEGREE
+                            * Math.cos(Math.toRadians(originLat));
+                    assertEquals(0, (position[0] - lat) * METERS_PER_DEGREE,
+                            precision / 2 + SLACK_M);
+                    assertEquals(0, (position[1] - lon) * metersPerDegreeLon,
+                            precision / 2 + SLACK_M);
+                    assertEquals(alt, position[2], precision / 2 + SLACK_M);
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void positionsOutOfRangeFallBackToAbsolute() {
+        PositionQuantizer quantizer = new PositionQuantizer(
+                PositionQuantizer.DEFAULT_PRECISION, PositionQuantizer.DEFAULT_RANGE);
+        quantizer.setOrigin(38.9, -77.0, 50);
+        
+        // 10 degrees north, past what the offset bytes can hold
+        assertFalse(roundTrip(quantizer, 48.9, -77.0, 75.25, true));
+        assertEquals(48.9, position[0], 1 / ARGlassesProtocol.COORD_SCALE);
+        assertEquals(-77.0, position[1], 1 / ARGlassesProtocol.COORD_SCALE);
+        assertEquals(75.25, position[2], 0);
+        
+        // An aircraft above the vertical range
+        assertFalse(roundTrip(quantizer, 38.91, -77.01,
+                50 + PositionQuantizer.MAX_VERTICAL_RANGE + 500, true));
+        assertEquals(50 + PositionQuantizer.MAX_VERTICAL_RANGE + 500, position[2], 0);
+        
+        // Without altitudes only the horizontal range counts
+        assertTrue(roundTrip(quantizer, 38.91, -77.01,
+                50 + PositionQuantizer.MAX_VERTICAL_RANGE + 500, false));
+        assertEquals(50, position[2], 0);
+    }
+    
+    @Test
+    public void unknownAltitudesAreSentAbsolute() {
+        PositionQuantizer quantizer = new PositionQuantizer(
+                PositionQuantizer.DEFAULT_PRECISION, PositionQuantizer.DEFAULT_RANGE);
+        quantizer.setOrigin(38.9, -77.0, 10);
+        assertFalse(roundTrip(quantizer, 38.901, -77.001, Double.NaN, true));
+        assertTrue(Double.isNaN(position[2]));
+        assertEquals(38.901, position[0], 1 / ARGlassesProtocol.COORD_SCALE);
+        
+        // An unknown self altitude never stands in for the POI's
+        quantizer.setOrigin(38.9, -77.0, Double.NaN);
+        assertFalse(roundTrip(quantizer, 38.901, -77.001, 25, true));
+        assertEquals(25, position[2], 0);
+    }
+    
+    /**
+     * Write the origin and a position, then read both back into position
+     * @return What write returned, false for an absolute position
+     */
+    private boolean roundTrip(PositionQuantizer quantizer, double lat, double lon,
+            double alt, boolean withAlt) {
+        buffer.clear();
+        quantizer.writeOrigin(buffer);
+        boolean local = quantizer.write(buffer, lat, lon, alt, withAlt);
+        buffer.flip();
+        PositionQuantizer.readOrigin(buffer, origin);
+        PositionQuantizer.read(buffer, origin, withAlt, position);
+        assertEquals("Bytes left after the position", 0, buffer.remaining());
+        return local;
+    }
+}
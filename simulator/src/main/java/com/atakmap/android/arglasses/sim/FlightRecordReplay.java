@@ -0,0 +1,331 @@
+package com.atakmap.android.arglasses.sim;
+
+import com.atakmap.android.arglasses.metrics.FlightRecorder;
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+import com.atakmap.android.arglasses.protocol.HelloReply;
+import com.atakmap.android.arglasses.transport.NioTcpTransport;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads a frame recording of the plugin, see FlightRecorder. It either
+ * lists the recorded frames with the gaps between them, or replays them
+ * into the simulator, or glasses, at the recorded pace or faster.
+ *
+ * A replay connects like the plugin did, offering only the wire format
+ * the frames were recorded in, and connects again wherever the encoders
+ * of the plugin started over, e.g. for a new connection. Frames go out as
+ * plain data messages with their time stamps moved to the replay time, so
+ * the latency the simulator reports is that of the replay. Binary frames refer to the
+ * strings of earlier frames, so by default the replay starts at the first
+ * frame that does not depend on an overwritten one.
+ */
+public class FlightRecordReplay {
+    
+    private static final String USAGE = "Usage: FlightRecordReplay [options] FILE\n"
+            + "  --list                 print the recorded frames instead of replaying\n"
+            + "  --host H               glasses host (127.0.0.1)\n"
+            + "  --port N               glasses TCP port (" + GlassesSimulator.DEFAULT_PORT + ")\n"
+            + "  --speed X              replay X times faster, 0 for no pauses (1)\n"
+            + "  --max-gap S            shorten longer pauses to S seconds (60)\n"
+            + "  --all                  replay from the oldest frame even if it\n"
+            + "                         refers to overwritten strings";
+    
+    // Pauses at least this long are marked in the listing
+    private static final long GAP_MS = 1000;
+    
+    private static final int HANDSHAKE_TIMEOUT_MS = 2000;
+    
+    private static final String[] CHANNEL_NAMES = {
+            "POI", "Map", "Compass"
+    };
+    
+    // Settings
+    private File file;
+    private boolean list;
+    private String host = "127.0.0.1";
+    private int port = GlassesSimulator.DEFAULT_PORT;
+    private double speed = 1;
+    private long maxGapMs = 60000;
+    private boolean all;
+    
+    private NioTcpTransport link;
+    private int linkFormat = -1;
+    
+    /**
+     * List or replay a recording
+     * @param args The options and the file, see USAGE
+     */
+    public static void main(String[] args) throws Exception {
+        FlightRecordReplay replay = new FlightRecordReplay();
+        try {
+            replay.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        
+        List<FlightRecorder.Record> records = FlightRecorder.read(replay.file);
+        if (records.isEmpty()) {
+            System.out.println("The recording is empty");
+        } else if (replay.list) {
+            replay.list(records);
+        } else {
+            try {
+                replay.replay(records);
+            } finally {
+                replay.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * Print one line per frame, marking connections and long pauses, and
+     * the longest pause of each channel
+     */
+    private void list(List<FlightRecorder.Record> records) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        long[] last = new long[CHANNEL_NAMES.length];
+        long[] longest = new long[CHANNEL_NAMES.length];
+        long[] longestAt = new long[CHANNEL_NAMES.length];
+        for (FlightRecorder.Record record : records) {
+            int channel = Math.min(record.getChannel(), CHANNEL_NAMES.length - 1);
+            if (record.hasFlag(FlightRecorder.FLAG_SESSION_START)) {
+                System.out.println("-- new connection, "
+                        + ARGlassesProtocol.formatName(record.getFormat()));
+            }
+            long gap = last[channel] > 0 ? record.getTimestamp() - last[channel] : 0;
+            if (gap > longest[channel]) {
+                longest[channel] = gap;
+                longestAt[channel] = record.getTimestamp();
+            }
+            last[channel] = record.getTimestamp();
+            System.out.println(String.format(Locale.US, "%s %-7s %6d bytes%s",
+                    format.format(new Date(record.getTimestamp())), channelName(record),
+                    record.getFrame().length,
+                    gap >= GAP_MS ? "  after " + gap + " ms without one" : ""));
+        }
+        
+        FlightRecorder.Record first = records.get(0);
+        FlightRecorder.Record end = records.get(records.size() - 1);
+        System.out.println(String.format(Locale.US, "%d frames from %s to %s",
+                records.size(), format.format(new Date(first.getTimestamp())),
+                format.format(new Date(end.getTimestamp()))));
+        for (int c = 0; c < CHANNEL_NAMES.length; c++) {
+            if (longest[c] > 0) {
+                System.out.println(CHANNEL_NAMES[c] + ": longest pause " + longest[c]
+                        + " ms, until " + format.format(new Date(longestAt[c])));
+            }
+        }
+    }
+    
+    /**
+     * Send the frames at their recorded pace divided by the speed
+     */
+    private void replay(List<FlightRecorder.Record> records) throws IOException {
+        int start = all ? 0 : findStart(records);
+        if (start < 0) {
+            System.out.println("No frame to start from, every binary frame refers to"
+                    + " overwritten strings. Use --all to replay anyway.");
+            return;
+        }
+        if (start > 0) {
+            GlassesSimulator.log("Skipping " + start + " frames that refer to overwritten strings");
+        }
+        
+        long begin = System.nanoTime();
+        long due = begin;
+        long bytes = 0;
+        FlightRecorder.Record previous = null;
+        for (int i = start; i < records.size(); i++) {
+            FlightRecorder.Record record = records.get(i);
+            if (previous != null && speed > 0) {
+                due += (long) (recordedGapNanos(previous, record) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    sleep(wait);
+                }
+            }
+            previous = record;
+            
+            if (link == null || record.hasFlag(FlightRecorder.FLAG_SESSION_START)
+                    || record.getFormat() != linkFormat) {
+                connect(record.getFormat());
+            }
+            bytes += send(record);
+        }
+        
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        System.out.println(String.format(Locale.US,
+                "Replayed %d frames, %d bytes in %.1f s",
+                records.size() - start, bytes, seconds));
+    }
+    
+    /**
+     * Find the first frame the glasses can decode without earlier frames:
+     * the first frame of a connection, a frame that restarts the string
+     * table, or any JSON frame
+     * @return The index, -1 if there is none
+     */
+    private static int findStart(List<FlightRecorder.Record> records) {
+        for (int i = 0; i < records.size(); i++) {
+            FlightRecorder.Record record = records.get(i);
+            byte[] frame = record.getFrame();
+            if (record.hasFlag(FlightRecorder.FLAG_SESSION_START)
+                    || record.getFormat() == ARGlassesProtocol.FORMAT_JSON
+                    || (frame.length > 12
+                    && (frame[12] & ARGlassesProtocol.FLAG_TABLE_RESET) != 0)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Get the time between two recorded frames. The monotonic clock starts
+     * over when the device restarts, then the wall clock is used.
+     * @return The pause in nanoseconds, at most maxGapMs
+     */
+    private long recordedGapNanos(FlightRecorder.Record previous, FlightRecorder.Record record) {
+        long wallMs = record.getTimestamp() - previous.getTimestamp();
+        long nanos = record.getNanos() - previous.getNanos();
+        if (nanos < 0 || Math.abs(nanos / 1000000L - wallMs) > GAP_MS) {
+            nanos = Math.max(0, wallMs) * 1000000L;
+        }
+        if (maxGapMs > 0 && nanos > maxGapMs * 1000000L) {
+            GlassesSimulator.log("Shortening a pause of " + nanos / 1000000L + " ms");
+            nanos = maxGapMs * 1000000L;
+        }
+        return nanos;
+    }
+    
+    /**
+     * Connect again, offering only one wire format
+     * @param format The format of the frames to send
+     */
+    private void connect(int format) throws IOException {
+        disconnect();
+        link = new NioTcpTransport(host, port);
+        link.open();
+        link.write(ByteBuffer.wrap(ARGlassesProtocol.createHello(1 << format, 0)));
+        
+        // Binary frames need glasses that agreed to them, JSON frames are
+        // understood without a reply
+        if (format == ARGlassesProtocol.FORMAT_BINARY) {
+            ByteBuffer header = ByteBuffer.allocate(ARGlassesProtocol.HEADER_SIZE);
+            HelloReply reply = null;
+            if (link.read(header, HANDSHAKE_TIMEOUT_MS) == ARGlassesProtocol.HEADER_SIZE
+                    && header.get(3) == ARGlassesProtocol.MSG_HELLO_REPLY
+                    && header.getInt(4) >= ARGlassesProtocol.HELLO_REPLY_MIN_SIZE
+                    && header.getInt(4) <= ARGlassesProtocol.HELLO_REPLY_MAX_SIZE) {
+                ByteBuffer payload = ByteBuffer.allocate(header.getInt(4));
+                link.read(payload, HANDSHAKE_TIMEOUT_MS);
+                payload.flip();
+                reply = HelloReply.parse(payload);
+            }
+            if (reply == null || reply.getFormat() != ARGlassesProtocol.FORMAT_BINARY) {
+                throw new IOException(host + ":" + port + " did not agree to binary frames");
+            }
+        }
+        linkFormat = format;
+        GlassesSimulator.log("Connected to " + host + ":" + port + ", replaying "
+                + ARGlassesProtocol.formatName(format) + " frames");
+    }
+    
+    private void disconnect() {
+        if (link != null) {
+            link.close();
+            link = null;
+        }
+    }
+    
+    /**
+     * Send a recorded frame with its time stamp moved to now
+     * @return The bytes written
+     */
+    private int send(FlightRecorder.Record record) throws IOException {
+        long now = System.currentTimeMillis();
+        byte[] frame = record.getFrame();
+        if (record.getFormat() == ARGlassesProtocol.FORMAT_JSON) {
+            String text = new String(frame, StandardCharsets.UTF_8);
+            try {
+                text = new JSONObject(text).put("timestamp", now).toString();
+            } catch (JSONException e) {
+                // Sent as recorded, the glasses will report it
+            }
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            link.write(ByteBuffer.wrap(bytes));
+            return bytes.length;
+        }
+        
+        ByteBuffer payload = ByteBuffer.wrap(frame);
+        if (frame.length >= 12) {
+            payload.putLong(4, now);
+        }
+        link.writeMessage(ARGlassesProtocol.MSG_DATA, payload);
+        return ARGlassesProtocol.HEADER_SIZE + frame.length;
+    }
+    
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            switch (option) {
+                case "--list":
+                    list = true;
+                    break;
+                case "--host":
+                    host = GlassesSimulator.stringArgument(args, ++i, option);
+                    break;
+                case "--port":
+                    port = GlassesSimulator.intArgument(args, ++i, option);
+                    break;
+                case "--speed":
+                    try {
+                        speed = Double.parseDouble(GlassesSimulator.stringArgument(args, ++i, option));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(option + " needs a number");
+                    }
+                    break;
+                case "--max-gap":
+                    maxGapMs = GlassesSimulator.secondsArgument(args, ++i, option);
+                    break;
+                case "--all":
+                    all = true;
+                    break;
+                default:
+                    if (option.startsWith("--") || file != null) {
+                        throw new IllegalArgumentException("Unknown option " + option);
+                    }
+                    file = new File(option);
+                    break;
+            }
+        }
+        if (file == null) {
+            throw new IllegalArgumentException("No recording given");
+        }
+    }
+    
+    private static String channelName(FlightRecorder.Record record) {
+        return record.getChannel() < CHANNEL_NAMES.length
+                ? CHANNEL_NAMES[record.getChannel()] : "Ch " + record.getChannel();
+    }
+    
+    private static void sleep(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
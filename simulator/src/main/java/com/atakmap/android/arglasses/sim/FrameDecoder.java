@@ -0,0 +1,438 @@
+package com.atakmap.android.arglasses.sim;
+
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+import com.atakmap.android.arglasses.protocol.FrameCompressor;
+import com.atakmap.android.arglasses.protocol.PositionQuantizer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the data frames the plugin sends, in every wire format, the way
+ * glasses would: binary frames plain or deflated, on their own or as part
+ * of the connection stream, and JSON frames. The POI set is kept up to
+ * date from keyframes and deltas, so a frame that does not fit the frames
+ * before it shows up as an error.
+ *
+ * One decoder follows one connection, it holds the string table and the
+ * stream inflater of that connection. Not thread safe.
+ */
+class FrameDecoder {
+    
+    // Kinds of frame, by the channel that sends them
+    static final int KIND_POI = 0;
+    static final int KIND_MAP = 1;
+    static final int KIND_COMPASS = 2;
+    static final int KIND_COUNT = 3;
+    
+    /**
+     * A frame that cannot be decoded
+     */
+    static class DecodeException extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        DecodeException(String message) {
+            super(message);
+        }
+    }
+    
+    private final List<String> strings = new ArrayList<>();
+    private final Set<String> pois = new HashSet<>();
+    private Inflater frameInflater;
+    private Inflater streamInflater;
+    private byte[] inflated = new byte[16 * 1024];
+    
+    // Origin of the local positions in the frame, as PositionQuantizer
+    // reads it, and the last position rebuilt
+    private final double[] origin = new double[6];
+    private boolean hasOrigin;
+    private final double[] position = new double[3];
+    
+    // The last frame decoded
+    private int sequence;
+    private long timestamp;
+    private int kind;
+    private int size;
+    
+    /**
+     * Decode a framed data message
+     * @param type The message type, MSG_DATA or one of the deflate types
+     * @param payload The message payload between position and limit
+     * @throws DecodeException if the frame is malformed
+     */
+    void decodeMessage(int type, ByteBuffer payload) throws DecodeException {
+        switch (type) {
+            case ARGlassesProtocol.MSG_DATA:
+                decodeBinary(payload);
+                break;
+            case ARGlassesProtocol.MSG_DATA_DEFLATE:
+                if (frameInflater == null) {
+                    frameInflater = new Inflater(true);
+                } else {
+                    frameInflater.reset();
+                }
+                frameInflater.setDictionary(FrameCompressor.DICTIONARY);
+                decodeBinary(inflate(frameInflater, payload));
+                break;
+            case ARGlassesProtocol.MSG_DATA_DEFLATE_STREAM:
+                if (streamInflater == null) {
+                    streamInflater = new Inflater(true);
+                    streamInflater.setDictionary(FrameCompressor.DICTIONARY);
+                }
+                decodeBinary(inflate(streamInflater, payload));
+                break;
+            default:
+                throw new DecodeException("Unknown message type 0x"
+                        + Integer.toHexString(type));
+        }
+    }
+    
+    /**
+     * Decode a frame of the JSON format
+     * @param text One JSON object
+     * @throws DecodeException if the frame is malformed
+     */
+    void decodeJson(String text) throws DecodeException {
+        try {
+            JSONObject frame = new JSONObject(text);
+            sequence = -1;
+            timestamp = frame.optLong("timestamp", 0);
+            size = text.length();
+            if (frame.has("pois")) {
+                kind = KIND_POI;
+                pois.clear();
+                addJsonPois(frame.getJSONArray("pois"));
+            } else if (frame.has("poi_updates")) {
+                kind = KIND_POI;
+                addJsonPois(frame.getJSONArray("poi_updates"));
+                JSONArray removed = frame.optJSONArray("poi_removed");
+                for (int i = 0; removed != null && i < removed.length(); i++) {
+                    pois.remove(removed.getString(i));
+                }
+            } else if (frame.has("map")) {
+                kind = KIND_MAP;
+            } else if (frame.has("compass")) {
+                kind = KIND_COMPASS;
+            } else {
+                throw new DecodeException("JSON frame without data: " + text);
+            }
+        } catch (JSONException e) {
+            throw new DecodeException("Bad JSON frame: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Free the native inflater state, the decoder cannot be used after
+     */
+    void end() {
+        if (frameInflater != null) {
+            frameInflater.end();
+            frameInflater = null;
+        }
+        if (streamInflater != null) {
+            streamInflater.end();
+            streamInflater = null;
+        }
+    }
+    
+    /**
+     * Get the sequence number of the last frame
+     * @return The sequence number, -1 for JSON frames, which have none
+     */
+    int getSequence() {
+        return sequence;
+    }
+    
+    /**
+     * Get the time stamp of the last frame
+     * @return The time the plugin built the frame, in ms since the epoch
+     */
+    long getTimestamp() {
+        return timestamp;
+    }
+    
+    /**
+     * Get the kind of the last frame
+     * @return One of the KIND_ constants
+     */
+    int getKind() {
+        return kind;
+    }
+    
+    /**
+     * Get the size of the last frame
+     * @return The bytes of the frame after inflating
+     */
+    int getSize() {
+        return size;
+    }
+    
+    /**
+     * Get the number of POIs the glasses hold after the frames so far
+     * @return The POI count
+     */
+    int getPoiCount() {
+        return pois.size();
+    }
+    
+    /**
+     * Inflate a compressed frame into the shared output array
+     * @param inflater The inflater, primed with the dictionary
+     * @param payload The compressed bytes between position and limit
+     * @return The inflated frame
+     */
+    private ByteBuffer inflate(Inflater inflater, ByteBuffer payload) throws DecodeException {
+        byte[] input = new byte[payload.remaining()];
+        payload.get(input);
+        inflater.setInput(input);
+        int length = 0;
+        try {
+            // A stream block ends on a sync flush, so all of it comes out
+            // once the input is used up and the output is not full
+            while (true) {
+                if (length == inflated.length) {
+                    byte[] grown = new byte[inflated.length * 2];
+                    System.arraycopy(inflated, 0, grown, 0, length);
+                    inflated = grown;
+                }
+                int count = inflater.inflate(inflated, length, inflated.length - length);
+                length += count;
+                if (inflater.finished() || (inflater.needsInput() && length < inflated.length)) {
+                    break;
+                }
+                if (count == 0 && length < inflated.length) {
+                    throw new DecodeException("Inflater stopped without output");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new DecodeException("Bad deflate data: " + e.getMessage());
+        }
+        return ByteBuffer.wrap(inflated, 0, length);
+    }
+    
+    /**
+     * Decode a frame of the binary format
+     * @param frame The frame between position and limit
+     */
+    private void decodeBinary(ByteBuffer frame) throws DecodeException {
+        size = frame.remaining();
+        kind = -1;
+        try {
+            sequence = frame.getInt();
+            timestamp = frame.getLong();
+            int flags = frame.get() & 0xFF;
+            if ((flags & ARGlassesProtocol.FLAG_TABLE_RESET) != 0) {
+                strings.clear();
+            }
+            hasOrigin = false;
+            while (frame.hasRemaining()) {
+                int tag = frame.get() & 0xFF;
+                int length = frame.getInt();
+                if (length < 0 || length > frame.remaining()) {
+                    throw new DecodeException("Section 0x" + Integer.toHexString(tag)
+                            + " runs past the frame: " + length);
+                }
+                int start = frame.position();
+                int end = start + length;
+                switch (tag) {
+                    case ARGlassesProtocol.SECTION_POI:
+                    case ARGlassesProtocol.SECTION_POI_DELTA:
+                        kind = KIND_POI;
+                        decodePois(frame, tag == ARGlassesProtocol.SECTION_POI,
+                                ARGlassesProtocol.FIELD_POI_ALL);
+                        break;
+                    case ARGlassesProtocol.SECTION_POI_FIELDS:
+                    case ARGlassesProtocol.SECTION_POI_DELTA_FIELDS:
+                        kind = KIND_POI;
+                        int fields = frame.get() & 0xFF;
+                        decodePois(frame, tag == ARGlassesProtocol.SECTION_POI_FIELDS, fields);
+                        break;
+                    case ARGlassesProtocol.SECTION_STRINGS:
+                        // The table of a resync frame, after the reset
+                        int count = frame.getInt();
+                        for (int i = 0; i < count; i++) {
+                            readDefinition(frame);
+                        }
+                        break;
+                    case ARGlassesProtocol.SECTION_POI_GEOMETRY:
+                        decodeGeometry(frame);
+                        break;
+                    case ARGlassesProtocol.SECTION_ORIGIN:
+                        PositionQuantizer.readOrigin(frame, origin);
+                        if (origin[3] <= 0 || origin[4] < 2 || origin[4] > 4
+                                || origin[5] < 2 || origin[5] > 4) {
+                            throw new DecodeException("Bad origin: precision " + origin[3]
+                                    + ", " + (int) origin[4] + " and " + (int) origin[5]
+                                    + " bytes per offset");
+                        }
+                        hasOrigin = true;
+                        break;
+                    case ARGlassesProtocol.SECTION_MAP:
+                        kind = KIND_MAP;
+                        int mapFlags = frame.get() & 0xFF;
+                        if ((mapFlags & ARGlassesProtocol.MAP_FLAG_HAS_SELF) != 0) {
+                            frame.position(frame.position() + 20);
+                        }
+                        if ((mapFlags & ARGlassesProtocol.MAP_FLAG_NO_VIEW) == 0) {
+                            frame.position(frame.position() + 12);
+                        }
+                        break;
+                    case ARGlassesProtocol.SECTION_COMPASS:
+                        // Older frames, and glasses that did not subscribe
+                        // to the rates, carry only heading, tilt and roll
+                        kind = KIND_COMPASS;
+                        frame.position(frame.position() + Math.min(length, 26));
+                        break;
+                    default:
+                        // Sections from newer plugins are skipped
+                        frame.position(end);
+                        break;
+                }
+                if (frame.position() != end) {
+                    throw new DecodeException("Section 0x" + Integer.toHexString(tag)
+                            + " is " + length + " bytes but "
+                            + (frame.position() - start) + " were decoded");
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new DecodeException("Frame ends inside a field");
+        } catch (IllegalArgumentException e) {
+            throw new DecodeException("Field runs past the frame");
+        }
+        if (kind < 0) {
+            throw new DecodeException("Frame " + sequence + " without data");
+        }
+    }
+    
+    private void decodePois(ByteBuffer frame, boolean keyframe, int fields)
+            throws DecodeException {
+        if (keyframe) {
+            pois.clear();
+        }
+        boolean local = (fields & ARGlassesProtocol.POI_FLAG_LOCAL) != 0;
+        if (local && !hasOrigin) {
+            throw new DecodeException("Local positions without an origin");
+        }
+        int count = frame.getInt();
+        for (int i = 0; i < count; i++) {
+            String id = readString(frame);
+            if ((fields & ARGlassesProtocol.FIELD_POI_NAME) != 0) {
+                readString(frame);
+            }
+            if ((fields & ARGlassesProtocol.FIELD_POI_TYPE) != 0) {
+                readString(frame);
+            }
+            boolean withAlt = (fields & ARGlassesProtocol.FIELD_POI_ALT) != 0;
+            if (local) {
+                PositionQuantizer.read(frame, origin, withAlt, position);
+                if (!(Math.abs(position[0]) <= 90 && Math.abs(position[1]) <= 360)) {
+                    throw new DecodeException("POI " + id + " rebuilt off the earth at "
+                            + position[0] + ", " + position[1]);
+                }
+            } else {
+                frame.position(frame.position() + 8 + (withAlt ? 4 : 0));
+            }
+            frame.position(frame.position()
+                    + ((fields & ARGlassesProtocol.FIELD_POI_COLOR) != 0 ? 4 : 0));
+            if ((fields & ARGlassesProtocol.FIELD_POI_GEOMETRY) != 0) {
+                readGeometry(frame, id);
+            }
+            if (id == null) {
+                throw new DecodeException("POI without id");
+            }
+            pois.add(id);
+        }
+        if (!keyframe) {
+            int removed = frame.getInt();
+            for (int i = 0; i < removed; i++) {
+                pois.remove(readString(frame));
+            }
+        }
+    }
+    
+    /**
+     * Read the new geometry of POIs already held, which must follow their
+     * POI section
+     */
+    private void decodeGeometry(ByteBuffer frame) throws DecodeException {
+        int count = frame.getInt();
+        for (int i = 0; i < count; i++) {
+            String id = readString(frame);
+            if (!pois.contains(id)) {
+                throw new DecodeException("Geometry of POI " + id + " not held");
+            }
+            readGeometry(frame, id);
+        }
+    }
+    
+    private void readGeometry(ByteBuffer frame, String id) throws DecodeException {
+        float range = frame.getFloat();
+        int bearing = frame.getShort() & 0xFFFF;
+        int elevation = frame.getShort();
+        if (!(range >= 0) || bearing >= 36000 || Math.abs(elevation) > 9000) {
+            throw new DecodeException("POI " + id + " at range " + range
+                    + ", bearing " + bearing + ", elevation " + elevation);
+        }
+    }
+    
+    private String readString(ByteBuffer frame) throws DecodeException {
+        int reference = readVarInt(frame);
+        if (reference == 0) {
+            return null;
+        }
+        if (reference >= 2) {
+            if (reference - 2 >= strings.size()) {
+                throw new DecodeException("String " + (reference - 2)
+                        + " not in the table of " + strings.size());
+            }
+            return strings.get(reference - 2);
+        }
+        return readDefinition(frame);
+    }
+    
+    /**
+     * Read a string defined in the frame and append it to the table
+     * @param frame The frame, at the byte length of the string
+     * @return The string
+     */
+    private String readDefinition(ByteBuffer frame) throws DecodeException {
+        int length = readVarInt(frame);
+        if (length > frame.remaining()) {
+            throw new DecodeException("String runs past the frame: " + length);
+        }
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(),
+                length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        strings.add(value);
+        return value;
+    }
+    
+    private static int readVarInt(ByteBuffer frame) throws DecodeException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = frame.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new DecodeException("Varint too long");
+    }
+    
+    private void addJsonPois(JSONArray array) throws JSONException {
+        for (int i = 0; i < array.length(); i++) {
+            pois.add(array.getJSONObject(i).getString("id"));
+        }
+    }
+}
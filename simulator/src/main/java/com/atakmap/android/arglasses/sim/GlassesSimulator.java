@@ -0,0 +1,811 @@
+package com.atakmap.android.arglasses.sim;
+
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+import com.atakmap.android.arglasses.protocol.Subscription;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Headless stand-in for the AR glasses, run on a desktop JVM. It listens
+ * for the plugin like the glasses do, answers the hello, decodes every
+ * frame in whatever format was negotiated, takes pose datagrams over UDP,
+ * answers keepalive pings and acknowledges the frames it decoded. It can
+ * also report a slowly turning head pose and subscribe to some channels,
+ * fields, rates and POI types only. Once a second it prints the throughput,
+ * the compass latency, the frames missing from the sequence and the
+ * decode errors, and a summary when it stops.
+ *
+ * To exercise the backpressure and reconnect handling of the plugin it can
+ * read slowly, stop reading for a while and hang up, see {@link #USAGE}.
+ * One plugin is served at a time, a new connection replaces the old one
+ * like it would on the glasses.
+ */
+public class GlassesSimulator {
+    
+    public static final int DEFAULT_PORT = 8080;
+    
+    private static final String USAGE = "Usage: GlassesSimulator [options]\n"
+            + "  --port N               TCP port to listen on (" + DEFAULT_PORT + ")\n"
+            + "  --udp-port N           UDP port for pose datagrams, 0 for any free port (0)\n"
+            + "  --no-udp               do not offer a UDP pose port\n"
+            + "  --format F             binary, json, or legacy for glasses that do not\n"
+            + "                         answer the hello (binary)\n"
+            + "  --no-deflate           refuse compressed frames\n"
+            + "  --no-keepalive         refuse keepalive pings\n"
+            + "  --no-acks              do not acknowledge frames\n"
+            + "  --no-local-positions   refuse POI positions relative to an origin\n"
+            + "  --pose-rate N          report a head pose N times a second (0)\n"
+            + "  --channels LIST        subscribe to these of poi,map,compass only\n"
+            + "  --fields LIST          subscribe to these of name,type,alt,color,view,\n"
+            + "                         rates,geometry only\n"
+            + "  --periods LIST         ask for channel periods in ms, e.g. compass=100\n"
+            + "  --types LIST           subscribe to POIs of these type prefixes only\n"
+            + "  --read-rate N          read at most N bytes per second\n"
+            + "  --receive-buffer N     TCP receive buffer size in bytes\n"
+            + "  --stall-every S        stop reading every S seconds...\n"
+            + "  --stall-for S          ...for S seconds (5)\n"
+            + "  --disconnect-every S   hang up S seconds into every connection\n"
+            + "  --refuse-for S         hang up on new connections for S seconds after\n"
+            + "                         an injected disconnect\n"
+            + "  --duration S           stop after S seconds (run until killed)\n"
+            + "  --verbose              print every decode error";
+    
+    // Decode errors printed before going quiet, unless verbose
+    private static final int MAX_ERRORS_PRINTED = 20;
+    
+    // How often a blocked read wakes up to check for faults to inject
+    private static final int READ_POLL_MS = 250;
+    
+    // Throttled reads do not catch up on more than this after being idle
+    private static final long MAX_READ_CREDIT_NANOS = 100000000L;
+    
+    // Settings
+    private int port = DEFAULT_PORT;
+    private int udpPort;
+    private boolean udpEnabled = true;
+    private int format = ARGlassesProtocol.FORMAT_BINARY;
+    private boolean legacy;
+    private int acceptedFeatures = ARGlassesProtocol.FEATURE_UDP_POSE
+            | ARGlassesProtocol.FEATURE_DEFLATE | ARGlassesProtocol.FEATURE_KEEPALIVE
+            | ARGlassesProtocol.FEATURE_ACKS | ARGlassesProtocol.FEATURE_LOCAL_POSITIONS;
+    private int poseRate;
+    private int channels = -1; // Bits of the channels subscribed to, -1 for all
+    private int fields = -1; // FIELD_* bits subscribed to, -1 for all
+    private int[] periodsMs = new int[0];
+    private String[] types = new String[0];
+    private int readRate;
+    private int receiveBufferSize;
+    private long stallEveryMs;
+    private long stallForMs = 5000;
+    private long disconnectEveryMs;
+    private long refuseForMs;
+    private long durationMs;
+    private boolean verbose;
+    
+    private final SimulatorStats stats = new SimulatorStats();
+    private ServerSocket server;
+    private DatagramSocket udpSocket;
+    private volatile Connection current;
+    private volatile long refuseUntil;
+    private volatile boolean running;
+    
+    /**
+     * Run the simulator until killed or the duration is over
+     * @param args The options, see USAGE
+     */
+    public static void main(String[] args) throws Exception {
+        final GlassesSimulator simulator = new GlassesSimulator();
+        try {
+            simulator.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        simulator.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                simulator.stop();
+            }
+        });
+        simulator.report();
+        simulator.stop();
+    }
+    
+    /**
+     * Open the TCP and UDP ports and start serving
+     * @throws IOException if a port could not be opened
+     */
+    public void start() throws IOException {
+        server = new ServerSocket();
+        if (receiveBufferSize > 0) {
+            // Set before binding so accepted sockets advertise the window
+            server.setReceiveBufferSize(receiveBufferSize);
+        }
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        if (udpEnabled) {
+            udpSocket = new DatagramSocket(udpPort);
+        }
+        running = true;
+        
+        startThread("accept", new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+        if (udpSocket != null) {
+            startThread("udp", new Runnable() {
+                @Override
+                public void run() {
+                    receiveDatagrams();
+                }
+            });
+        }
+        log("Listening on TCP port " + server.getLocalPort()
+                + (udpSocket != null ? ", UDP port " + udpSocket.getLocalPort() : "")
+                + ", " + (legacy ? "legacy JSON" : ARGlassesProtocol.formatName(format))
+                + " format");
+    }
+    
+    /**
+     * Stop serving and print the summary, once
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closeQuietly(server);
+        if (udpSocket != null) {
+            udpSocket.close();
+        }
+        Connection connection = current;
+        if (connection != null) {
+            connection.close();
+        }
+        System.out.println(stats.getSummary());
+    }
+    
+    /**
+     * Print a line of statistics every second until stopped
+     */
+    private void report() throws InterruptedException {
+        long end = durationMs > 0 ? System.currentTimeMillis() + durationMs : Long.MAX_VALUE;
+        while (running && System.currentTimeMillis() < end) {
+            Thread.sleep(1000);
+            Connection connection = current;
+            log(stats.getIntervalLine(connection != null ? connection.decoder.getPoiCount() : 0));
+        }
+    }
+    
+    private void acceptConnections() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (running) {
+                    log("Accept failed: " + e);
+                }
+                return;
+            }
+            if (System.currentTimeMillis() < refuseUntil) {
+                stats.add(SimulatorStats.COUNTER_REFUSED, 1);
+                log("Hanging up on " + socket.getRemoteSocketAddress());
+                closeQuietly(socket);
+                continue;
+            }
+            
+            Connection previous = current;
+            if (previous != null) {
+                previous.close();
+            }
+            final Connection connection = new Connection(socket);
+            current = connection;
+            startThread("connection", new Runnable() {
+                @Override
+                public void run() {
+                    connection.serve();
+                }
+            });
+        }
+    }
+    
+    private void receiveDatagrams() {
+        // Larger than any valid datagram, so oversized ones show up as errors
+        byte[] data = new byte[64 * 1024];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        FrameDecoder decoder = new FrameDecoder();
+        try {
+            while (running) {
+                packet.setLength(data.length);
+                try {
+                    udpSocket.receive(packet);
+                } catch (IOException e) {
+                    if (running) {
+                        log("UDP receive failed: " + e);
+                    }
+                    return;
+                }
+                long receivedAt = System.currentTimeMillis();
+                stats.add(SimulatorStats.COUNTER_DATAGRAMS, 1);
+                stats.add(SimulatorStats.COUNTER_BYTES, packet.getLength());
+                
+                ByteBuffer datagram = ByteBuffer.wrap(data, 0, packet.getLength());
+                if (!ARGlassesProtocol.isHeader(datagram)
+                        || datagram.getInt(4) != packet.getLength() - ARGlassesProtocol.HEADER_SIZE) {
+                    decodeError("Malformed datagram of " + packet.getLength() + " bytes");
+                    continue;
+                }
+                int type = datagram.get(3) & 0xFF;
+                datagram.position(ARGlassesProtocol.HEADER_SIZE);
+                try {
+                    decoder.decodeMessage(type, datagram.slice());
+                    stats.recordFrame(decoder, receivedAt);
+                } catch (FrameDecoder.DecodeException e) {
+                    decodeError("Datagram: " + e.getMessage());
+                }
+            }
+        } finally {
+            decoder.end();
+        }
+    }
+    
+    /**
+     * One connection of the plugin, served on its own thread
+     */
+    private class Connection {
+        private final Socket socket;
+        private final FrameDecoder decoder = new FrameDecoder();
+        private final byte[] header = new byte[ARGlassesProtocol.HEADER_SIZE];
+        private final ByteArrayOutputStream json = new ByteArrayOutputStream();
+        private final long connectedAt = System.currentTimeMillis();
+        private InputStream in;
+        private OutputStream out;
+        private byte[] payload = new byte[64 * 1024];
+        private long nextStallAt = connectedAt + stallEveryMs;
+        private long readAllowedAt = System.nanoTime();
+        private final ByteBuffer ack = ByteBuffer.allocate(
+                ARGlassesProtocol.HEADER_SIZE + ARGlassesProtocol.ACK_SIZE);
+        private boolean acks;
+        private volatile boolean stalled;
+        
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+        
+        void serve() {
+            stats.add(SimulatorStats.COUNTER_CONNECTIONS, 1);
+            stats.startSequence();
+            log("Plugin connected from " + socket.getRemoteSocketAddress());
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(READ_POLL_MS);
+                in = new BufferedInputStream(socket.getInputStream());
+                out = socket.getOutputStream();
+                
+                boolean binary = answerHello();
+                if (binary && acks) {
+                    talkBack();
+                }
+                while (true) {
+                    if (binary) {
+                        readMessage();
+                    } else {
+                        readJsonFrame();
+                    }
+                }
+            } catch (IOException e) {
+                if (current == this && running) {
+                    log("Connection closed: " + e.getMessage());
+                }
+            } finally {
+                close();
+                decoder.end();
+            }
+        }
+        
+        void close() {
+            closeQuietly(socket);
+        }
+        
+        /**
+         * Read the hello and answer it
+         * @return true if the binary format was agreed on
+         */
+        private boolean answerHello() throws IOException {
+            String text = readJsonObject();
+            int offered = 0;
+            int chosen = format;
+            try {
+                JSONObject hello = new JSONObject(text).getJSONObject("hello");
+                offered = hello.optInt("features", 0);
+                int formats = hello.optInt("formats", 0);
+                if ((formats & (1 << format)) == 0 && formats != 0) {
+                    // Take the format offered, e.g. when replaying a recording
+                    chosen = format == ARGlassesProtocol.FORMAT_BINARY
+                            ? ARGlassesProtocol.FORMAT_JSON : ARGlassesProtocol.FORMAT_BINARY;
+                }
+            } catch (JSONException e) {
+                decodeError("Bad hello: " + text);
+            }
+            if (legacy) {
+                // The plugin falls back to JSON once the reply times out
+                return false;
+            }
+            
+            int features = offered & acceptedFeatures;
+            acks = (features & ARGlassesProtocol.FEATURE_ACKS) != 0;
+            int replyPort = (features & ARGlassesProtocol.FEATURE_UDP_POSE) != 0
+                    && udpSocket != null ? udpSocket.getLocalPort() : 0;
+            ByteBuffer reply = ByteBuffer.allocate(ARGlassesProtocol.HEADER_SIZE + 5);
+            ARGlassesProtocol.writeHeader(reply, ARGlassesProtocol.MSG_HELLO_REPLY, 5);
+            reply.put((byte) ARGlassesProtocol.VERSION);
+            reply.put((byte) chosen);
+            reply.putShort((short) replyPort);
+            reply.put((byte) features);
+            send(reply.array());
+            log("Hello answered: " + ARGlassesProtocol.formatName(chosen)
+                    + ", features 0x" + Integer.toHexString(features)
+                    + (replyPort > 0 ? ", pose datagrams to port " + replyPort : ""));
+            return chosen == ARGlassesProtocol.FORMAT_BINARY;
+        }
+        
+        /**
+         * Read and handle one framed message
+         */
+        private void readMessage() throws IOException {
+            readFully(header, 0, header.length);
+            ByteBuffer head = ByteBuffer.wrap(header);
+            int length = head.getInt(4);
+            if (!ARGlassesProtocol.isHeader(head) || length < 0
+                    || length > ARGlassesProtocol.MAX_PAYLOAD_SIZE) {
+                // There is no way to find the next frame
+                decodeError("Bad header, length " + length);
+                throw new IOException("Lost the framing");
+            }
+            if (payload.length < length) {
+                payload = new byte[Math.max(length, payload.length * 2)];
+            }
+            readFully(payload, 0, length);
+            long receivedAt = System.currentTimeMillis();
+            
+            int type = header[3] & 0xFF;
+            if (type == ARGlassesProtocol.MSG_PING) {
+                ByteBuffer pong = ByteBuffer.allocate(ARGlassesProtocol.HEADER_SIZE + length);
+                ARGlassesProtocol.writeHeader(pong, ARGlassesProtocol.MSG_PONG, length);
+                pong.put(payload, 0, length);
+                send(pong.array());
+                stats.add(SimulatorStats.COUNTER_PINGS, 1);
+                return;
+            }
+            try {
+                decoder.decodeMessage(type, ByteBuffer.wrap(payload, 0, length));
+                stats.recordFrame(decoder, receivedAt);
+                if (acks) {
+                    ack.clear();
+                    ARGlassesProtocol.writeHeader(ack, ARGlassesProtocol.MSG_ACK,
+                            ARGlassesProtocol.ACK_SIZE);
+                    ack.putInt(decoder.getSequence());
+                    send(ack.array());
+                    stats.add(SimulatorStats.COUNTER_ACKS, 1);
+                }
+            } catch (FrameDecoder.DecodeException e) {
+                decodeError(e.getMessage());
+            }
+        }
+        
+        /**
+         * Subscribe to the configured channels, fields, rates and POI
+         * types and start reporting the head pose, to a plugin that reads
+         * what the glasses send
+         */
+        private void talkBack() throws IOException {
+            if (channels >= 0 || fields >= 0 || periodsMs.length > 0 || types.length > 0) {
+                Subscription subscription = new Subscription(channels,
+                        fields >= 0 ? fields : ARGlassesProtocol.FIELD_ALL, periodsMs, types);
+                send(subscription.createMessage());
+                log("Subscribed to " + subscription);
+            }
+            if (poseRate > 0) {
+                startThread("pose", new Runnable() {
+                    @Override
+                    public void run() {
+                        reportPose();
+                    }
+                });
+            }
+        }
+        
+        /**
+         * Report a head turning at 10 degrees a second until the
+         * connection closes, except while stalled
+         */
+        private void reportPose() {
+            ByteBuffer pose = ByteBuffer.allocate(ARGlassesProtocol.HEADER_SIZE
+                    + ARGlassesProtocol.GLASSES_POSE_SIZE);
+            try {
+                while (!socket.isClosed()) {
+                    sleep(1000 / poseRate);
+                    if (stalled) {
+                        continue;
+                    }
+                    float heading = ((System.currentTimeMillis() - connectedAt) / 100L) % 360;
+                    pose.clear();
+                    ARGlassesProtocol.writeHeader(pose, ARGlassesProtocol.MSG_GLASSES_POSE,
+                            ARGlassesProtocol.GLASSES_POSE_SIZE);
+                    pose.putFloat(heading);
+                    pose.putFloat(0);
+                    pose.putFloat(0);
+                    send(pose.array());
+                }
+            } catch (IOException e) {
+                // The connection thread reports why it closed
+            }
+        }
+        
+        /**
+         * Write a message, from the connection or the pose thread
+         */
+        private void send(byte[] message) throws IOException {
+            synchronized (out) {
+                out.write(message);
+                out.flush();
+            }
+        }
+        
+        /**
+         * Read and handle one frame of the unframed JSON format
+         */
+        private void readJsonFrame() throws IOException {
+            String text = readJsonObject();
+            try {
+                decoder.decodeJson(text);
+                stats.recordFrame(decoder, System.currentTimeMillis());
+            } catch (FrameDecoder.DecodeException e) {
+                decodeError(e.getMessage());
+            }
+        }
+        
+        /**
+         * Read up to the end of the next JSON object. JSON frames are not
+         * framed, an object ends where its braces balance outside strings.
+         * @return The object text
+         */
+        private String readJsonObject() throws IOException {
+            json.reset();
+            int depth = 0;
+            boolean inString = false;
+            boolean escaped = false;
+            while (true) {
+                int b = readByte();
+                if (depth == 0 && b != '{') {
+                    // Whitespace or garbage between objects
+                    continue;
+                }
+                json.write(b);
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (b == '\\') {
+                        escaped = true;
+                    } else if (b == '"') {
+                        inString = false;
+                    }
+                } else if (b == '"') {
+                    inString = true;
+                } else if (b == '{') {
+                    depth++;
+                } else if (b == '}' && --depth == 0) {
+                    return new String(json.toByteArray(), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        
+        private int readByte() throws IOException {
+            readFully(header, 0, 1);
+            return header[0] & 0xFF;
+        }
+        
+        /**
+         * Read exactly the requested bytes, injecting the configured faults
+         * and holding to the read rate
+         */
+        private void readFully(byte[] dst, int offset, int length) throws IOException {
+            while (length > 0) {
+                injectFaults();
+                int chunk = length;
+                if (readRate > 0) {
+                    // About 10 ms worth of bytes at a time
+                    chunk = Math.min(chunk, Math.max(1, readRate / 100));
+                }
+                int count;
+                try {
+                    count = in.read(dst, offset, chunk);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                if (count < 0) {
+                    throw new EOFException("Closed by the plugin");
+                }
+                stats.add(SimulatorStats.COUNTER_BYTES, count);
+                offset += count;
+                length -= count;
+                if (readRate > 0) {
+                    throttle(count);
+                }
+            }
+        }
+        
+        private void throttle(int count) throws IOException {
+            long now = System.nanoTime();
+            readAllowedAt = Math.max(readAllowedAt, now - MAX_READ_CREDIT_NANOS)
+                    + count * 1000000000L / readRate;
+            long wait = readAllowedAt - now;
+            if (wait > 0) {
+                sleep(wait / 1000000L);
+            }
+        }
+        
+        private void injectFaults() throws IOException {
+            long now = System.currentTimeMillis();
+            if (disconnectEveryMs > 0 && now - connectedAt >= disconnectEveryMs) {
+                stats.add(SimulatorStats.COUNTER_DISCONNECTS, 1);
+                refuseUntil = now + refuseForMs;
+                throw new IOException("Injected disconnect"
+                        + (refuseForMs > 0 ? ", refusing connections for "
+                        + refuseForMs + " ms" : ""));
+            }
+            if (stallEveryMs > 0 && now >= nextStallAt) {
+                // Neither reading nor answering pings, like glasses that hang
+                stats.add(SimulatorStats.COUNTER_STALLS, 1);
+                log("Stalling for " + stallForMs + " ms");
+                stalled = true;
+                sleep(stallForMs);
+                stalled = false;
+                nextStallAt = System.currentTimeMillis() + stallEveryMs;
+                if (socket.isClosed()) {
+                    throw new IOException("Closed during the stall");
+                }
+            }
+        }
+    }
+    
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            switch (option) {
+                case "--port":
+                    port = intArgument(args, ++i, option);
+                    break;
+                case "--udp-port":
+                    udpPort = intArgument(args, ++i, option);
+                    break;
+                case "--no-udp":
+                    udpEnabled = false;
+                    break;
+                case "--format":
+                    String name = stringArgument(args, ++i, option);
+                    legacy = name.equals("legacy");
+                    if (name.equals("binary")) {
+                        format = ARGlassesProtocol.FORMAT_BINARY;
+                    } else if (name.equals("json") || legacy) {
+                        format = ARGlassesProtocol.FORMAT_JSON;
+                    } else {
+                        throw new IllegalArgumentException("Unknown format " + name);
+                    }
+                    break;
+                case "--no-deflate":
+                    acceptedFeatures &= ~ARGlassesProtocol.FEATURE_DEFLATE;
+                    break;
+                case "--no-keepalive":
+                    acceptedFeatures &= ~ARGlassesProtocol.FEATURE_KEEPALIVE;
+                    break;
+                case "--no-acks":
+                    acceptedFeatures &= ~ARGlassesProtocol.FEATURE_ACKS;
+                    break;
+                case "--no-local-positions":
+                    acceptedFeatures &= ~ARGlassesProtocol.FEATURE_LOCAL_POSITIONS;
+                    break;
+                case "--pose-rate":
+                    poseRate = intArgument(args, ++i, option);
+                    break;
+                case "--channels":
+                    channels = channelsArgument(args, ++i, option);
+                    break;
+                case "--fields":
+                    fields = fieldsArgument(args, ++i, option);
+                    break;
+                case "--periods":
+                    periodsMs = periodsArgument(args, ++i, option);
+                    break;
+                case "--types":
+                    types = stringArgument(args, ++i, option).split(",");
+                    break;
+                case "--read-rate":
+                    readRate = intArgument(args, ++i, option);
+                    break;
+                case "--receive-buffer":
+                    receiveBufferSize = intArgument(args, ++i, option);
+                    break;
+                case "--stall-every":
+                    stallEveryMs = secondsArgument(args, ++i, option);
+                    break;
+                case "--stall-for":
+                    stallForMs = secondsArgument(args, ++i, option);
+                    break;
+                case "--disconnect-every":
+                    disconnectEveryMs = secondsArgument(args, ++i, option);
+                    break;
+                case "--refuse-for":
+                    refuseForMs = secondsArgument(args, ++i, option);
+                    break;
+                case "--duration":
+                    durationMs = secondsArgument(args, ++i, option);
+                    break;
+                case "--verbose":
+                    verbose = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+    }
+    
+    private void decodeError(String message) {
+        stats.add(SimulatorStats.COUNTER_DECODE_ERRORS, 1);
+        long errors = stats.getCounter(SimulatorStats.COUNTER_DECODE_ERRORS);
+        if (verbose || errors <= MAX_ERRORS_PRINTED) {
+            log("Decode error: " + message);
+        }
+    }
+    
+    static String stringArgument(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+    
+    static int intArgument(String[] args, int index, String option) {
+        try {
+            return Integer.parseInt(stringArgument(args, index, option));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a number");
+        }
+    }
+    
+    // Bits 1 << ChannelScheduler.CHANNEL_* of the plugin
+    private static int channelsArgument(String[] args, int index, String option) {
+        int bits = 0;
+        for (String name : stringArgument(args, index, option).split(",")) {
+            switch (name.trim()) {
+                case "poi":
+                    bits |= 1;
+                    break;
+                case "map":
+                    bits |= 2;
+                    break;
+                case "compass":
+                    bits |= 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown channel " + name);
+            }
+        }
+        return bits;
+    }
+    
+    private static int fieldsArgument(String[] args, int index, String option) {
+        int bits = 0;
+        for (String name : stringArgument(args, index, option).split(",")) {
+            switch (name.trim()) {
+                case "name":
+                    bits |= ARGlassesProtocol.FIELD_POI_NAME;
+                    break;
+                case "type":
+                    bits |= ARGlassesProtocol.FIELD_POI_TYPE;
+                    break;
+                case "alt":
+                    bits |= ARGlassesProtocol.FIELD_POI_ALT;
+                    break;
+                case "color":
+                    bits |= ARGlassesProtocol.FIELD_POI_COLOR;
+                    break;
+                case "view":
+                    bits |= ARGlassesProtocol.FIELD_MAP_VIEW;
+                    break;
+                case "rates":
+                    bits |= ARGlassesProtocol.FIELD_COMPASS_RATES;
+                    break;
+                case "geometry":
+                    bits |= ARGlassesProtocol.FIELD_POI_GEOMETRY;
+                    break;
+                case "":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown field " + name);
+            }
+        }
+        return bits;
+    }
+    
+    // Periods indexed by ChannelScheduler.CHANNEL_* of the plugin
+    private static int[] periodsArgument(String[] args, int index, String option) {
+        int[] periods = new int[3];
+        for (String entry : stringArgument(args, index, option).split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(option + " needs channel=ms pairs");
+            }
+            int channel = Integer.numberOfTrailingZeros(channelsArgument(parts, 0, option));
+            try {
+                periods[channel] = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(option + " needs a number of ms");
+            }
+        }
+        return periods;
+    }
+    
+    static long secondsArgument(String[] args, int index, String option) {
+        try {
+            return Math.round(Double.parseDouble(stringArgument(args, index, option)) * 1000);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a number of seconds");
+        }
+    }
+    
+    static void log(String message) {
+        String time = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US).format(new Date());
+        System.out.println(time + " " + message);
+    }
+    
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, "sim-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private static void sleep(long ms) throws IOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+}
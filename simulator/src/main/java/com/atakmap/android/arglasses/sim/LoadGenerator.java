@@ -0,0 +1,383 @@
+package com.atakmap.android.arglasses.sim;
+
+import com.atakmap.android.arglasses.protocol.ARGlassesProtocol;
+import com.atakmap.android.arglasses.protocol.BinaryFrameEncoder;
+import com.atakmap.android.arglasses.protocol.FrameCompressor;
+import com.atakmap.android.arglasses.protocol.FrameEncoder;
+import com.atakmap.android.arglasses.protocol.HelloReply;
+import com.atakmap.android.arglasses.protocol.JsonFrameEncoder;
+import com.atakmap.android.arglasses.transport.NioTcpTransport;
+import com.atakmap.android.arglasses.transport.Transport;
+import com.atakmap.android.arglasses.transport.UdpTransport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Plays the plugin against the simulator, or real glasses, without ATAK:
+ * it runs the hello and sends POI, map and compass frames at fixed rates
+ * through the plugin's own encoders, compressor and transports, with pings
+ * for the round trip. Each frame is written as soon as it is built, so
+ * when the receiver reads slower than the frames are produced the writes
+ * block and the achieved rates drop, instead of frames being replaced like
+ * in the plugin's queue.
+ *
+ * The connection manager itself needs Android, run the plugin in an
+ * emulator against the simulator to exercise its queue and reconnects.
+ */
+public class LoadGenerator {
+    
+    private static final String USAGE = "Usage: LoadGenerator [options]\n"
+            + "  --host H               glasses host (127.0.0.1)\n"
+            + "  --port N               glasses TCP port (" + GlassesSimulator.DEFAULT_PORT + ")\n"
+            + "  --pois N               POIs in the scene (500)\n"
+            + "  --poi-rate HZ          POI frames per second (2)\n"
+            + "  --map-rate HZ          map frames per second (5)\n"
+            + "  --compass-rate HZ      compass frames per second (30)\n"
+            + "  --keyframe-every N     POI keyframe every N POI frames, deltas between (10)\n"
+            + "  --deflate M            off, frame or stream (frame)\n"
+            + "  --no-udp               keep the compass on TCP\n"
+            + "  --duration S           seconds to run (10)";
+    
+    // Channels, as in the plugin's scheduler
+    private static final int CHANNEL_POI = 0;
+    private static final int CHANNEL_MAP = 1;
+    private static final int CHANNEL_COMPASS = 2;
+    private static final int CHANNEL_COUNT = 3;
+    
+    private static final int HANDSHAKE_TIMEOUT_MS = 2000;
+    private static final long PING_INTERVAL_NANOS = 1000000000L;
+    
+    // Scene centre and spread of the synthetic POIs
+    private static final double CENTER_LAT = 38.8977;
+    private static final double CENTER_LON = -77.0365;
+    private static final double SPREAD = 0.05;
+    
+    private static final String[] TYPES = {
+            "a-f-G-U-C", "a-h-G", "a-n-G", "a-u-G", "b-m-p-s-m", "b-m-p-w"
+    };
+    
+    // Settings
+    private String host = "127.0.0.1";
+    private int port = GlassesSimulator.DEFAULT_PORT;
+    private int poiCount = 500;
+    private double[] rates = {2, 5, 30};
+    private int keyframeEvery = 10;
+    private int compressionMode = FrameCompressor.MODE_FRAME;
+    private boolean udpEnabled = true;
+    private long durationMs = 10000;
+    
+    private NioTcpTransport link;
+    private Transport poseLink;
+    private FrameEncoder encoder;
+    private FrameCompressor compressor;
+    private boolean stream;
+    private boolean keepalive;
+    private final long[] sent = new long[CHANNEL_COUNT];
+    private long bytesSent;
+    private int poiFrames;
+    
+    // Keepalive state
+    private final ByteBuffer inboundHeader = ByteBuffer.allocate(ARGlassesProtocol.HEADER_SIZE);
+    private final ByteBuffer inboundPayload = ByteBuffer.allocate(8);
+    private final ByteBuffer ping = ByteBuffer.allocate(8);
+    private long pongs;
+    private long roundTripNanos;
+    
+    /**
+     * Connect, send for the duration and print what was sent
+     * @param args The options, see USAGE
+     */
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            generator.connect();
+            generator.run();
+        } finally {
+            generator.close();
+        }
+    }
+    
+    /**
+     * Open the link and negotiate the format and features
+     * @throws IOException if the connection failed
+     */
+    private void connect() throws IOException {
+        link = new NioTcpTransport(host, port);
+        link.open();
+        int features = ARGlassesProtocol.FEATURE_KEEPALIVE;
+        if (udpEnabled) {
+            features |= ARGlassesProtocol.FEATURE_UDP_POSE;
+        }
+        if (compressionMode != FrameCompressor.MODE_OFF) {
+            features |= ARGlassesProtocol.FEATURE_DEFLATE;
+        }
+        link.write(ByteBuffer.wrap(ARGlassesProtocol.createHello(features)));
+        
+        HelloReply reply = null;
+        ByteBuffer header = ByteBuffer.allocate(ARGlassesProtocol.HEADER_SIZE);
+        if (link.read(header, HANDSHAKE_TIMEOUT_MS) == ARGlassesProtocol.HEADER_SIZE
+                && header.get(3) == ARGlassesProtocol.MSG_HELLO_REPLY
+                && header.getInt(4) >= ARGlassesProtocol.HELLO_REPLY_MIN_SIZE
+                && header.getInt(4) <= ARGlassesProtocol.HELLO_REPLY_MAX_SIZE) {
+            ByteBuffer payload = ByteBuffer.allocate(header.getInt(4));
+            link.read(payload, HANDSHAKE_TIMEOUT_MS);
+            payload.flip();
+            reply = HelloReply.parse(payload);
+        }
+        
+        boolean binary = reply != null && reply.getFormat() == ARGlassesProtocol.FORMAT_BINARY;
+        encoder = binary ? new BinaryFrameEncoder() : new JsonFrameEncoder();
+        if (binary && reply.hasFeature(ARGlassesProtocol.FEATURE_DEFLATE)
+                && compressionMode != FrameCompressor.MODE_OFF) {
+            compressor = new FrameCompressor(CHANNEL_COUNT);
+            stream = compressionMode == FrameCompressor.MODE_STREAM;
+        }
+        keepalive = binary && reply.hasFeature(ARGlassesProtocol.FEATURE_KEEPALIVE);
+        if (binary && reply.getUdpPort() > 0) {
+            poseLink = new UdpTransport(host, reply.getUdpPort());
+            poseLink.open();
+        }
+        GlassesSimulator.log("Connected to " + host + ":" + port + ", "
+                + ARGlassesProtocol.formatName(encoder.getFormat())
+                + (compressor != null ? (stream ? ", deflate stream" : ", deflate frames") : "")
+                + (poseLink != null ? ", compass over UDP" : ""));
+    }
+    
+    /**
+     * Send the frames of every channel when they are due
+     */
+    private void run() {
+        long start = System.nanoTime();
+        long end = start + durationMs * 1000000L;
+        long[] due = new long[CHANNEL_COUNT];
+        long[] period = new long[CHANNEL_COUNT];
+        for (int c = 0; c < CHANNEL_COUNT; c++) {
+            period[c] = rates[c] > 0 ? (long) (1e9 / rates[c]) : Long.MAX_VALUE;
+            due[c] = rates[c] > 0 ? start : Long.MAX_VALUE;
+        }
+        long nextPing = keepalive ? start : Long.MAX_VALUE;
+        
+        try {
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                long next = end;
+                for (int c = 0; c < CHANNEL_COUNT; c++) {
+                    if (now >= due[c]) {
+                        sendFrame(c);
+                        // A late frame does not cause a burst to catch up
+                        due[c] = Math.max(due[c] + period[c], now);
+                    }
+                    next = Math.min(next, due[c]);
+                }
+                if (now >= nextPing) {
+                    sendPing(now);
+                    nextPing = now + PING_INTERVAL_NANOS;
+                }
+                if (keepalive) {
+                    readPongs();
+                }
+                
+                long wait = Math.min(next, nextPing) - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Writes time out when the glasses stop reading
+            GlassesSimulator.log("Link failed: " + e);
+        }
+        
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.US,
+                "Sent %d POI, %d map and %d compass frames, %d bytes in %.1f s: %.1f KB/s",
+                sent[CHANNEL_POI], sent[CHANNEL_MAP], sent[CHANNEL_COMPASS],
+                bytesSent, seconds, bytesSent / 1024.0 / seconds));
+        if (pongs > 0) {
+            System.out.println(String.format(Locale.US, "%d pongs, round trip %.2f ms",
+                    pongs, roundTripNanos / 1e6));
+        }
+        if (compressor != null) {
+            for (int c = 0; c < CHANNEL_COUNT; c++) {
+                System.out.println("Channel " + c + " compression: " + compressor.getStats(c));
+            }
+        }
+    }
+    
+    private void sendFrame(int channel) throws IOException {
+        long now = System.currentTimeMillis();
+        encoder.begin(now);
+        switch (channel) {
+            case CHANNEL_POI:
+                writePois(now);
+                break;
+            case CHANNEL_MAP:
+                encoder.writeMap(true, CENTER_LAT, CENTER_LON, 20, 15, 0);
+                break;
+            default:
+                float heading = (now % 36000) / 100f;
+                encoder.writeCompass(heading, 2, 0, 10, 0, 0, 30);
+                break;
+        }
+        ByteBuffer frame = encoder.finishBuffer();
+        
+        Transport target = channel == CHANNEL_COMPASS && poseLink != null ? poseLink : link;
+        if (encoder.getFormat() == ARGlassesProtocol.FORMAT_JSON) {
+            bytesSent += frame.remaining();
+            link.write(frame);
+        } else {
+            ByteBuffer payload = frame;
+            int type = ARGlassesProtocol.MSG_DATA;
+            if (compressor != null) {
+                type = compressor.compress(channel, frame, stream && target == link);
+                if (type != ARGlassesProtocol.MSG_DATA) {
+                    payload = compressor.getOutput();
+                }
+            }
+            bytesSent += ARGlassesProtocol.HEADER_SIZE + payload.remaining();
+            target.writeMessage(type, payload);
+        }
+        sent[channel]++;
+    }
+    
+    /**
+     * Write the POIs, moving a twentieth of them every frame, as a
+     * keyframe every keyframeEvery frames and as a delta in between
+     * @param now The frame time in ms
+     */
+    private void writePois(long now) {
+        boolean keyframe = encoder.getFormat() == ARGlassesProtocol.FORMAT_JSON
+                || poiFrames % keyframeEvery == 0;
+        int moving = poiFrames % 20;
+        poiFrames++;
+        encoder.beginPois(keyframe);
+        for (int i = 0; i < poiCount; i++) {
+            if (!keyframe && i % 20 != moving) {
+                continue;
+            }
+            // Spread over a square around the centre, moving ones drift
+            double lat = CENTER_LAT + SPREAD * ((i * 7919 % 1000) / 500.0 - 1);
+            double lon = CENTER_LON + SPREAD * ((i * 104729 % 1000) / 500.0 - 1)
+                    + (i % 20 == moving ? (now % 60000) * 1e-8 : 0);
+            encoder.writePoi("ANDROID-sim-" + i, "Marker " + i, TYPES[i % TYPES.length],
+                    lat, lon, 20 + i % 50, 0xFFFF0000, 0, 0, 0);
+        }
+        encoder.endPois();
+    }
+    
+    private void sendPing(long now) throws IOException {
+        ping.clear();
+        ping.putLong(now);
+        ping.flip();
+        link.writeMessage(ARGlassesProtocol.MSG_PING, ping);
+    }
+    
+    /**
+     * Read whatever pongs arrived, without waiting
+     */
+    private void readPongs() throws IOException {
+        while (true) {
+            if (inboundHeader.hasRemaining()) {
+                link.read(inboundHeader, 0);
+                if (inboundHeader.hasRemaining()) {
+                    return;
+                }
+                if (inboundHeader.get(3) != ARGlassesProtocol.MSG_PONG
+                        || inboundHeader.getInt(4) != inboundPayload.capacity()) {
+                    throw new IOException("Unexpected message from the glasses");
+                }
+                inboundPayload.clear();
+            }
+            link.read(inboundPayload, 0);
+            if (inboundPayload.hasRemaining()) {
+                return;
+            }
+            long rtt = System.nanoTime() - inboundPayload.getLong(0);
+            roundTripNanos = pongs == 0 ? rtt : roundTripNanos + (rtt - roundTripNanos) / 8;
+            pongs++;
+            inboundHeader.clear();
+        }
+    }
+    
+    private void close() {
+        if (link != null) {
+            link.close();
+        }
+        if (poseLink != null) {
+            poseLink.close();
+        }
+        if (compressor != null) {
+            compressor.end();
+        }
+    }
+    
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            switch (option) {
+                case "--host":
+                    host = GlassesSimulator.stringArgument(args, ++i, option);
+                    break;
+                case "--port":
+                    port = GlassesSimulator.intArgument(args, ++i, option);
+                    break;
+                case "--pois":
+                    poiCount = GlassesSimulator.intArgument(args, ++i, option);
+                    break;
+                case "--poi-rate":
+                    rates[CHANNEL_POI] = rateArgument(args, ++i, option);
+                    break;
+                case "--map-rate":
+                    rates[CHANNEL_MAP] = rateArgument(args, ++i, option);
+                    break;
+                case "--compass-rate":
+                    rates[CHANNEL_COMPASS] = rateArgument(args, ++i, option);
+                    break;
+                case "--keyframe-every":
+                    keyframeEvery = Math.max(1, GlassesSimulator.intArgument(args, ++i, option));
+                    break;
+                case "--deflate":
+                    String mode = GlassesSimulator.stringArgument(args, ++i, option);
+                    if (mode.equals("off")) {
+                        compressionMode = FrameCompressor.MODE_OFF;
+                    } else if (mode.equals("frame")) {
+                        compressionMode = FrameCompressor.MODE_FRAME;
+                    } else if (mode.equals("stream")) {
+                        compressionMode = FrameCompressor.MODE_STREAM;
+                    } else {
+                        throw new IllegalArgumentException("Unknown deflate mode " + mode);
+                    }
+                    break;
+                case "--no-udp":
+                    udpEnabled = false;
+                    break;
+                case "--duration":
+                    durationMs = GlassesSimulator.secondsArgument(args, ++i, option);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+    }
+    
+    private static double rateArgument(String[] args, int index, String option) {
+        try {
+            return Double.parseDouble(GlassesSimulator.stringArgument(args, index, option));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a rate in Hz");
+        }
+    }
+}
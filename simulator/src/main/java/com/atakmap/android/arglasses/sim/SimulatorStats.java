@@ -0,0 +1,198 @@
+package com.atakmap.android.arglasses.sim;
+
+import com.atakmap.android.arglasses.metrics.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What the simulated glasses received: frames and bytes per kind, the
+ * end-to-end latency from the frame time stamp to its arrival, frames
+ * missing from the sequence, decode errors and the faults injected.
+ *
+ * Latency compares the plugin clock with the local one, so it is only
+ * meaningful when both run on the same machine or have synced clocks, and
+ * only to the millisecond of the frame time stamps.
+ */
+class SimulatorStats {
+    
+    // Counters
+    static final int COUNTER_BYTES = 0; // Bytes received, with headers
+    static final int COUNTER_DATAGRAMS = 1; // Pose datagrams received
+    static final int COUNTER_DECODE_ERRORS = 2;
+    static final int COUNTER_PINGS = 3; // Pings answered
+    static final int COUNTER_CONNECTIONS = 4;
+    static final int COUNTER_STALLS = 5; // Injected stalls
+    static final int COUNTER_DISCONNECTS = 6; // Injected disconnects
+    static final int COUNTER_REFUSED = 7; // Connections hung up on
+    static final int COUNTER_ACKS = 8; // Data frames acknowledged
+    static final int COUNTER_COUNT = 9;
+    
+    private static final String[] KIND_NAMES = {
+            "POI", "Map", "Compass"
+    };
+    
+    private final LatencyHistogram[] latency = new LatencyHistogram[FrameDecoder.KIND_COUNT];
+    private final LatencyHistogram compassInterval = new LatencyHistogram();
+    private final AtomicLongArray frames = new AtomicLongArray(FrameDecoder.KIND_COUNT);
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_COUNT);
+    private final long startedAt = System.nanoTime();
+    
+    // Sequence numbers of the current connection, guarded by this. Pose
+    // datagrams share the sequence with the TCP frames.
+    private int firstSequence = -1;
+    private int lastSequence;
+    private long sequenceReceived;
+    private long missing;
+    
+    // Report interval state, only touched by the reporting thread
+    private long intervalAt = System.nanoTime();
+    private long intervalBytes;
+    private long intervalFrames;
+    
+    SimulatorStats() {
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+        }
+    }
+    
+    /**
+     * Count a decoded frame
+     * @param decoder The decoder holding the frame
+     * @param receivedAt The local time the frame arrived, in ms since the epoch
+     */
+    void recordFrame(FrameDecoder decoder, long receivedAt) {
+        int kind = decoder.getKind();
+        frames.incrementAndGet(kind);
+        if (decoder.getTimestamp() > 0) {
+            long nanos = (receivedAt - decoder.getTimestamp()) * 1000000L;
+            latency[kind].record(nanos);
+            if (kind == FrameDecoder.KIND_COMPASS) {
+                compassInterval.record(nanos);
+            }
+        }
+        if (decoder.getSequence() >= 0) {
+            recordSequence(decoder.getSequence());
+        }
+    }
+    
+    /**
+     * Add to a counter
+     * @param counter One of the COUNTER_ constants
+     * @param delta The amount to add
+     */
+    void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+    
+    /**
+     * Get a counter
+     * @param counter One of the COUNTER_ constants
+     * @return The count since the simulator started
+     */
+    long getCounter(int counter) {
+        return counters.get(counter);
+    }
+    
+    /**
+     * Start counting the sequence of a new connection, which need not
+     * follow on the sequence of the last
+     */
+    synchronized void startSequence() {
+        missing += getSequenceMissing();
+        firstSequence = -1;
+        sequenceReceived = 0;
+    }
+    
+    /**
+     * Get the frames missing from the sequence over all connections. These
+     * are frames the plugin built but replaced in its queue before writing
+     * them, and pose datagrams lost on the way.
+     * @return The number of missing frames
+     */
+    synchronized long getMissing() {
+        return missing + getSequenceMissing();
+    }
+    
+    /**
+     * Get the number of frames received
+     * @return The frames of every kind
+     */
+    long getFrames() {
+        long total = 0;
+        for (int i = 0; i < frames.length(); i++) {
+            total += frames.get(i);
+        }
+        return total;
+    }
+    
+    /**
+     * Describe the last report interval in one line
+     * @param poiCount The POIs the glasses currently hold
+     * @return The line
+     */
+    String getIntervalLine(int poiCount) {
+        long now = System.nanoTime();
+        long bytes = counters.get(COUNTER_BYTES);
+        long total = getFrames();
+        double seconds = Math.max(1e-3, (now - intervalAt) / 1e9);
+        String line = String.format(Locale.US,
+                "%7.1f KB/s %6.1f frames/s | compass p50 %d / p99 %d ms"
+                        + " | missing %d, errors %d, POIs %d",
+                (bytes - intervalBytes) / 1024.0 / seconds, (total - intervalFrames) / seconds,
+                compassInterval.getPercentileUs(0.5) / 1000,
+                compassInterval.getPercentileUs(0.99) / 1000,
+                getMissing(), counters.get(COUNTER_DECODE_ERRORS), poiCount);
+        compassInterval.reset();
+        intervalAt = now;
+        intervalBytes = bytes;
+        intervalFrames = total;
+        return line;
+    }
+    
+    /**
+     * Describe everything received since the start
+     * @return The summary, several lines
+     */
+    String getSummary() {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startedAt) / 1e9);
+        long bytes = counters.get(COUNTER_BYTES);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "Received %d frames, %d bytes in %.1f s: %.1f KB/s, %.1f frames/s\n",
+                getFrames(), bytes, seconds, bytes / 1024.0 / seconds, getFrames() / seconds));
+        sb.append(String.format(Locale.US,
+                "Missing %d, decode errors %d, pose datagrams %d, pings answered %d, acks %d\n",
+                getMissing(), counters.get(COUNTER_DECODE_ERRORS),
+                counters.get(COUNTER_DATAGRAMS), counters.get(COUNTER_PINGS),
+                counters.get(COUNTER_ACKS)));
+        sb.append(String.format(Locale.US,
+                "Connections %d, injected stalls %d, disconnects %d, refused %d",
+                counters.get(COUNTER_CONNECTIONS), counters.get(COUNTER_STALLS),
+                counters.get(COUNTER_DISCONNECTS), counters.get(COUNTER_REFUSED)));
+        for (int i = 0; i < latency.length; i++) {
+            if (frames.get(i) > 0) {
+                sb.append("\n").append(KIND_NAMES[i]).append(": ").append(frames.get(i))
+                        .append(" frames, latency ").append(latency[i]);
+            }
+        }
+        return sb.toString();
+    }
+    
+    private synchronized void recordSequence(int sequence) {
+        if (firstSequence < 0) {
+            firstSequence = sequence;
+            lastSequence = sequence;
+        } else if (sequence < firstSequence) {
+            // A datagram that overtook the first TCP frame
+            firstSequence = sequence;
+        }
+        lastSequence = Math.max(lastSequence, sequence);
+        sequenceReceived++;
+    }
+    
+    private long getSequenceMissing() {
+        return firstSequence < 0 ? 0
+                : Math.max(0, lastSequence - firstSequence + 1 - sequenceReceived);
+    }
+}